@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * settings of the http dispatcher's batching, that posts many records in one length-delimited body
+ */
+public class HttpBatchConfig {
+    public final static String BATCH_CONFIG_KEY = "batch";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String MAX_RECORDS_CONFIG_KEY = "max.records";
+    private final static String MAX_BYTES_CONFIG_KEY = "max.bytes";
+    private final static String LINGER_MILLIS_CONFIG_KEY = "linger.millis";
+    private final static String MAX_IN_FLIGHT_CONFIG_KEY = "max.inflight";
+
+    private final boolean enabled;
+    private final int maxRecords;
+    private final int maxBytes;
+    private final long lingerMillis;
+    private final int maxInFlight;
+
+    HttpBatchConfig(final boolean enabled,
+                    final int maxRecords,
+                    final int maxBytes,
+                    final long lingerMillis,
+                    final int maxInFlight) {
+        Validate.isTrue(maxRecords > 0, "http batch max records should be > 0");
+        Validate.isTrue(maxBytes > 0, "http batch max bytes should be > 0");
+        Validate.isTrue(lingerMillis > 0, "http batch linger millis should be > 0");
+        Validate.isTrue(maxInFlight > 0, "http batch max inflight should be > 0");
+
+        this.enabled = enabled;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static HttpBatchConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final int maxRecords = config.hasPath(MAX_RECORDS_CONFIG_KEY) ? config.getInt(MAX_RECORDS_CONFIG_KEY) : 500;
+        final int maxBytes = config.hasPath(MAX_BYTES_CONFIG_KEY) ? config.getInt(MAX_BYTES_CONFIG_KEY) : 1024 * 1024;
+        final long lingerMillis = config.hasPath(LINGER_MILLIS_CONFIG_KEY) ? config.getLong(LINGER_MILLIS_CONFIG_KEY) : 50L;
+        final int maxInFlight = config.hasPath(MAX_IN_FLIGHT_CONFIG_KEY) ? config.getInt(MAX_IN_FLIGHT_CONFIG_KEY) : 4;
+
+        return new HttpBatchConfig(enabled, maxRecords, maxBytes, lingerMillis, maxInFlight);
+    }
+}
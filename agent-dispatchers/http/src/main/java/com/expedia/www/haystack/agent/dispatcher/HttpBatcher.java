@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.buildMetricName;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newHistogram;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newMeter;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newTimer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+
+/**
+ * packs the records of the http dispatcher in length-delimited bodies, every record prefixed by its size as a protobuf
+ * varint the way {@code writeDelimitedTo} writes it, so the collector can read them back with {@code parseDelimitedFrom}.
+ * A body is posted once it has max records, once the next record would take it over max bytes, or once it has lingered
+ * for linger millis. A batch takes one of the max inflight permits when it is opened, and gives it back once the collector
+ * answers its post, so a closed batch is always posted. A record that would need a new batch while no permit is left
+ * fails with a rate limit error before it joins any batch, so neither the callers nor the linger thread ever wait for
+ * the collector, and the records already batched are never dropped
+ */
+class HttpBatcher implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(HttpBatcher.class);
+
+    /**
+     * posts a body to the collector
+     */
+    interface Sender {
+        void send(byte[] body, Runnable onSuccess, Consumer<Throwable> onFailure);
+    }
+
+    private final String dispatcherName;
+    private final HttpBatchConfig config;
+    private final Sender sender;
+    private final long closeTimeoutMillis;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService lingerScheduler;
+    private final Histogram batchRecords;
+    private final Timer flushTimer;
+    private final Meter rejectedMeter;
+
+    // guarded by this
+    private Batch current;
+
+    HttpBatcher(final String dispatcherName,
+                final HttpBatchConfig config,
+                final Sender sender,
+                final String agentName,
+                final long closeTimeoutMillis) {
+        this.dispatcherName = dispatcherName;
+        this.config = config;
+        this.sender = sender;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+        this.lingerScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "http-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batchRecords = newHistogram(buildMetricName(agentName, "http.batch.records"));
+        this.flushTimer = newTimer(buildMetricName(agentName, "http.batch.flush.timer"));
+        this.rejectedMeter = newMeter(buildMetricName(agentName, "http.batch.rejected"));
+    }
+
+    /**
+     * adds the record to the open batch
+     * @param data serialized record
+     * @return a future that completes once the collector acknowledges the batch of the record, or fails with its error.
+     * It fails with a rate limit error right away if the record needs a new batch and max inflight batches are open or
+     * wait for the collector
+     */
+    CompletableFuture<DispatchAck> append(final byte[] data) {
+        final int size = varintSize(data.length) + data.length;
+        Batch full = null;
+        Batch reachedMax = null;
+        final Batch batch;
+        synchronized (this) {
+            if (current != null && current.body.size() + size > config.getMaxBytes()) {
+                full = closeCurrent();
+            }
+            if (current == null && inFlight.tryAcquire()) {
+                current = openBatch();
+            }
+            batch = current;
+            if (batch != null) {
+                batch.add(data);
+                if (batch.records >= config.getMaxRecords() || batch.body.size() >= config.getMaxBytes()) {
+                    reachedMax = closeCurrent();
+                }
+            }
+        }
+        send(full);
+        send(reachedMax);
+        return batch == null ? reject() : batch.ack;
+    }
+
+    /**
+     * adds the records to the open batch, the ones that don't fit go to the next batches
+     * @param records records of the dispatcher
+     * @return a future that completes once the collector acknowledges all the batches of the records, or fails with
+     * the error of the first batch that fails. Once a record is rejected as max inflight batches are open or wait for
+     * the collector, the next ones are rejected with it
+     */
+    CompletableFuture<DispatchAck> appendAll(final List<DispatchRecord> records) {
+        final List<CompletableFuture<DispatchAck>> acks = new ArrayList<>();
+        CompletableFuture<DispatchAck> last = null;
+        for (int idx = 0; idx < records.size(); idx++) {
+            final CompletableFuture<DispatchAck> ack = append(records.get(idx).getData());
+            if (ack.isCompletedExceptionally()) {
+                rejectedMeter.mark(records.size() - idx - 1);
+                acks.add(ack);
+                break;
+            }
+            if (ack != last) {
+                acks.add(ack);
+                last = ack;
+            }
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[acks.size()]))
+                .thenApply(ignored -> new DispatchAck(dispatcherName));
+    }
+
+    // caller holds the lock
+    private Batch openBatch() {
+        final Batch batch = new Batch();
+        batch.linger = lingerScheduler.schedule(() -> expire(batch), config.getLingerMillis(), TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    // caller holds the lock
+    private Batch closeCurrent() {
+        final Batch batch = current;
+        current = null;
+        batch.linger.cancel(false);
+        return batch;
+    }
+
+    private void expire(final Batch batch) {
+        synchronized (this) {
+            if (current != batch) {
+                return;
+            }
+            current = null;
+        }
+        send(batch);
+    }
+
+    private CompletableFuture<DispatchAck> reject() {
+        rejectedMeter.mark();
+        return DispatchAck.failed(new RateLimitException(String.format(
+                "fail to batch the http record as %d batches are open or wait for the collector", config.getMaxInFlight())));
+    }
+
+    // the batch holds a permit of in flight since it was opened
+    private void send(final Batch batch) {
+        if (batch == null) {
+            return;
+        }
+
+        batchRecords.update(batch.records);
+        final Timer.Context timer = flushTimer.time();
+        // the permit is released once, whether the sender answers or throws
+        final AtomicBoolean done = new AtomicBoolean();
+        final Consumer<Throwable> finish = error -> {
+            if (done.compareAndSet(false, true)) {
+                timer.close();
+                inFlight.release();
+                if (error == null) {
+                    batch.ack.complete(new DispatchAck(dispatcherName));
+                } else {
+                    batch.ack.completeExceptionally(error);
+                }
+            }
+        };
+
+        try {
+            sender.send(batch.body.toByteArray(), () -> finish.accept(null), finish);
+        } catch (RuntimeException e) {
+            LOGGER.error("Fail to post the http batch of {} records", batch.records, e);
+            finish.accept(e);
+        }
+    }
+
+    /**
+     * posts the open batch and waits for the posted batches, at most for the close timeout
+     */
+    @Override
+    public void close() {
+        final Batch batch;
+        synchronized (this) {
+            batch = current == null ? null : closeCurrent();
+        }
+        lingerScheduler.shutdownNow();
+        send(batch);
+
+        try {
+            if (!inFlight.tryAcquire(config.getMaxInFlight(), closeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Fail to get the acks of the http batches posted before the close in {} ms", closeTimeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static int varintSize(final int value) {
+        int size = 1;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            size++;
+            remaining >>>= 7;
+        }
+        return size;
+    }
+
+    private static void writeVarint(final ByteArrayOutputStream out, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write(remaining);
+    }
+
+    private static final class Batch {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+        private int records;
+        private ScheduledFuture<?> linger;
+
+        void add(final byte[] data) {
+            writeVarint(body, data.length);
+            body.write(data, 0, data.length);
+            records++;
+        }
+    }
+}
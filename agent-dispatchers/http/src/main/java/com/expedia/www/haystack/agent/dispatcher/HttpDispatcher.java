@@ -18,10 +18,16 @@
 package com.expedia.www.haystack.agent.dispatcher;
 
 import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.buildMetricName;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newGauge;
 import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newMeter;
 import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newTimer;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -29,8 +35,14 @@ import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.BatchAck;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
 import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
 import com.typesafe.config.Config;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.ConnectionPool;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -46,12 +58,23 @@ public class HttpDispatcher implements Dispatcher {
     private static final String CALL_TIMEOUT_IN_MILLIS = "client.timeout.millis";
     private static final String MAX_IDLE_CONNECTIONS = "client.connectionpool.idle.max";
     private static final String KEEP_ALIVE_DURATION_IN_MINUTES = "client.connectionpool.keepalive.minutes";
+    private static final String MAX_REQUESTS = "client.requests.max";
+    private static final String MAX_REQUESTS_PER_HOST = "client.requests.host.max";
+    private static final String ASYNC_DISPATCH = "dispatch.async";
+    private static final String OUTSTANDING_REQUESTS_LIMIT = "outstanding.requests.limit";
+    private static final int DEFAULT_OUTSTANDING_REQUESTS_LIMIT = 1000;
 
     Timer dispatchTimer;
     Meter dispatchFailure;
+    Meter outstandingRequestsError;
 
     OkHttpClient client;
     String url;
+    HttpEndpointBalancer balancer;
+    HttpBatcher batcher;
+    boolean asyncDispatch;
+    int outstandingRequestsLimit = DEFAULT_OUTSTANDING_REQUESTS_LIMIT;
+    final AtomicInteger outstandingRequests = new AtomicInteger();
 
     @Override
     public String getName() {
@@ -60,13 +83,27 @@ public class HttpDispatcher implements Dispatcher {
 
     @Override
     public void dispatch(final byte[] ignored, final byte[] data) throws Exception {
-        RequestBody body = RequestBody.create(PROTOBUF, data);
-        Request request = new Request.Builder()
-                .url(url)
-                .post(body)
-                .build();
+        if (batcher != null) {
+            // the failures of the batch are recorded by the response callback
+            checkOutstandingRequests();
+            batcher.append(data);
+            return;
+        }
+        if (asyncDispatch) {
+            // the caller is not blocked till the collector responds, the failures are recorded by the response callback
+            reserveOutstandingRequests(1);
+            final Timer.Context timer = dispatchTimer.time();
+            try {
+                enqueue(data, new ResponseCallback(timer::close, error -> timer.close()));
+            } catch (RuntimeException e) {
+                releaseUnsent(1, e);
+                timer.close();
+                throw e;
+            }
+            return;
+        }
 
-        try (Timer.Context timer = dispatchTimer.time(); Response response = client.newCall(request).execute()) {
+        try (Timer.Context timer = dispatchTimer.time(); Response response = execute(data)) {
             if (!response.isSuccessful()) {
                 dispatchFailure.mark();
                 LOGGER.error("Fail to post the record to the http collector with status code {}", response.code());
@@ -77,34 +114,269 @@ public class HttpDispatcher implements Dispatcher {
         }
     }
 
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] ignored, final byte[] data) {
+        try {
+            if (batcher != null) {
+                checkOutstandingRequests();
+                final Timer.Context timer = dispatchTimer.time();
+                return batcher.append(data).whenComplete((result, error) -> timer.close());
+            }
+            reserveOutstandingRequests(1);
+        } catch (RateLimitException e) {
+            return DispatchAck.failed(e);
+        }
+
+        final Timer.Context timer = dispatchTimer.time();
+        final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+
+        // the call runs on the okhttp dispatcher's threads, the caller is not blocked till the collector responds
+        try {
+            enqueue(data, new ResponseCallback(
+                    () -> ack.complete(new DispatchAck(getName())),
+                    ack::completeExceptionally));
+        } catch (RuntimeException e) {
+            releaseUnsent(1, e);
+            ack.completeExceptionally(e);
+        }
+        return ack.whenComplete((result, error) -> timer.close());
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        try {
+            if (batcher != null) {
+                checkOutstandingRequests();
+                final Timer.Context timer = dispatchTimer.time();
+                return batcher.appendAll(records).whenComplete((result, error) -> timer.close());
+            }
+            // every record is a post of its own, a batch larger than the limit could never be reserved at once so
+            // it is posted in chunks that fit within the limit, one after the other
+            reserveOutstandingRequests(Math.min(records.size(), outstandingRequestsLimit));
+        } catch (RateLimitException e) {
+            return DispatchAck.failed(e);
+        }
+
+        // the whole batch shares one timer and one ack
+        final Timer.Context timer = dispatchTimer.time();
+        return postChunks(records, 0, Math.min(records.size(), outstandingRequestsLimit))
+                .whenComplete((result, error) -> timer.close());
+    }
+
+    // posts the reserved records [from, to) concurrently, the next chunk is reserved and posted once they succeed
+    private CompletableFuture<DispatchAck> postChunks(final List<DispatchRecord> records, final int from, final int to) {
+        final BatchAck batchAck = new BatchAck(getName(), to - from);
+        final Callback callback = new ResponseCallback(batchAck::onSuccess, batchAck::onFailure);
+        for (int idx = from; idx < to; idx++) {
+            try {
+                enqueue(records.get(idx).getData(), callback);
+            } catch (RuntimeException e) {
+                // the unsent records never reach the response callback, their reservations are released here
+                final int unsent = to - idx;
+                releaseUnsent(unsent, e);
+                for (int count = 0; count < unsent; count++) {
+                    batchAck.onFailure(e);
+                }
+                break;
+            }
+        }
+        if (to == records.size()) {
+            return batchAck.getAck();
+        }
+        return batchAck.getAck().thenCompose(result -> {
+            final int next = Math.min(records.size(), to + outstandingRequestsLimit);
+            try {
+                reserveOutstandingRequests(next - to);
+            } catch (RateLimitException e) {
+                return DispatchAck.failed(e);
+            }
+            return postChunks(records, to, next);
+        });
+    }
+
+    private void releaseUnsent(final int count, final RuntimeException e) {
+        outstandingRequests.addAndGet(-count);
+        dispatchFailure.mark(count);
+        LOGGER.error("Fail to enqueue {} records to the http collector", count, e);
+    }
+
+    // the bodies of the batcher are bounded by its max inflight, they are counted but never rejected here
+    private void post(final byte[] body, final Runnable onSuccess, final Consumer<Throwable> onFailure) {
+        outstandingRequests.incrementAndGet();
+        try {
+            enqueue(body, new ResponseCallback(onSuccess, onFailure));
+        } catch (RuntimeException e) {
+            outstandingRequests.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Response execute(final byte[] data) throws IOException {
+        if (balancer == null) {
+            return client.newCall(buildRequest(url, data)).execute();
+        }
+
+        final HttpEndpoint endpoint = balancer.choose();
+        endpoint.onStart();
+        boolean healthy = false;
+        try {
+            final Response response = endpoint.getClient().newCall(buildRequest(endpoint.getUrl(), data)).execute();
+            healthy = HttpEndpoint.isHealthy(response);
+            return response;
+        } finally {
+            endpoint.onFinish(healthy);
+        }
+    }
+
+    // every call given to the okhttp dispatcher is outstanding till its response callback runs, the caller has
+    // counted it in the outstanding requests
+    private void enqueue(final byte[] data, final Callback callback) {
+        if (balancer == null) {
+            client.newCall(buildRequest(url, data)).enqueue(callback);
+            return;
+        }
+
+        final HttpEndpoint endpoint = balancer.choose();
+        endpoint.onStart();
+        endpoint.getClient().newCall(buildRequest(endpoint.getUrl(), data)).enqueue(endpoint.track(callback));
+    }
+
+    private void checkOutstandingRequests() throws RateLimitException {
+        final int outstanding = outstandingRequests.get();
+        if (outstanding >= outstandingRequestsLimit) {
+            outstandingRequestsError.mark();
+            throw new RateLimitException(String.format(
+                    "fail to dispatch to the http collector due to rate limit, outstanding requests: %d", outstanding));
+        }
+    }
+
+    private void reserveOutstandingRequests(final int count) throws RateLimitException {
+        while (true) {
+            final int outstanding = outstandingRequests.get();
+            if (outstanding + count > outstandingRequestsLimit) {
+                outstandingRequestsError.mark();
+                throw new RateLimitException(String.format(
+                        "fail to dispatch %d records to the http collector due to rate limit, outstanding requests: %d",
+                        count, outstanding));
+            }
+            if (outstandingRequests.compareAndSet(outstanding, outstanding + count)) {
+                return;
+            }
+        }
+    }
+
+    private static Request buildRequest(final String url, final byte[] data) {
+        final RequestBody body = RequestBody.create(PROTOBUF, data);
+        return new Request.Builder()
+                .url(url)
+                .post(body)
+                .build();
+    }
+
     @Override
     public void initialize(final Config config) {
         final String agentName = config.hasPath("agentName") ? config.getString("agentName") : "";
 
-        Validate.notNull(config.getString(URL));
-        url = config.getString(URL);
-
         client = buildClient(config);
 
+        // with an 'endpoints' section the posts are spread over its collectors, else they all go to the 'url'
+        if (config.hasPath(HttpEndpointsConfig.ENDPOINTS_CONFIG_KEY)) {
+            final HttpEndpointsConfig endpointsConfig =
+                    HttpEndpointsConfig.from(config.getConfig(HttpEndpointsConfig.ENDPOINTS_CONFIG_KEY));
+            // every endpoint gets a connection pool of its own, they share the timeouts and the okhttp dispatcher
+            balancer = new HttpEndpointBalancer(endpointsConfig,
+                    endpointUrl -> client.newBuilder().connectionPool(buildConnectionPool(config)).build(), agentName);
+        } else {
+            Validate.notNull(config.getString(URL));
+            url = config.getString(URL);
+        }
+
+        asyncDispatch = config.hasPath(ASYNC_DISPATCH) && config.getBoolean(ASYNC_DISPATCH);
+        outstandingRequestsLimit = config.hasPath(OUTSTANDING_REQUESTS_LIMIT) ?
+                config.getInt(OUTSTANDING_REQUESTS_LIMIT) : DEFAULT_OUTSTANDING_REQUESTS_LIMIT;
+        Validate.isTrue(outstandingRequestsLimit > 0, "http outstanding requests limit should be > 0");
+
         dispatchTimer = newTimer(buildMetricName(agentName, "http.dispatch.timer"));
         dispatchFailure = newMeter(buildMetricName(agentName, "http.dispatch.failure"));
+        outstandingRequestsError = newMeter(buildMetricName(agentName, "http.dispatch.outstanding.requests.error"));
+        newGauge(buildMetricName(agentName, "http.outstanding.requests"), outstandingRequests::get);
+
+        // with a 'batch' section the records are posted many in a body, else every record is posted on its own
+        if (config.hasPath(HttpBatchConfig.BATCH_CONFIG_KEY)) {
+            final HttpBatchConfig batchConfig = HttpBatchConfig.from(config.getConfig(HttpBatchConfig.BATCH_CONFIG_KEY));
+            if (batchConfig.isEnabled()) {
+                batcher = new HttpBatcher(getName(), batchConfig, this::post, agentName, client.callTimeoutMillis());
+            }
+        }
 
         LOGGER.info("Successfully initialized the http dispatcher with config={}", config);
     }
 
     private OkHttpClient buildClient(Config config) {
         final int callTimeoutInMilliseconds = config.hasPath(CALL_TIMEOUT_IN_MILLIS) ? config.getInt(CALL_TIMEOUT_IN_MILLIS) : 1000;
-        final int maxIdleConnections = config.hasPath(MAX_IDLE_CONNECTIONS) ? config.getInt(MAX_IDLE_CONNECTIONS) : 5;
-        final int keepAliveDuration = config.hasPath(KEEP_ALIVE_DURATION_IN_MINUTES) ? config.getInt(KEEP_ALIVE_DURATION_IN_MINUTES) : 5;
 
         return new OkHttpClient.Builder()
                 .callTimeout(callTimeoutInMilliseconds, TimeUnit.MILLISECONDS)
-                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveDuration, TimeUnit.SECONDS))
+                .dispatcher(buildCallDispatcher(config))
+                .connectionPool(buildConnectionPool(config))
                 .build();
     }
 
+    private ConnectionPool buildConnectionPool(final Config config) {
+        final int maxIdleConnections = config.hasPath(MAX_IDLE_CONNECTIONS) ? config.getInt(MAX_IDLE_CONNECTIONS) : 5;
+        final int keepAliveDuration = config.hasPath(KEEP_ALIVE_DURATION_IN_MINUTES) ? config.getInt(KEEP_ALIVE_DURATION_IN_MINUTES) : 5;
+        return new ConnectionPool(maxIdleConnections, keepAliveDuration, TimeUnit.SECONDS);
+    }
+
+    // the okhttp dispatcher runs at most these many calls at once, the other enqueued calls wait in its queue
+    private okhttp3.Dispatcher buildCallDispatcher(final Config config) {
+        final okhttp3.Dispatcher callDispatcher = new okhttp3.Dispatcher();
+        callDispatcher.setMaxRequests(config.hasPath(MAX_REQUESTS) ? config.getInt(MAX_REQUESTS) : 64);
+        callDispatcher.setMaxRequestsPerHost(config.hasPath(MAX_REQUESTS_PER_HOST) ? config.getInt(MAX_REQUESTS_PER_HOST) : 5);
+        return callDispatcher;
+    }
+
+    private final class ResponseCallback implements Callback {
+        private final Runnable onSuccess;
+        private final Consumer<Throwable> onFailure;
+
+        ResponseCallback(final Runnable onSuccess, final Consumer<Throwable> onFailure) {
+            this.onSuccess = onSuccess;
+            this.onFailure = onFailure;
+        }
+
+        @Override
+        public void onFailure(final Call call, final IOException e) {
+            outstandingRequests.decrementAndGet();
+            dispatchFailure.mark();
+            LOGGER.error("Fail to post the record to the http collector", e);
+            onFailure.accept(e);
+        }
+
+        @Override
+        public void onResponse(final Call call, final Response response) {
+            outstandingRequests.decrementAndGet();
+            try (Response ignoredResponse = response) {
+                if (response.isSuccessful()) {
+                    onSuccess.run();
+                } else {
+                    dispatchFailure.mark();
+                    LOGGER.error("Fail to post the record to the http collector with status code {}", response.code());
+                    onFailure.accept(new IOException(
+                            "Fail to post the record to the http collector with status code " + response.code()));
+                }
+            }
+        }
+    }
+
     @Override
     public void close() {
         LOGGER.info("Closing the http dispatcher now...");
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (balancer != null) {
+            balancer.close();
+        }
     }
 }
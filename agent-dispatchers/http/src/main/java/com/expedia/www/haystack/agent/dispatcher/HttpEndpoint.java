@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a collector endpoint with its own client and connection pool. It counts the posts waiting for its answer and is
+ * ejected for 'ejection.millis' after 'ejection.failures' posts in a row failed, or got a 5xx status code. Once the
+ * ejection time is over it takes posts again and one more failure ejects it right away, till a post succeeds
+ */
+class HttpEndpoint {
+    private final String url;
+    private final OkHttpClient client;
+    private final int ejectionFailures;
+    private final long ejectionNanos;
+    private final Runnable onEjected;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedAtNanos;
+    private volatile boolean ejected;
+
+    HttpEndpoint(final String url,
+                 final OkHttpClient client,
+                 final int ejectionFailures,
+                 final long ejectionNanos,
+                 final Runnable onEjected) {
+        this.url = url;
+        this.client = client;
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionNanos = ejectionNanos;
+        this.onEjected = onEjected;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    OkHttpClient getClient() {
+        return client;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    boolean isEjected(final long nowNanos) {
+        return ejected && nowNanos - ejectedAtNanos < ejectionNanos;
+    }
+
+    void onStart() {
+        outstanding.incrementAndGet();
+    }
+
+    void onFinish(final boolean healthy) {
+        outstanding.decrementAndGet();
+        if (healthy) {
+            consecutiveFailures.set(0);
+            ejected = false;
+        } else if (consecutiveFailures.incrementAndGet() >= ejectionFailures) {
+            final long nowNanos = System.nanoTime();
+            if (!isEjected(nowNanos)) {
+                ejectedAtNanos = nowNanos;
+                ejected = true;
+                onEjected.run();
+            }
+        }
+    }
+
+    /**
+     * @return callback that records the outcome of the post on this endpoint before it calls the given one
+     */
+    Callback track(final Callback callback) {
+        return new Callback() {
+            @Override
+            public void onFailure(final Call call, final IOException e) {
+                onFinish(false);
+                callback.onFailure(call, e);
+            }
+
+            @Override
+            public void onResponse(final Call call, final Response response) throws IOException {
+                onFinish(isHealthy(response));
+                callback.onResponse(call, response);
+            }
+        };
+    }
+
+    // a 4xx status code is about the post, not about the health of the collector
+    static boolean isHealthy(final Response response) {
+        return response.code() < 500;
+    }
+
+    void close() {
+        client.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.buildMetricName;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newGauge;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newMeter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+/**
+ * spreads the posts of the http dispatcher over the collector endpoints, so they don't all go through one load
+ * balancer. The endpoint of a post is the one with the fewest outstanding posts, or the better one of two random
+ * endpoints, skipping the ejected endpoints. If all of them are ejected, the posts go to them anyway.
+ *
+ * With a 'file' the endpoints are read again once the file changes, the endpoints that stay keep their connections
+ * and counts. A file that can't be read or has no valid url is logged and the current endpoints are kept
+ */
+class HttpEndpointBalancer implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(HttpEndpointBalancer.class);
+
+    private final HttpEndpointsConfig config;
+    private final Function<String, OkHttpClient> clientFactory;
+    private final long ejectionNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Meter ejectionMeter;
+    private final ScheduledExecutorService fileWatcher;
+
+    private volatile List<HttpEndpoint> endpoints = Collections.emptyList();
+    // only read and written by the file watcher thread
+    private FileTime fileModifiedTime;
+
+    /**
+     * @param config endpoints settings
+     * @param clientFactory builds the client of an endpoint from its url
+     * @param agentName name of the agent
+     */
+    HttpEndpointBalancer(final HttpEndpointsConfig config,
+                         final Function<String, OkHttpClient> clientFactory,
+                         final String agentName) {
+        this.config = config;
+        this.clientFactory = clientFactory;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(config.getEjectionMillis());
+        this.ejectionMeter = newMeter(buildMetricName(agentName, "http.endpoint.ejection"));
+        newGauge(buildMetricName(agentName, "http.endpoints"), () -> endpoints.size());
+        newGauge(buildMetricName(agentName, "http.endpoints.ejected"), this::countEjected);
+
+        if (config.getFile() == null) {
+            update(config.getUrls());
+            this.fileWatcher = null;
+        } else {
+            final Path file = Paths.get(config.getFile());
+            try {
+                fileModifiedTime = Files.getLastModifiedTime(file);
+                update(readUrls(file));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Fail to read the http endpoints file " + file, e);
+            }
+            this.fileWatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "http-endpoints-file-watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fileWatcher.scheduleWithFixedDelay(() -> reloadIfModified(file),
+                    config.getFileRefreshMillis(), config.getFileRefreshMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    List<HttpEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return endpoint the next post goes to
+     */
+    HttpEndpoint choose() {
+        final List<HttpEndpoint> current = endpoints;
+        final long nowNanos = System.nanoTime();
+
+        HttpEndpoint chosen = null;
+        if (config.getPolicy() == HttpEndpointsConfig.Policy.POWER_OF_TWO_CHOICES) {
+            chosen = powerOfTwoChoices(current, nowNanos);
+        }
+        // both random picks can be ejected while other endpoints are healthy, those are scanned before the ejected ones
+        if (chosen == null) {
+            chosen = leastOutstanding(current, nowNanos, true);
+        }
+        if (chosen == null) {
+            chosen = leastOutstanding(current, nowNanos, false);
+        }
+        return chosen;
+    }
+
+    // the endpoints with as few outstanding posts take their turn, so an ejected endpoint doesn't double the posts of
+    // the one after it
+    private HttpEndpoint leastOutstanding(final List<HttpEndpoint> current, final long nowNanos, final boolean skipEjected) {
+        int least = Integer.MAX_VALUE;
+        int ties = 0;
+        for (final HttpEndpoint endpoint : current) {
+            if (isCandidate(endpoint, nowNanos, skipEjected)) {
+                final int outstanding = endpoint.getOutstanding();
+                if (outstanding < least) {
+                    least = outstanding;
+                    ties = 1;
+                } else if (outstanding == least) {
+                    ties++;
+                }
+            }
+        }
+        return ties == 0 ? null :
+                nthLeastOutstanding(current, nowNanos, skipEjected, least, (next.getAndIncrement() & Integer.MAX_VALUE) % ties);
+    }
+
+    private static HttpEndpoint nthLeastOutstanding(final List<HttpEndpoint> current,
+                                                    final long nowNanos,
+                                                    final boolean skipEjected,
+                                                    final int least,
+                                                    final int nth) {
+        int seen = 0;
+        for (final HttpEndpoint endpoint : current) {
+            if (isCandidate(endpoint, nowNanos, skipEjected) && endpoint.getOutstanding() <= least) {
+                if (seen == nth) {
+                    return endpoint;
+                }
+                seen++;
+            }
+        }
+        // the outstanding posts changed during the scan
+        return current.get(0);
+    }
+
+    private static boolean isCandidate(final HttpEndpoint endpoint, final long nowNanos, final boolean skipEjected) {
+        return !skipEjected || !endpoint.isEjected(nowNanos);
+    }
+
+    // null if both picks are ejected
+    private static HttpEndpoint powerOfTwoChoices(final List<HttpEndpoint> current, final long nowNanos) {
+        final int size = current.size();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(size);
+        final int second = size == 1 ? first : (first + 1 + random.nextInt(size - 1)) % size;
+        return better(current.get(first), current.get(second), nowNanos);
+    }
+
+    private static HttpEndpoint better(final HttpEndpoint a, final HttpEndpoint b, final long nowNanos) {
+        if (a.isEjected(nowNanos)) {
+            return b.isEjected(nowNanos) ? null : b;
+        }
+        if (b.isEjected(nowNanos)) {
+            return a;
+        }
+        return a.getOutstanding() <= b.getOutstanding() ? a : b;
+    }
+
+    /**
+     * replaces the endpoints with the given urls, the endpoints of the urls that stay are kept
+     * @param urls collector urls
+     */
+    void update(final List<String> urls) {
+        final LinkedHashSet<String> distinctUrls = new LinkedHashSet<>();
+        for (final String url : urls) {
+            Validate.isTrue(HttpUrl.parse(url) != null, "http endpoint url '%s' isn't valid", url);
+            distinctUrls.add(url);
+        }
+        Validate.isTrue(!distinctUrls.isEmpty(), "http endpoints should have at least one url");
+
+        final List<HttpEndpoint> updated = new ArrayList<>(distinctUrls.size());
+        final Map<String, HttpEndpoint> removed;
+        synchronized (this) {
+            removed = new HashMap<>();
+            for (final HttpEndpoint endpoint : endpoints) {
+                removed.put(endpoint.getUrl(), endpoint);
+            }
+            for (final String url : distinctUrls) {
+                final HttpEndpoint existing = removed.remove(url);
+                updated.add(existing == null ? newEndpoint(url) : existing);
+            }
+            endpoints = Collections.unmodifiableList(updated);
+        }
+
+        // the posts still running on the removed endpoints finish, only their idle connections are closed
+        removed.values().forEach(HttpEndpoint::close);
+        LOGGER.info("Balancing the http dispatcher posts over the endpoints {} with policy {}",
+                distinctUrls, config.getPolicy());
+    }
+
+    private HttpEndpoint newEndpoint(final String url) {
+        return new HttpEndpoint(url, clientFactory.apply(url), config.getEjectionFailures(), ejectionNanos, () -> {
+            ejectionMeter.mark();
+            LOGGER.warn("Ejecting the http endpoint {} for {} ms after {} failed posts in a row",
+                    url, config.getEjectionMillis(), config.getEjectionFailures());
+        });
+    }
+
+    private void reloadIfModified(final Path file) {
+        try {
+            final FileTime modifiedTime = Files.getLastModifiedTime(file);
+            if (!modifiedTime.equals(fileModifiedTime)) {
+                fileModifiedTime = modifiedTime;
+                update(readUrls(file));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Fail to reload the http endpoints file {}, keeping its {} current endpoints", file, endpoints.size(), e);
+        }
+    }
+
+    // one url a line, the blank lines and the lines starting with '#' are skipped
+    static List<String> readUrls(final Path file) throws IOException {
+        final List<String> urls = new ArrayList<>();
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String url = line.trim();
+            if (!url.isEmpty() && url.charAt(0) != '#') {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    private int countEjected() {
+        final long nowNanos = System.nanoTime();
+        int ejected = 0;
+        for (final HttpEndpoint endpoint : endpoints) {
+            if (endpoint.isEjected(nowNanos)) {
+                ejected++;
+            }
+        }
+        return ejected;
+    }
+
+    @Override
+    public void close() {
+        if (fileWatcher != null) {
+            fileWatcher.shutdownNow();
+        }
+        endpoints.forEach(HttpEndpoint::close);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * settings of the collector endpoints the http dispatcher balances its posts over, given as a list of urls or as a
+ * file of urls that is read again once it changes
+ */
+public class HttpEndpointsConfig {
+    public final static String ENDPOINTS_CONFIG_KEY = "endpoints";
+
+    private final static String URLS_CONFIG_KEY = "urls";
+    private final static String FILE_CONFIG_KEY = "file";
+    private final static String FILE_REFRESH_MILLIS_CONFIG_KEY = "file.refresh.millis";
+    private final static String POLICY_CONFIG_KEY = "policy";
+    private final static String EJECTION_FAILURES_CONFIG_KEY = "ejection.failures";
+    private final static String EJECTION_MILLIS_CONFIG_KEY = "ejection.millis";
+
+    public enum Policy {
+        // the endpoint with the fewest posts waiting for an answer, ties go round robin
+        LEAST_OUTSTANDING,
+        // the one of two random endpoints with the fewer posts waiting for an answer
+        POWER_OF_TWO_CHOICES;
+
+        static Policy from(final String value) {
+            return Policy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final List<String> urls;
+    private final String file;
+    private final long fileRefreshMillis;
+    private final Policy policy;
+    private final int ejectionFailures;
+    private final long ejectionMillis;
+
+    HttpEndpointsConfig(final List<String> urls,
+                        final String file,
+                        final long fileRefreshMillis,
+                        final Policy policy,
+                        final int ejectionFailures,
+                        final long ejectionMillis) {
+        Validate.isTrue(urls.isEmpty() ^ file == null, "http endpoints should have either a list of urls or a file");
+        Validate.isTrue(fileRefreshMillis > 0, "http endpoints file refresh millis should be > 0");
+        Validate.isTrue(ejectionFailures > 0, "http endpoints ejection failures should be > 0");
+        Validate.isTrue(ejectionMillis > 0, "http endpoints ejection millis should be > 0");
+
+        this.urls = urls;
+        this.file = file;
+        this.fileRefreshMillis = fileRefreshMillis;
+        this.policy = policy;
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public long getFileRefreshMillis() {
+        return fileRefreshMillis;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getEjectionFailures() {
+        return ejectionFailures;
+    }
+
+    public long getEjectionMillis() {
+        return ejectionMillis;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static HttpEndpointsConfig from(final Config config) {
+        final List<String> urls = config.hasPath(URLS_CONFIG_KEY) ? config.getStringList(URLS_CONFIG_KEY) : Collections.emptyList();
+        final String file = config.hasPath(FILE_CONFIG_KEY) ? config.getString(FILE_CONFIG_KEY) : null;
+        final long fileRefreshMillis = config.hasPath(FILE_REFRESH_MILLIS_CONFIG_KEY) ? config.getLong(FILE_REFRESH_MILLIS_CONFIG_KEY) : 10000L;
+        final Policy policy = config.hasPath(POLICY_CONFIG_KEY) ?
+                Policy.from(config.getString(POLICY_CONFIG_KEY)) : Policy.LEAST_OUTSTANDING;
+        final int ejectionFailures = config.hasPath(EJECTION_FAILURES_CONFIG_KEY) ? config.getInt(EJECTION_FAILURES_CONFIG_KEY) : 5;
+        final long ejectionMillis = config.hasPath(EJECTION_MILLIS_CONFIG_KEY) ? config.getLong(EJECTION_MILLIS_CONFIG_KEY) : 30000L;
+
+        return new HttpEndpointsConfig(urls, file, fileRefreshMillis, policy, ejectionFailures, ejectionMillis);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher
+
+import java.io.{ByteArrayInputStream, IOException}
+import java.util.concurrent.{CompletableFuture, ExecutionException, LinkedBlockingQueue, TimeUnit}
+import java.util.function.Consumer
+
+import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, RateLimitException}
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+class HttpBatcherSpec extends FunSpec with Matchers {
+
+  private case class Post(body: Array[Byte], onSuccess: Runnable, onFailure: Consumer[Throwable])
+
+  // keeps every body it is given, the test answers them
+  private class RecordingSender extends HttpBatcher.Sender {
+    val posts = new LinkedBlockingQueue[Post]()
+
+    override def send(body: Array[Byte], onSuccess: Runnable, onFailure: Consumer[Throwable]): Unit =
+      posts.put(Post(body, onSuccess, onFailure))
+
+    def nextPost(): Post = posts.poll(5, TimeUnit.SECONDS)
+  }
+
+  private def batcher(sender: RecordingSender,
+                      maxRecords: Int = 3,
+                      maxBytes: Int = 1024 * 1024,
+                      lingerMillis: Long = 60000L,
+                      maxInFlight: Int = 4) =
+    new HttpBatcher("http", new HttpBatchConfig(true, maxRecords, maxBytes, lingerMillis, maxInFlight), sender, "spans", 1000L)
+
+  private def span(id: Int) = Span.newBuilder().setTraceId(s"trace-$id").setSpanId(s"span-$id").build()
+
+  private def spanIds(body: Array[Byte]): Seq[String] = {
+    val in = new ByteArrayInputStream(body)
+    val ids = ListBuffer[String]()
+    var next = Span.parseDelimitedFrom(in)
+    while (next != null) {
+      ids += next.getSpanId
+      next = Span.parseDelimitedFrom(in)
+    }
+    ids
+  }
+
+  describe("Http batcher") {
+    it("should read the batch settings") {
+      val config = HttpBatchConfig.from(ConfigFactory.parseString(
+        """
+          |max.records = 100
+          |max.bytes = 65536
+          |linger.millis = 10
+          |max.inflight = 2
+        """.stripMargin))
+
+      config.isEnabled shouldBe true
+      config.getMaxRecords shouldBe 100
+      config.getMaxBytes shouldBe 65536
+      config.getLingerMillis shouldBe 10L
+      config.getMaxInFlight shouldBe 2
+
+      val defaults = HttpBatchConfig.from(ConfigFactory.parseString("enabled = false"))
+      defaults.isEnabled shouldBe false
+      defaults.getMaxRecords shouldBe 500
+      defaults.getMaxBytes shouldBe 1024 * 1024
+      defaults.getLingerMillis shouldBe 50L
+      defaults.getMaxInFlight shouldBe 4
+    }
+
+    it("should post a length-delimited body once the batch has max records") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender)
+
+      val acks = (1 to 3).map(id => httpBatcher.append(span(id).toByteArray))
+      acks.distinct.size shouldBe 1
+
+      val post = sender.nextPost()
+      spanIds(post.body) shouldBe Seq("span-1", "span-2", "span-3")
+      acks.head.isDone shouldBe false
+
+      post.onSuccess.run()
+      acks.head.get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "http"
+      httpBatcher.close()
+    }
+
+    it("should start a new batch when the record would take the body over max bytes") {
+      val sender = new RecordingSender
+      val recordSize = span(1).getSerializedSize + 1
+      val httpBatcher = batcher(sender, maxRecords = 100, maxBytes = recordSize * 2 + 1)
+
+      val acks = (1 to 3).map(id => httpBatcher.append(span(id).toByteArray))
+      acks(0) shouldBe theSameInstanceAs(acks(1))
+      acks(2) should not be theSameInstanceAs(acks(1))
+
+      val post = sender.nextPost()
+      spanIds(post.body) shouldBe Seq("span-1", "span-2")
+      sender.posts.isEmpty shouldBe true
+      httpBatcher.close()
+    }
+
+    it("should post the batch once it has lingered") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 100, lingerMillis = 20L)
+
+      val ack = httpBatcher.append(span(1).toByteArray)
+
+      val post = sender.nextPost()
+      post should not be null
+      spanIds(post.body) shouldBe Seq("span-1")
+
+      post.onSuccess.run()
+      ack.get(5, TimeUnit.SECONDS) should not be null
+      httpBatcher.close()
+    }
+
+    it("should fail the acks of the records of a batch the collector rejects") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 2)
+
+      val ack = httpBatcher.appendAll(Seq(1, 2).map(id => new DispatchRecord(null, span(id).toByteArray)).asJava)
+      sender.nextPost().onFailure.accept(new IOException("status code 503"))
+
+      val caught = intercept[ExecutionException] {
+        ack.get(5, TimeUnit.SECONDS)
+      }
+      caught.getCause shouldBe an[IOException]
+      httpBatcher.close()
+    }
+
+    it("should ack the records of many batches once all of them are acknowledged") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 2)
+
+      val ack = httpBatcher.appendAll((1 to 4).map(id => new DispatchRecord(null, span(id).toByteArray)).asJava)
+      val first = sender.nextPost()
+      val second = sender.nextPost()
+      spanIds(second.body) shouldBe Seq("span-3", "span-4")
+
+      first.onSuccess.run()
+      ack.isDone shouldBe false
+      second.onSuccess.run()
+      ack.get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "http"
+      httpBatcher.close()
+    }
+
+    it("should reject the record of the next batch with a rate limit error while max inflight batches wait for the collector") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 1, maxInFlight = 1)
+
+      httpBatcher.append(span(1).toByteArray)
+      val first = sender.nextPost()
+
+      val rejected = httpBatcher.append(span(2).toByteArray)
+      intercept[ExecutionException](rejected.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+      sender.posts.poll(100, TimeUnit.MILLISECONDS) shouldBe null
+
+      first.onSuccess.run()
+      val accepted = httpBatcher.append(span(3).toByteArray)
+      val third = sender.nextPost()
+      spanIds(third.body) shouldBe Seq("span-3")
+      third.onSuccess.run()
+      accepted.get(5, TimeUnit.SECONDS) should not be null
+      httpBatcher.close()
+    }
+
+    it("should reject the records of a batch that can't be posted before they join it") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 2, maxInFlight = 1)
+
+      val first = httpBatcher.appendAll((1 to 2).map(id => new DispatchRecord(null, span(id).toByteArray)).asJava)
+      val firstPost = sender.nextPost()
+
+      // the whole batch is rejected up front, the records already posted are not touched
+      val rejected = httpBatcher.appendAll((3 to 4).map(id => new DispatchRecord(null, span(id).toByteArray)).asJava)
+      intercept[ExecutionException](rejected.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+      first.isDone shouldBe false
+
+      firstPost.onSuccess.run()
+      first.get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "http"
+
+      val accepted = httpBatcher.appendAll((5 to 6).map(id => new DispatchRecord(null, span(id).toByteArray)).asJava)
+      val nextPost = sender.nextPost()
+      spanIds(nextPost.body) shouldBe Seq("span-5", "span-6")
+      nextPost.onSuccess.run()
+      accepted.get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "http"
+      httpBatcher.close()
+    }
+
+    it("should not block the linger thread while max inflight batches wait for the collector") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 100, lingerMillis = 20L, maxInFlight = 1)
+
+      httpBatcher.append(span(1).toByteArray)
+      sender.nextPost() should not be null
+
+      // the records of the next batches fail right away instead of waiting for the first one
+      val second = httpBatcher.append(span(2).toByteArray)
+      intercept[ExecutionException](second.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+      val third = httpBatcher.append(span(3).toByteArray)
+      intercept[ExecutionException](third.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+    }
+
+    it("should fail the batch and free its slot if the sender throws") {
+      val throwing = new RecordingSender {
+        @volatile var failing = true
+
+        override def send(body: Array[Byte], onSuccess: Runnable, onFailure: Consumer[Throwable]): Unit =
+          if (failing) throw new IllegalStateException("client is shut down") else super.send(body, onSuccess, onFailure)
+      }
+      val httpBatcher = batcher(throwing, maxRecords = 1, maxInFlight = 1)
+
+      val failed = httpBatcher.append(span(1).toByteArray)
+      intercept[ExecutionException](failed.get(5, TimeUnit.SECONDS)).getCause shouldBe a[IllegalStateException]
+
+      throwing.failing = false
+      val accepted = httpBatcher.append(span(2).toByteArray)
+      throwing.nextPost().onSuccess.run()
+      accepted.get(5, TimeUnit.SECONDS) should not be null
+      httpBatcher.close()
+    }
+
+    it("should post the open batch on close") {
+      val sender = new RecordingSender
+      val httpBatcher = batcher(sender, maxRecords = 100)
+
+      val ack = httpBatcher.append(span(1).toByteArray)
+      val closing = CompletableFuture.runAsync(new Runnable {
+        override def run(): Unit = httpBatcher.close()
+      })
+
+      val post = sender.nextPost()
+      spanIds(post.body) shouldBe Seq("span-1")
+      post.onSuccess.run()
+      closing.get(5, TimeUnit.SECONDS)
+      ack.isDone shouldBe true
+    }
+
+    it("should size the length prefix like a protobuf varint") {
+      HttpBatcher.varintSize(0) shouldBe 1
+      HttpBatcher.varintSize(127) shouldBe 1
+      HttpBatcher.varintSize(128) shouldBe 2
+      HttpBatcher.varintSize(16383) shouldBe 2
+      HttpBatcher.varintSize(16384) shouldBe 3
+    }
+  }
+}
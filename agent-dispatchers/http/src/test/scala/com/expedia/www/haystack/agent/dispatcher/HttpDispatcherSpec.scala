@@ -17,15 +17,41 @@
 
 package com.expedia.www.haystack.agent.dispatcher
 
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.util
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ExecutionException, TimeUnit}
+
 import com.codahale.metrics.{Meter, Timer}
 import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.{DispatchRecord, RateLimitException}
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
 import com.typesafe.config.ConfigFactory
 import okhttp3._
-import org.easymock.EasyMock
+import org.easymock.{CaptureType, EasyMock}
 import org.scalatest.mock.EasyMockSugar
 import org.scalatest.{FunSpec, Matchers}
 
 class HttpDispatcherSpec extends FunSpec with Matchers with EasyMockSugar {
+
+  // a collector on a free local port that answers every post with the given status code and counts them
+  private class Collector(status: Int) {
+    val posts = new AtomicInteger()
+    private val server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+    server.createContext("/span", new HttpHandler {
+      override def handle(exchange: HttpExchange): Unit = {
+        posts.incrementAndGet()
+        exchange.sendResponseHeaders(status, -1)
+        exchange.close()
+      }
+    })
+    server.start()
+
+    val url = s"http://localhost:${server.getAddress.getPort}/span"
+
+    def stop(): Unit = server.stop(0)
+  }
   describe("Http Span Dispatcher") {
     it("should dispatch span to http collector with success") {
       val dispatcher = new HttpDispatcher()
@@ -139,6 +165,339 @@ class HttpDispatcherSpec extends FunSpec with Matchers with EasyMockSugar {
       }
     }
 
+    it("should complete the async dispatch with the response of the http collector") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val dispatchFailure = mock[Meter]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+
+      def response(code: Int) = new Response.Builder()
+        .protocol(Protocol.HTTP_1_1)
+        .request(new Request.Builder().url("http://localhost:8080/span").build())
+        .code(code)
+        .body(ResponseBody.create(MediaType.get("text/plain"), ""))
+        .message("status")
+        .build
+
+      val callbacks = EasyMock.newCapture[Callback](CaptureType.ALL)
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).times(2)
+        httpCall.enqueue(EasyMock.capture(callbacks)).times(2)
+        timer.time().andReturn(timerContext).times(2)
+        timerContext.close().times(2)
+        dispatchFailure.mark().once()
+      }
+
+      whenExecuting(client, httpCall, timer, dispatchFailure, timerContext) {
+        val span = Span.newBuilder().setTraceId("traceid").build()
+        val success = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        val failure = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        success.isDone shouldBe false
+
+        callbacks.getValues.get(0).onResponse(httpCall, response(200))
+        callbacks.getValues.get(1).onResponse(httpCall, response(503))
+
+        success.get().getDispatcherName shouldEqual "http"
+        val caught = intercept[ExecutionException] {
+          failure.get()
+        }
+        caught.getCause.getMessage shouldEqual "Fail to post the record to the http collector with status code 503"
+      }
+    }
+
+    it("should post a batch of records with one timer and one ack") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val dispatchFailure = mock[Meter]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+
+      val callbacks = EasyMock.newCapture[Callback](CaptureType.ALL)
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).times(2)
+        httpCall.enqueue(EasyMock.capture(callbacks)).times(2)
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+        dispatchFailure.mark().once()
+      }
+
+      whenExecuting(client, httpCall, timer, dispatchFailure, timerContext) {
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList(
+          new DispatchRecord(null, "s1".getBytes("utf-8")),
+          new DispatchRecord(null, "s2".getBytes("utf-8"))))
+
+        callbacks.getValues.get(0).onFailure(httpCall, new IOException("connection reset"))
+        ack.isDone shouldBe false
+        callbacks.getValues.get(1).onResponse(httpCall, new Response.Builder()
+          .protocol(Protocol.HTTP_1_1)
+          .request(new Request.Builder().url("http://localhost:8080/span").build())
+          .code(200)
+          .body(ResponseBody.create(MediaType.get("text/plain"), ""))
+          .message("ok")
+          .build)
+
+        intercept[ExecutionException](ack.get()).getCause.getMessage shouldEqual "connection reset"
+      }
+    }
+
+    it("should enqueue the post without waiting for the collector in async dispatch mode") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val dispatchFailure = mock[Meter]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+      dispatcher.asyncDispatch = true
+
+      val callback = EasyMock.newCapture[Callback]()
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).once()
+        httpCall.enqueue(EasyMock.capture(callback)).once()
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+      }
+
+      whenExecuting(client, httpCall, timer, dispatchFailure, timerContext) {
+        val span = Span.newBuilder().setTraceId("traceid").build()
+        dispatcher.dispatch(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        dispatcher.outstandingRequests.get() shouldBe 1
+
+        callback.getValue.onResponse(httpCall, new Response.Builder()
+          .protocol(Protocol.HTTP_1_1)
+          .request(new Request.Builder().url("http://localhost:8080/span").build())
+          .code(200)
+          .body(ResponseBody.create(MediaType.get("text/plain"), ""))
+          .message("ok")
+          .build)
+        dispatcher.outstandingRequests.get() shouldBe 0
+      }
+    }
+
+    it("should reject the dispatch with a rate limit error once the outstanding requests reach the limit") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val dispatchFailure = mock[Meter]
+      val outstandingRequestsError = mock[Meter]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+      dispatcher.outstandingRequestsError = outstandingRequestsError
+      dispatcher.outstandingRequestsLimit = 1
+      dispatcher.asyncDispatch = true
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).once()
+        httpCall.enqueue(EasyMock.anyObject()).once()
+        timer.time().andReturn(timerContext).once()
+        outstandingRequestsError.mark().times(3)
+      }
+
+      whenExecuting(client, httpCall, timer, dispatchFailure, outstandingRequestsError, timerContext) {
+        val span = Span.newBuilder().setTraceId("traceid").build()
+        val accepted = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        accepted.isDone shouldBe false
+
+        val rejected = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        intercept[ExecutionException](rejected.get()).getCause shouldBe a[RateLimitException]
+
+        val rejectedBatch = dispatcher.dispatchBatchAsync(util.Arrays.asList(new DispatchRecord(null, span.toByteArray)))
+        intercept[ExecutionException](rejectedBatch.get()).getCause shouldBe a[RateLimitException]
+
+        intercept[RateLimitException] {
+          dispatcher.dispatch(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        }
+      }
+    }
+
+    it("should reserve an outstanding request for every record of a batch") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+      val outstandingRequestsError = mock[Meter]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.outstandingRequestsError = outstandingRequestsError
+      dispatcher.outstandingRequestsLimit = 2
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).times(2)
+        httpCall.enqueue(EasyMock.anyObject()).times(2)
+        timer.time().andReturn(timerContext).once()
+        outstandingRequestsError.mark().once()
+      }
+
+      whenExecuting(client, httpCall, timer, outstandingRequestsError, timerContext) {
+        def records(count: Int) = util.Arrays.asList((1 to count).map(idx => new DispatchRecord(null, s"s$idx".getBytes("utf-8"))): _*)
+
+        dispatcher.dispatchBatchAsync(records(2)).isDone shouldBe false
+        dispatcher.outstandingRequests.get() shouldBe 2
+
+        val rejected = dispatcher.dispatchBatchAsync(records(1))
+        intercept[ExecutionException](rejected.get()).getCause shouldBe a[RateLimitException]
+        dispatcher.outstandingRequests.get() shouldBe 2
+      }
+    }
+
+    it("should post a batch larger than the outstanding requests limit in chunks that fit within it") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.outstandingRequestsLimit = 2
+
+      val callbacks = EasyMock.newCapture[Callback](CaptureType.ALL)
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).times(3)
+        httpCall.enqueue(EasyMock.capture(callbacks)).times(3)
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+      }
+
+      whenExecuting(client, httpCall, timer, timerContext) {
+        def ok() = new Response.Builder()
+          .protocol(Protocol.HTTP_1_1)
+          .request(new Request.Builder().url("http://localhost:8080/span").build())
+          .code(200)
+          .body(ResponseBody.create(MediaType.get("text/plain"), ""))
+          .message("ok")
+          .build
+
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList((1 to 3).map(idx => new DispatchRecord(null, s"s$idx".getBytes("utf-8"))): _*))
+        callbacks.getValues.size() shouldBe 2
+        dispatcher.outstandingRequests.get() shouldBe 2
+
+        callbacks.getValues.get(0).onResponse(httpCall, ok())
+        callbacks.getValues.get(1).onResponse(httpCall, ok())
+        callbacks.getValues.size() shouldBe 3
+        dispatcher.outstandingRequests.get() shouldBe 1
+        ack.isDone shouldBe false
+
+        callbacks.getValues.get(2).onResponse(httpCall, ok())
+        dispatcher.outstandingRequests.get() shouldBe 0
+        ack.get().getDispatcherName shouldEqual "http"
+      }
+    }
+
+    it("should release the reservations of the records that fail to be enqueued and fail them in the ack") {
+      val dispatcher = new HttpDispatcher()
+      val client = mock[OkHttpClient]
+      val httpCall = mock[Call]
+      val timer = mock[Timer]
+      val dispatchFailure = mock[Meter]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.client = client
+      dispatcher.url = "http://localhost:8080/span"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+
+      val callback = EasyMock.newCapture[Callback]()
+
+      expecting {
+        client.newCall(EasyMock.anyObject()).andReturn(httpCall).times(3)
+        httpCall.enqueue(EasyMock.capture(callback)).once()
+        httpCall.enqueue(EasyMock.anyObject()).andThrow(new IllegalStateException("dispatcher is shut down")).times(2)
+        timer.time().andReturn(timerContext).times(2)
+        timerContext.close().times(2)
+        dispatchFailure.mark(2L).once()
+        dispatchFailure.mark(1L).once()
+      }
+
+      whenExecuting(client, httpCall, timer, dispatchFailure, timerContext) {
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList((1 to 3).map(idx => new DispatchRecord(null, s"s$idx".getBytes("utf-8"))): _*))
+        dispatcher.outstandingRequests.get() shouldBe 1
+        ack.isDone shouldBe false
+
+        callback.getValue.onResponse(httpCall, new Response.Builder()
+          .protocol(Protocol.HTTP_1_1)
+          .request(new Request.Builder().url("http://localhost:8080/span").build())
+          .code(200)
+          .body(ResponseBody.create(MediaType.get("text/plain"), ""))
+          .message("ok")
+          .build)
+        dispatcher.outstandingRequests.get() shouldBe 0
+        intercept[ExecutionException](ack.get()).getCause.getMessage shouldEqual "dispatcher is shut down"
+
+        val single = dispatcher.dispatchAsync(null, "s4".getBytes("utf-8"))
+        intercept[ExecutionException](single.get()).getCause shouldBe a[IllegalStateException]
+        dispatcher.outstandingRequests.get() shouldBe 0
+      }
+    }
+
+    it("should reject the records with a rate limit error before batching them once the limit is reached") {
+      val dispatcher = new HttpDispatcher()
+      dispatcher.initialize(ConfigFactory.parseString(
+        """
+          | url: "http://test:8080"
+          | outstanding.requests.limit: 1
+          | batch.max.records: 100
+        """.stripMargin))
+      dispatcher.outstandingRequests.set(1)
+
+      val span = Span.newBuilder().setTraceId("traceid").build()
+      intercept[ExecutionException](dispatcher.dispatchAsync(null, span.toByteArray).get()).getCause shouldBe a[RateLimitException]
+      intercept[ExecutionException](dispatcher.dispatchBatchAsync(
+        util.Arrays.asList(new DispatchRecord(null, span.toByteArray))).get()).getCause shouldBe a[RateLimitException]
+      intercept[RateLimitException](dispatcher.dispatch(null, span.toByteArray))
+
+      dispatcher.outstandingRequests.set(0)
+      dispatcher.close()
+    }
+
+    it("should read the limits of the async dispatch") {
+      val dispatcher = new HttpDispatcher()
+
+      dispatcher.initialize(ConfigFactory.parseString(
+        """
+          | url: "http://test:8080"
+          | client.requests.max: 32
+          | client.requests.host.max: 8
+          | dispatch.async: true
+          | outstanding.requests.limit: 200
+        """.stripMargin))
+
+      dispatcher.client.dispatcher().getMaxRequests shouldBe 32
+      dispatcher.client.dispatcher().getMaxRequestsPerHost shouldBe 8
+      dispatcher.asyncDispatch shouldBe true
+      dispatcher.outstandingRequestsLimit shouldBe 200
+    }
+
     it("should fail to initialize http dispatcher if url property isn't present") {
       val dispatcher = new HttpDispatcher()
       val caught = intercept[Exception] {
@@ -161,5 +520,60 @@ class HttpDispatcherSpec extends FunSpec with Matchers with EasyMockSugar {
       dispatcher.url shouldBe "http://test:8080"
       dispatcher.client.callTimeoutMillis() shouldBe 123
     }
+
+    it("should batch the records only if the config has an enabled batch section") {
+      val batching = new HttpDispatcher()
+      batching.initialize(ConfigFactory.parseString(
+        """
+          | url: "http://test:8080"
+          | batch.max.records: 100
+        """.stripMargin))
+      batching.batcher should not be null
+      batching.close()
+
+      val disabled = new HttpDispatcher()
+      disabled.initialize(ConfigFactory.parseString(
+        """
+          | url: "http://test:8080"
+          | batch.enabled: false
+        """.stripMargin))
+      disabled.batcher shouldBe null
+
+      val unbatched = new HttpDispatcher()
+      unbatched.initialize(ConfigFactory.parseString("""url: "http://test:8080""""))
+      unbatched.batcher shouldBe null
+    }
+
+    it("should spread the posts over the endpoints and skip the ejected one") {
+      val healthy1 = new Collector(200)
+      val healthy2 = new Collector(200)
+      val broken = new Collector(503)
+      val dispatcher = new HttpDispatcher()
+
+      try {
+        dispatcher.initialize(ConfigFactory.parseString(
+          s"""
+            | endpoints {
+            |   urls: ["${healthy1.url}", "${healthy2.url}", "${broken.url}"]
+            |   ejection.failures: 2
+            | }
+          """.stripMargin))
+        dispatcher.url shouldBe null
+        dispatcher.balancer.getEndpoints.size() shouldBe 3
+
+        val span = Span.newBuilder().setTraceId("traceid").build()
+        val failed = (1 to 30).count { _ =>
+          dispatcher.dispatchAsync(null, span.toByteArray).handle[Boolean]((_, error) => error != null).get(5, TimeUnit.SECONDS)
+        }
+
+        broken.posts.get() shouldBe 2
+        failed shouldBe 2
+        healthy1.posts.get() should be > 10
+        healthy2.posts.get() should be > 10
+      } finally {
+        dispatcher.close()
+        Seq(healthy1, healthy2, broken).foreach(_.stop())
+      }
+    }
   }
 }
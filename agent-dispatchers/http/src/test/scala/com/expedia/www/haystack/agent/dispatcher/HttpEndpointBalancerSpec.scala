@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.function.{Function => JFunction}
+
+import com.expedia.www.haystack.agent.dispatcher.HttpEndpointsConfig.Policy
+import com.typesafe.config.ConfigFactory
+import okhttp3.OkHttpClient
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class HttpEndpointBalancerSpec extends FunSpec with Matchers {
+
+  private val clientFactory = new JFunction[String, OkHttpClient] {
+    override def apply(url: String): OkHttpClient = new OkHttpClient()
+  }
+
+  private def balancer(urls: Seq[String],
+                       policy: Policy = Policy.LEAST_OUTSTANDING,
+                       ejectionFailures: Int = 2,
+                       ejectionMillis: Long = 60000L) =
+    new HttpEndpointBalancer(
+      new HttpEndpointsConfig(urls.asJava, null, 10000L, policy, ejectionFailures, ejectionMillis), clientFactory, "spans")
+
+  private def endpoint(balancer: HttpEndpointBalancer, url: String): HttpEndpoint =
+    balancer.getEndpoints.asScala.find(_.getUrl == url).get
+
+  private def fail(endpoint: HttpEndpoint, times: Int): Unit =
+    (1 to times).foreach { _ =>
+      endpoint.onStart()
+      endpoint.onFinish(false)
+    }
+
+  describe("Http endpoint balancer") {
+    it("should read the endpoints settings") {
+      val config = HttpEndpointsConfig.from(ConfigFactory.parseString(
+        """
+          |urls = ["http://collector-1:8080/span", "http://collector-2:8080/span"]
+          |policy = power-of-two-choices
+          |ejection.failures = 3
+          |ejection.millis = 5000
+        """.stripMargin))
+
+      config.getUrls.asScala shouldBe Seq("http://collector-1:8080/span", "http://collector-2:8080/span")
+      config.getFile shouldBe null
+      config.getPolicy shouldBe Policy.POWER_OF_TWO_CHOICES
+      config.getEjectionFailures shouldBe 3
+      config.getEjectionMillis shouldBe 5000L
+
+      val defaults = HttpEndpointsConfig.from(ConfigFactory.parseString("""file = "/etc/haystack/collectors""""))
+      defaults.getUrls shouldBe empty
+      defaults.getFile shouldBe "/etc/haystack/collectors"
+      defaults.getFileRefreshMillis shouldBe 10000L
+      defaults.getPolicy shouldBe Policy.LEAST_OUTSTANDING
+      defaults.getEjectionFailures shouldBe 5
+      defaults.getEjectionMillis shouldBe 30000L
+
+      intercept[IllegalArgumentException](HttpEndpointsConfig.from(ConfigFactory.empty()))
+      intercept[IllegalArgumentException](HttpEndpointsConfig.from(ConfigFactory.parseString(
+        """
+          |urls = ["http://collector-1:8080/span"]
+          |file = "/etc/haystack/collectors"
+        """.stripMargin)))
+    }
+
+    it("should fail on an invalid url") {
+      intercept[IllegalArgumentException](balancer(Seq("http://collector-1:8080/span", "collector-2")))
+    }
+
+    it("should pick the endpoint with the least outstanding posts") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span", "http://c3/span"))
+      endpoint(lb, "http://c1/span").onStart()
+      endpoint(lb, "http://c2/span").onStart()
+      endpoint(lb, "http://c2/span").onStart()
+
+      (1 to 10).foreach(_ => lb.choose().getUrl shouldBe "http://c3/span")
+
+      endpoint(lb, "http://c3/span").onStart()
+      endpoint(lb, "http://c3/span").onStart()
+      lb.choose().getUrl shouldBe "http://c1/span"
+    }
+
+    it("should go round robin over the endpoints with as many outstanding posts") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span", "http://c3/span"))
+      (1 to 6).map(_ => lb.choose().getUrl).groupBy(identity).mapValues(_.size) shouldBe
+        Map("http://c1/span" -> 2, "http://c2/span" -> 2, "http://c3/span" -> 2)
+    }
+
+    it("should pick the better one of two endpoints with the power of two choices") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span"), policy = Policy.POWER_OF_TWO_CHOICES)
+      endpoint(lb, "http://c1/span").onStart()
+
+      (1 to 10).foreach(_ => lb.choose().getUrl shouldBe "http://c2/span")
+    }
+
+    it("should skip an endpoint after its failures in a row till the ejection time is over") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span"), ejectionMillis = 100L)
+      val c1 = endpoint(lb, "http://c1/span")
+
+      fail(c1, 1)
+      c1.onStart()
+      c1.onFinish(true)
+      fail(c1, 1)
+      c1.isEjected(System.nanoTime()) shouldBe false
+
+      fail(c1, 1)
+      c1.isEjected(System.nanoTime()) shouldBe true
+      (1 to 10).foreach(_ => lb.choose().getUrl shouldBe "http://c2/span")
+
+      Thread.sleep(150)
+      c1.isEjected(System.nanoTime()) shouldBe false
+
+      // still failing after the ejection, one more failure is enough
+      fail(c1, 1)
+      c1.isEjected(System.nanoTime()) shouldBe true
+    }
+
+    it("should pick the healthy endpoint with the power of two choices even if both picks are ejected") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span", "http://c3/span"), policy = Policy.POWER_OF_TWO_CHOICES)
+      fail(endpoint(lb, "http://c1/span"), 2)
+      fail(endpoint(lb, "http://c2/span"), 2)
+      // the healthy endpoint has more outstanding posts than the ejected ones
+      endpoint(lb, "http://c3/span").onStart()
+
+      (1 to 30).foreach(_ => lb.choose().getUrl shouldBe "http://c3/span")
+    }
+
+    it("should keep posting to the endpoints if all of them are ejected") {
+      Seq(Policy.LEAST_OUTSTANDING, Policy.POWER_OF_TWO_CHOICES).foreach { policy =>
+        val lb = balancer(Seq("http://c1/span", "http://c2/span"), policy = policy)
+        lb.getEndpoints.asScala.foreach(fail(_, 2))
+
+        lb.choose() should not be null
+      }
+    }
+
+    it("should keep the endpoints of the urls that stay on update") {
+      val lb = balancer(Seq("http://c1/span", "http://c2/span"))
+      val c2 = endpoint(lb, "http://c2/span")
+
+      lb.update(Seq("http://c2/span", "http://c3/span", "http://c3/span").asJava)
+
+      lb.getEndpoints.asScala.map(_.getUrl) shouldBe Seq("http://c2/span", "http://c3/span")
+      endpoint(lb, "http://c2/span") should be theSameInstanceAs c2
+      lb.close()
+    }
+
+    it("should read the endpoints again once their file changes") {
+      val file = Files.createTempFile("collectors", ".txt")
+      file.toFile.deleteOnExit()
+      Files.write(file, "# collectors\nhttp://c1/span\n\nhttp://c2/span\n".getBytes(StandardCharsets.UTF_8))
+
+      val lb = new HttpEndpointBalancer(
+        new HttpEndpointsConfig(java.util.Collections.emptyList(), file.toString, 20L, Policy.LEAST_OUTSTANDING, 5, 30000L),
+        clientFactory, "spans")
+      lb.getEndpoints.asScala.map(_.getUrl) shouldBe Seq("http://c1/span", "http://c2/span")
+
+      Files.write(file, "http://c3/span\n".getBytes(StandardCharsets.UTF_8))
+      Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 5000))
+      val deadline = System.currentTimeMillis() + 5000
+      while (lb.getEndpoints.size() != 1 && System.currentTimeMillis() < deadline) Thread.sleep(10)
+      lb.getEndpoints.asScala.map(_.getUrl) shouldBe Seq("http://c3/span")
+
+      // an empty file is ignored and the endpoints are kept
+      Files.write(file, "# none\n".getBytes(StandardCharsets.UTF_8))
+      Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 10000))
+      Thread.sleep(100)
+      lb.getEndpoints.asScala.map(_.getUrl) shouldBe Seq("http://c3/span")
+      lb.close()
+    }
+  }
+}
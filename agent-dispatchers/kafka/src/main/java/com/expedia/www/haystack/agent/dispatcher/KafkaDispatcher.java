@@ -19,17 +19,25 @@ package com.expedia.www.haystack.agent.dispatcher;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.BatchAck;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
 import com.expedia.www.haystack.agent.core.Dispatcher;
 import com.expedia.www.haystack.agent.core.config.ConfigurationHelpers;
 import com.typesafe.config.Config;
 import org.apache.commons.lang3.Validate;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
@@ -43,7 +51,7 @@ public class KafkaDispatcher implements Dispatcher {
     Timer dispatchTimer;
     Meter dispatchFailure;
 
-    KafkaProducer<byte[], byte[]> producer;
+    Producer<byte[], byte[]> producer;
     String topic;
 
     @Override
@@ -53,18 +61,63 @@ public class KafkaDispatcher implements Dispatcher {
 
     @Override
     public void dispatch(final byte[] partitionKey, final byte[] data) throws Exception {
+        send(partitionKey, data);
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] data) {
+        try {
+            return send(partitionKey, data);
+        } catch (Exception ex) {
+            // send() throws if the record can't be buffered, e.g. the producer is blocked for longer than max.block.ms
+            dispatchFailure.mark();
+            return DispatchAck.failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        // the whole batch shares one timer and one ack, the producer still batches the records per partition
+        final Timer.Context timer = dispatchTimer.time();
+        final BatchAck batchAck = new BatchAck(getName(), records.size());
+        final Callback callback = (metadata, exception) -> {
+            if(exception != null) {
+                dispatchFailure.mark();
+                LOGGER.error("Fail to produce the record to kafka with exception", exception);
+                batchAck.onFailure(exception);
+            } else {
+                batchAck.onSuccess();
+            }
+        };
+
+        for (final DispatchRecord record : records) {
+            try {
+                producer.send(new ProducerRecord<>(topic, record.getPartitionKey(), record.getData()), callback);
+            } catch (Exception ex) {
+                callback.onCompletion(null, ex);
+            }
+        }
+        return batchAck.getAck().whenComplete((ack, error) -> timer.close());
+    }
+
+    private CompletableFuture<DispatchAck> send(final byte[] partitionKey, final byte[] data) {
         final Timer.Context timer = dispatchTimer.time();
         final ProducerRecord<byte[], byte[]> rec = new ProducerRecord<>(
                 topic,
                 partitionKey,
                 data);
+        final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
         producer.send(rec, (metadata, exception) -> {
             timer.close();
             if(exception != null) {
                 dispatchFailure.mark();
                 LOGGER.error("Fail to produce the record to kafka with exception", exception);
+                ack.completeExceptionally(exception);
+            } else {
+                ack.complete(new DispatchAck(getName()));
             }
         });
+        return ack;
     }
 
     @Override
@@ -75,9 +128,7 @@ public class KafkaDispatcher implements Dispatcher {
 
         // remove the producer topic from the configuration and use it during send() call
         topic = config.getString(PRODUCER_TOPIC);
-        producer = new KafkaProducer<>(ConfigurationHelpers.generatePropertiesFromMap(ConfigurationHelpers.convertToPropertyMap(config)),
-                new ByteArraySerializer(),
-                new ByteArraySerializer());
+        producer = createProducer(ConfigurationHelpers.generatePropertiesFromMap(ConfigurationHelpers.convertToPropertyMap(config)));
 
         dispatchTimer = newTimer(buildMetricName(agentName, "kafka.dispatch.timer"));
         dispatchFailure = newMeter(buildMetricName(agentName, "kafka.dispatch.failure"));
@@ -85,6 +136,15 @@ public class KafkaDispatcher implements Dispatcher {
         LOGGER.info("Successfully initialized the kafka dispatcher with config={}", config);
     }
 
+    /**
+     * builds the producer the records are sent with, a subclass can send them somewhere else than a kafka cluster
+     * @param properties producer properties read from the dispatcher config
+     * @return kafka producer
+     */
+    protected Producer<byte[], byte[]> createProducer(final Properties properties) {
+        return new KafkaProducer<>(properties, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
     @Override
     public void close() {
         LOGGER.info("Closing the kafka dispatcher now...");
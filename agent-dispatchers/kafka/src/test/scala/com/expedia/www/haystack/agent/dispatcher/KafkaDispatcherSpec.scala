@@ -17,13 +17,16 @@
 
 package com.expedia.www.haystack.agent.dispatcher
 
-import java.util.concurrent.{Future, TimeUnit}
+import java.util
+import java.util.concurrent.{ExecutionException, Future, TimeUnit}
 
-import com.codahale.metrics.Timer
+import com.codahale.metrics.{Meter, Timer}
 import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.DispatchRecord
 import com.typesafe.config.ConfigFactory
 import org.apache.kafka.clients.producer._
-import org.easymock.EasyMock
+import org.apache.kafka.common.errors.TimeoutException
+import org.easymock.{CaptureType, EasyMock}
 import org.scalatest.mock.EasyMockSugar
 import org.scalatest.{FunSpec, Matchers}
 
@@ -61,6 +64,79 @@ class KafkaDispatcherSpec extends FunSpec with Matchers with EasyMockSugar {
       }
     }
 
+    it("should complete the async dispatch once kafka acknowledges the record") {
+      val dispatcher = new KafkaDispatcher()
+      val producer = mock[KafkaProducer[Array[Byte], Array[Byte]]]
+      val future = mock[Future[RecordMetadata]]
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+      val dispatchFailure = mock[Meter]
+
+      dispatcher.producer = producer
+      dispatcher.topic = "mytopic"
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailure = dispatchFailure
+
+      val callbacks = EasyMock.newCapture[Callback](CaptureType.ALL)
+      expecting {
+        producer.send(EasyMock.anyObject(), EasyMock.capture(callbacks)).andReturn(future).times(2)
+        timer.time().andReturn(timerContext).times(2)
+        timerContext.close().times(2)
+        dispatchFailure.mark().once()
+      }
+
+      whenExecuting(producer, future, timer, timerContext, dispatchFailure) {
+        val span = Span.newBuilder().setTraceId("traceid").build()
+        val success = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        val failure = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        success.isDone shouldBe false
+        failure.isDone shouldBe false
+
+        callbacks.getValues.get(0).onCompletion(null, null)
+        callbacks.getValues.get(1).onCompletion(null, new TimeoutException("timed out"))
+
+        success.get().getDispatcherName shouldEqual "kafka"
+        val caught = intercept[ExecutionException] {
+          failure.get()
+        }
+        caught.getCause shouldBe a[TimeoutException]
+      }
+    }
+
+    it("should send a batch of records with one timer and one ack") {
+      val dispatcher = new KafkaDispatcher()
+      val producer = mock[KafkaProducer[Array[Byte], Array[Byte]]]
+      val future = mock[Future[RecordMetadata]]
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+
+      dispatcher.producer = producer
+      dispatcher.topic = "mytopic"
+      dispatcher.dispatchTimer = timer
+
+      val producerRecords = EasyMock.newCapture[ProducerRecord[Array[Byte], Array[Byte]]](CaptureType.ALL)
+      val callbacks = EasyMock.newCapture[Callback](CaptureType.ALL)
+      expecting {
+        producer.send(EasyMock.capture(producerRecords), EasyMock.capture(callbacks)).andReturn(future).times(2)
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+      }
+
+      whenExecuting(producer, future, timer, timerContext) {
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList(
+          new DispatchRecord("t1".getBytes("utf-8"), "s1".getBytes("utf-8")),
+          new DispatchRecord("t2".getBytes("utf-8"), "s2".getBytes("utf-8"))))
+
+        new String(producerRecords.getValues.get(0).key()) shouldEqual "t1"
+        new String(producerRecords.getValues.get(1).key()) shouldEqual "t2"
+
+        callbacks.getValues.get(0).onCompletion(null, null)
+        ack.isDone shouldBe false
+        callbacks.getValues.get(1).onCompletion(null, null)
+        ack.get().getDispatcherName shouldEqual "kafka"
+      }
+    }
+
     it("should fail to initialize kafka if bootstrap.servers property isn't present") {
       val kafka = new KafkaDispatcher()
       val caught = intercept[Exception] {
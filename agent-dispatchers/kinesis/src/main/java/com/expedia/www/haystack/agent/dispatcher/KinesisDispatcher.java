@@ -27,6 +27,8 @@ import com.amazonaws.services.kinesis.producer.*;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
 import com.expedia.www.haystack.agent.core.Dispatcher;
 import com.expedia.www.haystack.agent.core.RateLimitException;
 import com.expedia.www.haystack.agent.core.config.ConfigurationHelpers;
@@ -43,6 +45,7 @@ import org.slf4j.LoggerFactory;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static com.expedia.www.haystack.agent.core.config.ConfigurationHelpers.AGENT_NAME_KEY;
@@ -63,7 +66,7 @@ public class KinesisDispatcher implements Dispatcher {
     Meter dispatchFailureMeter;
     Meter outstandingRecordsError;
 
-    KinesisProducer producer;
+    IKinesisProducer producer;
     String streamName;
     Integer outstandingRecordsLimit;
 
@@ -74,19 +77,99 @@ public class KinesisDispatcher implements Dispatcher {
 
     @Override
     public void dispatch(final byte[] partitionKey, final byte[] record) throws Exception {
+        checkOutstandingRecords();
+        send(partitionKey, record);
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] record) {
+        try {
+            checkOutstandingRecords();
+        } catch (RateLimitException e) {
+            return DispatchAck.failed(e);
+        }
+        return send(partitionKey, record);
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        try {
+            checkOutstandingRecords();
+        } catch (RateLimitException e) {
+            return DispatchAck.failed(e);
+        }
+
+        // the records are aggregated by the kpl, the batch waits on a single combined future and callback
+        final Timer.Context timer = dispatchTimer.time();
+        final List<ListenableFuture<UserRecordResult>> responses = new ArrayList<>(records.size());
+        for (final DispatchRecord record : records) {
+            try {
+                responses.add(producer.addUserRecord(streamName,
+                        new String(record.getPartitionKey()),
+                        ByteBuffer.wrap(record.getData())));
+            } catch (Exception ex) {
+                // the records added before are already queued in the kpl, only this one fails and the batch still
+                // waits on the others
+                LOGGER.error("Fail to add the span record to the kinesis producer", ex);
+                responses.add(Futures.immediateFailedFuture(ex));
+            }
+        }
+
+        // a failed record is a null result, so the batch is acked once every record is done
+        final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+        Futures.addCallback(Futures.successfulAsList(responses), new FutureCallback<List<UserRecordResult>>() {
+            @Override
+            public void onSuccess(final List<UserRecordResult> results) {
+                timer.close();
+                int failures = 0;
+                for (final UserRecordResult result : results) {
+                    if (result == null) {
+                        failures++;
+                        dispatchFailureMeter.mark();
+                    } else if (!result.isSuccessful()) {
+                        failures++;
+                        dispatchFailureMeter.mark();
+                        LOGGER.error("Fail to put the span record to kinesis after attempts={}",
+                                formatAttempts(result.getAttempts()));
+                    }
+                }
+                if (failures == 0) {
+                    ack.complete(new DispatchAck(getName()));
+                } else {
+                    ack.completeExceptionally(new IllegalStateException(
+                            String.format("Fail to put %d out of %d span records to kinesis", failures, results.size())));
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable throwable) {
+                timer.close();
+                dispatchFailureMeter.mark();
+                LOGGER.error("Fail to put the batch of {} span records to kinesis", records.size(), throwable);
+                ack.completeExceptionally(throwable);
+            }
+        });
+        return ack;
+    }
+
+    private void checkOutstandingRecords() throws RateLimitException {
         if (producer.getOutstandingRecordsCount() > outstandingRecordsLimit) {
             outstandingRecordsError.mark();
             throw new RateLimitException(String.format("fail to dispatch to kinesis due to rate limit, outstanding records: %d",
                     producer.getOutstandingRecordsCount()));
-        } else {
-            final Timer.Context timer = dispatchTimer.time();
-            final ListenableFuture<UserRecordResult> response = producer.addUserRecord(streamName,
-                    new String(partitionKey),
-                    ByteBuffer.wrap(record));
-            handleAsyncResponse(response, timer);
         }
     }
 
+    private CompletableFuture<DispatchAck> send(final byte[] partitionKey, final byte[] record) {
+        final Timer.Context timer = dispatchTimer.time();
+        final ListenableFuture<UserRecordResult> response = producer.addUserRecord(streamName,
+                new String(partitionKey),
+                ByteBuffer.wrap(record));
+        final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+        handleAsyncResponse(response, timer, ack);
+        return ack;
+    }
+
     @Override
     public void initialize(final Config config) {
         final String agentName = config.hasPath(AGENT_NAME_KEY) ? config.getString(AGENT_NAME_KEY ) : "";
@@ -100,7 +183,7 @@ public class KinesisDispatcher implements Dispatcher {
         Validate.notNull(props.get(AWS_REGION));
         props.remove(AGENT_NAME_KEY);
 
-        this.producer = new KinesisProducer(buildKinesisProducerConfiguration(props));
+        this.producer = createProducer(buildKinesisProducerConfiguration(props));
         this.dispatchTimer = newTimer(buildMetricName(agentName, "kinesis.dispatch.timer"));
         this.dispatchFailureMeter = newMeter(buildMetricName(agentName, "kinesis.dispatch.failure"));
         this.outstandingRecordsError = newMeter(buildMetricName(agentName, "kinesis.dispatch.outstanding.records.error"));
@@ -110,6 +193,15 @@ public class KinesisDispatcher implements Dispatcher {
         LOGGER.info("Successfully initialized the kinesis dispatcher with config={}", config);
     }
 
+    /**
+     * builds the producer the records are put with, a subclass can put them somewhere else than a kinesis stream
+     * @param configuration kpl configuration read from the dispatcher config
+     * @return kinesis producer
+     */
+    protected IKinesisProducer createProducer(final KinesisProducerConfiguration configuration) {
+        return new KinesisProducer(configuration);
+    }
+
     @Override
     public void close() {
         LOGGER.info("Closing the kinesis span dispatcher now...");
@@ -170,15 +262,20 @@ public class KinesisDispatcher implements Dispatcher {
         }
     }
 
-    private void handleAsyncResponse(final ListenableFuture<UserRecordResult> response, final Timer.Context timer) {
+    private void handleAsyncResponse(final ListenableFuture<UserRecordResult> response,
+                                     final Timer.Context timer,
+                                     final CompletableFuture<DispatchAck> ack) {
         Futures.addCallback(response, new FutureCallback<UserRecordResult>() {
             @Override
             public void onSuccess(final UserRecordResult result) {
                 timer.close();
                 if(!result.isSuccessful()) {
                     dispatchFailureMeter.mark();
-                    LOGGER.error("Fail to put the span record to kinesis after attempts={}",
-                            formatAttempts(result.getAttempts()));
+                    final String attempts = formatAttempts(result.getAttempts());
+                    LOGGER.error("Fail to put the span record to kinesis after attempts={}", attempts);
+                    ack.completeExceptionally(new IllegalStateException("Fail to put the span record to kinesis after attempts=" + attempts));
+                } else {
+                    ack.complete(new DispatchAck(getName()));
                 }
             }
 
@@ -193,6 +290,7 @@ public class KinesisDispatcher implements Dispatcher {
                     LOGGER.error("Record failed to put span record to kinesis with attempts={}",
                             formatAttempts(result.getAttempts()), e);
                 }
+                ack.completeExceptionally(throwable);
             }
         });
     }
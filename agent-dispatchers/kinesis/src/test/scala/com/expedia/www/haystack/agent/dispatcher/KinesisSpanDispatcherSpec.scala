@@ -19,14 +19,16 @@ package com.expedia.www.haystack.agent.dispatcher
 
 import java.nio.ByteBuffer
 import java.util
+import java.util.concurrent.ExecutionException
 
 import com.amazonaws.auth.profile.internal.securitytoken.STSProfileCredentialsServiceProvider
 import com.amazonaws.auth.{AWSStaticCredentialsProvider, DefaultAWSCredentialsProviderChain}
 import com.amazonaws.services.kinesis.producer.{KinesisProducer, UserRecordResult}
 import com.codahale.metrics.{Meter, Timer}
 import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.{DispatchRecord, RateLimitException}
 import com.expedia.www.haystack.agent.dispatcher.KinesisDispatcher._
-import com.google.common.util.concurrent.ListenableFuture
+import com.google.common.util.concurrent.{ListenableFuture, SettableFuture}
 import org.easymock.EasyMock
 import org.scalatest.easymock.EasyMockSugar
 import org.scalatest.{FunSpec, Matchers}
@@ -168,8 +170,143 @@ class KinesisSpanDispatcherSpec extends FunSpec with Matchers with EasyMockSugar
         caught.getMessage shouldEqual "fail to dispatch to kinesis due to rate limit, outstanding records: 1001"
       }
     }
-  }
-}
 
+    it("should fail the async dispatch with the rate limit error instead of throwing it") {
+      val dispatcher = new KinesisDispatcher()
+      val kinesisProducer = mock[KinesisProducer]
+      val outstandRecErrorMeter = mock[Meter]
+
+      dispatcher.producer = kinesisProducer
+      dispatcher.streamName = "mystream"
+      dispatcher.outstandingRecordsLimit = 1000
+      dispatcher.outstandingRecordsError = outstandRecErrorMeter
+
+      val span = Span.newBuilder().setTraceId("traceid").build()
+
+      expecting {
+        kinesisProducer.getOutstandingRecordsCount.andReturn(1001).anyTimes()
+        outstandRecErrorMeter.mark()
+      }
 
+      whenExecuting(kinesisProducer, outstandRecErrorMeter) {
+        val ack = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        ack.isCompletedExceptionally shouldBe true
+        val caught = intercept[ExecutionException] {
+          ack.get()
+        }
+        caught.getCause shouldBe a[RateLimitException]
+      }
+    }
+
+    it("should complete the async dispatch once kinesis acknowledges the record") {
+      val dispatcher = new KinesisDispatcher()
+      val kinesisProducer = mock[KinesisProducer]
+      val responseFuture = SettableFuture.create[UserRecordResult]()
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+      val result = mock[UserRecordResult]
+
+      dispatcher.producer = kinesisProducer
+      dispatcher.streamName = "mystream"
+      dispatcher.outstandingRecordsLimit = 1000
+      dispatcher.dispatchTimer = timer
+
+      val span = Span.newBuilder().setTraceId("traceid").build()
+
+      expecting {
+        kinesisProducer.getOutstandingRecordsCount.andReturn(10).once
+        kinesisProducer.addUserRecord("mystream", "traceid", ByteBuffer.wrap(span.toByteArray)).andReturn(responseFuture).once()
+        timer.time().andReturn(timerContext)
+        timerContext.close().once()
+        result.isSuccessful.andReturn(true)
+      }
 
+      whenExecuting(kinesisProducer, timer, timerContext, result) {
+        val ack = dispatcher.dispatchAsync(span.getTraceId.getBytes("utf-8"), span.toByteArray)
+        ack.isDone shouldBe false
+        responseFuture.set(result)
+        ack.get().getDispatcherName shouldEqual "kinesis"
+      }
+    }
+
+    it("should put a batch of records and ack them with a single callback") {
+      val dispatcher = new KinesisDispatcher()
+      val kinesisProducer = mock[KinesisProducer]
+      val response1 = SettableFuture.create[UserRecordResult]()
+      val response2 = SettableFuture.create[UserRecordResult]()
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+      val dispatchFailure = mock[Meter]
+      val success = mock[UserRecordResult]
+      val failure = mock[UserRecordResult]
+
+      dispatcher.producer = kinesisProducer
+      dispatcher.streamName = "mystream"
+      dispatcher.outstandingRecordsLimit = 1000
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailureMeter = dispatchFailure
+
+      expecting {
+        kinesisProducer.getOutstandingRecordsCount.andReturn(10).once
+        kinesisProducer.addUserRecord("mystream", "t1", ByteBuffer.wrap("s1".getBytes("utf-8"))).andReturn(response1).once()
+        kinesisProducer.addUserRecord("mystream", "t2", ByteBuffer.wrap("s2".getBytes("utf-8"))).andReturn(response2).once()
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+        success.isSuccessful.andReturn(true)
+        failure.isSuccessful.andReturn(false)
+        failure.getAttempts.andReturn(null)
+        dispatchFailure.mark().once()
+      }
+
+      whenExecuting(kinesisProducer, timer, timerContext, success, failure, dispatchFailure) {
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList(
+          new DispatchRecord("t1".getBytes("utf-8"), "s1".getBytes("utf-8")),
+          new DispatchRecord("t2".getBytes("utf-8"), "s2".getBytes("utf-8"))))
+        response1.set(success)
+        ack.isDone shouldBe false
+        response2.set(failure)
+        intercept[ExecutionException](ack.get()).getCause.getMessage shouldEqual "Fail to put 1 out of 2 span records to kinesis"
+      }
+    }
+
+    it("should fail only the record the kinesis producer throws on and wait on the others of the batch") {
+      val dispatcher = new KinesisDispatcher()
+      val kinesisProducer = mock[KinesisProducer]
+      val response1 = SettableFuture.create[UserRecordResult]()
+      val response3 = SettableFuture.create[UserRecordResult]()
+      val timer = mock[Timer]
+      val timerContext = mock[Timer.Context]
+      val dispatchFailure = mock[Meter]
+      val success = mock[UserRecordResult]
+
+      dispatcher.producer = kinesisProducer
+      dispatcher.streamName = "mystream"
+      dispatcher.outstandingRecordsLimit = 1000
+      dispatcher.dispatchTimer = timer
+      dispatcher.dispatchFailureMeter = dispatchFailure
+
+      expecting {
+        kinesisProducer.getOutstandingRecordsCount.andReturn(10).once
+        kinesisProducer.addUserRecord("mystream", "t1", ByteBuffer.wrap("s1".getBytes("utf-8"))).andReturn(response1).once()
+        kinesisProducer.addUserRecord("mystream", "t2", ByteBuffer.wrap("s2".getBytes("utf-8")))
+          .andThrow(new IllegalArgumentException("Data must be less than or equal to 1MB in size")).once()
+        kinesisProducer.addUserRecord("mystream", "t3", ByteBuffer.wrap("s3".getBytes("utf-8"))).andReturn(response3).once()
+        timer.time().andReturn(timerContext).once()
+        timerContext.close().once()
+        success.isSuccessful.andReturn(true).times(2)
+        dispatchFailure.mark().once()
+      }
+
+      whenExecuting(kinesisProducer, timer, timerContext, success, dispatchFailure) {
+        val ack = dispatcher.dispatchBatchAsync(util.Arrays.asList(
+          new DispatchRecord("t1".getBytes("utf-8"), "s1".getBytes("utf-8")),
+          new DispatchRecord("t2".getBytes("utf-8"), "s2".getBytes("utf-8")),
+          new DispatchRecord("t3".getBytes("utf-8"), "s3".getBytes("utf-8"))))
+        response1.set(success)
+        ack.isDone shouldBe false
+        response3.set(success)
+        intercept[ExecutionException](ack.get()).getCause.getMessage shouldEqual "Fail to put 1 out of 3 span records to kinesis"
+      }
+    }
+  }
+}
@@ -1,9 +1,34 @@
 package com.expedia.www.haystack.agent.core;
 
 import com.expedia.www.haystack.agent.core.config.ConfigurationHelpers;
+import com.expedia.www.haystack.agent.core.dispatcher.BulkheadConfig;
+import com.expedia.www.haystack.agent.core.dispatcher.BulkheadDispatcher;
+import com.expedia.www.haystack.agent.core.dispatcher.CircuitBreakerConfig;
+import com.expedia.www.haystack.agent.core.dispatcher.CircuitBreakerDispatcher;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferConfig;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferStage;
+import com.expedia.www.haystack.agent.core.dispatcher.SpoolConfig;
+import com.expedia.www.haystack.agent.core.dispatcher.SpoolDispatcher;
+import com.expedia.open.tracing.Tag;
 import com.expedia.www.haystack.agent.span.enricher.Enricher;
+import com.expedia.www.haystack.agent.span.enricher.StaticTagEnricher;
+import com.expedia.www.haystack.agent.span.enricher.StaticTags;
+import com.expedia.www.haystack.agent.span.enricher.TimedEnricher;
+import com.expedia.www.haystack.agent.span.filter.SpanFilter;
+import com.expedia.www.haystack.agent.span.filter.SpanFilterConfig;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeConfig;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeGovernor;
+import com.expedia.www.haystack.agent.span.sampling.HeadSampler;
+import com.expedia.www.haystack.agent.span.sampling.HeadSamplingConfig;
+import com.expedia.www.haystack.agent.span.sampling.TailSampler;
+import com.expedia.www.haystack.agent.span.sampling.TailSamplingConfig;
+import com.expedia.www.haystack.agent.span.sampling.TraceForwarder;
 import com.google.common.annotations.VisibleForTesting;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 
@@ -11,7 +36,18 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public abstract class BaseAgent implements Agent {
+    private final static String ENRICHERS_KEY = "enrichers";
+    private final static String STATIC_TAGS_KEY = "static.tags";
+    private final static String STATIC_TAG_ENRICHERS_KEY = "static.tag.enrichers";
+
     protected List<Dispatcher> dispatchers;
+    protected RingBufferStage ringBuffer;
+    protected HeadSampler headSampler;
+    protected TailSampler tailSampler;
+    protected SpanFilter spanFilter;
+    protected SpanSizeGovernor sizeGovernor;
+    protected StaticTags staticTags;
+    protected List<Enricher> enrichers = Collections.emptyList();
     protected final Logger logger;
 
     public BaseAgent(Logger logger) {
@@ -22,6 +58,19 @@ public abstract class BaseAgent implements Agent {
     @Override
     public void close() {
         try {
+            // decide the buffered traces and drain the ring buffer first, they still hand the spans over to the dispatchers
+            if (headSampler != null) {
+                headSampler.close();
+            }
+            if (tailSampler != null) {
+                tailSampler.close();
+            }
+            if (ringBuffer != null) {
+                ringBuffer.close();
+            }
+            for (final Enricher enricher : enrichers) {
+                enricher.close();
+            }
             for (final Dispatcher dispatcher : dispatchers) {
                 dispatcher.close();
             }
@@ -45,8 +94,7 @@ public abstract class BaseAgent implements Agent {
                         final Config dispatcherConfig = conf.getValue();
                         boolean isEnabled = !dispatcherConfig.hasPath("enabled") || dispatcherConfig.getBoolean("enabled");
                         if(isEnabled) {
-                            dispatcher.initialize(dispatcherConfig);
-                            dispatchers.add(dispatcher);
+                            dispatchers.add(initializeDispatcher(dispatcher, dispatcherConfig, agentName, cl));
                         } else {
                             logger.info("dispatcher with name '{}' is disabled", dispatcher.getName());
                         }
@@ -58,26 +106,251 @@ public abstract class BaseAgent implements Agent {
         return dispatchers;
     }
 
+    // a dispatcher with a 'circuitbreaker' section fails fast while its sink is down, one with a 'spool' section keeps
+    // the records it fails to send on disk, and one with a 'bulkhead' section runs behind its own queue and workers.
+    // These sections are not passed on to the dispatcher
+    private Dispatcher initializeDispatcher(final Dispatcher dispatcher,
+                                            final Config dispatcherConfig,
+                                            final String agentName,
+                                            final ClassLoader cl) {
+        dispatcher.initialize(dispatcherConfig
+                .withoutPath(CircuitBreakerConfig.CIRCUIT_BREAKER_CONFIG_KEY)
+                .withoutPath(SpoolConfig.SPOOL_CONFIG_KEY)
+                .withoutPath(BulkheadConfig.BULKHEAD_CONFIG_KEY));
+
+        Dispatcher decorated = dispatcher;
+        if (dispatcherConfig.hasPath(CircuitBreakerConfig.CIRCUIT_BREAKER_CONFIG_KEY)) {
+            final Config breakerConfig = dispatcherConfig.getConfig(CircuitBreakerConfig.CIRCUIT_BREAKER_CONFIG_KEY);
+            final Dispatcher fallback = breakerConfig.hasPath(CircuitBreakerConfig.FALLBACK_CONFIG_KEY) ?
+                    loadFallbackDispatcher(breakerConfig.getConfig(CircuitBreakerConfig.FALLBACK_CONFIG_KEY), cl, agentName) : null;
+            decorated = new CircuitBreakerDispatcher(decorated, CircuitBreakerConfig.from(breakerConfig), fallback, agentName);
+        }
+        if (dispatcherConfig.hasPath(SpoolConfig.SPOOL_CONFIG_KEY)) {
+            final SpoolConfig spoolConfig = SpoolConfig.from(dispatcherConfig.getConfig(SpoolConfig.SPOOL_CONFIG_KEY));
+            decorated = new SpoolDispatcher(decorated, spoolConfig, agentName);
+        }
+        if (dispatcherConfig.hasPath(BulkheadConfig.BULKHEAD_CONFIG_KEY)) {
+            final BulkheadConfig bulkheadConfig = BulkheadConfig.from(dispatcherConfig.getConfig(BulkheadConfig.BULKHEAD_CONFIG_KEY));
+            decorated = new BulkheadDispatcher(decorated, bulkheadConfig, agentName);
+        }
+        return decorated;
+    }
+
+    // the 'fallback' section names the dispatcher and holds its config, the fallback is a dispatcher of its own and
+    // only gets the records that the circuit breaker rejects
+    private Dispatcher loadFallbackDispatcher(final Config fallbackConfig, final ClassLoader cl, final String agentName) {
+        final String name = fallbackConfig.getString(CircuitBreakerConfig.FALLBACK_DISPATCHER_CONFIG_KEY);
+        for (final Dispatcher fallback : ServiceLoader.load(Dispatcher.class, cl)) {
+            if (fallback.getName().equalsIgnoreCase(name)) {
+                fallback.initialize(fallbackConfig
+                        .withoutPath(CircuitBreakerConfig.FALLBACK_DISPATCHER_CONFIG_KEY)
+                        .withFallback(ConfigFactory.parseMap(
+                                Collections.singletonMap(ConfigurationHelpers.AGENT_NAME_KEY, agentName))));
+                return fallback;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Fail to find the fallback dispatcher '%s'", name));
+    }
+
+    /**
+     * builds the ring buffer stage between the receivers and the dispatchers of the agent
+     * @return the stage, or null if the agent has no enabled 'ringbuffer' section and dispatches directly
+     */
+    @VisibleForTesting
+    public RingBufferStage buildRingBuffer(final Config config, final List<Dispatcher> dispatchers, final String agentName) {
+        if (!config.hasPath(RingBufferConfig.RING_BUFFER_CONFIG_KEY)) {
+            return null;
+        }
+
+        final RingBufferConfig ringBufferConfig = RingBufferConfig.from(config.getConfig(RingBufferConfig.RING_BUFFER_CONFIG_KEY));
+        if (!ringBufferConfig.isEnabled()) {
+            logger.info("ring buffer stage is disabled for agent '{}'", agentName);
+            return null;
+        }
+        return new RingBufferStage(dispatchers, ringBufferConfig, agentName);
+    }
+
+    /**
+     * builds the filter that keeps or drops the spans of the agent by its rules before they are converted or sampled
+     * @return the filter, or null if the agent has no enabled 'filter' section and keeps every span
+     */
+    @VisibleForTesting
+    public SpanFilter buildSpanFilter(final Config config, final String agentName) {
+        if (!config.hasPath(SpanFilterConfig.SPAN_FILTER_CONFIG_KEY)) {
+            return null;
+        }
+
+        final SpanFilterConfig filterConfig = SpanFilterConfig.from(config.getConfig(SpanFilterConfig.SPAN_FILTER_CONFIG_KEY));
+        if (!filterConfig.isEnabled()) {
+            logger.info("span filter is disabled for agent '{}'", agentName);
+            return null;
+        }
+        return new SpanFilter(filterConfig, agentName);
+    }
+
+    /**
+     * builds the governor that keeps the spans of the agent within the size budgets before they are dispatched
+     * @param staticTags tags appended to the spans once they are governed, their size is kept out of the span budget,
+     *                   null if the agent has none
+     * @return the governor, or null if the agent has no enabled 'size.governor' section and dispatches the spans
+     * whatever their size
+     */
+    @VisibleForTesting
+    public SpanSizeGovernor buildSizeGovernor(final Config config, final String agentName, final StaticTags staticTags) {
+        if (!config.hasPath(SpanSizeConfig.SIZE_GOVERNOR_CONFIG_KEY)) {
+            return null;
+        }
+
+        final SpanSizeConfig sizeConfig = SpanSizeConfig.from(config.getConfig(SpanSizeConfig.SIZE_GOVERNOR_CONFIG_KEY));
+        if (!sizeConfig.isEnabled()) {
+            logger.info("size governor is disabled for agent '{}'", agentName);
+            return null;
+        }
+        return new SpanSizeGovernor(sizeConfig, agentName, staticTags == null ? 0 : staticTags.getEncodedSize());
+    }
+
+    /**
+     * builds the head sampler that holds the spans of every service of the agent to a budget
+     * @return the sampler, or null if the agent has no enabled 'head.sampling' section and keeps every span
+     */
+    @VisibleForTesting
+    public HeadSampler buildHeadSampler(final Config config, final String agentName) {
+        if (!config.hasPath(HeadSamplingConfig.HEAD_SAMPLING_CONFIG_KEY)) {
+            return null;
+        }
+
+        final HeadSamplingConfig samplingConfig = HeadSamplingConfig.from(config.getConfig(HeadSamplingConfig.HEAD_SAMPLING_CONFIG_KEY));
+        if (!samplingConfig.isEnabled()) {
+            logger.info("head sampling is disabled for agent '{}'", agentName);
+            return null;
+        }
+        return new HeadSampler(samplingConfig, agentName);
+    }
+
+    /**
+     * builds the tail sampler that buffers the spans of the agent by trace and dispatches the kept traces
+     * @return the sampler, or null if the agent has no enabled 'tail.sampling' section and dispatches every span
+     */
+    @VisibleForTesting
+    public TailSampler buildTailSampler(final Config config,
+                                        final List<Dispatcher> dispatchers,
+                                        final RingBufferStage ringBuffer,
+                                        final String agentName) {
+        if (!config.hasPath(TailSamplingConfig.TAIL_SAMPLING_CONFIG_KEY)) {
+            return null;
+        }
+
+        final TailSamplingConfig samplingConfig = TailSamplingConfig.from(config.getConfig(TailSamplingConfig.TAIL_SAMPLING_CONFIG_KEY));
+        if (!samplingConfig.isEnabled()) {
+            logger.info("tail sampling is disabled for agent '{}'", agentName);
+            return null;
+        }
+        return new TailSampler(samplingConfig, new TraceForwarder(dispatchers, ringBuffer, agentName), agentName);
+    }
+
     @VisibleForTesting
     public List<Enricher> loadSpanEnrichers(final Config config) {
-        if (config.hasPath("enrichers")) {
-            return config.getStringList("enrichers")
-                    .stream()
-                    .map(clazz -> {
-                        try {
-                            final Class c = Class.forName(clazz);
-                            logger.info("Initializing the span enricher with class name '{}'", clazz);
-                            return (Enricher) c.newInstance();
-                        } catch (Exception e) {
-                            logger.error("Fail to initialize the enricher with clazz name {}", clazz, e);
-                            return null;
-                        }
-                    })
-                    .filter(Objects::nonNull)
-                    .collect(Collectors.toList());
-        } else {
+        return loadSpanEnrichers(config, Thread.currentThread().getContextClassLoader(), getName());
+    }
+
+    /**
+     * loads the span enrichers of the agent, each one behind its own latency timer. The 'enrichers' of the agent are
+     * either a list of enricher class names, created as they are, or an object with a section per enricher service
+     * to initialize, applied by their 'order'. The enrichers are closed with the agent
+     */
+    @VisibleForTesting
+    public List<Enricher> loadSpanEnrichers(final Config config, final ClassLoader cl, final String agentName) {
+        if (!config.hasPath(ENRICHERS_KEY)) {
             return Collections.emptyList();
         }
+
+        final List<Enricher> loaded = config.getValue(ENRICHERS_KEY).valueType() == ConfigValueType.LIST ?
+                loadEnricherClasses(config.getStringList(ENRICHERS_KEY)) :
+                loadEnricherServices(config.getConfig(ENRICHERS_KEY), cl);
+        this.enrichers = loaded.stream()
+                .map(enricher -> new TimedEnricher(enricher, agentName))
+                .collect(Collectors.toList());
+        return enrichers;
+    }
+
+    private List<Enricher> loadEnricherClasses(final List<String> classNames) {
+        return classNames
+                .stream()
+                .map(clazz -> {
+                    try {
+                        final Class c = Class.forName(clazz);
+                        logger.info("Initializing the span enricher with class name '{}'", clazz);
+                        return (Enricher) c.newInstance();
+                    } catch (Exception e) {
+                        logger.error("Fail to initialize the enricher with clazz name {}", clazz, e);
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    private List<Enricher> loadEnricherServices(final Config enrichersConfig, final ClassLoader cl) {
+        final List<Enricher> enrichers = new ArrayList<>();
+        final Map<String, Integer> orders = new HashMap<>();
+        for (final Enricher enricher : ServiceLoader.load(Enricher.class, cl)) {
+            final String path = ConfigUtil.joinPath(enricher.getName());
+            if (!enrichersConfig.hasPath(path)) {
+                continue;
+            }
+
+            final Config enricherConfig = enrichersConfig.getConfig(path);
+            if (enricherConfig.hasPath("enabled") && !enricherConfig.getBoolean("enabled")) {
+                logger.info("span enricher with name '{}' is disabled", enricher.getName());
+                continue;
+            }
+            logger.info("Initializing the span enricher with name '{}'", enricher.getName());
+            enricher.initialize(enricherConfig);
+            enrichers.add(enricher);
+            orders.put(enricher.getName(), enricherConfig.hasPath("order") ? enricherConfig.getInt("order") : 0);
+        }
+        enrichers.sort(Comparator.comparingInt(enricher -> orders.get(enricher.getName())));
+        return enrichers;
+    }
+
+    /**
+     * builds the tags added to every span without decoding it, from the 'static.tags' section and the
+     * 'static.tag.enrichers' classes of the agent
+     * @return the static tags, or null if the agent has none
+     */
+    @VisibleForTesting
+    public StaticTags buildStaticTags(final Config config) {
+        final List<Tag> tags = new ArrayList<>();
+        if (config.hasPath(STATIC_TAGS_KEY)) {
+            for (final Map.Entry<String, ConfigValue> entry : config.getObject(STATIC_TAGS_KEY).entrySet()) {
+                tags.add(toTag(entry.getKey(), entry.getValue().unwrapped()));
+            }
+        }
+        if (config.hasPath(STATIC_TAG_ENRICHERS_KEY)) {
+            for (final String clazz : config.getStringList(STATIC_TAG_ENRICHERS_KEY)) {
+                try {
+                    logger.info("Initializing the static tag enricher with class name '{}'", clazz);
+                    tags.addAll(((StaticTagEnricher) Class.forName(clazz).newInstance()).getTags());
+                } catch (Exception e) {
+                    logger.error("Fail to initialize the static tag enricher with clazz name {}", clazz, e);
+                }
+            }
+        }
+        return tags.isEmpty() ? null : new StaticTags(tags);
+    }
+
+    private static Tag toTag(final String key, final Object value) {
+        final Tag.Builder tag = Tag.newBuilder().setKey(key);
+        if (value instanceof Boolean) {
+            tag.setType(Tag.TagType.BOOL).setVBool((Boolean) value);
+        } else if (value instanceof Double) {
+            tag.setType(Tag.TagType.DOUBLE).setVDouble((Double) value);
+        } else if (value instanceof Number) {
+            tag.setType(Tag.TagType.LONG).setVLong(((Number) value).longValue());
+        } else {
+            tag.setType(Tag.TagType.STRING).setVStr(String.valueOf(value));
+        }
+        return tag.build();
     }
 
     protected void closeInternal() throws Exception {}
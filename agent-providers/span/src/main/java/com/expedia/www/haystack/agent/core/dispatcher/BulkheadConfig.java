@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * queue, worker, in flight and overflow settings of the bulkhead in front of a dispatcher
+ */
+public class BulkheadConfig {
+    public final static String BULKHEAD_CONFIG_KEY = "bulkhead";
+
+    private final static String QUEUE_SIZE_CONFIG_KEY = "queue.size";
+    private final static String WORKERS_CONFIG_KEY = "workers";
+    private final static String MAX_IN_FLIGHT_CONFIG_KEY = "max.inflight";
+    private final static String OVERFLOW_POLICY_CONFIG_KEY = "overflow.policy";
+    private final static String BLOCK_TIMEOUT_CONFIG_KEY = "block.timeout.millis";
+    private final static String ACK_ON_ENQUEUE_CONFIG_KEY = "ack.on.enqueue";
+
+    public enum OverflowPolicy {
+        // drop the record that doesn't fit in the queue
+        DROP_NEWEST,
+        // drop the record that has waited the longest to make room for the new one
+        DROP_OLDEST,
+        // wait for room in the queue, and reject the record with a rate limit error after the timeout
+        BLOCK,
+        // reject the record with a rate limit error right away
+        REJECT;
+
+        static OverflowPolicy from(final String value) {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final int queueSize;
+    private final int workers;
+    private final int maxInFlight;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final boolean ackOnEnqueue;
+
+    BulkheadConfig(final int queueSize,
+                   final int workers,
+                   final int maxInFlight,
+                   final OverflowPolicy overflowPolicy,
+                   final long blockTimeoutMillis,
+                   final boolean ackOnEnqueue) {
+        Validate.isTrue(queueSize > 0, "bulkhead queue size should be > 0");
+        Validate.isTrue(workers > 0, "bulkhead workers should be > 0");
+        Validate.isTrue(maxInFlight > 0, "bulkhead max inflight should be > 0");
+        Validate.isTrue(blockTimeoutMillis >= 0, "bulkhead block timeout should be >= 0");
+
+        this.queueSize = queueSize;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.ackOnEnqueue = ackOnEnqueue;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public boolean isAckOnEnqueue() {
+        return ackOnEnqueue;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static BulkheadConfig from(final Config config) {
+        final int queueSize = config.hasPath(QUEUE_SIZE_CONFIG_KEY) ? config.getInt(QUEUE_SIZE_CONFIG_KEY) : 10000;
+        final int workers = config.hasPath(WORKERS_CONFIG_KEY) ? config.getInt(WORKERS_CONFIG_KEY) : 1;
+        final int maxInFlight = config.hasPath(MAX_IN_FLIGHT_CONFIG_KEY) ? config.getInt(MAX_IN_FLIGHT_CONFIG_KEY) : 256;
+        final OverflowPolicy overflowPolicy = config.hasPath(OVERFLOW_POLICY_CONFIG_KEY) ?
+                OverflowPolicy.from(config.getString(OVERFLOW_POLICY_CONFIG_KEY)) : OverflowPolicy.REJECT;
+        final long blockTimeoutMillis = config.hasPath(BLOCK_TIMEOUT_CONFIG_KEY) ? config.getLong(BLOCK_TIMEOUT_CONFIG_KEY) : 100L;
+        final boolean ackOnEnqueue = config.hasPath(ACK_ON_ENQUEUE_CONFIG_KEY) && config.getBoolean(ACK_ON_ENQUEUE_CONFIG_KEY);
+
+        return new BulkheadConfig(queueSize, workers, maxInFlight, overflowPolicy, blockTimeoutMillis, ackOnEnqueue);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+import com.typesafe.config.Config;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * runs a dispatcher behind its own bounded queue and set of workers, so a slow or failing sink can not hold the
+ * request threads or the other dispatchers. The workers hand the queued records, or batches of records, to the
+ * dispatcher without waiting for their acks, and the records in flight to the sink are bounded by 'max.inflight'
+ * permits that are released as the acks complete. A batch takes one slot of the queue and one permit, and reaches the
+ * dispatcher as a batch.
+ *
+ * The ack of a record completes once the dispatcher acknowledges it, or right after it is queued if
+ * 'ack.on.enqueue' is set. A record dropped by the overflow policy fails with a rate limit error and is counted in
+ * the drop meter
+ */
+public class BulkheadDispatcher implements Dispatcher {
+    private final static Logger LOGGER = LoggerFactory.getLogger(BulkheadDispatcher.class);
+    private final static long POLL_TIMEOUT_MILLIS = 100L;
+
+    private final Dispatcher delegate;
+    private final BulkheadConfig config;
+    private final BlockingQueue<Task> queue;
+    private final Semaphore inFlight;
+    private final List<Thread> workers;
+    private final Timer waitTimer;
+    private final Meter dropMeter;
+    private final Meter rejectMeter;
+    private volatile boolean running = true;
+
+    public BulkheadDispatcher(final Dispatcher delegate, final BulkheadConfig config, final String agentName) {
+        Validate.notNull(delegate, "bulkhead dispatcher can't be null");
+        Validate.notNull(config, "bulkhead config can't be null");
+
+        this.delegate = delegate;
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.getQueueSize());
+        this.inFlight = new Semaphore(config.getMaxInFlight());
+
+        final String metricPrefix = "bulkhead." + delegate.getName();
+        this.waitTimer = newTimer(buildMetricName(agentName, metricPrefix + ".wait.timer"));
+        this.dropMeter = newMeter(buildMetricName(agentName, metricPrefix + ".dropped"));
+        this.rejectMeter = newMeter(buildMetricName(agentName, metricPrefix + ".rejected"));
+        newGauge(buildMetricName(agentName, metricPrefix + ".queue.depth"), queue::size);
+        newGauge(buildMetricName(agentName, metricPrefix + ".inflight"),
+                () -> config.getMaxInFlight() - inFlight.availablePermits());
+
+        final ThreadFactory threadFactory = new DefaultThreadFactory("bulkhead-" + delegate.getName(), true);
+        this.workers = new ArrayList<>(config.getWorkers());
+        for (int idx = 0; idx < config.getWorkers(); idx++) {
+            final Thread worker = threadFactory.newThread(this::drain);
+            workers.add(worker);
+            worker.start();
+        }
+
+        LOGGER.info("Started the bulkhead for dispatcher '{}' with queue size={}, workers={}, max inflight={} and overflow policy={}",
+                delegate.getName(), config.getQueueSize(), config.getWorkers(), config.getMaxInFlight(), config.getOverflowPolicy());
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public void dispatch(final byte[] partitionKey, final byte[] data) throws Exception {
+        // the record is only queued, the dispatch errors are reported to the ack that is not awaited here
+        if (!enqueue(new Task(() -> delegate.dispatchAsync(partitionKey, data)))) {
+            throw reject();
+        }
+    }
+
+    @Override
+    public void dispatchBatch(final List<DispatchRecord> records) throws Exception {
+        if (!enqueue(new Task(() -> delegate.dispatchBatchAsync(records)))) {
+            throw reject();
+        }
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] data) {
+        return submit(new Task(() -> delegate.dispatchAsync(partitionKey, data)));
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        return submit(new Task(() -> delegate.dispatchBatchAsync(records)));
+    }
+
+    private CompletableFuture<DispatchAck> submit(final Task task) {
+        try {
+            if (!enqueue(task)) {
+                return DispatchAck.failed(reject());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DispatchAck.failed(e);
+        }
+
+        return config.isAckOnEnqueue() ? DispatchAck.completed(getName()) : task.ack;
+    }
+
+    @Override
+    public void initialize(final Config conf) {
+        delegate.initialize(conf);
+    }
+
+    @Override
+    public void close() throws Exception {
+        // stop the workers once the queued records have been handed over, give the records in flight the time to be
+        // acked, then close the dispatcher itself
+        running = false;
+        for (final Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (!inFlight.tryAcquire(config.getMaxInFlight(), 10, TimeUnit.SECONDS)) {
+            LOGGER.warn("Closing the dispatcher '{}' with {} records still in flight",
+                    delegate.getName(), config.getMaxInFlight() - inFlight.availablePermits());
+        }
+        delegate.close();
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    private boolean enqueue(final Task task) throws InterruptedException {
+        if (queue.offer(task)) {
+            return true;
+        }
+
+        switch (config.getOverflowPolicy()) {
+            case DROP_NEWEST:
+                return false;
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    final Task oldest = queue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                return true;
+            case BLOCK:
+                return queue.offer(task, config.getBlockTimeoutMillis(), TimeUnit.MILLISECONDS);
+            default:
+                return false;
+        }
+    }
+
+    // the newest record is dropped by not queueing it
+    private RateLimitException reject() {
+        final boolean dropped = config.getOverflowPolicy() == BulkheadConfig.OverflowPolicy.DROP_NEWEST;
+        (dropped ? dropMeter : rejectMeter).mark();
+        return new RateLimitException(String.format("fail to dispatch to %s as the bulkhead queue is full, queue size: %d",
+                delegate.getName(), config.getQueueSize()));
+    }
+
+    private void drop(final Task task) {
+        dropMeter.mark();
+        task.ack.completeExceptionally(new RateLimitException(String.format(
+                "dropped the oldest record queued for %s to make room in the full bulkhead queue, queue size: %d",
+                delegate.getName(), config.getQueueSize())));
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            try {
+                // take a permit first, so the records stay in the queue, and count in its depth, while the sink is busy
+                if (!inFlight.tryAcquire(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                final Task task = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (task == null) {
+                    inFlight.release();
+                } else {
+                    waitTimer.update(System.nanoTime() - task.enqueuedAtNanos, TimeUnit.NANOSECONDS);
+                    dispatch(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // the permit taken for the task is released once the sink acks it, the worker moves on to the next task right away
+    private void dispatch(final Task task) {
+        final CompletableFuture<DispatchAck> sinkAck;
+        try {
+            sinkAck = task.dispatch.get();
+        } catch (Exception ex) {
+            inFlight.release();
+            task.ack.completeExceptionally(ex);
+            return;
+        }
+
+        sinkAck.whenComplete((ack, error) -> {
+            inFlight.release();
+            if (error == null) {
+                task.ack.complete(ack);
+            } else {
+                task.ack.completeExceptionally(error);
+            }
+        });
+    }
+
+    private final static class Task {
+        // hands the record or the batch of records to the dispatcher
+        private final Supplier<CompletableFuture<DispatchAck>> dispatch;
+        private final long enqueuedAtNanos;
+        private final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+
+        Task(final Supplier<CompletableFuture<DispatchAck>> dispatch) {
+            this.dispatch = dispatch;
+            this.enqueuedAtNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.codahale.metrics.Meter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * state of the circuit breaker of a dispatcher. While closed, the outcome of the last 'window.size' calls is kept and
+ * the breaker opens once at least 'min.calls' of them have a failure rate or a slow call rate at their threshold.
+ * While open every call is rejected, till 'open.millis' have passed and the breaker lets 'half.open.probes' calls
+ * through. Once all the probes are done it closes, or opens again if they are over a threshold. Probes that are not
+ * all done within 'open.millis' open it again, so a probe whose ack never completes can't hold it half open.
+ *
+ * A call takes a permit before it starts and gives its outcome with that permit, the outcomes of the calls started
+ * before the last state change are ignored
+ */
+class CircuitBreaker {
+    private final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final long REJECTED = -1L;
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final CircuitBreakerConfig config;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final Window window;
+    private final Meter openedMeter;
+    private final Meter halfOpenedMeter;
+    private final Meter closedMeter;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAtNanos;
+    private long halfOpenedAtNanos;
+    private int probesStarted;
+
+    CircuitBreaker(final String name, final CircuitBreakerConfig config, final String agentName) {
+        this.name = name;
+        this.config = config;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowCallMillis());
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(config.getOpenMillis());
+        this.window = new Window(config.getWindowSize());
+
+        final String metricPrefix = "circuitbreaker." + name;
+        this.openedMeter = newMeter(buildMetricName(agentName, metricPrefix + ".opened"));
+        this.halfOpenedMeter = newMeter(buildMetricName(agentName, metricPrefix + ".half.opened"));
+        this.closedMeter = newMeter(buildMetricName(agentName, metricPrefix + ".closed"));
+        newGauge(buildMetricName(agentName, metricPrefix + ".state"), () -> getState().ordinal());
+    }
+
+    State getState() {
+        synchronized (this) {
+            return state;
+        }
+    }
+
+    /**
+     * @return the permit of the call, or {@link #REJECTED} if the breaker doesn't let it through
+     */
+    long tryAcquire() {
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openedAtNanos < openNanos) {
+                    return REJECTED;
+                }
+                transitionTo(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= config.getHalfOpenProbes()) {
+                    if (System.nanoTime() - halfOpenedAtNanos >= openNanos) {
+                        LOGGER.warn("Circuit breaker of dispatcher '{}' has {} probes not done after the open time",
+                                name, probesStarted - window.calls);
+                        transitionTo(State.OPEN);
+                    }
+                    return REJECTED;
+                }
+                probesStarted++;
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * records the outcome of a call
+     * @param permit permit the call got from {@link #tryAcquire()}
+     * @param failed true if the call failed
+     * @param durationNanos time the call took
+     */
+    void onResult(final long permit, final boolean failed, final long durationNanos) {
+        synchronized (this) {
+            if (permit != generation) {
+                return;
+            }
+
+            window.record(failed, durationNanos >= slowCallNanos);
+            if (state == State.HALF_OPEN) {
+                if (window.calls >= config.getHalfOpenProbes()) {
+                    transitionTo(isOverThreshold() ? State.OPEN : State.CLOSED);
+                }
+            } else if (window.calls >= config.getMinCalls() && isOverThreshold()) {
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    private boolean isOverThreshold() {
+        return window.failures >= config.getFailureRateThreshold() * window.calls
+                || window.slowCalls >= config.getSlowCallRateThreshold() * window.calls;
+    }
+
+    // caller holds the lock
+    private void transitionTo(final State next) {
+        LOGGER.warn("Circuit breaker of dispatcher '{}' moves from {} to {} after {} failed and {} slow calls out of {}",
+                name, state, next, window.failures, window.slowCalls, window.calls);
+
+        state = next;
+        generation++;
+        probesStarted = 0;
+        window.reset();
+        if (next == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+            openedMeter.mark();
+        } else if (next == State.HALF_OPEN) {
+            halfOpenedAtNanos = System.nanoTime();
+            halfOpenedMeter.mark();
+        } else {
+            closedMeter.mark();
+        }
+    }
+
+    // outcome of the last calls, in a ring of the size of the window
+    private static final class Window {
+        private final boolean[] failed;
+        private final boolean[] slow;
+        private int next;
+        private int calls;
+        private int failures;
+        private int slowCalls;
+
+        Window(final int size) {
+            this.failed = new boolean[size];
+            this.slow = new boolean[size];
+        }
+
+        void record(final boolean isFailed, final boolean isSlow) {
+            if (calls == failed.length) {
+                evict(next);
+            } else {
+                calls++;
+            }
+            failed[next] = isFailed;
+            slow[next] = isSlow;
+            if (isFailed) {
+                failures++;
+            }
+            if (isSlow) {
+                slowCalls++;
+            }
+            next = (next + 1) % failed.length;
+        }
+
+        private void evict(final int idx) {
+            if (failed[idx]) {
+                failures--;
+            }
+            if (slow[idx]) {
+                slowCalls--;
+            }
+        }
+
+        void reset() {
+            Arrays.fill(failed, false);
+            Arrays.fill(slow, false);
+            next = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * window, thresholds and fallback of the circuit breaker in front of a dispatcher
+ */
+public class CircuitBreakerConfig {
+    public final static String CIRCUIT_BREAKER_CONFIG_KEY = "circuitbreaker";
+    public final static String FALLBACK_CONFIG_KEY = "fallback";
+    public final static String FALLBACK_DISPATCHER_CONFIG_KEY = "dispatcher";
+
+    private final static String WINDOW_SIZE_CONFIG_KEY = "window.size";
+    private final static String MIN_CALLS_CONFIG_KEY = "min.calls";
+    private final static String FAILURE_RATE_CONFIG_KEY = "failure.rate.threshold";
+    private final static String SLOW_CALL_MILLIS_CONFIG_KEY = "slow.call.millis";
+    private final static String SLOW_CALL_RATE_CONFIG_KEY = "slow.call.rate.threshold";
+    private final static String OPEN_MILLIS_CONFIG_KEY = "open.millis";
+    private final static String HALF_OPEN_PROBES_CONFIG_KEY = "half.open.probes";
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMillis;
+    private final double slowCallRateThreshold;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    CircuitBreakerConfig(final int windowSize,
+                         final int minCalls,
+                         final double failureRateThreshold,
+                         final long slowCallMillis,
+                         final double slowCallRateThreshold,
+                         final long openMillis,
+                         final int halfOpenProbes) {
+        Validate.isTrue(windowSize > 0, "circuit breaker window size should be > 0");
+        Validate.isTrue(minCalls > 0 && minCalls <= windowSize, "circuit breaker min calls should be > 0 and <= window size");
+        Validate.isTrue(failureRateThreshold > 0 && failureRateThreshold <= 1, "circuit breaker failure rate threshold should be in (0, 1]");
+        Validate.isTrue(slowCallMillis > 0, "circuit breaker slow call millis should be > 0");
+        Validate.isTrue(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1, "circuit breaker slow call rate threshold should be in (0, 1]");
+        Validate.isTrue(openMillis > 0, "circuit breaker open millis should be > 0");
+        Validate.isTrue(halfOpenProbes > 0 && halfOpenProbes <= windowSize, "circuit breaker half open probes should be > 0 and <= window size");
+
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getMinCalls() {
+        return minCalls;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public long getSlowCallMillis() {
+        return slowCallMillis;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static CircuitBreakerConfig from(final Config config) {
+        final int windowSize = config.hasPath(WINDOW_SIZE_CONFIG_KEY) ? config.getInt(WINDOW_SIZE_CONFIG_KEY) : 100;
+        final int minCalls = config.hasPath(MIN_CALLS_CONFIG_KEY) ? config.getInt(MIN_CALLS_CONFIG_KEY) : Math.min(20, windowSize);
+        final double failureRateThreshold = config.hasPath(FAILURE_RATE_CONFIG_KEY) ? config.getDouble(FAILURE_RATE_CONFIG_KEY) : 0.5;
+        final long slowCallMillis = config.hasPath(SLOW_CALL_MILLIS_CONFIG_KEY) ? config.getLong(SLOW_CALL_MILLIS_CONFIG_KEY) : 1000L;
+        final double slowCallRateThreshold = config.hasPath(SLOW_CALL_RATE_CONFIG_KEY) ? config.getDouble(SLOW_CALL_RATE_CONFIG_KEY) : 1.0;
+        final long openMillis = config.hasPath(OPEN_MILLIS_CONFIG_KEY) ? config.getLong(OPEN_MILLIS_CONFIG_KEY) : 10000L;
+        final int halfOpenProbes = config.hasPath(HALF_OPEN_PROBES_CONFIG_KEY) ?
+                config.getInt(HALF_OPEN_PROBES_CONFIG_KEY) : Math.min(5, windowSize);
+
+        return new CircuitBreakerConfig(windowSize, minCalls, failureRateThreshold, slowCallMillis,
+                slowCallRateThreshold, openMillis, halfOpenProbes);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.codahale.metrics.Meter;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * runs a dispatcher behind a circuit breaker, so a sink that is down or slow fails the records right away instead of
+ * making every one of them wait for the timeout of the dispatcher. While the breaker is open, the records go to the
+ * fallback dispatcher if there is one, else they fail with a rate limit error and are only counted in the reject meter.
+ *
+ * A dispatch call counts as failed if it throws or its ack fails, and as slow if it takes 'slow.call.millis' or more.
+ * A dispatcher that only logs its errors, like the synchronous dispatch of the http dispatcher, is only seen as slow
+ */
+public class CircuitBreakerDispatcher implements Dispatcher {
+    private final static Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerDispatcher.class);
+
+    private final Dispatcher delegate;
+    private final Dispatcher fallback;
+    private final CircuitBreaker breaker;
+    private final Meter rejectMeter;
+    private final Meter fallbackMeter;
+
+    /**
+     * @param delegate dispatcher behind the breaker
+     * @param config breaker settings
+     * @param fallback initialized dispatcher that gets the records while the breaker is open, or null to reject them
+     * @param agentName name of the agent
+     */
+    public CircuitBreakerDispatcher(final Dispatcher delegate,
+                                    final CircuitBreakerConfig config,
+                                    final Dispatcher fallback,
+                                    final String agentName) {
+        Validate.notNull(delegate, "circuit breaker dispatcher can't be null");
+        Validate.notNull(config, "circuit breaker config can't be null");
+
+        this.delegate = delegate;
+        this.fallback = fallback;
+        this.breaker = new CircuitBreaker(delegate.getName(), config, agentName);
+
+        final String metricPrefix = "circuitbreaker." + delegate.getName();
+        this.rejectMeter = newMeter(buildMetricName(agentName, metricPrefix + ".rejected"));
+        this.fallbackMeter = newMeter(buildMetricName(agentName, metricPrefix + ".fallback"));
+
+        LOGGER.info("Started the circuit breaker for dispatcher '{}' with fallback={}",
+                delegate.getName(), fallback == null ? "none" : fallback.getName());
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public void dispatch(final byte[] partitionKey, final byte[] data) throws Exception {
+        final long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            if (fallback == null) {
+                throw reject();
+            }
+            fallbackMeter.mark();
+            fallback.dispatch(partitionKey, data);
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        try {
+            delegate.dispatch(partitionKey, data);
+            breaker.onResult(permit, false, System.nanoTime() - startNanos);
+        } catch (Exception e) {
+            breaker.onResult(permit, true, System.nanoTime() - startNanos);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] data) {
+        final long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            if (fallback == null) {
+                return DispatchAck.failed(reject());
+            }
+            fallbackMeter.mark();
+            return fallback.dispatchAsync(partitionKey, data);
+        }
+        return callDelegate(permit, () -> delegate.dispatchAsync(partitionKey, data));
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        // the batch is one call for the breaker, all its records go to the sink or none of them
+        final long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.REJECTED) {
+            if (fallback == null) {
+                return DispatchAck.failed(reject());
+            }
+            fallbackMeter.mark(records.size());
+            return fallback.dispatchBatchAsync(records);
+        }
+        return callDelegate(permit, () -> delegate.dispatchBatchAsync(records));
+    }
+
+    private CompletableFuture<DispatchAck> callDelegate(final long permit, final Supplier<CompletableFuture<DispatchAck>> call) {
+        final long startNanos = System.nanoTime();
+        CompletableFuture<DispatchAck> ack;
+        try {
+            ack = call.get();
+        } catch (Exception e) {
+            ack = DispatchAck.failed(e);
+        }
+        return ack.whenComplete((result, error) -> breaker.onResult(permit, error != null, System.nanoTime() - startNanos));
+    }
+
+    @Override
+    public void initialize(final Config conf) {
+        delegate.initialize(conf);
+    }
+
+    @Override
+    public void close() throws Exception {
+        delegate.close();
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+
+    CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+
+    private RateLimitException reject() {
+        rejectMeter.mark();
+        return new RateLimitException(String.format("fail to dispatch to %s as its circuit breaker is open", delegate.getName()));
+    }
+}
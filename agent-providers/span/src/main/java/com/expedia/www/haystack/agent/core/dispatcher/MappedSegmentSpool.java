@@ -0,0 +1,311 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import io.netty.util.internal.PlatformDependent;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * append only queue of records kept in memory-mapped segment files of a fixed size. A record is written as
+ * [int record length][int key length, -1 for no key][key][data], and its length is written last, so a record torn by
+ * a crash reads as the end of the segment. A segment file is deleted once all its records have been read and
+ * committed, and its mapping is released right away, so the disk blocks of a deleted segment are freed with it. The
+ * segments left over by a previous run are read first.
+ *
+ * Any thread can append, only one thread is expected to peek and commit.
+ */
+class MappedSegmentSpool implements Closeable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(MappedSegmentSpool.class);
+    private final static String SEGMENT_SUFFIX = ".spool";
+    private final static int INT_BYTES = 4;
+
+    private final File dir;
+    private final SpoolConfig config;
+    private final Object lock = new Object();
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId;
+    private long diskBytes;
+    private long lastForceMillis;
+
+    // the segment the records are appended to, always the last one of the segments if set
+    private Segment active;
+    // position of the next record to read in the first segment
+    private int readPosition;
+
+    MappedSegmentSpool(final SpoolConfig config) throws IOException {
+        this.config = config;
+        this.dir = new File(config.getDir());
+        Validate.isTrue(dir.isDirectory() || dir.mkdirs(), "fail to create the spool dir " + dir);
+        recover();
+    }
+
+    /**
+     * @return false if the record doesn't fit in the disk budget of the spool
+     */
+    boolean append(final byte[] partitionKey, final byte[] data) throws IOException {
+        synchronized (lock) {
+            final int keyLength = partitionKey == null ? -1 : partitionKey.length;
+            final int recordLength = INT_BYTES + Math.max(keyLength, 0) + data.length;
+            final int size = INT_BYTES + recordLength;
+            Validate.isTrue(size <= config.getSegmentSizeBytes(),
+                    "record of %d bytes doesn't fit in a spool segment of %d bytes", size, config.getSegmentSizeBytes());
+
+            if (active == null || active.buffer.capacity() - active.writePosition < size) {
+                if (active != null) {
+                    seal();
+                }
+                if (diskBytes + config.getSegmentSizeBytes() > config.getMaxDiskBytes()) {
+                    return false;
+                }
+                active = newSegment();
+            }
+
+            final ByteBuffer buffer = active.buffer.duplicate();
+            buffer.position(active.writePosition + INT_BYTES);
+            buffer.putInt(keyLength);
+            if (partitionKey != null) {
+                buffer.put(partitionKey);
+            }
+            buffer.put(data);
+            active.buffer.putInt(active.writePosition, recordLength);
+            active.writePosition += size;
+
+            force(false);
+            return true;
+        }
+    }
+
+    /**
+     * @param maxRecords most records to return
+     * @return the oldest records that have not been committed yet, all from the same segment, or an empty list if the
+     * spool is empty
+     */
+    List<DispatchRecord> peek(final int maxRecords) {
+        synchronized (lock) {
+            while (!segments.isEmpty()) {
+                final Segment head = segments.peekFirst();
+                if (readPosition < head.writePosition) {
+                    final List<DispatchRecord> records = new ArrayList<>();
+                    int position = readPosition;
+                    while (position < head.writePosition && records.size() < maxRecords) {
+                        final DispatchRecord record = head.read(position);
+                        records.add(record);
+                        position += sizeOf(record);
+                    }
+                    return records;
+                }
+                if (head == active) {
+                    return Collections.emptyList();
+                }
+                deleteHead();
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * mark the records returned by the last peek as done, the segment is deleted once all its records are done
+     */
+    void commit(final List<DispatchRecord> records) {
+        synchronized (lock) {
+            for (final DispatchRecord record : records) {
+                readPosition += sizeOf(record);
+            }
+
+            final Segment head = segments.peekFirst();
+            if (head != null && readPosition >= head.writePosition) {
+                if (head == active) {
+                    active = null;
+                }
+                deleteHead();
+            }
+        }
+    }
+
+    long getDiskBytes() {
+        synchronized (lock) {
+            return diskBytes;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (active != null && config.getFsyncPolicy() != SpoolConfig.FsyncPolicy.NEVER) {
+                active.buffer.force();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        // the segment names are zero padded ids, so the name order is the order they were written in
+        Arrays.sort(files);
+        for (final File file : files) {
+            final Segment segment = new Segment(file, map(file, file.length()));
+            segment.writePosition = segment.findEnd();
+            nextSegmentId = Math.max(nextSegmentId, segmentId(file) + 1);
+            if (segment.writePosition == 0) {
+                unmap(segment.buffer);
+                delete(file);
+            } else {
+                segments.addLast(segment);
+                diskBytes += segment.buffer.capacity();
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            LOGGER.info("Found {} spool segments to replay in {}", segments.size(), dir);
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        final File file = new File(dir, String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+        final Segment segment = new Segment(file, map(file, config.getSegmentSizeBytes()));
+        segments.addLast(segment);
+        diskBytes += segment.buffer.capacity();
+        return segment;
+    }
+
+    private void seal() {
+        force(true);
+        active = null;
+    }
+
+    private void force(final boolean sealing) {
+        switch (config.getFsyncPolicy()) {
+            case ALWAYS:
+                active.buffer.force();
+                break;
+            case INTERVAL:
+                final long now = System.currentTimeMillis();
+                if (sealing || now - lastForceMillis >= config.getFsyncIntervalMillis()) {
+                    active.buffer.force();
+                    lastForceMillis = now;
+                }
+                break;
+            default:
+        }
+    }
+
+    private void deleteHead() {
+        final Segment head = segments.pollFirst();
+        diskBytes -= head.buffer.capacity();
+        readPosition = 0;
+        unmap(head.buffer);
+        delete(head.file);
+    }
+
+    private static int sizeOf(final DispatchRecord record) {
+        final byte[] partitionKey = record.getPartitionKey();
+        return 2 * INT_BYTES + (partitionKey == null ? 0 : partitionKey.length) + record.getData().length;
+    }
+
+    // the blocks of a deleted file stay allocated as long as it is mapped, and a mapping is only released by the
+    // garbage collector otherwise. The records read from the buffer are copies, so nothing refers to it anymore
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            PlatformDependent.freeDirectBuffer(buffer);
+        } catch (Throwable ex) {
+            LOGGER.warn("Fail to unmap a spool segment, its disk space is freed once it is garbage collected", ex);
+        }
+    }
+
+    private static void delete(final File file) {
+        if (!file.delete()) {
+            LOGGER.error("Fail to delete the spool segment {}", file);
+        }
+    }
+
+    private static MappedByteBuffer map(final File file, final long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the file is closed, a new file is zero filled up to its size
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long segmentId(final File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return 0L;
+        }
+    }
+
+    private final static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        Segment(final File file, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        DispatchRecord read(final int position) {
+            final int recordLength = buffer.getInt(position);
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position + INT_BYTES);
+            final int keyLength = view.getInt();
+
+            byte[] partitionKey = null;
+            if (keyLength >= 0) {
+                partitionKey = new byte[keyLength];
+                view.get(partitionKey);
+            }
+            final byte[] data = new byte[recordLength - INT_BYTES - Math.max(keyLength, 0)];
+            view.get(data);
+            return new DispatchRecord(partitionKey, data);
+        }
+
+        int findEnd() {
+            int position = 0;
+            while (position + 2 * INT_BYTES <= buffer.capacity()) {
+                final int recordLength = buffer.getInt(position);
+                if (recordLength < INT_BYTES || position + INT_BYTES + recordLength > buffer.capacity()) {
+                    break;
+                }
+                position += INT_BYTES + recordLength;
+            }
+            return position;
+        }
+    }
+}
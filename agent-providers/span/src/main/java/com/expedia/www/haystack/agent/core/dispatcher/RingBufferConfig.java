@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * settings of the ring buffer stage between the span receivers of an agent and its dispatchers
+ */
+public class RingBufferConfig {
+    public final static String RING_BUFFER_CONFIG_KEY = "ringbuffer";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String SIZE_CONFIG_KEY = "size";
+    private final static String WAIT_STRATEGY_CONFIG_KEY = "wait.strategy";
+    private final static String MAX_BATCH_SIZE_CONFIG_KEY = "max.batch.size";
+    private final static String BLOCK_WHEN_FULL_CONFIG_KEY = "block.when.full";
+
+    public enum WaitStrategyType {
+        // lowest latency, burns a core per dispatcher even when idle
+        BUSY_SPIN,
+        // spins and then yields the thread, low latency with some cpu cost when idle
+        YIELDING,
+        // spins, yields and then parks the thread, a compromise between latency and cpu usage
+        SLEEPING,
+        // waits on a lock and condition, the least cpu when idle
+        BLOCKING;
+
+        static WaitStrategyType from(final String value) {
+            return WaitStrategyType.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+
+        WaitStrategy newWaitStrategy() {
+            switch (this) {
+                case BUSY_SPIN:
+                    return new BusySpinWaitStrategy();
+                case YIELDING:
+                    return new YieldingWaitStrategy();
+                case SLEEPING:
+                    return new SleepingWaitStrategy();
+                default:
+                    return new BlockingWaitStrategy();
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final int size;
+    private final WaitStrategyType waitStrategy;
+    private final int maxBatchSize;
+    private final boolean blockWhenFull;
+
+    RingBufferConfig(final boolean enabled,
+                     final int size,
+                     final WaitStrategyType waitStrategy,
+                     final int maxBatchSize,
+                     final boolean blockWhenFull) {
+        Validate.isTrue(size > 0 && Integer.bitCount(size) == 1, "ring buffer size should be a power of 2");
+        Validate.isTrue(maxBatchSize > 0, "ring buffer max batch size should be > 0");
+
+        this.enabled = enabled;
+        this.size = size;
+        this.waitStrategy = waitStrategy;
+        this.maxBatchSize = maxBatchSize;
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public WaitStrategyType getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public boolean isBlockWhenFull() {
+        return blockWhenFull;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static RingBufferConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final int size = config.hasPath(SIZE_CONFIG_KEY) ? config.getInt(SIZE_CONFIG_KEY) : 8192;
+        final WaitStrategyType waitStrategy = config.hasPath(WAIT_STRATEGY_CONFIG_KEY) ?
+                WaitStrategyType.from(config.getString(WAIT_STRATEGY_CONFIG_KEY)) : WaitStrategyType.BLOCKING;
+        final int maxBatchSize = config.hasPath(MAX_BATCH_SIZE_CONFIG_KEY) ? config.getInt(MAX_BATCH_SIZE_CONFIG_KEY) : 500;
+        final boolean blockWhenFull = config.hasPath(BLOCK_WHEN_FULL_CONFIG_KEY) && config.getBoolean(BLOCK_WHEN_FULL_CONFIG_KEY);
+
+        return new RingBufferConfig(enabled, size, waitStrategy, maxBatchSize, blockWhenFull);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorThreeArg;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * hands the records over from the span receivers to the dispatchers through a pre-allocated ring buffer.
+ * The receiving thread only claims a slot and publishes the record, every dispatcher consumes the ring buffer on its
+ * own thread and drains whatever has been published since its last pass as one batch, so a latency spike of a sink
+ * is absorbed by the ring buffer instead of the receiving threads
+ */
+public class RingBufferStage implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(RingBufferStage.class);
+
+    private final static EventTranslatorThreeArg<RecordEvent, byte[], byte[], CompletableFuture<DispatchAck>[]> TRANSLATOR =
+            (event, sequence, partitionKey, data, acks) -> event.set(partitionKey, data, acks);
+
+    private final List<Dispatcher> dispatchers;
+    private final RingBufferConfig config;
+    private final Disruptor<RecordEvent> disruptor;
+    private final RingBuffer<RecordEvent> ringBuffer;
+    private final Meter rejectMeter;
+    private final Histogram batchSizeHistogram;
+
+    @SuppressWarnings("unchecked")
+    public RingBufferStage(final List<Dispatcher> dispatchers, final RingBufferConfig config, final String agentName) {
+        Validate.notEmpty(dispatchers, "dispatchers can't be empty");
+        Validate.notNull(config, "ring buffer config can't be null");
+
+        this.dispatchers = dispatchers;
+        this.config = config;
+        this.rejectMeter = newMeter(buildMetricName(agentName, "ringbuffer.rejected"));
+        this.batchSizeHistogram = newHistogram(buildMetricName(agentName, "ringbuffer.batch.size"));
+
+        this.disruptor = new Disruptor<>(RecordEvent::new,
+                config.getSize(),
+                new DefaultThreadFactory("ringbuffer-" + agentName, true),
+                // the grpc and http threads of a receiver all publish into the ring buffer
+                ProducerType.MULTI,
+                config.getWaitStrategy().newWaitStrategy());
+        disruptor.setDefaultExceptionHandler(new LoggingExceptionHandler());
+
+        final EventHandler<RecordEvent>[] handlers = new EventHandler[dispatchers.size()];
+        for (int idx = 0; idx < dispatchers.size(); idx++) {
+            handlers[idx] = new DispatchHandler(idx, dispatchers.get(idx));
+        }
+        // the slot releases its references once every dispatcher has consumed it
+        disruptor.handleEventsWith(handlers).then((event, sequence, endOfBatch) -> event.clear());
+
+        this.ringBuffer = disruptor.start();
+        newGauge(buildMetricName(agentName, "ringbuffer.remaining.capacity"), ringBuffer::remainingCapacity);
+
+        LOGGER.info("Started the ring buffer stage with size={} and wait strategy={}",
+                config.getSize(), config.getWaitStrategy());
+    }
+
+    /**
+     * publish the record to every dispatcher
+     * @param partitionKey partition key of the record
+     * @param data record bytes
+     * @return the acks of the record in the order of the dispatchers. If the ring buffer is full and not configured
+     * to block, every ack fails with a rate limit error
+     */
+    @SuppressWarnings("unchecked")
+    public List<CompletableFuture<DispatchAck>> publish(final byte[] partitionKey, final byte[] data) {
+        final CompletableFuture<DispatchAck>[] acks = new CompletableFuture[dispatchers.size()];
+        for (int idx = 0; idx < acks.length; idx++) {
+            acks[idx] = new CompletableFuture<>();
+        }
+
+        if (config.isBlockWhenFull()) {
+            ringBuffer.publishEvent(TRANSLATOR, partitionKey, data, acks);
+        } else if (!ringBuffer.tryPublishEvent(TRANSLATOR, partitionKey, data, acks)) {
+            rejectMeter.mark();
+            final RateLimitException error = new RateLimitException(String.format(
+                    "fail to dispatch as the ring buffer is full, ring buffer size: %d", config.getSize()));
+            for (final CompletableFuture<DispatchAck> ack : acks) {
+                ack.completeExceptionally(error);
+            }
+        }
+        return Arrays.asList(acks);
+    }
+
+    /**
+     * @return the dispatchers that consume this stage, in the order of the acks returned by publish
+     */
+    public List<Dispatcher> getDispatchers() {
+        return dispatchers;
+    }
+
+    @Override
+    public void close() {
+        try {
+            // waits till the dispatchers have consumed every record published so far
+            disruptor.shutdown(10, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.error("Fail to drain the ring buffer in time, halting it", e);
+            disruptor.halt();
+        }
+    }
+
+    // the slots of the ring buffer, allocated once and reused for every record
+    private final static class RecordEvent {
+        private byte[] partitionKey;
+        private byte[] data;
+        private CompletableFuture<DispatchAck>[] acks;
+
+        void set(final byte[] partitionKey, final byte[] data, final CompletableFuture<DispatchAck>[] acks) {
+            this.partitionKey = partitionKey;
+            this.data = data;
+            this.acks = acks;
+        }
+
+        void clear() {
+            set(null, null, null);
+        }
+    }
+
+    private final class DispatchHandler implements EventHandler<RecordEvent> {
+        private final int index;
+        private final Dispatcher dispatcher;
+        private List<DispatchRecord> records = new ArrayList<>();
+        private List<CompletableFuture<DispatchAck>> acks = new ArrayList<>();
+
+        DispatchHandler(final int index, final Dispatcher dispatcher) {
+            this.index = index;
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public void onEvent(final RecordEvent event, final long sequence, final boolean endOfBatch) {
+            records.add(new DispatchRecord(event.partitionKey, event.data));
+            acks.add(event.acks[index]);
+            if (endOfBatch || records.size() >= config.getMaxBatchSize()) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            // the dispatcher may still hold the records after the call returns, so the next batch starts a new list
+            final List<CompletableFuture<DispatchAck>> batchAcks = acks;
+            final List<DispatchRecord> batch = records;
+            records = new ArrayList<>();
+            acks = new ArrayList<>();
+            batchSizeHistogram.update(batch.size());
+
+            CompletableFuture<DispatchAck> batchAck;
+            try {
+                batchAck = dispatcher.dispatchBatchAsync(batch);
+            } catch (Exception ex) {
+                batchAck = DispatchAck.failed(ex);
+            }
+
+            batchAck.whenComplete((ack, error) -> {
+                for (final CompletableFuture<DispatchAck> recordAck : batchAcks) {
+                    if (error == null) {
+                        recordAck.complete(ack);
+                    } else {
+                        recordAck.completeExceptionally(error);
+                    }
+                }
+            });
+        }
+    }
+
+    private final static class LoggingExceptionHandler implements ExceptionHandler<Object> {
+        @Override
+        public void handleEventException(final Throwable ex, final long sequence, final Object event) {
+            LOGGER.error("Fail to hand over the record at sequence={} to the dispatcher", sequence, ex);
+        }
+
+        @Override
+        public void handleOnStartException(final Throwable ex) {
+            LOGGER.error("Fail to start the ring buffer consumer", ex);
+        }
+
+        @Override
+        public void handleOnShutdownException(final Throwable ex) {
+            LOGGER.error("Fail to shut down the ring buffer consumer", ex);
+        }
+    }
+}
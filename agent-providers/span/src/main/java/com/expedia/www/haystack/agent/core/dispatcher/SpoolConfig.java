@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * directory, disk budget, fsync and replay settings of the spool in front of a dispatcher
+ */
+public class SpoolConfig {
+    public final static String SPOOL_CONFIG_KEY = "spool";
+
+    private final static String DIR_CONFIG_KEY = "dir";
+    private final static String SEGMENT_SIZE_CONFIG_KEY = "segment.size.bytes";
+    private final static String MAX_DISK_CONFIG_KEY = "max.disk.bytes";
+    private final static String FSYNC_POLICY_CONFIG_KEY = "fsync.policy";
+    private final static String FSYNC_INTERVAL_CONFIG_KEY = "fsync.interval.millis";
+    private final static String REPLAY_RATE_CONFIG_KEY = "replay.rate.per.sec";
+    private final static String REPLAY_BACKOFF_CONFIG_KEY = "replay.retry.backoff.millis";
+    private final static String REPLAY_BATCH_SIZE_CONFIG_KEY = "replay.batch.size";
+    private final static String REPLAY_TIMEOUT_CONFIG_KEY = "replay.timeout.millis";
+
+    public enum FsyncPolicy {
+        // flush the segment to disk after every record
+        ALWAYS,
+        // flush the segment to disk on an append at most once per fsync interval, and when it is full
+        INTERVAL,
+        // leave the flushing to the operating system
+        NEVER;
+
+        static FsyncPolicy from(final String value) {
+            return FsyncPolicy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final String dir;
+    private final int segmentSizeBytes;
+    private final long maxDiskBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final double replayRatePerSec;
+    private final long replayRetryBackoffMillis;
+    private final int replayBatchSize;
+    private final long replayTimeoutMillis;
+
+    SpoolConfig(final String dir,
+                final int segmentSizeBytes,
+                final long maxDiskBytes,
+                final FsyncPolicy fsyncPolicy,
+                final long fsyncIntervalMillis,
+                final double replayRatePerSec,
+                final long replayRetryBackoffMillis,
+                final int replayBatchSize,
+                final long replayTimeoutMillis) {
+        Validate.notEmpty(dir, "spool dir can't be empty");
+        Validate.isTrue(segmentSizeBytes > 0, "spool segment size should be > 0");
+        Validate.isTrue(maxDiskBytes >= segmentSizeBytes, "spool max disk bytes should be >= the segment size");
+        Validate.isTrue(fsyncIntervalMillis >= 0, "spool fsync interval should be >= 0");
+        Validate.isTrue(replayRatePerSec > 0, "spool replay rate should be > 0");
+        Validate.isTrue(replayRetryBackoffMillis >= 0, "spool replay retry backoff should be >= 0");
+        Validate.isTrue(replayBatchSize > 0, "spool replay batch size should be > 0");
+        Validate.isTrue(replayTimeoutMillis > 0, "spool replay timeout should be > 0");
+
+        this.dir = dir;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.replayRatePerSec = replayRatePerSec;
+        this.replayRetryBackoffMillis = replayRetryBackoffMillis;
+        this.replayBatchSize = replayBatchSize;
+        this.replayTimeoutMillis = replayTimeoutMillis;
+    }
+
+    public String getDir() {
+        return dir;
+    }
+
+    public int getSegmentSizeBytes() {
+        return segmentSizeBytes;
+    }
+
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    public double getReplayRatePerSec() {
+        return replayRatePerSec;
+    }
+
+    public long getReplayRetryBackoffMillis() {
+        return replayRetryBackoffMillis;
+    }
+
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    public long getReplayTimeoutMillis() {
+        return replayTimeoutMillis;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static SpoolConfig from(final Config config) {
+        Validate.isTrue(config.hasPath(DIR_CONFIG_KEY), "spool dir should be configured");
+
+        final String dir = config.getString(DIR_CONFIG_KEY);
+        final int segmentSizeBytes = config.hasPath(SEGMENT_SIZE_CONFIG_KEY) ?
+                config.getInt(SEGMENT_SIZE_CONFIG_KEY) : 64 * 1024 * 1024;
+        final long maxDiskBytes = config.hasPath(MAX_DISK_CONFIG_KEY) ?
+                config.getLong(MAX_DISK_CONFIG_KEY) : 1024L * 1024 * 1024;
+        final FsyncPolicy fsyncPolicy = config.hasPath(FSYNC_POLICY_CONFIG_KEY) ?
+                FsyncPolicy.from(config.getString(FSYNC_POLICY_CONFIG_KEY)) : FsyncPolicy.INTERVAL;
+        final long fsyncIntervalMillis = config.hasPath(FSYNC_INTERVAL_CONFIG_KEY) ?
+                config.getLong(FSYNC_INTERVAL_CONFIG_KEY) : 1000L;
+        final double replayRatePerSec = config.hasPath(REPLAY_RATE_CONFIG_KEY) ?
+                config.getDouble(REPLAY_RATE_CONFIG_KEY) : 1000d;
+        final long replayRetryBackoffMillis = config.hasPath(REPLAY_BACKOFF_CONFIG_KEY) ?
+                config.getLong(REPLAY_BACKOFF_CONFIG_KEY) : 1000L;
+        final int replayBatchSize = config.hasPath(REPLAY_BATCH_SIZE_CONFIG_KEY) ?
+                config.getInt(REPLAY_BATCH_SIZE_CONFIG_KEY) : 100;
+        final long replayTimeoutMillis = config.hasPath(REPLAY_TIMEOUT_CONFIG_KEY) ?
+                config.getLong(REPLAY_TIMEOUT_CONFIG_KEY) : 30000L;
+
+        return new SpoolConfig(dir, segmentSizeBytes, maxDiskBytes, fsyncPolicy, fsyncIntervalMillis,
+                replayRatePerSec, replayRetryBackoffMillis, replayBatchSize, replayTimeoutMillis);
+    }
+}
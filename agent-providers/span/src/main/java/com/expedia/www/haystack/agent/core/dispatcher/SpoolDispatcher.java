@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher;
+
+import com.codahale.metrics.Meter;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+import com.google.common.util.concurrent.RateLimiter;
+import com.typesafe.config.Config;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * keeps the records a dispatcher fails to send in a disk spool of memory-mapped segments, and replays them to the
+ * dispatcher at a controlled rate once its sink is reachable again. While the sink is down every new record goes
+ * straight to the spool and is acked once it is written there, so an outage costs disk space instead of heap
+ * or lost spans. The replay thread hands the oldest records to the dispatcher in bounded batches, and keeps retrying
+ * the oldest batch till it is acked in time. The first batch that goes through marks the sink as healthy again.
+ *
+ * Replay is at least once: a batch the sink partially accepted, or acked too late, is spooled or replayed as a whole,
+ * and the records of a segment
+ * that was being replayed when the agent stopped are replayed again from the start of the segment
+ */
+public class SpoolDispatcher implements Dispatcher {
+    private final static Logger LOGGER = LoggerFactory.getLogger(SpoolDispatcher.class);
+    private final static long IDLE_WAIT_MILLIS = 100L;
+
+    private final Dispatcher delegate;
+    private final SpoolConfig config;
+    private final MappedSegmentSpool spool;
+    private final RateLimiter replayLimiter;
+    private final Thread replayer;
+    private final Meter spooledMeter;
+    private final Meter replayedMeter;
+    private final Meter rejectMeter;
+    private volatile boolean sinkHealthy = true;
+    private volatile boolean running = true;
+
+    public SpoolDispatcher(final Dispatcher delegate, final SpoolConfig config, final String agentName) {
+        Validate.notNull(delegate, "spool dispatcher can't be null");
+        Validate.notNull(config, "spool config can't be null");
+
+        this.delegate = delegate;
+        this.config = config;
+        try {
+            this.spool = new MappedSegmentSpool(config);
+        } catch (IOException e) {
+            throw new UncheckedIOException("fail to open the spool in " + config.getDir(), e);
+        }
+        this.replayLimiter = RateLimiter.create(config.getReplayRatePerSec());
+
+        final String metricPrefix = "spool." + delegate.getName();
+        this.spooledMeter = newMeter(buildMetricName(agentName, metricPrefix + ".spooled"));
+        this.replayedMeter = newMeter(buildMetricName(agentName, metricPrefix + ".replayed"));
+        this.rejectMeter = newMeter(buildMetricName(agentName, metricPrefix + ".rejected"));
+        newGauge(buildMetricName(agentName, metricPrefix + ".disk.bytes"), spool::getDiskBytes);
+        newGauge(buildMetricName(agentName, metricPrefix + ".sink.healthy"), () -> sinkHealthy ? 1 : 0);
+
+        this.replayer = new DefaultThreadFactory("spool-" + delegate.getName(), true).newThread(this::replay);
+        replayer.start();
+
+        LOGGER.info("Started the spool for dispatcher '{}' in {} with max disk bytes={} and fsync policy={}",
+                delegate.getName(), config.getDir(), config.getMaxDiskBytes(), config.getFsyncPolicy());
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public void dispatch(final byte[] partitionKey, final byte[] data) throws Exception {
+        if (sinkHealthy) {
+            try {
+                delegate.dispatch(partitionKey, data);
+                return;
+            } catch (Exception ex) {
+                onSinkFailure(ex);
+            }
+        }
+        try {
+            spool(Collections.singletonList(new DispatchRecord(partitionKey, data))).get();
+        } catch (ExecutionException ex) {
+            // the caller sees the rate limit error of a full spool as is, not wrapped by the future
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] data) {
+        final List<DispatchRecord> records = Collections.singletonList(new DispatchRecord(partitionKey, data));
+        if (!sinkHealthy) {
+            return spool(records);
+        }
+
+        CompletableFuture<DispatchAck> ack;
+        try {
+            ack = delegate.dispatchAsync(partitionKey, data);
+        } catch (Exception ex) {
+            ack = DispatchAck.failed(ex);
+        }
+        return spoolOnFailure(ack, records);
+    }
+
+    @Override
+    public CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        if (!sinkHealthy) {
+            return spool(records);
+        }
+
+        CompletableFuture<DispatchAck> ack;
+        try {
+            ack = delegate.dispatchBatchAsync(records);
+        } catch (Exception ex) {
+            ack = DispatchAck.failed(ex);
+        }
+        return spoolOnFailure(ack, records);
+    }
+
+    @Override
+    public void initialize(final Config conf) {
+        delegate.initialize(conf);
+    }
+
+    @Override
+    public void close() throws Exception {
+        // the records still in the spool are replayed by the next run of the agent
+        running = false;
+        replayer.interrupt();
+        replayer.join(TimeUnit.SECONDS.toMillis(10));
+        spool.close();
+        delegate.close();
+    }
+
+    boolean isSinkHealthy() {
+        return sinkHealthy;
+    }
+
+    private CompletableFuture<DispatchAck> spoolOnFailure(final CompletableFuture<DispatchAck> ack,
+                                                          final List<DispatchRecord> records) {
+        return ack.handle((result, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            onSinkFailure(error);
+            return spool(records);
+        }).thenCompose(Function.identity());
+    }
+
+    private void onSinkFailure(final Throwable error) {
+        if (sinkHealthy) {
+            sinkHealthy = false;
+            LOGGER.warn("Fail to dispatch to '{}', spooling the records till it recovers", delegate.getName(), error);
+        }
+    }
+
+    private CompletableFuture<DispatchAck> spool(final List<DispatchRecord> records) {
+        try {
+            for (final DispatchRecord record : records) {
+                if (!spool.append(record.getPartitionKey(), record.getData())) {
+                    rejectMeter.mark();
+                    return DispatchAck.failed(new RateLimitException(String.format(
+                            "fail to spool the records of %s as the spool is full, max disk bytes: %d",
+                            delegate.getName(), config.getMaxDiskBytes())));
+                }
+                spooledMeter.mark();
+            }
+            return DispatchAck.completed(getName());
+        } catch (Exception ex) {
+            LOGGER.error("Fail to spool the records of {}", delegate.getName(), ex);
+            return DispatchAck.failed(ex);
+        }
+    }
+
+    private void replay() {
+        while (running) {
+            try {
+                final List<DispatchRecord> records = spool.peek(config.getReplayBatchSize());
+                if (records.isEmpty()) {
+                    Thread.sleep(IDLE_WAIT_MILLIS);
+                    continue;
+                }
+
+                replayLimiter.acquire(records.size());
+                delegate.dispatchBatchAsync(records).get(config.getReplayTimeoutMillis(), TimeUnit.MILLISECONDS);
+                spool.commit(records);
+                replayedMeter.mark(records.size());
+                if (!sinkHealthy) {
+                    sinkHealthy = true;
+                    LOGGER.info("Dispatcher '{}' has recovered, replaying the spooled records", delegate.getName());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (TimeoutException ex) {
+                sinkHealthy = false;
+                LOGGER.debug("Spooled records are not acked by '{}' in {}ms, retrying them",
+                        delegate.getName(), config.getReplayTimeoutMillis());
+                backoff();
+            } catch (Exception ex) {
+                sinkHealthy = false;
+                LOGGER.debug("Fail to replay the spooled records to '{}'", delegate.getName(), ex);
+                backoff();
+            }
+        }
+    }
+
+    private void backoff() {
+        try {
+            Thread.sleep(config.getReplayRetryBackoffMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import com.expedia.open.tracing.Log;
 import com.expedia.open.tracing.Span;
 import com.expedia.open.tracing.Tag;
 import org.apache.commons.lang3.StringUtils;
+import zipkin2.Annotation;
 import zipkin2.Endpoint;
 
 import java.util.*;
@@ -53,27 +54,39 @@ class HaystackDomainConverter {
         doIfNotNull(zipkin.parentId(), builder::setParentSpanId);
         doIfNotNull(zipkin.localServiceName(), builder::setServiceName);
 
-        builder.addAllTags(addRemoteEndpointAsTags(zipkin.remoteEndpoint()));
+        addTagsAndLogs(builder, zipkin.remoteEndpoint(), zipkin.kind(), zipkin.tags(), zipkin.annotations());
+        return builder.build();
+    }
 
-        if (!spanKindTagPresent(zipkin)) {
-            getTagForKind(zipkin.kind()).ifPresent(builder::addTags);
+    /**
+     * adds the remote endpoint, kind, tags and annotations of a decoded zipkin span to the haystack span being built.
+     * The {@link ZipkinV2Transcoder} writes the same tags and logs for the spans it reads, and has to be kept in line
+     */
+    private static void addTagsAndLogs(final Span.Builder builder,
+                               final Endpoint remoteEndpoint,
+                               final zipkin2.Span.Kind kind,
+                               final Map<String, String> tags,
+                               final Collection<Annotation> annotations) {
+        builder.addAllTags(addRemoteEndpointAsTags(remoteEndpoint));
+
+        if (tags == null || !tags.containsKey(SPAN_KIND_TAG_KEY)) {
+            getTagForKind(kind).ifPresent(builder::addTags);
         }
 
-        if (zipkin.tags() != null && !zipkin.tags().isEmpty()) {
-            zipkin.tags().forEach((key, value) -> {
+        if (tags != null && !tags.isEmpty()) {
+            tags.forEach((key, value) -> {
                 List<Tag> tagStream = fromZipkinTag(key, value);
                 builder.addAllTags(tagStream);
             });
         }
 
-        if (zipkin.annotations() != null && !zipkin.annotations().isEmpty()) {
-            zipkin.annotations().forEach(annotation -> {
+        if (annotations != null && !annotations.isEmpty()) {
+            annotations.forEach(annotation -> {
                 final Tag tag = Tag.newBuilder().setKey("annotation").setVStr(annotation.value()).build();
                 final Log log = Log.newBuilder().setTimestamp(annotation.timestamp()).addFields(tag).build();
                 builder.addLogs(log);
             });
         }
-        return builder.build();
     }
 
     private static List<Tag> addRemoteEndpointAsTags(Endpoint remote) {
@@ -115,12 +128,6 @@ class HaystackDomainConverter {
         }
     }
 
-    private static boolean spanKindTagPresent(zipkin2.Span zipkinSpan) {
-        return zipkinSpan.tags() != null &&
-            !zipkinSpan.tags().isEmpty() &&
-            zipkinSpan.tags().keySet().contains(SPAN_KIND_TAG_KEY);
-    }
-
     private static Optional<Tag> getTagForKind(zipkin2.Span.Kind kind) {
         String value;
 
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors;
+
+import com.expedia.open.tracing.Span;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import zipkin2.Endpoint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * transcodes a json list of zipkin v2 spans with a streaming parser
+ */
+class JsonV2Transcoder extends ZipkinV2Transcoder {
+    private final static JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Override
+    List<Span> transcode(final byte[] bytes, final int offset, final int length) throws IOException {
+        final List<Span> spans = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(bytes, offset, length)) {
+            expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+            final SpanFields fields = new SpanFields();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                fields.clear();
+                readSpan(parser, fields);
+                spans.add(fields.toHaystackSpan());
+            }
+            expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+        }
+        return spans;
+    }
+
+    private static void readSpan(final JsonParser parser, final SpanFields fields) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            // the ids are required, every other field may be null
+            if (parser.nextToken() != JsonToken.VALUE_NULL || isId(field)) {
+                readField(parser, field, fields);
+            }
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_OBJECT);
+    }
+
+    private static boolean isId(final String field) {
+        return "traceId".equals(field) || "id".equals(field);
+    }
+
+    private static void readField(final JsonParser parser, final String field, final SpanFields fields) throws IOException {
+        switch (field) {
+            case "traceId":
+                fields.traceId(readString(parser));
+                break;
+            case "id":
+                fields.id(readString(parser));
+                break;
+            case "parentId":
+                fields.parentId(readString(parser));
+                break;
+            case "kind":
+                fields.kind(zipkin2.Span.Kind.valueOf(readString(parser)));
+                break;
+            case "name":
+                fields.name(readString(parser));
+                break;
+            case "timestamp":
+                fields.timestamp(readLong(parser));
+                break;
+            case "duration":
+                fields.duration(readLong(parser));
+                break;
+            default:
+                readNestedField(parser, field, fields);
+                break;
+        }
+    }
+
+    private static void readNestedField(final JsonParser parser, final String field, final SpanFields fields) throws IOException {
+        switch (field) {
+            case "localEndpoint":
+                fields.localEndpoint(readEndpoint(parser));
+                break;
+            case "remoteEndpoint":
+                fields.remoteEndpoint(readEndpoint(parser));
+                break;
+            case "annotations":
+                readAnnotations(parser, fields);
+                break;
+            case "tags":
+                readTags(parser, fields);
+                break;
+            default:
+                // debug, shared and unknown fields don't make it to the haystack span
+                parser.skipChildren();
+                break;
+        }
+    }
+
+    private static Endpoint readEndpoint(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        final Endpoint.Builder endpoint = Endpoint.newBuilder();
+        boolean readField = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "serviceName":
+                    endpoint.serviceName(readString(parser));
+                    readField = true;
+                    break;
+                case "ipv4":
+                    endpoint.parseIp(readString(parser));
+                    readField = true;
+                    break;
+                case "ipv6":
+                    endpoint.parseIp(readString(parser));
+                    readField = true;
+                    break;
+                case "port":
+                    endpoint.port(Math.toIntExact(readLong(parser)));
+                    readField = true;
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return readField ? endpoint.build() : null;
+    }
+
+    private static void readAnnotations(final JsonParser parser, final SpanFields fields) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            Long timestamp = null;
+            String value = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("timestamp".equals(field)) {
+                    timestamp = readLong(parser);
+                } else if ("value".equals(field)) {
+                    value = readString(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (timestamp == null || value == null) {
+                throw new IllegalArgumentException("Incomplete annotation at " + parser.getCurrentLocation());
+            }
+            fields.addAnnotation(timestamp, value);
+        }
+        expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+    }
+
+    private static void readTags(final JsonParser parser, final SpanFields fields) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String key = parser.getCurrentName();
+            parser.nextToken();
+            fields.putTag(key, readString(parser));
+        }
+    }
+
+    private static String readString(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.VALUE_STRING);
+        return parser.getText();
+    }
+
+    private static long readLong(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.VALUE_NUMBER_INT);
+        return parser.getLongValue();
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken expected) {
+        if (actual != expected) {
+            throw new IllegalArgumentException(String.format("expected %s but found %s at %s",
+                    expected, actual, parser.getCurrentLocation()));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors;
+
+import com.expedia.open.tracing.Span;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import org.apache.commons.lang3.Validate;
+import zipkin2.Endpoint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * transcodes a proto3 ListOfSpans message of zipkin v2 spans field by field.
+ * The tags below are the field numbers of the zipkin proto3 schema shifted by 3 bits and or'ed with the wire type
+ */
+class Proto3Transcoder extends ZipkinV2Transcoder {
+    private final static BaseEncoding LOWER_HEX = BaseEncoding.base16().lowerCase();
+
+    private final static int TRACE_ID_TAG = 10;
+    private final static int PARENT_ID_TAG = 18;
+    private final static int ID_TAG = 26;
+    private final static int KIND_TAG = 32;
+    private final static int NAME_TAG = 42;
+    private final static int TIMESTAMP_TAG = 49;
+    private final static int DURATION_TAG = 56;
+    private final static int LOCAL_ENDPOINT_TAG = 66;
+    private final static int REMOTE_ENDPOINT_TAG = 74;
+    private final static int ANNOTATION_TAG = 82;
+    private final static int SPAN_TAG_TAG = 90;
+
+    private final static int ENDPOINT_SERVICE_NAME_TAG = 10;
+    private final static int ENDPOINT_IPV4_TAG = 18;
+    private final static int ENDPOINT_IPV6_TAG = 26;
+    private final static int ENDPOINT_PORT_TAG = 32;
+
+    private final static int ANNOTATION_TIMESTAMP_TAG = 9;
+    private final static int ANNOTATION_VALUE_TAG = 18;
+
+    private final static int TAG_KEY_TAG = 10;
+    private final static int TAG_VALUE_TAG = 18;
+
+    @Override
+    List<Span> transcode(final byte[] bytes, final int offset, final int length) throws IOException {
+        final List<Span> spans = new ArrayList<>();
+        final CodedInputStream input = CodedInputStream.newInstance(bytes, offset, length);
+        final SpanFields fields = new SpanFields();
+        while (!input.isAtEnd()) {
+            // every field of the list is a span, whatever its number
+            input.readTag();
+            final int spanLength = input.readRawVarint32();
+            Validate.isTrue(spanLength > 0, "empty span in the list of spans");
+
+            final int limit = input.pushLimit(spanLength);
+            fields.clear();
+            readSpan(input, fields);
+            input.popLimit(limit);
+            spans.add(fields.toHaystackSpan());
+        }
+        return spans;
+    }
+
+    private static void readSpan(final CodedInputStream input, final SpanFields fields) throws IOException {
+        while (!input.isAtEnd()) {
+            final int tag = input.readTag();
+            switch (tag) {
+                case TRACE_ID_TAG:
+                    fields.traceId(readHex(input));
+                    break;
+                case PARENT_ID_TAG:
+                    fields.parentId(readHex(input));
+                    break;
+                case ID_TAG:
+                    fields.id(readHex(input));
+                    break;
+                case KIND_TAG:
+                    readKind(input, fields);
+                    break;
+                case NAME_TAG:
+                    fields.name(input.readString());
+                    break;
+                case TIMESTAMP_TAG:
+                    fields.timestamp(input.readFixed64());
+                    break;
+                case DURATION_TAG:
+                    fields.duration(input.readInt64());
+                    break;
+                default:
+                    readNestedField(input, tag, fields);
+                    break;
+            }
+        }
+    }
+
+    private static void readNestedField(final CodedInputStream input, final int tag, final SpanFields fields) throws IOException {
+        switch (tag) {
+            case LOCAL_ENDPOINT_TAG:
+                fields.localEndpoint(readEndpoint(input));
+                break;
+            case REMOTE_ENDPOINT_TAG:
+                fields.remoteEndpoint(readEndpoint(input));
+                break;
+            case ANNOTATION_TAG:
+                readAnnotation(input, fields);
+                break;
+            case SPAN_TAG_TAG:
+                readTag(input, fields);
+                break;
+            default:
+                // debug, shared and unknown fields don't make it to the haystack span
+                input.skipField(tag);
+                break;
+        }
+    }
+
+    private static void readKind(final CodedInputStream input, final SpanFields fields) throws IOException {
+        // zipkin keeps the kind read so far if the value is unset or unknown
+        final int kind = input.readRawVarint32();
+        final zipkin2.Span.Kind[] kinds = zipkin2.Span.Kind.values();
+        if (kind > 0 && kind <= kinds.length) {
+            fields.kind(kinds[kind - 1]);
+        }
+    }
+
+    private static Endpoint readEndpoint(final CodedInputStream input) throws IOException {
+        final int length = input.readRawVarint32();
+        if (length == 0) {
+            return null;
+        }
+
+        final int limit = input.pushLimit(length);
+        final Endpoint.Builder endpoint = Endpoint.newBuilder();
+        while (!input.isAtEnd()) {
+            final int tag = input.readTag();
+            switch (tag) {
+                case ENDPOINT_SERVICE_NAME_TAG:
+                    endpoint.serviceName(input.readString());
+                    break;
+                case ENDPOINT_IPV4_TAG:
+                    endpoint.parseIp(readBytes(input));
+                    break;
+                case ENDPOINT_IPV6_TAG:
+                    endpoint.parseIp(readBytes(input));
+                    break;
+                case ENDPOINT_PORT_TAG:
+                    endpoint.port(input.readRawVarint32());
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+        input.popLimit(limit);
+        return endpoint.build();
+    }
+
+    private static void readAnnotation(final CodedInputStream input, final SpanFields fields) throws IOException {
+        final int limit = input.pushLimit(input.readRawVarint32());
+        long timestamp = 0L;
+        String value = null;
+        while (!input.isAtEnd()) {
+            final int tag = input.readTag();
+            if (tag == ANNOTATION_TIMESTAMP_TAG) {
+                timestamp = input.readFixed64();
+            } else if (tag == ANNOTATION_VALUE_TAG) {
+                value = emptyToNull(input.readString());
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.popLimit(limit);
+
+        // zipkin drops the annotations without a timestamp or value
+        if (timestamp != 0L && value != null) {
+            fields.addAnnotation(timestamp, value);
+        }
+    }
+
+    private static void readTag(final CodedInputStream input, final SpanFields fields) throws IOException {
+        final int limit = input.pushLimit(input.readRawVarint32());
+        String key = null;
+        String value = "";
+        while (!input.isAtEnd()) {
+            final int tag = input.readTag();
+            if (tag == TAG_KEY_TAG) {
+                key = emptyToNull(input.readString());
+            } else if (tag == TAG_VALUE_TAG) {
+                final String read = input.readString();
+                if (!read.isEmpty()) {
+                    value = read;
+                }
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.popLimit(limit);
+
+        // zipkin drops the tags without a key
+        if (key != null) {
+            fields.putTag(key, value);
+        }
+    }
+
+    private static String readHex(final CodedInputStream input) throws IOException {
+        final ByteString bytes = input.readBytes();
+        if (bytes.isEmpty()) {
+            return null;
+        }
+        Validate.isTrue(bytes.size() <= 32, "hex field greater than 32 chars long: %d", bytes.size());
+        return LOWER_HEX.encode(bytes.toByteArray());
+    }
+
+    private static byte[] readBytes(final CodedInputStream input) throws IOException {
+        final ByteString bytes = input.readBytes();
+        return bytes.isEmpty() ? null : bytes.toByteArray();
+    }
+
+    private static String emptyToNull(final String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
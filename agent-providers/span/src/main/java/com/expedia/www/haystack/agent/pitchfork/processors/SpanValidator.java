@@ -17,6 +17,7 @@
 
 package com.expedia.www.haystack.agent.pitchfork.processors;
 
+import com.expedia.open.tracing.Span;
 import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,39 +41,52 @@ public class SpanValidator {
     }
 
     public boolean isSpanValid(zipkin2.Span span) {
-        if (span.traceId() == null) {
-            logger.error("operation=isSpanValid, error='null traceId', service={}, spanId={}",
-                    span.localServiceName(),
-                    span.id());
+        return isSpanValid(span.traceId(), span.timestamp(), span.localServiceName(), span.id());
+    }
+
+    /**
+     * validates a zipkin span that has been transcoded into a haystack span, a zipkin span without a timestamp
+     * has a start time of 0
+     */
+    public boolean isSpanValid(Span span) {
+        final Long timestamp = span.getStartTime() > 0 ? span.getStartTime() : null;
+        return isSpanValid(span.getTraceId(), timestamp, span.getServiceName(), span.getSpanId());
+    }
+
+    private boolean isSpanValid(final String traceId, final Long timestamp, final String serviceName, final String spanId) {
+        if (traceId == null) {
+            logger.debug("operation=isSpanValid, error='null traceId', service={}, spanId={}",
+                    serviceName,
+                    spanId);
 
             return false;
         }
 
-        if (span.timestamp() == null && !acceptNullTimestamps) {
-            logger.error("operation=isSpanValid, error='null timestamp', service={}, traceId={}, spanId={}",
-                    span.localServiceName(),
-                    span.traceId(),
-                    span.id());
+        if (timestamp == null && !acceptNullTimestamps) {
+            logger.debug("operation=isSpanValid, error='null timestamp', service={}, traceId={}, spanId={}",
+                    serviceName,
+                    traceId,
+                    spanId);
 
             return false;
         }
 
-        if (span.timestamp() != null && maxTimestampDriftSeconds != VALIDATION_DISABLED) {
+        if (timestamp != null && maxTimestampDriftSeconds != VALIDATION_DISABLED) {
             long currentTimeInMicros = System.currentTimeMillis() * 1000;
 
-            long driftInMicros = span.timestamp() > currentTimeInMicros
-                    ? span.timestamp() - currentTimeInMicros
-                    : currentTimeInMicros - span.timestamp();
+            long driftInMicros = timestamp > currentTimeInMicros
+                    ? timestamp - currentTimeInMicros
+                    : currentTimeInMicros - timestamp;
 
             long driftInSeconds = driftInMicros / 1000 / 1000;
 
             if (driftInSeconds > maxTimestampDriftSeconds) {
-                logger.error("operation=isSpanValid, error='invalid timestamp', driftInSeconds={} timestamp={}, service={}, traceId={}, spanId={}",
+                logger.debug("operation=isSpanValid, error='invalid timestamp', driftInSeconds={} timestamp={}, service={}, traceId={}, spanId={}",
                         driftInSeconds,
-                        span.timestamp(),
-                        span.localServiceName(),
-                        span.traceId(),
-                        span.id());
+                        timestamp,
+                        serviceName,
+                        traceId,
+                        spanId);
 
                 return false;
             }
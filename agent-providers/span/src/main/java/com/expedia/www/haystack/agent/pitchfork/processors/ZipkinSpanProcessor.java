@@ -19,49 +19,228 @@ package com.expedia.www.haystack.agent.pitchfork.processors;
 
 import com.codahale.metrics.Meter;
 import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
 import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferStage;
 import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
 import com.expedia.www.haystack.agent.span.enricher.Enricher;
+import com.expedia.www.haystack.agent.span.enricher.StaticTags;
+import com.expedia.www.haystack.agent.span.filter.SpanFilter;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeGovernor;
+import com.expedia.www.haystack.agent.span.sampling.HeadSampler;
+import com.expedia.www.haystack.agent.span.sampling.TailSampler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.codec.SpanBytesDecoder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class ZipkinSpanProcessor {
     private final static Logger logger = LoggerFactory.getLogger(ZipkinSpanProcessor.class);
     private final Meter invalidSpanMeter;
+    private final Meter transcodeFallbackMeter;
     private final SpanBytesDecoder decoder;
+    private final ZipkinV2Transcoder transcoder;
     private final SpanValidator validator;
     private final List<Dispatcher> dispatchers;
     private final List<Enricher> enrichers;
+    private final RingBufferStage ringBuffer;
+    private final SpanFilter spanFilter;
+    private final HeadSampler headSampler;
+    private final TailSampler tailSampler;
+    private final SpanSizeGovernor sizeGovernor;
+    private final StaticTags staticTags;
 
     public ZipkinSpanProcessor(final SpanBytesDecoder decoder,
                                final SpanValidator validator,
                                final List<Dispatcher> dispatchers,
                                final List<Enricher> enrichers) {
+        this(decoder, validator, dispatchers, enrichers, null, null, null, null, null, null);
+    }
+
+    public ZipkinSpanProcessor(final SpanBytesDecoder decoder,
+                               final SpanValidator validator,
+                               final List<Dispatcher> dispatchers,
+                               final List<Enricher> enrichers,
+                               final RingBufferStage ringBuffer,
+                               final SpanFilter spanFilter,
+                               final HeadSampler headSampler,
+                               final TailSampler tailSampler,
+                               final SpanSizeGovernor sizeGovernor,
+                               final StaticTags staticTags) {
         this.decoder = decoder;
+        this.transcoder = ZipkinV2Transcoder.of(decoder);
         this.validator = validator;
         this.dispatchers = dispatchers;
         this.enrichers = enrichers;
+        this.ringBuffer = ringBuffer;
+        this.spanFilter = spanFilter;
+        this.headSampler = headSampler;
+        this.tailSampler = tailSampler;
+        this.sizeGovernor = sizeGovernor;
+        this.staticTags = staticTags;
         this.invalidSpanMeter = SharedMetricRegistry.newMeter("pitchfork.invalid.spans");
+        this.transcodeFallbackMeter = SharedMetricRegistry.newMeter("pitchfork.transcode.fallbacks");
     }
 
-    public void process(byte[] inputBytes) throws Exception {
-        final List<zipkin2.Span> zipkinSpans = decode(inputBytes);
-        for (final zipkin2.Span span : zipkinSpans) {
+    /**
+     * decode, validate and enrich the zipkin spans and hand them over to every dispatcher
+     * @param inputBytes zipkin spans as received in the request body
+     * @return future that completes once every sink has acknowledged the spans, or fails if any of them could not
+     * be dispatched. With a tail sampler, it completes once the spans are buffered
+     */
+    public CompletableFuture<Void> process(byte[] inputBytes) {
+        return process(inputBytes, 0, inputBytes.length);
+    }
+
+    /**
+     * decode, validate and enrich the zipkin spans held in a part of the buffer and hand them over to every dispatcher.
+     * The buffer is not referenced once the call returns, so the caller can reuse it right away
+     * @param buffer buffer holding the request body
+     * @param offset position of the request body in the buffer
+     * @param length size of the request body
+     * @return future that completes once every sink has acknowledged the spans, or fails if any of them could not
+     * be dispatched. With a tail sampler, it completes once the spans are buffered
+     */
+    public CompletableFuture<Void> process(byte[] buffer, int offset, int length) {
+        return process(read(buffer, offset, length));
+    }
+
+    /**
+     * reads the zipkin spans held in a part of the buffer as haystack spans, without validating, filtering or
+     * dispatching them. A malformed body is found here, so it can be refused before its spans are queued.
+     * The buffer is not referenced once the call returns
+     * @param buffer buffer holding the request body
+     * @param offset position of the request body in the buffer
+     * @param length size of the request body
+     * @return the haystack spans of the body
+     * @throws IllegalArgumentException or another runtime exception of the decoder if the body can't be read
+     */
+    public List<Span> read(byte[] buffer, int offset, int length) {
+        final List<Span> transcodedSpans = transcode(buffer, offset, length);
+        return transcodedSpans == null ?
+                decodeAndConvert(Arrays.copyOfRange(buffer, offset, offset + length)) : transcodedSpans;
+    }
+
+    /**
+     * validate and enrich the spans read from a request body and hand them over to every dispatcher
+     * @param spans haystack spans returned by {@link #read(byte[], int, int)}
+     * @return future that completes once every sink has acknowledged the spans, or fails if any of them could not
+     * be dispatched. With a tail sampler, it completes once the spans are buffered
+     */
+    public CompletableFuture<Void> process(final List<Span> spans) {
+        return dispatch(processSpans(spans));
+    }
+
+    // the filter and the validator see the haystack spans of either path, with the tags derived from the span kind
+    // and the remote endpoint
+    private List<DispatchRecord> processSpans(final List<Span> spans) {
+        final List<DispatchRecord> records = new ArrayList<>(spans.size());
+        final SpanSizeGovernor.RequestBudget budget = newRequestBudget();
+        for (final Span span : spans) {
+            if (spanFilter != null && !spanFilter.keep(span)) {
+                continue;
+            }
+            if (isSampledOut(span.getServiceName(), span.getTraceId())) {
+                continue;
+            }
             if (!validator.isSpanValid(span)) {
-                logger.warn("invalid zipkin span found !");
-                invalidSpanMeter.mark();
+                markInvalid();
                 continue;
             }
+            accept(span, records, budget);
+        }
+        return records;
+    }
 
-            final Span haystackSpan = enrich(HaystackDomainConverter.fromZipkinV2(span));
-            for (final Dispatcher dispatcher : dispatchers) {
-                logger.debug("dispatching span to dispatcher {}", dispatcher.getName());
-                dispatcher.dispatch(haystackSpan.getTraceId().getBytes(), haystackSpan.toByteArray());
+    // v1 and thrift spans, and the v2 ones that the transcoder fails to read, are decoded and then converted, while
+    // the v2 json and proto3 spans are read straight into haystack spans
+    private List<Span> decodeAndConvert(final byte[] inputBytes) {
+        final List<zipkin2.Span> zipkinSpans = decode(inputBytes);
+        final List<Span> spans = new ArrayList<>(zipkinSpans.size());
+        for (final zipkin2.Span span : zipkinSpans) {
+            spans.add(HaystackDomainConverter.fromZipkinV2(span));
+        }
+        return spans;
+    }
+
+    private void accept(final Span span, final List<DispatchRecord> records, final SpanSizeGovernor.RequestBudget budget) {
+        final Span haystackSpan = govern(enrich(span), budget);
+        if (haystackSpan == null) {
+            return;
+        }
+        if (tailSampler != null) {
+            // the sampler dispatches the spans once its decision on the trace is made
+            tailSampler.offer(staticTags == null ? haystackSpan : staticTags.applyTo(haystackSpan));
+            return;
+        }
+        records.add(new DispatchRecord(haystackSpan.getTraceId().getBytes(),
+                staticTags == null ? haystackSpan.toByteArray() : staticTags.appendTo(haystackSpan)));
+    }
+
+    private SpanSizeGovernor.RequestBudget newRequestBudget() {
+        return sizeGovernor == null ? null : sizeGovernor.newRequestBudget();
+    }
+
+    // the oversized spans are truncated or dropped here, so they never reach a dispatcher
+    private Span govern(final Span span, final SpanSizeGovernor.RequestBudget budget) {
+        return sizeGovernor == null ? span : sizeGovernor.govern(span, budget);
+    }
+
+    private void markInvalid() {
+        logger.debug("invalid zipkin span found !");
+        invalidSpanMeter.mark();
+    }
+
+    private boolean isSampledOut(final String serviceName, final String traceId) {
+        return headSampler != null && !headSampler.sample(serviceName, traceId);
+    }
+
+    private CompletableFuture<Void> dispatch(final List<DispatchRecord> records) {
+        if (records.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<CompletableFuture<DispatchAck>> acks = new ArrayList<>();
+        if (ringBuffer != null) {
+            // the ring buffer consumers batch the spans of concurrent requests together
+            for (final DispatchRecord record : records) {
+                acks.addAll(ringBuffer.publish(record.getPartitionKey(), record.getData()));
             }
+            return CompletableFuture.allOf(acks.toArray(new CompletableFuture[acks.size()]));
+        }
+
+        // all the spans of a request reach every dispatcher as one batch
+        for (final Dispatcher dispatcher : dispatchers) {
+            logger.debug("dispatching {} spans to dispatcher {}", records.size(), dispatcher.getName());
+            acks.add(dispatchBatchAsync(dispatcher, records));
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[acks.size()]));
+    }
+
+    private static CompletableFuture<DispatchAck> dispatchBatchAsync(final Dispatcher dispatcher,
+                                                                     final List<DispatchRecord> records) {
+        try {
+            return dispatcher.dispatchBatchAsync(records);
+        } catch (Exception ex) {
+            return DispatchAck.failed(ex);
+        }
+    }
+
+    private List<Span> transcode(byte[] buffer, int offset, int length) {
+        if (transcoder == null) {
+            return null;
+        }
+        try {
+            return transcoder.transcode(buffer, offset, length);
+        } catch (Exception ex) {
+            logger.debug("fail to transcode the zipkin spans, decoding them instead", ex);
+            transcodeFallbackMeter.mark();
+            return null;
         }
     }
 
@@ -18,7 +18,13 @@
 package com.expedia.www.haystack.agent.pitchfork.processors;
 
 import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferStage;
 import com.expedia.www.haystack.agent.span.enricher.Enricher;
+import com.expedia.www.haystack.agent.span.enricher.StaticTags;
+import com.expedia.www.haystack.agent.span.filter.SpanFilter;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeGovernor;
+import com.expedia.www.haystack.agent.span.sampling.HeadSampler;
+import com.expedia.www.haystack.agent.span.sampling.TailSampler;
 import com.google.common.collect.ImmutableMap;
 import org.apache.commons.lang3.Validate;
 import zipkin2.codec.SpanBytesDecoder;
@@ -34,10 +40,28 @@ public class ZipkinSpanProcessorFactory {
     private final List<Dispatcher> dispatchers;
     private final SpanValidator validator;
     private final List<Enricher> enrichers;
+    private final RingBufferStage ringBuffer;
+    private final SpanFilter spanFilter;
+    private final HeadSampler headSampler;
+    private final TailSampler tailSampler;
+    private final SpanSizeGovernor sizeGovernor;
+    private final StaticTags staticTags;
 
     public ZipkinSpanProcessorFactory(final SpanValidator validator,
                                       final List<Dispatcher> dispatchers,
                                       final List<Enricher> enrichers) {
+        this(validator, dispatchers, enrichers, null, null, null, null, null, null);
+    }
+
+    public ZipkinSpanProcessorFactory(final SpanValidator validator,
+                                      final List<Dispatcher> dispatchers,
+                                      final List<Enricher> enrichers,
+                                      final RingBufferStage ringBuffer,
+                                      final SpanFilter spanFilter,
+                                      final HeadSampler headSampler,
+                                      final TailSampler tailSampler,
+                                      final SpanSizeGovernor sizeGovernor,
+                                      final StaticTags staticTags) {
 
         Validate.notNull(validator, "span validator can't be null");
         Validate.notEmpty(dispatchers, "dispatchers can't be null or empty");
@@ -46,17 +70,28 @@ public class ZipkinSpanProcessorFactory {
         this.validator = validator;
         this.dispatchers = dispatchers;
         this.enrichers = enrichers;
+        this.ringBuffer = ringBuffer;
+        this.spanFilter = spanFilter;
+        this.headSampler = headSampler;
+        this.tailSampler = tailSampler;
+        this.sizeGovernor = sizeGovernor;
+        this.staticTags = staticTags;
     }
 
     public Map<String, ZipkinSpanProcessor> v1() {
         return ImmutableMap.of(
-                JSON_CONTENT_TYPE, new ZipkinSpanProcessor(SpanBytesDecoder.JSON_V1, validator, dispatchers, enrichers),
-                THRIFT_CONTENT_TYPE, new ZipkinSpanProcessor(SpanBytesDecoder.THRIFT, validator, dispatchers, enrichers));
+                JSON_CONTENT_TYPE, newProcessor(SpanBytesDecoder.JSON_V1),
+                THRIFT_CONTENT_TYPE, newProcessor(SpanBytesDecoder.THRIFT));
     }
 
     public Map<String, ZipkinSpanProcessor> v2() {
         return ImmutableMap.of(
-                JSON_CONTENT_TYPE, new ZipkinSpanProcessor(SpanBytesDecoder.JSON_V2, validator, dispatchers, enrichers),
-                PROTO_CONTENT_TYPE, new ZipkinSpanProcessor(SpanBytesDecoder.PROTO3, validator, dispatchers, enrichers));
+                JSON_CONTENT_TYPE, newProcessor(SpanBytesDecoder.JSON_V2),
+                PROTO_CONTENT_TYPE, newProcessor(SpanBytesDecoder.PROTO3));
+    }
+
+    private ZipkinSpanProcessor newProcessor(final SpanBytesDecoder decoder) {
+        return new ZipkinSpanProcessor(decoder, validator, dispatchers, enrichers, ringBuffer, spanFilter, headSampler,
+                tailSampler, sizeGovernor, staticTags);
     }
 }
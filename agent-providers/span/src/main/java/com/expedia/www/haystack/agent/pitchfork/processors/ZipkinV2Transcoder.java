@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import org.apache.commons.lang3.Validate;
+import zipkin2.Endpoint;
+import zipkin2.codec.SpanBytesDecoder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * reads the zipkin v2 spans of a request body straight into haystack spans, without decoding them into
+ * {@link zipkin2.Span} objects first. The ids, names, timestamps, tags and annotations are normalized the way the zipkin
+ * decoder does, and the tags and logs are mapped as the {@link HaystackDomainConverter} does, so the spans are the same
+ * as the ones of the decode and convert path. A body that can't be transcoded fails with an exception, and is expected to
+ * take that path instead
+ */
+abstract class ZipkinV2Transcoder {
+    private final static String ZERO_SPAN_ID = "0000000000000000";
+    private final static String SPAN_KIND_TAG_KEY = "span.kind";
+    private final static String ERROR_TAG_KEY = "error";
+    private final static String ERROR_MESSAGE_TAG_KEY = "error_msg";
+    private final static String ANNOTATION_TAG_KEY = "annotation";
+
+    /**
+     * @return the transcoder for the spans read by the decoder, or null if the format of the decoder is not supported
+     */
+    static ZipkinV2Transcoder of(final SpanBytesDecoder decoder) {
+        if (decoder == SpanBytesDecoder.JSON_V2) {
+            return new JsonV2Transcoder();
+        }
+        if (decoder == SpanBytesDecoder.PROTO3) {
+            return new Proto3Transcoder();
+        }
+        return null;
+    }
+
+    /**
+     * @param bytes buffer holding a list of zipkin v2 spans
+     * @param offset position of the list in the buffer
+     * @param length size of the list
+     * @return the haystack spans, in the order of the list
+     * @throws IOException or IllegalArgumentException if the list or one of its spans is malformed
+     */
+    abstract List<Span> transcode(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * the fields of the zipkin span being read, normalized as {@link zipkin2.Span.Builder} does. The tags and
+     * annotations are kept in arrays that are reused for the next span, and written straight into the haystack span
+     */
+    static final class SpanFields {
+        private final static int INITIAL_CAPACITY = 16;
+
+        private String traceId;
+        private String id;
+        private String parentId;
+        private zipkin2.Span.Kind kind;
+        private String name;
+        private long timestamp;
+        private long duration;
+        private String localServiceName;
+        private String remoteServiceName;
+        private String remoteIpv4;
+        private String remoteIpv6;
+        private Integer remotePort;
+        // the tags are kept in key order, as zipkin does
+        private String[] tagKeys = new String[INITIAL_CAPACITY];
+        private String[] tagValues = new String[INITIAL_CAPACITY];
+        private int tagCount;
+        private long[] annotationTimestamps = new long[INITIAL_CAPACITY];
+        private String[] annotationValues = new String[INITIAL_CAPACITY];
+        private int annotationCount;
+
+        void clear() {
+            traceId = null;
+            id = null;
+            parentId = null;
+            kind = null;
+            name = null;
+            timestamp = 0L;
+            duration = 0L;
+            localServiceName = null;
+            remoteServiceName = null;
+            remoteIpv4 = null;
+            remoteIpv6 = null;
+            remotePort = null;
+            Arrays.fill(tagKeys, 0, tagCount, null);
+            Arrays.fill(tagValues, 0, tagCount, null);
+            tagCount = 0;
+            Arrays.fill(annotationValues, 0, annotationCount, null);
+            annotationCount = 0;
+        }
+
+        void traceId(final String traceId) {
+            this.traceId = zipkin2.Span.normalizeTraceId(traceId);
+        }
+
+        void id(final String id) {
+            validateId(id);
+            Validate.isTrue(!ZERO_SPAN_ID.equals(id), "span id is all zeros");
+            this.id = padLeft(id);
+        }
+
+        void parentId(final String parentId) {
+            if (parentId == null) {
+                this.parentId = null;
+                return;
+            }
+            // an all zeros parent id stands for a root span
+            this.parentId = validateId(parentId) == parentId.length() ? null : padLeft(parentId);
+        }
+
+        void kind(final zipkin2.Span.Kind kind) {
+            this.kind = kind;
+        }
+
+        void name(final String name) {
+            this.name = name == null || name.isEmpty() ? null : name.toLowerCase(Locale.ROOT);
+        }
+
+        void timestamp(final long timestamp) {
+            this.timestamp = Math.max(timestamp, 0L);
+        }
+
+        void duration(final long duration) {
+            this.duration = Math.max(duration, 0L);
+        }
+
+        void localEndpoint(final Endpoint localEndpoint) {
+            this.localServiceName = localEndpoint == null ? null : localEndpoint.serviceName();
+        }
+
+        void remoteEndpoint(final Endpoint remoteEndpoint) {
+            remoteServiceName = remoteEndpoint == null ? null : remoteEndpoint.serviceName();
+            remoteIpv4 = remoteEndpoint == null ? null : remoteEndpoint.ipv4();
+            remoteIpv6 = remoteEndpoint == null ? null : remoteEndpoint.ipv6();
+            remotePort = remoteEndpoint == null ? null : remoteEndpoint.port();
+        }
+
+        void addAnnotation(final long timestamp, final String value) {
+            if (annotationCount == annotationValues.length) {
+                annotationTimestamps = Arrays.copyOf(annotationTimestamps, annotationCount * 2);
+                annotationValues = Arrays.copyOf(annotationValues, annotationCount * 2);
+            }
+            annotationTimestamps[annotationCount] = timestamp;
+            annotationValues[annotationCount] = value;
+            annotationCount++;
+        }
+
+        void putTag(final String key, final String value) {
+            Validate.notNull(key, "tag key can't be null");
+            Validate.notNull(value, "tag value can't be null");
+
+            // a span has a handful of tags, so the sorted insert is cheaper than a tree map
+            int position = tagCount;
+            while (position > 0 && tagKeys[position - 1].compareTo(key) >= 0) {
+                position--;
+            }
+            if (position < tagCount && tagKeys[position].equals(key)) {
+                tagValues[position] = value;
+                return;
+            }
+
+            if (tagCount == tagKeys.length) {
+                tagKeys = Arrays.copyOf(tagKeys, tagCount * 2);
+                tagValues = Arrays.copyOf(tagValues, tagCount * 2);
+            }
+            System.arraycopy(tagKeys, position, tagKeys, position + 1, tagCount - position);
+            System.arraycopy(tagValues, position, tagValues, position + 1, tagCount - position);
+            tagKeys[position] = key;
+            tagValues[position] = value;
+            tagCount++;
+        }
+
+        Span toHaystackSpan() {
+            Validate.notNull(traceId, "traceId is missing");
+            Validate.notNull(id, "id is missing");
+
+            final Span.Builder builder = Span.newBuilder()
+                    .setTraceId(traceId)
+                    .setSpanId(id);
+            if (name != null) {
+                builder.setOperationName(name);
+            }
+            builder.setStartTime(timestamp);
+            builder.setDuration(duration);
+            // a span can't be its own parent
+            if (parentId != null && !parentId.equals(id)) {
+                builder.setParentSpanId(parentId);
+            }
+            if (localServiceName != null) {
+                builder.setServiceName(localServiceName);
+            }
+
+            // the same tags and logs, in the same order, as the HaystackDomainConverter adds for a decoded span
+            addRemoteEndpointTags(builder);
+            if (kind != null && !hasTag(SPAN_KIND_TAG_KEY)) {
+                addStringTag(builder, SPAN_KIND_TAG_KEY, kind.name().toLowerCase(Locale.ROOT));
+            }
+            for (int idx = 0; idx < tagCount; idx++) {
+                addTag(builder, tagKeys[idx], tagValues[idx]);
+            }
+            addLogs(builder);
+            return builder.build();
+        }
+
+        private void addRemoteEndpointTags(final Span.Builder builder) {
+            if (remoteServiceName != null && !remoteServiceName.isEmpty()) {
+                addStringTag(builder, "remote.service.name", remoteServiceName);
+            }
+            if (remoteIpv4 != null && !remoteIpv4.isEmpty()) {
+                addStringTag(builder, "remote.service.ipv4", remoteIpv4);
+            }
+            if (remoteIpv6 != null && !remoteIpv6.isEmpty()) {
+                addStringTag(builder, "remote.service.ipv6", remoteIpv6);
+            }
+            if (remotePort != null) {
+                builder.addTagsBuilder()
+                        .setKey("remote.service.port")
+                        .setVLong(remotePort)
+                        .setType(Tag.TagType.LONG);
+            }
+        }
+
+        private boolean hasTag(final String key) {
+            for (int idx = 0; idx < tagCount; idx++) {
+                if (tagKeys[idx].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // zipkin error tags are strings where as haystack ones are booleans, so an error tag is expanded into the
+        // error and its message
+        private static void addTag(final Span.Builder builder, final String key, final String value) {
+            if (!ERROR_TAG_KEY.equalsIgnoreCase(key)) {
+                addStringTag(builder, key, value);
+                return;
+            }
+
+            final boolean error = !"false".equalsIgnoreCase(value);
+            builder.addTagsBuilder()
+                    .setKey(key)
+                    .setVBool(error)
+                    .setType(Tag.TagType.BOOL);
+            if (error) {
+                addStringTag(builder, ERROR_MESSAGE_TAG_KEY, value);
+            }
+        }
+
+        private static void addStringTag(final Span.Builder builder, final String key, final String value) {
+            builder.addTagsBuilder()
+                    .setKey(key)
+                    .setVStr(value)
+                    .setType(Tag.TagType.STRING);
+        }
+
+        // zipkin keeps the distinct annotations of a span, ordered by timestamp and value
+        private void addLogs(final Span.Builder builder) {
+            sortAnnotations();
+            for (int idx = 0; idx < annotationCount; idx++) {
+                if (idx > 0 && annotationTimestamps[idx] == annotationTimestamps[idx - 1]
+                        && annotationValues[idx].equals(annotationValues[idx - 1])) {
+                    continue;
+                }
+                builder.addLogsBuilder()
+                        .setTimestamp(annotationTimestamps[idx])
+                        .addFieldsBuilder()
+                        .setKey(ANNOTATION_TAG_KEY)
+                        .setVStr(annotationValues[idx]);
+            }
+        }
+
+        // insertion sort, a span has a handful of annotations that are mostly in order already
+        private void sortAnnotations() {
+            for (int idx = 1; idx < annotationCount; idx++) {
+                final long timestamp = annotationTimestamps[idx];
+                final String value = annotationValues[idx];
+                int position = idx;
+                while (position > 0 && compareAnnotation(annotationTimestamps[position - 1], annotationValues[position - 1],
+                        timestamp, value) > 0) {
+                    annotationTimestamps[position] = annotationTimestamps[position - 1];
+                    annotationValues[position] = annotationValues[position - 1];
+                    position--;
+                }
+                annotationTimestamps[position] = timestamp;
+                annotationValues[position] = value;
+            }
+        }
+
+        private static int compareAnnotation(final long leftTimestamp,
+                                             final String leftValue,
+                                             final long rightTimestamp,
+                                             final String rightValue) {
+            final int byTimestamp = Long.compare(leftTimestamp, rightTimestamp);
+            return byTimestamp != 0 ? byTimestamp : leftValue.compareTo(rightValue);
+        }
+
+        // returns the count of leading zeros of the lower hex id
+        private static int validateId(final String id) {
+            Validate.isTrue(!id.isEmpty() && id.length() <= 16, "span id should be 1 to 16 lower hex characters");
+            int zeros = 0;
+            boolean inZeroPrefix = true;
+            for (int idx = 0; idx < id.length(); idx++) {
+                final char c = id.charAt(idx);
+                Validate.isTrue((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'), "span id should be lower hex encoded");
+                inZeroPrefix = inZeroPrefix && c == '0';
+                if (inZeroPrefix) {
+                    zeros++;
+                }
+            }
+            return zeros;
+        }
+
+        private static String padLeft(final String id) {
+            return id.length() == ZERO_SPAN_ID.length() ? id : ZERO_SPAN_ID.substring(id.length()) + id;
+        }
+    }
+}
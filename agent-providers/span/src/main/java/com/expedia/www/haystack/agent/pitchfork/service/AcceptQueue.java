@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service;
+
+import com.codahale.metrics.Meter;
+import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+import com.expedia.www.haystack.agent.pitchfork.processors.ZipkinSpanProcessor;
+import com.expedia.www.haystack.agent.pitchfork.service.config.AcceptModeConfig;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * holds the spans of the request bodies accepted by pitchfork until a worker has dispatched them. The spans are read
+ * from the body before they are queued, so they are decoded only once. The queue is bounded by the bytes of the
+ * bodies, and a body counts against the budget till every sink has acknowledged its spans, so a slow sink fills the
+ * queue and pushes back on the reporters
+ */
+public class AcceptQueue implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(AcceptQueue.class);
+
+    private final AcceptModeConfig config;
+    private final ThreadPoolExecutor workers;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Meter acceptedMeter;
+    private final Meter rejectedMeter;
+    private final Meter failureMeter;
+
+    public AcceptQueue(final AcceptModeConfig config) {
+        Validate.notNull(config, "accept mode config can't be null");
+
+        this.config = config;
+        // the work queue itself is unbounded, the byte budget is checked before a body is handed over
+        this.workers = new ThreadPoolExecutor(config.getWorkers(), config.getWorkers(), 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new DefaultThreadFactory("pitchfork-accept", true));
+        this.acceptedMeter = SharedMetricRegistry.newMeter("pitchfork.accept.queue.accepted");
+        this.rejectedMeter = SharedMetricRegistry.newMeter("pitchfork.accept.queue.rejected");
+        this.failureMeter = SharedMetricRegistry.newMeter("pitchfork.accept.queue.failures");
+        SharedMetricRegistry.newGauge("pitchfork.accept.queue.bytes", queuedBytes::get);
+        SharedMetricRegistry.newGauge("pitchfork.accept.queue.requests", () -> workers.getQueue().size());
+
+        logger.info("Started the pitchfork accept queue with max bytes={} and workers={}",
+                config.getQueueMaxBytes(), config.getWorkers());
+    }
+
+    /**
+     * queue the spans read from a body for the processor to dispatch in the background
+     * @param spans spans read from the body by the processor
+     * @param bodyBytes size of the body the spans were read from, counted against the byte budget
+     * @return false if the body doesn't fit in the byte budget of the queue, or the queue is closed
+     */
+    public boolean offer(final ZipkinSpanProcessor processor, final List<Span> spans, final int bodyBytes) {
+        if (!reserve(bodyBytes)) {
+            rejectedMeter.mark();
+            return false;
+        }
+
+        try {
+            workers.execute(() -> process(processor, spans, bodyBytes));
+        } catch (RejectedExecutionException ex) {
+            queuedBytes.addAndGet(-bodyBytes);
+            rejectedMeter.mark();
+            return false;
+        }
+        acceptedMeter.mark();
+        return true;
+    }
+
+    /**
+     * @return the status code of a request rejected as the queue is full, 429 or 503
+     */
+    public int getRejectStatusCode() {
+        return config.getRejectStatusCode();
+    }
+
+    /**
+     * @return the seconds a rejected reporter is asked to wait before it retries
+     */
+    public int getRetryAfterSeconds() {
+        return config.getRetryAfterSeconds();
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private boolean reserve(final long bytes) {
+        while (true) {
+            final long current = queuedBytes.get();
+            if (current + bytes > config.getQueueMaxBytes()) {
+                return false;
+            }
+            if (queuedBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void process(final ZipkinSpanProcessor processor, final List<Span> spans, final int bodyBytes) {
+        CompletableFuture<Void> processed;
+        try {
+            processed = processor.process(spans);
+        } catch (Exception ex) {
+            processed = new CompletableFuture<>();
+            processed.completeExceptionally(ex);
+        }
+
+        processed.whenComplete((ignored, error) -> {
+            queuedBytes.addAndGet(-bodyBytes);
+            if (error != null) {
+                // the reporter has been acknowledged already, so the failure only shows up here
+                failureMeter.mark();
+                logger.error("Fail to process/forward the accepted zipkin spans", error);
+            }
+        });
+    }
+
+    /**
+     * stops accepting bodies and waits for the workers to process the ones queued so far
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.error("Fail to process the accepted zipkin spans in time, {} requests are dropped",
+                        workers.shutdownNow().size());
+            }
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service;
+
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Inflater;
+
+/**
+ * keeps the raw deflate inflaters between the requests, so that their native memory is not allocated and freed for
+ * every compressed body. An inflater borrowed while the pool is empty is created on the spot, and one released while
+ * the pool is full is ended
+ */
+class InflaterPool {
+    private final BlockingQueue<Inflater> idle;
+    private final int size;
+
+    InflaterPool(final int size) {
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(Math.max(size, 1));
+        SharedMetricRegistry.newGauge("pitchfork.inflater.pool.idle", idle::size);
+    }
+
+    Inflater borrow() {
+        final Inflater inflater = idle.poll();
+        return inflater == null ? new Inflater(true) : inflater;
+    }
+
+    void release(final Inflater inflater) {
+        inflater.reset();
+        if (size == 0 || !idle.offer(inflater)) {
+            inflater.end();
+        }
+    }
+}
@@ -17,15 +17,23 @@
 
 package com.expedia.www.haystack.agent.pitchfork.service;
 
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
 import com.expedia.www.haystack.agent.pitchfork.processors.ZipkinSpanProcessorFactory;
+import com.expedia.www.haystack.agent.pitchfork.service.config.AcceptModeConfig;
+import com.expedia.www.haystack.agent.pitchfork.service.config.DecompressionConfig;
+import com.expedia.www.haystack.agent.pitchfork.service.config.H2cConfig;
 import com.expedia.www.haystack.agent.pitchfork.service.config.HttpConfig;
 import com.google.common.collect.ImmutableMap;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.lang3.Validate;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
@@ -36,37 +44,89 @@ public class PitchforkService {
     private final static Logger logger = LoggerFactory.getLogger(PitchforkService.class);
     private final Server server;
     private final HttpConfig cfg;
+    private final AcceptQueue acceptQueue;
+    private final RequestDecompressor decompressor;
 
     public PitchforkService(final Config config, final ZipkinSpanProcessorFactory processorFactory) {
         this.cfg = HttpConfig.from(config);
+        this.acceptQueue = buildAcceptQueue(config, cfg);
+        this.decompressor = buildDecompressor(config, cfg);
         final QueuedThreadPool threadPool = new QueuedThreadPool(cfg.getMaxThreads(), cfg.getMinThreads(), cfg.getIdleTimeout());
         server = new Server(threadPool);
 
-        final ServerConnector httpConnector = new ServerConnector(server, new HttpConnectionFactory(new HttpConfiguration()));
+        final ServerConnector httpConnector = new ServerConnector(server, buildConnectionFactories(config));
         httpConnector.setPort(cfg.getPort());
         httpConnector.setIdleTimeout(cfg.getIdleTimeout());
+        final ConnectionStatistics connectionStatistics = new ConnectionStatistics();
+        httpConnector.addBean(connectionStatistics);
+        SharedMetricRegistry.newGauge("pitchfork.connections.open", connectionStatistics::getConnections);
         server.addConnector(httpConnector);
 
         final ServletContextHandler context = new ServletContextHandler(server, "/");
         addResources(context, processorFactory);
 
-        if (cfg.isGzipEnabled()) {
-            final GzipHandler gzipHandler = new GzipHandler();
-            gzipHandler.setInflateBufferSize(cfg.getGzipBufferSize());
-            context.setGzipHandler(gzipHandler);
-        }
-
         server.setStopTimeout(cfg.getStopTimeout());
         logger.info("pitchfork has been initialized successfully !");
     }
 
+    // h2c is served next to http/1.1 on the same port, from the prior knowledge preface or the upgrade of a request
+    private static ConnectionFactory[] buildConnectionFactories(final Config config) {
+        final HttpConfiguration httpConfiguration = new HttpConfiguration();
+        final HttpConnectionFactory http1 = new HttpConnectionFactory(httpConfiguration);
+        if (!config.hasPath(H2cConfig.H2C_CONFIG_KEY)) {
+            return new ConnectionFactory[] { http1 };
+        }
+
+        final H2cConfig h2cConfig = H2cConfig.from(config.getConfig(H2cConfig.H2C_CONFIG_KEY));
+        if (!h2cConfig.isEnabled()) {
+            return new ConnectionFactory[] { http1 };
+        }
+
+        final HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfiguration);
+        h2c.setMaxConcurrentStreams(h2cConfig.getMaxConcurrentStreams());
+        h2c.setInitialSessionRecvWindow(h2cConfig.getInitialSessionRecvWindow());
+        h2c.setInitialStreamRecvWindow(h2cConfig.getInitialStreamRecvWindow());
+        h2c.setMaxDynamicTableSize(h2cConfig.getHeaderTableSize());
+        SharedMetricRegistry.newGauge("pitchfork.h2c.max.concurrent.streams", h2c::getMaxConcurrentStreams);
+        SharedMetricRegistry.newGauge("pitchfork.h2c.initial.session.recv.window", h2c::getInitialSessionRecvWindow);
+        SharedMetricRegistry.newGauge("pitchfork.h2c.initial.stream.recv.window", h2c::getInitialStreamRecvWindow);
+        SharedMetricRegistry.newGauge("pitchfork.h2c.header.table.size", h2c::getMaxDynamicTableSize);
+
+        logger.info("pitchfork accepts h2c connections with max concurrent streams={}", h2cConfig.getMaxConcurrentStreams());
+        return new ConnectionFactory[] { http1, h2c };
+    }
+
+    private static AcceptQueue buildAcceptQueue(final Config config, final HttpConfig httpConfig) {
+        if (!config.hasPath(AcceptModeConfig.ACCEPT_MODE_CONFIG_KEY)) {
+            return null;
+        }
+
+        final AcceptModeConfig acceptModeConfig = AcceptModeConfig.from(config.getConfig(AcceptModeConfig.ACCEPT_MODE_CONFIG_KEY));
+        if (!acceptModeConfig.isEnabled()) {
+            return null;
+        }
+        Validate.isTrue(acceptModeConfig.getQueueMaxBytes() >= httpConfig.getMaxBodySizeBytes(),
+                "accept mode queue max bytes should be >= max body size");
+        return new AcceptQueue(acceptModeConfig);
+    }
+
+    // the servlets decompress the bodies themselves, in place of the gzip handler of jetty
+    private static RequestDecompressor buildDecompressor(final Config config, final HttpConfig httpConfig) {
+        final Config decompressionConfig = config.hasPath(DecompressionConfig.DECOMPRESSION_CONFIG_KEY)
+                ? config.getConfig(DecompressionConfig.DECOMPRESSION_CONFIG_KEY) : ConfigFactory.empty();
+        return new RequestDecompressor(DecompressionConfig.from(decompressionConfig),
+                httpConfig.isGzipEnabled(), httpConfig.getGzipBufferSize());
+    }
+
     private void addResources(final ServletContextHandler context, final ZipkinSpanProcessorFactory processorFactory) {
         ImmutableMap.of(
-                "/api/v1/spans", new PitchforkServlet("v1", processorFactory.v1()),
-                "/api/v2/spans", new PitchforkServlet("v2", processorFactory.v2()))
+                "/api/v1/spans", new PitchforkServlet("v1", processorFactory.v1(), cfg.getMaxBodySizeBytes(), acceptQueue, decompressor),
+                "/api/v2/spans", new PitchforkServlet("v2", processorFactory.v2(), cfg.getMaxBodySizeBytes(), acceptQueue, decompressor))
                 .forEach((endpoint, servlet) -> {
                     logger.info("adding servlet for endpoint={}", endpoint);
-                    context.addServlet(new ServletHolder(servlet), endpoint);
+                    final ServletHolder holder = new ServletHolder(servlet);
+                    holder.setAsyncSupported(true);
+                    context.addServlet(holder, endpoint);
                 });
     }
 
@@ -78,5 +138,9 @@ public class PitchforkService {
     public void stop() throws Exception {
         logger.info("shutting down pitchfork ...");
         server.stop();
+        if (acceptQueue != null) {
+            // the spans of the acknowledged requests are still dispatched
+            acceptQueue.close();
+        }
     }
 }
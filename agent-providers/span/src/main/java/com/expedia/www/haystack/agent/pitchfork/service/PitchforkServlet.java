@@ -18,61 +18,189 @@
 package com.expedia.www.haystack.agent.pitchfork.service;
 
 import com.codahale.metrics.Meter;
+import com.expedia.open.tracing.Span;
 import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
 import com.expedia.www.haystack.agent.pitchfork.processors.ZipkinSpanProcessor;
-import org.apache.commons.io.IOUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static com.expedia.www.haystack.agent.pitchfork.processors.ZipkinSpanProcessorFactory.*;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
+/**
+ * receives the zipkin spans without holding a request thread. The body is read with a non-blocking read listener
+ * into a pooled buffer sized from the content length, and the response is sent once the spans have been dispatched.
+ * With an accept queue, the response is a 202 sent as soon as the spans of the body are read and queued, a body that
+ * can't be read as zipkin spans gets a 400 instead. A body sent with a content encoding
+ * is decompressed into a second pooled buffer, which is handed to the decoder in place of the compressed one
+ */
 public class PitchforkServlet extends HttpServlet {
     private final static Logger logger = LoggerFactory.getLogger(PitchforkServlet.class);
+    private final static int DEFAULT_MAX_BODY_SIZE_BYTES = 10485760;
+    // initial buffer size of a body sent without a content length, and the most read from the input at a time
+    private final static int READ_CHUNK_SIZE_BYTES = 8192;
+    private final static String HTTP_2 = "HTTP/2.0";
+
     private final Map<String, ZipkinSpanProcessor> processors;
+    private final int maxBodySizeBytes;
+    private final AcceptQueue acceptQueue;
+    private final RequestDecompressor decompressor;
+    private final ByteBufAllocator allocator;
     private final Meter requestRateMeter;
+    private final Meter h2RequestRateMeter;
     private final Meter errorMeter;
+    private final Meter bodyTooLargeMeter;
+    private final Meter decompressedTooLargeMeter;
+    private final Meter unsupportedEncodingMeter;
+    private final Meter invalidBodyMeter;
 
     public PitchforkServlet(final String name,
                             final Map<String, ZipkinSpanProcessor> processors) {
+        this(name, processors, DEFAULT_MAX_BODY_SIZE_BYTES, null, null);
+    }
+
+    /**
+     * @param acceptQueue queue of the accept mode, or null to respond once the spans have been dispatched
+     * @param decompressor decompressor of the bodies sent with a content encoding, or null to refuse them
+     */
+    public PitchforkServlet(final String name,
+                            final Map<String, ZipkinSpanProcessor> processors,
+                            final int maxBodySizeBytes,
+                            final AcceptQueue acceptQueue,
+                            final RequestDecompressor decompressor) {
         Validate.notEmpty(name, "pitchfork servlet name can't be empty or null");
         Validate.isTrue(processors != null && !processors.isEmpty(), "span processors can't be null");
+        Validate.isTrue(maxBodySizeBytes > 0 && maxBodySizeBytes < Integer.MAX_VALUE, "max body size should be > 0 and < 2GB");
 
         this.processors = processors;
+        this.maxBodySizeBytes = maxBodySizeBytes;
+        this.acceptQueue = acceptQueue;
+        this.decompressor = decompressor;
+        this.allocator = PooledByteBufAllocator.DEFAULT;
         requestRateMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".request.rate");
+        h2RequestRateMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".h2.request.rate");
         errorMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".error.rate");
+        bodyTooLargeMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".body.too.large.rate");
+        decompressedTooLargeMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".decompressed.too.large.rate");
+        unsupportedEncodingMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".unsupported.encoding.rate");
+        invalidBodyMeter = SharedMetricRegistry.newMeter("pitchfork." + name + ".invalid.body.rate");
 
         logger.info("Initializing http servlet with name = {}", name);
     }
 
     protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
         requestRateMeter.mark();
+        if (HTTP_2.equals(request.getProtocol())) {
+            h2RequestRateMeter.mark();
+        }
         logger.info("zipkin span dispatch request at {}", request.getRequestURI());
 
         final ZipkinSpanProcessor processor = getProcessor(request.getContentType());
-        if (processor != null) {
-            try {
-                final byte[] inputBytes = readFromStream(request.getInputStream()).toByteArray();
-                processor.process(inputBytes);
-                response.setStatus(200);
-            } catch (Exception ex) {
-                errorMeter.mark();
-                logger.error("Fail to process/forward the zipkin span, request made at {}", request.getRequestURI(), ex);
-                response.sendError(503, "Fail to process/forward the zipkin span!");
-            }
-        } else {
+        if (processor == null) {
             response.sendError(400, String.format("invalid content-type, supported values are %s, %s, %s, got '%s'",
                     JSON_CONTENT_TYPE, THRIFT_CONTENT_TYPE, PROTO_CONTENT_TYPE, request.getContentType()));
+            return;
         }
+
+        final String contentEncoding = request.getHeader("Content-Encoding");
+        final String encoding = getEncoding(contentEncoding);
+        if (encoding == null && !isIdentity(contentEncoding)) {
+            onUnsupportedEncoding(request.getRequestURI(), contentEncoding, response);
+            return;
+        }
+
+        // a body announced too large is rejected before any of it is read
+        final long contentLength = request.getContentLengthLong();
+        if (contentLength > maxBodySizeBytes) {
+            onBodyTooLarge(request.getRequestURI(), response);
+            return;
+        }
+
+        // the request thread is released while the body arrives and the sinks acknowledge the spans. The buffer can
+        // hold one byte more than the max body size, so that a body sent without a content length is found too large
+        final int initialCapacity = contentLength > 0 ? (int) contentLength : READ_CHUNK_SIZE_BYTES;
+        final ByteBuf body = allocator.heapBuffer(Math.min(initialCapacity, maxBodySizeBytes), maxBodySizeBytes + 1);
+        final AsyncContext asyncContext = request.startAsync();
+        final ServletInputStream input = request.getInputStream();
+        input.setReadListener(new BodyReader(request.getRequestURI(), processor, encoding, asyncContext, input, body));
+    }
+
+    private void onProcessFailure(final String requestUri,
+                                  final HttpServletResponse response,
+                                  final Throwable error) throws IOException {
+        errorMeter.mark();
+        logger.error("Fail to process/forward the zipkin span, request made at {}", requestUri, error);
+        response.sendError(503, "Fail to process/forward the zipkin span!");
+    }
+
+    private void onBodyTooLarge(final String requestUri, final HttpServletResponse response) throws IOException {
+        bodyTooLargeMeter.mark();
+        logger.error("Fail to accept the zipkin spans of the request made at {}, its body is larger than {} bytes",
+                requestUri, maxBodySizeBytes);
+        response.sendError(413, String.format("request body should not be larger than %d bytes", maxBodySizeBytes));
+    }
+
+    private void onDecompressedBodyTooLarge(final String requestUri, final HttpServletResponse response) throws IOException {
+        decompressedTooLargeMeter.mark();
+        logger.error("Fail to accept the zipkin spans of the request made at {}, its body decompresses to more than {} bytes",
+                requestUri, decompressor.getMaxSizeBytes());
+        response.sendError(413, String.format("request body should not decompress to more than %d bytes",
+                decompressor.getMaxSizeBytes()));
+    }
+
+    private void onDecompressionFailure(final String requestUri,
+                                        final HttpServletResponse response,
+                                        final Exception error) throws IOException {
+        errorMeter.mark();
+        logger.error("Fail to decompress the zipkin spans of the request made at {}", requestUri, error);
+        response.sendError(400, "Fail to decompress the request body: " + error.getMessage());
+    }
+
+    private void onUnsupportedEncoding(final String requestUri,
+                                       final String contentEncoding,
+                                       final HttpServletResponse response) throws IOException {
+        unsupportedEncodingMeter.mark();
+        logger.error("Fail to accept the zipkin spans of the request made at {}, content encoding '{}' is not supported",
+                requestUri, contentEncoding);
+        response.sendError(415, String.format("content-encoding '%s' is not supported", contentEncoding));
+    }
+
+    private void onInvalidBody(final String requestUri,
+                               final HttpServletResponse response,
+                               final RuntimeException error) throws IOException {
+        invalidBodyMeter.mark();
+        logger.error("Fail to read the zipkin spans of the request made at {}", requestUri, error);
+        response.sendError(400, "Fail to read the zipkin spans of the request body: " + error.getMessage());
+    }
+
+    private void onQueueFull(final String requestUri, final HttpServletResponse response) throws IOException {
+        logger.warn("Fail to accept the zipkin spans of the request made at {}, the accept queue is full", requestUri);
+        response.setHeader("Retry-After", String.valueOf(acceptQueue.getRetryAfterSeconds()));
+        response.sendError(acceptQueue.getRejectStatusCode(), "Fail to accept the zipkin spans, retry later!");
+    }
+
+    // the encoding to decompress the body with, null if the body is not compressed or its encoding is not supported
+    private String getEncoding(final String contentEncoding) {
+        return isIdentity(contentEncoding) || decompressor == null ? null : decompressor.encodingOf(contentEncoding);
+    }
+
+    private static boolean isIdentity(final String contentEncoding) {
+        return isEmpty(contentEncoding) || "identity".equalsIgnoreCase(contentEncoding.trim());
     }
 
     private ZipkinSpanProcessor getProcessor(String contentType) {
@@ -89,9 +217,160 @@ public class PitchforkServlet extends HttpServlet {
         return null;
     }
 
-    private ByteArrayOutputStream readFromStream(final InputStream input) throws IOException {
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        IOUtils.copy(input, output);
-        return output;
+    // the container calls back a read listener from one thread at a time
+    private final class BodyReader implements ReadListener {
+        private final String requestUri;
+        private final ZipkinSpanProcessor processor;
+        private final String encoding;
+        private final AsyncContext asyncContext;
+        private final ServletInputStream input;
+        private ByteBuf body;
+        private boolean released;
+
+        BodyReader(final String requestUri,
+                   final ZipkinSpanProcessor processor,
+                   final String encoding,
+                   final AsyncContext asyncContext,
+                   final ServletInputStream input,
+                   final ByteBuf body) {
+            this.requestUri = requestUri;
+            this.processor = processor;
+            this.encoding = encoding;
+            this.asyncContext = asyncContext;
+            this.input = input;
+            this.body = body;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!released && input.isReady() && !input.isFinished()) {
+                body.ensureWritable(Math.min(READ_CHUNK_SIZE_BYTES, body.maxWritableBytes()));
+                if (body.writeBytes(input, body.writableBytes()) < 0) {
+                    return;
+                }
+                if (body.readableBytes() > maxBodySizeBytes) {
+                    release();
+                    onBodyTooLarge(requestUri, response());
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            if (released || (encoding != null && !decompressBody())) {
+                return;
+            }
+            if (acceptQueue == null) {
+                processBody();
+            } else {
+                acceptBody();
+            }
+        }
+
+        // the max body size applies to the compressed body, the decompressed one is bounded by the decompressor
+        private boolean decompressBody() throws IOException {
+            final ByteBuf decompressed;
+            try {
+                decompressed = decompressor.decompress(encoding, body);
+            } catch (RequestDecompressor.DecompressedSizeExceededException ex) {
+                release();
+                onDecompressedBodyTooLarge(requestUri, response());
+                asyncContext.complete();
+                return false;
+            } catch (IOException | RuntimeException ex) {
+                release();
+                onDecompressionFailure(requestUri, response(), ex);
+                asyncContext.complete();
+                return false;
+            }
+
+            body.release();
+            body = decompressed;
+            return true;
+        }
+
+        private void processBody() throws IOException {
+            final CompletableFuture<Void> processed;
+            try {
+                processed = processor.process(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+            } catch (Exception ex) {
+                onProcessFailure(requestUri, response(), ex);
+                asyncContext.complete();
+                return;
+            } finally {
+                // the processor doesn't hold on to the body once it returns
+                release();
+            }
+
+            processed.whenComplete((ignored, error) -> {
+                try {
+                    if (error == null) {
+                        response().setStatus(200);
+                    } else {
+                        onProcessFailure(requestUri, response(), error);
+                    }
+                } catch (IOException | IllegalStateException ex) {
+                    logger.error("Fail to send the response for the request made at {}", requestUri, ex);
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        }
+
+        // the spans are read once here, straight from the pooled buffer, and the read spans are queued, as the reporter
+        // can't be told about a malformed body after its 202
+        private void acceptBody() throws IOException {
+            final int bodyBytes = body.readableBytes();
+            try {
+                if (bodyBytes == 0) {
+                    release();
+                    response().sendError(400, "request body can't be empty");
+                    return;
+                }
+                final List<Span> spans = read();
+                if (spans == null) {
+                    return;
+                }
+                if (acceptQueue.offer(processor, spans, bodyBytes)) {
+                    response().setStatus(202);
+                } else {
+                    onQueueFull(requestUri, response());
+                }
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        // the spans of the body, or null if it can't be read. The body is released either way
+        private List<Span> read() throws IOException {
+            try {
+                return processor.read(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+            } catch (RuntimeException ex) {
+                onInvalidBody(requestUri, response(), ex);
+                return null;
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+            errorMeter.mark();
+            logger.error("Fail to read the zipkin spans of the request made at {}", requestUri, error);
+            if (!released) {
+                release();
+                asyncContext.complete();
+            }
+        }
+
+        private HttpServletResponse response() {
+            return (HttpServletResponse) asyncContext.getResponse();
+        }
+
+        private void release() {
+            released = true;
+            body.release();
+        }
     }
 }
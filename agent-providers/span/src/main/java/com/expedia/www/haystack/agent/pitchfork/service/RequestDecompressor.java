@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service;
+
+import com.codahale.metrics.Timer;
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+import com.expedia.www.haystack.agent.pitchfork.service.config.DecompressionConfig;
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.lang3.Validate;
+import org.xerial.snappy.SnappyFramedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * decompresses the request bodies sent with a content encoding into a pooled buffer, a chunk at a time, and stops as
+ * soon as the decompressed body grows larger than the max size, so that a small body can't blow up the heap. The gzip
+ * and deflate bodies are inflated with pooled inflaters, the zstd, snappy and lz4 bodies are read through the framed
+ * streams of their codecs
+ */
+public class RequestDecompressor {
+    private final static String GZIP = "gzip";
+    private final static String DEFLATE = "deflate";
+    private final static String ZSTD = "zstd";
+    private final static String SNAPPY = "snappy";
+    private final static String LZ4 = "lz4";
+    private final static List<String> ENCODINGS = Arrays.asList(GZIP, DEFLATE, ZSTD, SNAPPY, LZ4);
+    private final static Map<String, String> ALIASES = ImmutableMap.of("x-gzip", GZIP, "x-snappy-framed", SNAPPY);
+
+    private final static int GZIP_MAGIC = 0x8b1f;
+    private final static int GZIP_HEADER_SIZE = 10;
+    private final static int GZIP_TRAILER_SIZE = 8;
+    private final static int FHCRC = 2;
+    private final static int FEXTRA = 4;
+    private final static int FNAME = 8;
+    private final static int FCOMMENT = 16;
+    private final static int ZLIB_PRESET_DICTIONARY = 0x20;
+
+    private final int maxSizeBytes;
+    private final int chunkSizeBytes;
+    private final InflaterPool inflaters;
+    private final ByteBufAllocator allocator;
+    private final Map<String, Timer> timers = new HashMap<>();
+
+    /**
+     * @param gzipEnabled false to refuse the gzip and deflate bodies
+     * @param chunkSizeBytes most bytes the decompressed buffer grows by at a time
+     */
+    public RequestDecompressor(final DecompressionConfig config, final boolean gzipEnabled, final int chunkSizeBytes) {
+        Validate.notNull(config, "decompression config can't be null");
+        Validate.isTrue(chunkSizeBytes > 0, "decompression chunk size should be > 0");
+
+        for (final String encoding : config.getEncodings()) {
+            Validate.isTrue(ENCODINGS.contains(encoding), "unknown decompression encoding '%s', supported values are %s",
+                    encoding, ENCODINGS);
+            if (gzipEnabled || !(GZIP.equals(encoding) || DEFLATE.equals(encoding))) {
+                timers.put(encoding, SharedMetricRegistry.newTimer("pitchfork.decompression." + encoding));
+            }
+        }
+        this.maxSizeBytes = config.getMaxSizeBytes();
+        this.chunkSizeBytes = chunkSizeBytes;
+        this.inflaters = new InflaterPool(config.getInflaterPoolSize());
+        this.allocator = PooledByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * @param contentEncoding value of the content encoding header of a request
+     * @return the encoding to decompress the body with, or null if it is not supported
+     */
+    String encodingOf(final String contentEncoding) {
+        final String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        final String codec = ALIASES.getOrDefault(encoding, encoding);
+        return timers.containsKey(codec) ? codec : null;
+    }
+
+    int getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * decompresses the readable bytes of the compressed buffer, which is left to the caller to release
+     * @param encoding one of the encodings returned by {@link #encodingOf(String)}
+     * @return a pooled heap buffer holding the decompressed body, to be released by the caller
+     * @throws DecompressedSizeExceededException if the body decompresses to more than the max size
+     * @throws IOException or a runtime exception if the body is corrupt or truncated
+     */
+    ByteBuf decompress(final String encoding, final ByteBuf compressed) throws IOException {
+        // the buffer can hold one byte more than the max size, so that a body decompressing to more is found too large
+        final int initialCapacity = (int) Math.min(Math.max(compressed.readableBytes() * 4L, chunkSizeBytes), maxSizeBytes);
+        final ByteBuf decompressed = allocator.heapBuffer(initialCapacity, maxSizeBytes + 1);
+        final Timer.Context timer = timers.get(encoding).time();
+        try {
+            switch (encoding) {
+                case GZIP:
+                    gunzip(compressed, decompressed);
+                    break;
+                case DEFLATE:
+                    inflateZlib(compressed, decompressed);
+                    break;
+                default:
+                    final InputStream input = new ByteBufInputStream(compressed);
+                    copy(codecStream(encoding, input), decompressed);
+                    break;
+            }
+            return decompressed;
+        } catch (IOException | RuntimeException ex) {
+            decompressed.release();
+            throw ex;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void gunzip(final ByteBuf compressed, final ByteBuf decompressed) throws IOException {
+        final Inflater inflater = inflaters.borrow();
+        try {
+            // a body made of several gzip members decompresses to their concatenation
+            do {
+                skipGzipHeader(compressed);
+                final int start = decompressed.writerIndex();
+                inflate(inflater, compressed, decompressed);
+                Validate.isTrue(compressed.readableBytes() >= GZIP_TRAILER_SIZE, "gzip trailer is missing");
+                verify(new CRC32(), decompressed, start, compressed.readUnsignedIntLE());
+                if (compressed.readUnsignedIntLE() != ((decompressed.writerIndex() - start) & 0xffffffffL)) {
+                    throw new ZipException("gzip body size doesn't match its trailer");
+                }
+                inflater.reset();
+            } while (compressed.readableBytes() >= GZIP_HEADER_SIZE
+                    && compressed.getUnsignedShortLE(compressed.readerIndex()) == GZIP_MAGIC);
+        } finally {
+            inflaters.release(inflater);
+        }
+    }
+
+    private void inflateZlib(final ByteBuf compressed, final ByteBuf decompressed) throws IOException {
+        // the http deflate encoding is zlib wrapped, but some clients send raw deflate bodies instead
+        final int header = compressed.readableBytes() >= 2 ? compressed.getUnsignedShort(compressed.readerIndex()) : 0;
+        final boolean wrapped = isZlibHeader(header);
+        if (wrapped) {
+            Validate.isTrue((header & ZLIB_PRESET_DICTIONARY) == 0, "deflate body with a preset dictionary is not supported");
+            compressed.skipBytes(2);
+        }
+
+        final Inflater inflater = inflaters.borrow();
+        try {
+            inflate(inflater, compressed, decompressed);
+        } finally {
+            inflaters.release(inflater);
+        }
+
+        if (wrapped) {
+            Validate.isTrue(compressed.readableBytes() >= 4, "zlib trailer is missing");
+            verify(new Adler32(), decompressed, decompressed.readerIndex(), compressed.readUnsignedInt());
+        }
+    }
+
+    private void inflate(final Inflater inflater, final ByteBuf compressed, final ByteBuf decompressed) throws IOException {
+        inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.readerIndex(), compressed.readableBytes());
+        while (!inflater.finished()) {
+            ensureWritable(decompressed);
+            final int inflated;
+            try {
+                inflated = inflater.inflate(decompressed.array(),
+                        decompressed.arrayOffset() + decompressed.writerIndex(), decompressed.writableBytes());
+            } catch (DataFormatException ex) {
+                throw new ZipException(ex.getMessage());
+            }
+            decompressed.writerIndex(decompressed.writerIndex() + inflated);
+            checkSize(decompressed);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new ZipException("deflate stream is truncated");
+            }
+        }
+        // the trailer and the next member, if any, follow the deflate stream
+        compressed.readerIndex(compressed.writerIndex() - inflater.getRemaining());
+    }
+
+    private void copy(final InputStream codecStream, final ByteBuf decompressed) throws IOException {
+        try (InputStream input = codecStream) {
+            while (true) {
+                ensureWritable(decompressed);
+                if (decompressed.writeBytes(input, decompressed.writableBytes()) < 0) {
+                    return;
+                }
+                checkSize(decompressed);
+            }
+        }
+    }
+
+    private static InputStream codecStream(final String encoding, final InputStream compressed) throws IOException {
+        switch (encoding) {
+            case ZSTD:
+                return new ZstdInputStreamNoFinalizer(compressed, RecyclingBufferPool.INSTANCE);
+            case SNAPPY:
+                return new SnappyFramedInputStream(compressed);
+            default:
+                return new LZ4FrameInputStream(compressed);
+        }
+    }
+
+    private void ensureWritable(final ByteBuf decompressed) {
+        decompressed.ensureWritable(Math.min(chunkSizeBytes, decompressed.maxWritableBytes()));
+    }
+
+    private void checkSize(final ByteBuf decompressed) throws DecompressedSizeExceededException {
+        if (decompressed.readableBytes() > maxSizeBytes) {
+            throw new DecompressedSizeExceededException(maxSizeBytes);
+        }
+    }
+
+    private static void skipGzipHeader(final ByteBuf compressed) throws ZipException {
+        if (compressed.readableBytes() < GZIP_HEADER_SIZE
+                || compressed.readUnsignedShortLE() != GZIP_MAGIC
+                || compressed.readUnsignedByte() != Deflater.DEFLATED) {
+            throw new ZipException("not a gzip body");
+        }
+        final int flags = compressed.readUnsignedByte();
+        // modification time, extra flags and operating system
+        compressed.skipBytes(6);
+        if ((flags & FEXTRA) != 0) {
+            compressed.skipBytes(compressed.readUnsignedShortLE());
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated(compressed);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated(compressed);
+        }
+        if ((flags & FHCRC) != 0) {
+            compressed.skipBytes(2);
+        }
+    }
+
+    private static void skipZeroTerminated(final ByteBuf compressed) throws ZipException {
+        final int length = compressed.bytesBefore((byte) 0);
+        if (length < 0) {
+            throw new ZipException("gzip header is truncated");
+        }
+        compressed.skipBytes(length + 1);
+    }
+
+    private static boolean isZlibHeader(final int header) {
+        return ((header >> 8) & 0x0f) == Deflater.DEFLATED && header % 31 == 0;
+    }
+
+    private static void verify(final Checksum checksum,
+                               final ByteBuf decompressed,
+                               final int start,
+                               final long expected) throws ZipException {
+        checksum.update(decompressed.array(), decompressed.arrayOffset() + start, decompressed.writerIndex() - start);
+        if (checksum.getValue() != expected) {
+            throw new ZipException("checksum of the decompressed body doesn't match");
+        }
+    }
+
+    /**
+     * thrown when a body decompresses to more than the max size
+     */
+    static final class DecompressedSizeExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DecompressedSizeExceededException(final int maxSizeBytes) {
+            super(String.format("request body decompresses to more than %d bytes", maxSizeBytes));
+        }
+    }
+}
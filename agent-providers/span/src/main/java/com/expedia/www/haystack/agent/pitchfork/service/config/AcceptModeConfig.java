@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * settings of the accept mode of pitchfork, in which a request is acknowledged as soon as its body is queued and the
+ * spans are dispatched in the background
+ */
+public class AcceptModeConfig {
+    public final static String ACCEPT_MODE_CONFIG_KEY = "accept.mode";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String QUEUE_MAX_BYTES_CONFIG_KEY = "queue.max.bytes";
+    private final static String WORKERS_CONFIG_KEY = "workers";
+    private final static String RETRY_AFTER_SEC_CONFIG_KEY = "retry.after.sec";
+    private final static String REJECT_STATUS_CODE_CONFIG_KEY = "reject.status.code";
+
+    private final boolean enabled;
+    private final long queueMaxBytes;
+    private final int workers;
+    private final int retryAfterSeconds;
+    private final int rejectStatusCode;
+
+    AcceptModeConfig(final boolean enabled,
+                     final long queueMaxBytes,
+                     final int workers,
+                     final int retryAfterSeconds,
+                     final int rejectStatusCode) {
+        Validate.isTrue(queueMaxBytes > 0, "accept mode queue max bytes should be > 0");
+        Validate.isTrue(workers > 0, "accept mode workers should be > 0");
+        Validate.isTrue(retryAfterSeconds >= 0, "accept mode retry after should be >= 0");
+        Validate.isTrue(rejectStatusCode == 429 || rejectStatusCode == 503, "accept mode reject status code should be 429 or 503");
+
+        this.enabled = enabled;
+        this.queueMaxBytes = queueMaxBytes;
+        this.workers = workers;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.rejectStatusCode = rejectStatusCode;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getQueueMaxBytes() {
+        return queueMaxBytes;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public int getRejectStatusCode() {
+        return rejectStatusCode;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static AcceptModeConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final long queueMaxBytes = config.hasPath(QUEUE_MAX_BYTES_CONFIG_KEY) ? config.getLong(QUEUE_MAX_BYTES_CONFIG_KEY) : 67108864L;
+        final int workers = config.hasPath(WORKERS_CONFIG_KEY) ? config.getInt(WORKERS_CONFIG_KEY) : 2;
+        final int retryAfterSeconds = config.hasPath(RETRY_AFTER_SEC_CONFIG_KEY) ? config.getInt(RETRY_AFTER_SEC_CONFIG_KEY) : 1;
+        final int rejectStatusCode = config.hasPath(REJECT_STATUS_CODE_CONFIG_KEY) ? config.getInt(REJECT_STATUS_CODE_CONFIG_KEY) : 429;
+
+        return new AcceptModeConfig(enabled, queueMaxBytes, workers, retryAfterSeconds, rejectStatusCode);
+    }
+}
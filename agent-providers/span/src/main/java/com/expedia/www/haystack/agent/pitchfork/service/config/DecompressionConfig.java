@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * settings of the decompression of the pitchfork request bodies, sent with one of the content encodings listed here.
+ * The gzip and deflate encodings are only accepted if gzip is enabled in the http config
+ */
+public class DecompressionConfig {
+    public final static String DECOMPRESSION_CONFIG_KEY = "decompression";
+
+    private final static String ENCODINGS_CONFIG_KEY = "encodings";
+    private final static String MAX_SIZE_BYTES_CONFIG_KEY = "max.size.bytes";
+    private final static String INFLATER_POOL_SIZE_CONFIG_KEY = "inflater.pool.size";
+    private final static List<String> DEFAULT_ENCODINGS = Arrays.asList("gzip", "deflate", "zstd", "snappy", "lz4");
+
+    private final List<String> encodings;
+    private final int maxSizeBytes;
+    private final int inflaterPoolSize;
+
+    DecompressionConfig(final List<String> encodings, final int maxSizeBytes, final int inflaterPoolSize) {
+        Validate.notNull(encodings, "decompression encodings can't be null");
+        Validate.isTrue(maxSizeBytes > 0 && maxSizeBytes < Integer.MAX_VALUE, "decompression max size should be > 0 and < 2GB");
+        Validate.isTrue(inflaterPoolSize >= 0, "decompression inflater pool size should be >= 0");
+
+        this.encodings = encodings.stream().map(encoding -> encoding.toLowerCase(Locale.ROOT)).collect(Collectors.toList());
+        this.maxSizeBytes = maxSizeBytes;
+        this.inflaterPoolSize = inflaterPoolSize;
+    }
+
+    public List<String> getEncodings() {
+        return encodings;
+    }
+
+    public int getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    public int getInflaterPoolSize() {
+        return inflaterPoolSize;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static DecompressionConfig from(final Config config) {
+        final List<String> encodings = config.hasPath(ENCODINGS_CONFIG_KEY) ? config.getStringList(ENCODINGS_CONFIG_KEY) : DEFAULT_ENCODINGS;
+        final int maxSizeBytes = config.hasPath(MAX_SIZE_BYTES_CONFIG_KEY) ? config.getInt(MAX_SIZE_BYTES_CONFIG_KEY) : 52428800;
+        final int inflaterPoolSize = config.hasPath(INFLATER_POOL_SIZE_CONFIG_KEY) ? config.getInt(INFLATER_POOL_SIZE_CONFIG_KEY) : 16;
+        return new DecompressionConfig(encodings, maxSizeBytes, inflaterPoolSize);
+    }
+}
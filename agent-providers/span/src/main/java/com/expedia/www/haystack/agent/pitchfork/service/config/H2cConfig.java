@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * settings of the http/2 cleartext (h2c) connection factory of pitchfork, which lets a reporter multiplex many requests
+ * over one connection. The connector keeps serving http/1.1, and h2c is negotiated with the prior knowledge preface or
+ * the http/1.1 upgrade
+ */
+public class H2cConfig {
+    public final static String H2C_CONFIG_KEY = "h2c";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String MAX_CONCURRENT_STREAMS_CONFIG_KEY = "max.concurrent.streams";
+    private final static String INITIAL_SESSION_RECV_WINDOW_CONFIG_KEY = "initial.session.recv.window.bytes";
+    private final static String INITIAL_STREAM_RECV_WINDOW_CONFIG_KEY = "initial.stream.recv.window.bytes";
+    private final static String HEADER_TABLE_SIZE_CONFIG_KEY = "header.table.size.bytes";
+
+    // the smallest flow control window of the http/2 spec
+    private final static int MIN_WINDOW_SIZE = 65535;
+
+    private final boolean enabled;
+    private final int maxConcurrentStreams;
+    private final int initialSessionRecvWindow;
+    private final int initialStreamRecvWindow;
+    private final int headerTableSize;
+
+    H2cConfig(final boolean enabled,
+              final int maxConcurrentStreams,
+              final int initialSessionRecvWindow,
+              final int initialStreamRecvWindow,
+              final int headerTableSize) {
+        Validate.isTrue(maxConcurrentStreams > 0, "h2c max concurrent streams should be > 0");
+        Validate.isTrue(initialSessionRecvWindow >= MIN_WINDOW_SIZE, "h2c initial session recv window should be >= 65535");
+        Validate.isTrue(initialStreamRecvWindow >= MIN_WINDOW_SIZE, "h2c initial stream recv window should be >= 65535");
+        Validate.isTrue(initialSessionRecvWindow >= initialStreamRecvWindow,
+                "h2c initial session recv window should be >= initial stream recv window");
+        Validate.isTrue(headerTableSize >= 0, "h2c header table size should be >= 0");
+
+        this.enabled = enabled;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialSessionRecvWindow = initialSessionRecvWindow;
+        this.initialStreamRecvWindow = initialStreamRecvWindow;
+        this.headerTableSize = headerTableSize;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public int getInitialSessionRecvWindow() {
+        return initialSessionRecvWindow;
+    }
+
+    public int getInitialStreamRecvWindow() {
+        return initialStreamRecvWindow;
+    }
+
+    public int getHeaderTableSize() {
+        return headerTableSize;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static H2cConfig from(final Config config) {
+        final boolean enabled = config.hasPath(ENABLED_CONFIG_KEY) && config.getBoolean(ENABLED_CONFIG_KEY); // default is false
+        final int maxConcurrentStreams = config.hasPath(MAX_CONCURRENT_STREAMS_CONFIG_KEY) ? config.getInt(MAX_CONCURRENT_STREAMS_CONFIG_KEY) : 128;
+        final int initialSessionRecvWindow = config.hasPath(INITIAL_SESSION_RECV_WINDOW_CONFIG_KEY) ? config.getInt(INITIAL_SESSION_RECV_WINDOW_CONFIG_KEY) : 1048576;
+        final int initialStreamRecvWindow = config.hasPath(INITIAL_STREAM_RECV_WINDOW_CONFIG_KEY) ? config.getInt(INITIAL_STREAM_RECV_WINDOW_CONFIG_KEY) : 524288;
+        final int headerTableSize = config.hasPath(HEADER_TABLE_SIZE_CONFIG_KEY) ? config.getInt(HEADER_TABLE_SIZE_CONFIG_KEY) : 4096;
+
+        return new H2cConfig(enabled, maxConcurrentStreams, initialSessionRecvWindow, initialStreamRecvWindow, headerTableSize);
+    }
+}
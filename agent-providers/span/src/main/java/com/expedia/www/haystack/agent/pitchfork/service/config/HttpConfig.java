@@ -28,6 +28,7 @@ public class HttpConfig {
     private final static String STOP_TIMEOUT_MILLIS_CONFIG_KEY = "stop.timeout.ms";
     private final static String GZIP_ENABLED_KEY = "gzip.enabled";
     private final static String GZIP_BUFFER_SIZE = "gzip.buffer.size";
+    private final static String MAX_BODY_SIZE_BYTES_CONFIG_KEY = "max.body.size.bytes";
 
 
     private final int port;
@@ -37,13 +38,16 @@ public class HttpConfig {
     private final int stopTimeout;
     private final boolean gzipEnabled;
     private final int gzipBufferSize;
+    private final int maxBodySizeBytes;
 
-    HttpConfig(int port, int minThreads, int maxThreads, int idleTimeout, int stopTimeout, boolean gzipEnabled, int gzipBufferSize) {
+    HttpConfig(int port, int minThreads, int maxThreads, int idleTimeout, int stopTimeout, boolean gzipEnabled, int gzipBufferSize,
+               int maxBodySizeBytes) {
         Validate.isTrue(minThreads <= maxThreads, "min threads has to be less than or equal to max threads count");
         Validate.isTrue(port > 0, "http port should be > 0");
         Validate.isTrue(idleTimeout > 0, "idle timeout should be > 0");
         Validate.isTrue(stopTimeout > 0, "stop timeout should be > 0");
         Validate.isTrue(gzipBufferSize > 0, "gzipbufferSize should be > 0");
+        Validate.isTrue(maxBodySizeBytes > 0 && maxBodySizeBytes < Integer.MAX_VALUE, "max body size should be > 0 and < 2GB");
 
         this.port = port;
         this.maxThreads = maxThreads;
@@ -52,6 +56,7 @@ public class HttpConfig {
         this.stopTimeout = stopTimeout;
         this.gzipEnabled = gzipEnabled;
         this.gzipBufferSize = gzipBufferSize;
+        this.maxBodySizeBytes = maxBodySizeBytes;
     }
 
     public int getPort() {
@@ -82,6 +87,10 @@ public class HttpConfig {
         return gzipBufferSize;
     }
 
+    public int getMaxBodySizeBytes() {
+        return maxBodySizeBytes;
+    }
+
     @SuppressWarnings("PMD.NPathComplexity")
     public static HttpConfig from(Config config) {
         final int port = config.hasPath(PORT_CONFIG_KEY) ? config.getInt(PORT_CONFIG_KEY) : 9411;
@@ -91,6 +100,7 @@ public class HttpConfig {
         final int stopTimeout = config.hasPath(STOP_TIMEOUT_MILLIS_CONFIG_KEY) ? config.getInt(STOP_TIMEOUT_MILLIS_CONFIG_KEY) : 30000;
         final int gzipBufferSize = config.hasPath(GZIP_BUFFER_SIZE) ? config.getInt(GZIP_BUFFER_SIZE) : 16384;
         final boolean gzipEnabled = !config.hasPath(GZIP_ENABLED_KEY) || config.getBoolean(GZIP_ENABLED_KEY); // default is true
-        return new HttpConfig(port, minThreads, maxThreads, idleTimeout, stopTimeout, gzipEnabled, gzipBufferSize);
+        final int maxBodySizeBytes = config.hasPath(MAX_BODY_SIZE_BYTES_CONFIG_KEY) ? config.getInt(MAX_BODY_SIZE_BYTES_CONFIG_KEY) : 10485760;
+        return new HttpConfig(port, minThreads, maxThreads, idleTimeout, stopTimeout, gzipEnabled, gzipBufferSize, maxBodySizeBytes);
     }
 }
@@ -43,10 +43,17 @@ public class PitchforkAgent extends BaseAgent {
     @Override
     public void initialize(Config config) throws Exception {
         dispatchers = loadAndInitializeDispatchers(config, Thread.currentThread().getContextClassLoader(), getName());
+        ringBuffer = buildRingBuffer(config, dispatchers, getName());
+        spanFilter = buildSpanFilter(config, getName());
+        headSampler = buildHeadSampler(config, getName());
+        tailSampler = buildTailSampler(config, dispatchers, ringBuffer, getName());
+        staticTags = buildStaticTags(config);
+        sizeGovernor = buildSizeGovernor(config, getName(), staticTags);
         final List<Enricher> enrichers = loadSpanEnrichers(config);
         final SpanValidator validator = buildSpanValidator(config);
 
-        final ZipkinSpanProcessorFactory factory = new ZipkinSpanProcessorFactory(validator, dispatchers, enrichers);
+        final ZipkinSpanProcessorFactory factory = new ZipkinSpanProcessorFactory(validator, dispatchers, enrichers,
+                ringBuffer, spanFilter, headSampler, tailSampler, sizeGovernor, staticTags);
         httpService = new PitchforkService(config, factory);
         httpService.start();
     }
@@ -56,7 +63,15 @@ public class PitchforkAgent extends BaseAgent {
     }
 
     @Override
-    protected void closeInternal() throws Exception {
-        httpService.stop();
+    public void close() {
+        // stops taking requests before the dispatchers are closed, the requests already accepted are still dispatched
+        try {
+            if (httpService != null) {
+                httpService.stop();
+            }
+        } catch (Exception ex) {
+            logger.error("Fail to stop the pitchfork http service", ex);
+        }
+        super.close();
     }
 }
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.codahale.metrics.Meter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * cache of an expensive lookup of an enricher, like a metadata service call. The entries expire after the ttl and the
+ * least recently used ones are evicted above the max entries. {@link #getIfPresent(Object)} never blocks the span:
+ * a missing key is loaded on the loader threads and the span goes on without its value. An entry past the ttl is
+ * refreshed on the loader threads as well, while the spans keep reading the previous value until twice the ttl.
+ * A key without a value is cached as such for the ttl too, so the spans of that key don't call the lookup again.
+ * The loads wait in a bounded queue, and the ones that don't fit are dropped and counted, the key is looked up again
+ * by a later span
+ *
+ * @param <K> key of the lookup
+ * @param <V> value of the lookup, the lookup returns null if the key has none
+ */
+public class CachedLookup<K, V> implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(CachedLookup.class);
+
+    private final ThreadPoolExecutor loaderExecutor;
+    // a key without a value is cached as an empty optional
+    private final LoadingCache<K, Optional<V>> cache;
+    private final Set<K> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final Meter hitMeter;
+    private final Meter missMeter;
+    private final Meter failureMeter;
+    private final Meter droppedMeter;
+
+    /**
+     * @param agentName name of the agent the enricher runs in, the prefix of the metrics
+     * @param name name of the lookup in its metrics, usually the name of the enricher
+     * @param lookup lookup of the value of a key, it runs on the loader threads
+     */
+    public CachedLookup(final String agentName,
+                        final String name,
+                        final Function<K, V> lookup,
+                        final CachedLookupConfig config) {
+        Validate.notNull(lookup, "lookup can't be null");
+        Validate.notNull(config, "cached lookup config can't be null");
+
+        final String metricPrefix = "enricher.lookup." + name;
+        this.droppedMeter = newMeter(buildMetricName(agentName, metricPrefix + ".dropped"));
+        // a load that doesn't fit in the queue is rejected, the refresh of an entry is then retried by a later span
+        this.loaderExecutor = new ThreadPoolExecutor(config.getLoaderThreads(), config.getLoaderThreads(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getLoaderQueueSize()),
+                new DefaultThreadFactory("enricher-lookup-" + name, true),
+                (task, executor) -> {
+                    droppedMeter.mark();
+                    throw new RejectedExecutionException("enricher lookup queue is full");
+                });
+        final CacheLoader<K, Optional<V>> loader = new CacheLoader<K, Optional<V>>() {
+            @Override
+            public Optional<V> load(final K key) {
+                return Optional.ofNullable(lookup.apply(key));
+            }
+        };
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaxEntries())
+                .expireAfterWrite(config.getTtlMillis() * 2, TimeUnit.MILLISECONDS)
+                .refreshAfterWrite(config.getTtlMillis(), TimeUnit.MILLISECONDS)
+                .build(CacheLoader.asyncReloading(loader, loaderExecutor));
+
+        this.hitMeter = newMeter(buildMetricName(agentName, metricPrefix + ".hits"));
+        this.missMeter = newMeter(buildMetricName(agentName, metricPrefix + ".misses"));
+        this.failureMeter = newMeter(buildMetricName(agentName, metricPrefix + ".failures"));
+        newGauge(buildMetricName(agentName, metricPrefix + ".size"), cache::size);
+    }
+
+    /**
+     * @return the cached value of the key, or null if the key has no value or is not cached yet, in which case it is
+     * loaded in the background
+     */
+    public V getIfPresent(final K key) {
+        final Optional<V> value = cache.getIfPresent(key);
+        if (value != null) {
+            hitMeter.mark();
+            return value.orElse(null);
+        }
+
+        missMeter.mark();
+        // the spans that miss the same key while it is loading don't queue another load
+        if (pendingKeys.add(key)) {
+            try {
+                loaderExecutor.execute(() -> {
+                    try {
+                        load(key);
+                    } finally {
+                        pendingKeys.remove(key);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                pendingKeys.remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of the key, loaded on the calling thread if it is not cached, or null if the key has no value
+     * or the lookup fails
+     */
+    public V get(final K key) {
+        final Optional<V> value = cache.getIfPresent(key);
+        if (value != null) {
+            hitMeter.mark();
+            return value.orElse(null);
+        }
+        missMeter.mark();
+        return load(key);
+    }
+
+    private V load(final K key) {
+        try {
+            return cache.get(key).orElse(null);
+        } catch (Exception ex) {
+            failureMeter.mark();
+            logger.debug("fail to look up the key {}", key, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        loaderExecutor.shutdownNow();
+    }
+}
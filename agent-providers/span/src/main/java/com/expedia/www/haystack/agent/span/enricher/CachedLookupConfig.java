@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * bounds of the cache of a {@link CachedLookup}, read from the 'cache' section of an enricher
+ */
+public class CachedLookupConfig {
+    public final static String CACHE_CONFIG_KEY = "cache";
+
+    private final static String TTL_MILLIS_CONFIG_KEY = "ttl.millis";
+    private final static String MAX_ENTRIES_CONFIG_KEY = "max.entries";
+    private final static String LOADER_THREADS_CONFIG_KEY = "loader.threads";
+    private final static String LOADER_QUEUE_SIZE_CONFIG_KEY = "loader.queue.size";
+
+    private final long ttlMillis;
+    private final long maxEntries;
+    private final int loaderThreads;
+    private final int loaderQueueSize;
+
+    CachedLookupConfig(final long ttlMillis, final long maxEntries, final int loaderThreads, final int loaderQueueSize) {
+        Validate.isTrue(ttlMillis > 0, "cached lookup ttl should be > 0");
+        Validate.isTrue(maxEntries > 0, "cached lookup max entries should be > 0");
+        Validate.isTrue(loaderThreads > 0, "cached lookup loader threads should be > 0");
+        Validate.isTrue(loaderQueueSize > 0, "cached lookup loader queue size should be > 0");
+
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.loaderThreads = loaderThreads;
+        this.loaderQueueSize = loaderQueueSize;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getLoaderThreads() {
+        return loaderThreads;
+    }
+
+    public int getLoaderQueueSize() {
+        return loaderQueueSize;
+    }
+
+    public static CachedLookupConfig from(final Config config) {
+        final long ttlMillis = config.hasPath(TTL_MILLIS_CONFIG_KEY) ? config.getLong(TTL_MILLIS_CONFIG_KEY) : 60000L;
+        final long maxEntries = config.hasPath(MAX_ENTRIES_CONFIG_KEY) ? config.getLong(MAX_ENTRIES_CONFIG_KEY) : 10000L;
+        final int loaderThreads = config.hasPath(LOADER_THREADS_CONFIG_KEY) ? config.getInt(LOADER_THREADS_CONFIG_KEY) : 2;
+        final int loaderQueueSize = config.hasPath(LOADER_QUEUE_SIZE_CONFIG_KEY) ? config.getInt(LOADER_QUEUE_SIZE_CONFIG_KEY) : 1000;
+        return new CachedLookupConfig(ttlMillis, maxEntries, loaderThreads, loaderQueueSize);
+    }
+}
@@ -18,12 +18,33 @@
 package com.expedia.www.haystack.agent.span.enricher;
 
 import com.expedia.open.tracing.Span;
+import com.typesafe.config.Config;
 
 import java.util.List;
 
-public interface Enricher {
+/**
+ * enricher of the decoded spans. The enrichers registered as a service are initialized with their section of the
+ * 'enrichers' config of the agent and closed with the agent, the ones listed by class name get neither
+ */
+public interface Enricher extends AutoCloseable {
     void apply(final Span.Builder span);
 
+    /**
+     * returns the name of the enricher, the key of its section in the 'enrichers' config and of its metrics
+     */
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * initializes the enricher before it takes any span
+     * @param config section of the enricher in the 'enrichers' config of the agent
+     */
+    default void initialize(final Config config) { }
+
+    @Override
+    default void close() { }
+
     static Span enrichSpan(final Span span, List<Enricher> enrichers) {
         if(enrichers.isEmpty()) {
             return span;
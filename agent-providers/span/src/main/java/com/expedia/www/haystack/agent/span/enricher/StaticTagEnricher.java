@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.expedia.open.tracing.Tag;
+
+import java.util.List;
+
+/**
+ * enricher of the tags known before the agent takes any span, like the host, pod or region. Unlike an {@link Enricher}
+ * it never reads the span: its tags are read once when the agent starts and appended, already encoded, to the bytes
+ * of every span
+ */
+public interface StaticTagEnricher {
+    List<Tag> getTags();
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import com.google.protobuf.CodedOutputStream;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * tags added to every span of an agent without decoding it. Protobuf merges the repeated fields of concatenated
+ * messages, so the tags encoded as 'tags' fields once at startup and appended to the bytes of a span parse as if they
+ * had been added to the span itself
+ */
+public class StaticTags {
+    private final List<Tag> tags;
+    private final byte[] encodedTags;
+
+    public StaticTags(final List<Tag> tags) {
+        Validate.notEmpty(tags, "static tags can't be empty");
+        this.tags = tags;
+        this.encodedTags = encode(tags);
+    }
+
+    public List<Tag> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return number of bytes the tags add to a span
+     */
+    public int getEncodedSize() {
+        return encodedTags.length;
+    }
+
+    /**
+     * @return a copy of the span bytes followed by the encoded tags
+     */
+    public byte[] appendTo(final byte[] spanBytes) {
+        final byte[] enriched = new byte[spanBytes.length + encodedTags.length];
+        System.arraycopy(spanBytes, 0, enriched, 0, spanBytes.length);
+        System.arraycopy(encodedTags, 0, enriched, spanBytes.length, encodedTags.length);
+        return enriched;
+    }
+
+    /**
+     * encodes the span straight into an array sized for it and the tags, so the span bytes are not copied again
+     * @return the span bytes followed by the encoded tags
+     */
+    public byte[] appendTo(final Span span) {
+        final byte[] enriched = new byte[span.getSerializedSize() + encodedTags.length];
+        final CodedOutputStream output = CodedOutputStream.newInstance(enriched);
+        try {
+            span.writeTo(output);
+            output.writeRawBytes(encodedTags);
+            output.checkNoSpaceLeft();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("fail to encode the span with the static tags", ex);
+        }
+        return enriched;
+    }
+
+    /**
+     * adds the tags to a span that is kept as an object, like the spans buffered by the tail sampler
+     */
+    public Span applyTo(final Span span) {
+        return span.toBuilder().addAllTags(tags).build();
+    }
+
+    private static byte[] encode(final List<Tag> tags) {
+        int size = 0;
+        for (final Tag tag : tags) {
+            size += CodedOutputStream.computeMessageSize(Span.TAGS_FIELD_NUMBER, tag);
+        }
+
+        final byte[] encoded = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+        try {
+            for (final Tag tag : tags) {
+                output.writeMessage(Span.TAGS_FIELD_NUMBER, tag);
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("fail to encode the static tags", ex);
+        }
+        return encoded;
+    }
+}
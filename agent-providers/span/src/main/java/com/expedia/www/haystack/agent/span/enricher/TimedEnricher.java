@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.codahale.metrics.Timer;
+import com.expedia.open.tracing.Span;
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * measures the time every span spends in an enricher, so the cost of each enricher of an agent shows on its own timer
+ */
+public class TimedEnricher implements Enricher {
+    private final Enricher delegate;
+    private final Timer timer;
+
+    public TimedEnricher(final Enricher delegate, final String agentName) {
+        Validate.notNull(delegate, "enricher can't be null");
+        this.delegate = delegate;
+        this.timer = newTimer(buildMetricName(agentName, "enricher." + delegate.getName() + ".latency"));
+    }
+
+    @Override
+    public void apply(final Span.Builder span) {
+        final Timer.Context context = timer.time();
+        try {
+            delegate.apply(span);
+        } finally {
+            context.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public void initialize(final Config config) {
+        delegate.initialize(config);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.filter;
+
+import com.codahale.metrics.Meter;
+import com.expedia.open.tracing.Span;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * keeps or drops the spans of an agent by their service, operation, tags and duration, right after they are decoded
+ * into haystack spans, so that a dropped span is never sampled, enriched or serialized. The rules are compiled once into
+ * predicates and tried in order, and the first one that matches decides
+ */
+public class SpanFilter {
+    private final static Logger logger = LoggerFactory.getLogger(SpanFilter.class);
+
+    private final SpanPredicate[] predicates;
+    private final boolean[] keep;
+    private final Meter[] matchMeters;
+    private final boolean defaultKeep;
+    private final Meter droppedMeter;
+
+    public SpanFilter(final SpanFilterConfig config, final String agentName) {
+        Validate.notNull(config, "span filter config can't be null");
+
+        final List<SpanFilterConfig.Rule> rules = config.getRules();
+        this.predicates = new SpanPredicate[rules.size()];
+        this.keep = new boolean[rules.size()];
+        this.matchMeters = new Meter[rules.size()];
+        for (int idx = 0; idx < rules.size(); idx++) {
+            predicates[idx] = SpanPredicates.compile(rules.get(idx));
+            keep[idx] = rules.get(idx).getAction() == SpanFilterConfig.Action.KEEP;
+            matchMeters[idx] = newMeter(buildMetricName(agentName, "filter.rule." + idx + ".matches"));
+        }
+        this.defaultKeep = config.getDefaultAction() == SpanFilterConfig.Action.KEEP;
+        this.droppedMeter = newMeter(buildMetricName(agentName, "filter.dropped"));
+
+        logger.info("span filter of agent '{}' has {} rules and {} the spans matching none",
+                agentName, rules.size(), defaultKeep ? "keeps" : "drops");
+    }
+
+    /**
+     * @return true if the span is to be dispatched
+     */
+    public boolean keep(final Span span) {
+        for (int idx = 0; idx < predicates.length; idx++) {
+            if (predicates[idx].test(span)) {
+                return decide(idx);
+            }
+        }
+        return decideDefault();
+    }
+
+    private boolean decide(final int rule) {
+        matchMeters[rule].mark();
+        if (!keep[rule]) {
+            droppedMeter.mark();
+        }
+        return keep[rule];
+    }
+
+    private boolean decideDefault() {
+        if (!defaultKeep) {
+            droppedMeter.mark();
+        }
+        return defaultKeep;
+    }
+}
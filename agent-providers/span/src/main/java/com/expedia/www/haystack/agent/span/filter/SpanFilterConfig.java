@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.filter;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * ordered keep and drop rules of the span filter of an agent. A span takes the action of the first rule it matches,
+ * or the default action if it matches none
+ */
+public class SpanFilterConfig {
+    public final static String SPAN_FILTER_CONFIG_KEY = "filter";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String DEFAULT_ACTION_CONFIG_KEY = "default.action";
+    private final static String RULES_CONFIG_KEY = "rules";
+
+    public enum Action {
+        KEEP,
+        DROP
+    }
+
+    private final boolean enabled;
+    private final Action defaultAction;
+    private final List<Rule> rules;
+
+    SpanFilterConfig(final boolean enabled, final Action defaultAction, final List<Rule> rules) {
+        Validate.notNull(defaultAction, "span filter default action can't be null");
+        Validate.notNull(rules, "span filter rules can't be null");
+
+        this.enabled = enabled;
+        this.defaultAction = defaultAction;
+        this.rules = rules;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Action getDefaultAction() {
+        return defaultAction;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public static SpanFilterConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final Action defaultAction = config.hasPath(DEFAULT_ACTION_CONFIG_KEY) ?
+                toAction(config.getString(DEFAULT_ACTION_CONFIG_KEY)) : Action.KEEP;
+        final List<Rule> rules = config.hasPath(RULES_CONFIG_KEY) ?
+                config.getConfigList(RULES_CONFIG_KEY).stream().map(Rule::from).collect(Collectors.toList()) :
+                Collections.emptyList();
+        return new SpanFilterConfig(enabled, defaultAction, rules);
+    }
+
+    private static Action toAction(final String action) {
+        return Action.valueOf(action.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * conditions a span has to meet, all of them, to match the rule. A condition that is not set matches every span
+     */
+    public static class Rule {
+        private final static String ACTION_CONFIG_KEY = "action";
+        private final static String SERVICE_EQUALS_CONFIG_KEY = "service.equals";
+        private final static String SERVICE_MATCHES_CONFIG_KEY = "service.matches";
+        private final static String OPERATION_EQUALS_CONFIG_KEY = "operation.equals";
+        private final static String OPERATION_PREFIX_CONFIG_KEY = "operation.prefix";
+        private final static String OPERATION_MATCHES_CONFIG_KEY = "operation.matches";
+        private final static String TAG_KEY_CONFIG_KEY = "tag.key";
+        private final static String TAG_VALUE_CONFIG_KEY = "tag.value";
+        private final static String DURATION_MIN_MICROS_CONFIG_KEY = "duration.min.micros";
+        private final static String DURATION_MAX_MICROS_CONFIG_KEY = "duration.max.micros";
+
+        private final Action action;
+        private final String serviceEquals;
+        private final String serviceMatches;
+        private final String operationEquals;
+        private final String operationPrefix;
+        private final String operationMatches;
+        private final String tagKey;
+        private final String tagValue;
+        private final long durationMinMicros;
+        private final long durationMaxMicros;
+
+        Rule(final Action action,
+             final String serviceEquals,
+             final String serviceMatches,
+             final String operationEquals,
+             final String operationPrefix,
+             final String operationMatches,
+             final String tagKey,
+             final String tagValue,
+             final long durationMinMicros,
+             final long durationMaxMicros) {
+            Validate.notNull(action, "span filter rule action can't be null");
+            Validate.isTrue(serviceEquals == null || serviceMatches == null,
+                    "span filter rule can't have both service.equals and service.matches");
+            Validate.isTrue(tagValue == null || tagKey != null, "span filter rule tag.value needs a tag.key");
+            Validate.isTrue(durationMinMicros >= 0, "span filter rule duration.min.micros should be >= 0");
+            Validate.isTrue(durationMaxMicros >= durationMinMicros,
+                    "span filter rule duration.max.micros should be >= duration.min.micros");
+
+            this.action = action;
+            this.serviceEquals = serviceEquals;
+            this.serviceMatches = serviceMatches;
+            this.operationEquals = operationEquals;
+            this.operationPrefix = operationPrefix;
+            this.operationMatches = operationMatches;
+            this.tagKey = tagKey;
+            this.tagValue = tagValue;
+            this.durationMinMicros = durationMinMicros;
+            this.durationMaxMicros = durationMaxMicros;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        public String getServiceEquals() {
+            return serviceEquals;
+        }
+
+        public String getServiceMatches() {
+            return serviceMatches;
+        }
+
+        public String getOperationEquals() {
+            return operationEquals;
+        }
+
+        public String getOperationPrefix() {
+            return operationPrefix;
+        }
+
+        public String getOperationMatches() {
+            return operationMatches;
+        }
+
+        public String getTagKey() {
+            return tagKey;
+        }
+
+        public String getTagValue() {
+            return tagValue;
+        }
+
+        public long getDurationMinMicros() {
+            return durationMinMicros;
+        }
+
+        // Long.MAX_VALUE if the duration has no upper bound
+        public long getDurationMaxMicros() {
+            return durationMaxMicros;
+        }
+
+        @SuppressWarnings("PMD.NPathComplexity")
+        public static Rule from(final Config config) {
+            Validate.isTrue(config.hasPath(ACTION_CONFIG_KEY), "span filter rule needs an action, keep or drop");
+            final Action action = toAction(config.getString(ACTION_CONFIG_KEY));
+            final long durationMinMicros = config.hasPath(DURATION_MIN_MICROS_CONFIG_KEY) ?
+                    config.getLong(DURATION_MIN_MICROS_CONFIG_KEY) : 0L;
+            final long durationMaxMicros = config.hasPath(DURATION_MAX_MICROS_CONFIG_KEY) ?
+                    config.getLong(DURATION_MAX_MICROS_CONFIG_KEY) : Long.MAX_VALUE;
+
+            return new Rule(action,
+                    getString(config, SERVICE_EQUALS_CONFIG_KEY),
+                    getString(config, SERVICE_MATCHES_CONFIG_KEY),
+                    getString(config, OPERATION_EQUALS_CONFIG_KEY),
+                    getString(config, OPERATION_PREFIX_CONFIG_KEY),
+                    getString(config, OPERATION_MATCHES_CONFIG_KEY),
+                    getString(config, TAG_KEY_CONFIG_KEY),
+                    getString(config, TAG_VALUE_CONFIG_KEY),
+                    durationMinMicros,
+                    durationMaxMicros);
+        }
+
+        private static String getString(final Config config, final String key) {
+            return config.hasPath(key) ? config.getString(key) : null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.filter;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * compiles the conditions of a rule into one predicate. Every condition is a class of its own that only reads the
+ * field it checks, a rule with a single condition is that condition, and the regular expressions and tag values are
+ * parsed once here rather than for every span
+ */
+final class SpanPredicates {
+    private final static SpanPredicate ALWAYS = span -> true;
+
+    private SpanPredicates() { }
+
+    static SpanPredicate compile(final SpanFilterConfig.Rule rule) {
+        final List<SpanPredicate> conditions = new ArrayList<>();
+        if (rule.getServiceEquals() != null) {
+            conditions.add(new ServiceEquals(rule.getServiceEquals()));
+        }
+        if (rule.getServiceMatches() != null) {
+            conditions.add(new ServiceMatches(Pattern.compile(rule.getServiceMatches())));
+        }
+        if (rule.getOperationEquals() != null) {
+            conditions.add(new OperationEquals(rule.getOperationEquals()));
+        }
+        if (rule.getOperationPrefix() != null) {
+            conditions.add(new OperationPrefix(rule.getOperationPrefix()));
+        }
+        if (rule.getOperationMatches() != null) {
+            conditions.add(new OperationMatches(Pattern.compile(rule.getOperationMatches())));
+        }
+        if (rule.getTagKey() != null) {
+            conditions.add(new TagEquals(rule.getTagKey(), rule.getTagValue()));
+        }
+        if (rule.getDurationMinMicros() > 0 || rule.getDurationMaxMicros() < Long.MAX_VALUE) {
+            conditions.add(new DurationRange(rule.getDurationMinMicros(), rule.getDurationMaxMicros()));
+        }
+        return and(conditions);
+    }
+
+    private static SpanPredicate and(final List<SpanPredicate> conditions) {
+        switch (conditions.size()) {
+            case 0:
+                return ALWAYS;
+            case 1:
+                return conditions.get(0);
+            case 2:
+                return new And2(conditions.get(0), conditions.get(1));
+            default:
+                return new And(conditions.toArray(new SpanPredicate[conditions.size()]));
+        }
+    }
+
+    static final class ServiceEquals implements SpanPredicate {
+        private final String service;
+
+        ServiceEquals(final String service) {
+            this.service = service;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return service.equals(span.getServiceName());
+        }
+    }
+
+    static final class ServiceMatches implements SpanPredicate {
+        private final Pattern pattern;
+
+        ServiceMatches(final Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return pattern.matcher(span.getServiceName()).matches();
+        }
+    }
+
+    static final class OperationEquals implements SpanPredicate {
+        private final String operation;
+
+        OperationEquals(final String operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return operation.equals(span.getOperationName());
+        }
+    }
+
+    static final class OperationPrefix implements SpanPredicate {
+        private final String prefix;
+
+        OperationPrefix(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return span.getOperationName().startsWith(prefix);
+        }
+    }
+
+    static final class OperationMatches implements SpanPredicate {
+        private final Pattern pattern;
+
+        OperationMatches(final Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return pattern.matcher(span.getOperationName()).matches();
+        }
+    }
+
+    /**
+     * a tag with the key, and the value if one is set. A typed haystack tag is compared with the value parsed into its
+     * type up front
+     */
+    static final class TagEquals implements SpanPredicate {
+        private final String key;
+        private final String value;
+        private final Boolean boolValue;
+        private final Long longValue;
+        private final Double doubleValue;
+
+        TagEquals(final String key, final String value) {
+            this.key = key;
+            this.value = value;
+            this.boolValue = "true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value) ? Boolean.valueOf(value) : null;
+            this.longValue = parseLong(value);
+            this.doubleValue = parseDouble(value);
+        }
+
+        // a value that isn't a number of the type never matches a tag of the type
+        private static Long parseLong(final String value) {
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        private static Double parseDouble(final String value) {
+            if (value == null) {
+                return null;
+            }
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            for (final Tag tag : span.getTagsList()) {
+                if (key.equals(tag.getKey())) {
+                    return value == null || valueEquals(tag);
+                }
+            }
+            return false;
+        }
+
+        private boolean valueEquals(final Tag tag) {
+            switch (tag.getType()) {
+                case STRING:
+                    return value.equals(tag.getVStr());
+                case BOOL:
+                    return boolValue != null && boolValue == tag.getVBool();
+                case LONG:
+                    return longValue != null && longValue == tag.getVLong();
+                case DOUBLE:
+                    return doubleValue != null && doubleValue == tag.getVDouble();
+                default:
+                    return false;
+            }
+        }
+    }
+
+    static final class DurationRange implements SpanPredicate {
+        private final long minMicros;
+        private final long maxMicros;
+
+        DurationRange(final long minMicros, final long maxMicros) {
+            this.minMicros = minMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return span.getDuration() >= minMicros && span.getDuration() <= maxMicros;
+        }
+    }
+
+    static final class And2 implements SpanPredicate {
+        private final SpanPredicate first;
+        private final SpanPredicate second;
+
+        And2(final SpanPredicate first, final SpanPredicate second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            return first.test(span) && second.test(span);
+        }
+    }
+
+    static final class And implements SpanPredicate {
+        private final SpanPredicate[] conditions;
+
+        And(final SpanPredicate[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public boolean test(final Span span) {
+            for (final SpanPredicate condition : conditions) {
+                if (!condition.test(span)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.governor;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * byte budgets of the size governor of an agent, on a tag value, on a span and on the spans of a request
+ */
+public class SpanSizeConfig {
+    public final static String SIZE_GOVERNOR_CONFIG_KEY = "size.governor";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String MAX_TAG_VALUE_BYTES_CONFIG_KEY = "max.tag.value.bytes";
+    private final static String MAX_LOGS_CONFIG_KEY = "max.logs.per.span";
+    private final static String MAX_SPAN_BYTES_CONFIG_KEY = "max.span.bytes";
+    private final static String MAX_REQUEST_BYTES_CONFIG_KEY = "max.request.bytes";
+
+    private final boolean enabled;
+    private final int maxTagValueBytes;
+    private final int maxLogsPerSpan;
+    private final int maxSpanBytes;
+    private final long maxRequestBytes;
+
+    SpanSizeConfig(final boolean enabled,
+                   final int maxTagValueBytes,
+                   final int maxLogsPerSpan,
+                   final int maxSpanBytes,
+                   final long maxRequestBytes) {
+        Validate.isTrue(maxTagValueBytes > 0, "size governor max tag value bytes should be > 0");
+        Validate.isTrue(maxLogsPerSpan >= 0, "size governor max logs per span should be >= 0");
+        Validate.isTrue(maxSpanBytes > 0, "size governor max span bytes should be > 0");
+        Validate.isTrue(maxRequestBytes >= 0, "size governor max request bytes should be >= 0");
+
+        this.enabled = enabled;
+        this.maxTagValueBytes = maxTagValueBytes;
+        this.maxLogsPerSpan = maxLogsPerSpan;
+        this.maxSpanBytes = maxSpanBytes;
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxTagValueBytes() {
+        return maxTagValueBytes;
+    }
+
+    public int getMaxLogsPerSpan() {
+        return maxLogsPerSpan;
+    }
+
+    public int getMaxSpanBytes() {
+        return maxSpanBytes;
+    }
+
+    // 0 if the spans of a request have no budget of their own
+    public long getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static SpanSizeConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final int maxTagValueBytes = config.hasPath(MAX_TAG_VALUE_BYTES_CONFIG_KEY) ?
+                config.getInt(MAX_TAG_VALUE_BYTES_CONFIG_KEY) : 16384;
+        final int maxLogsPerSpan = config.hasPath(MAX_LOGS_CONFIG_KEY) ? config.getInt(MAX_LOGS_CONFIG_KEY) : 256;
+        // below the 1MB record limit of kinesis, with room for the partition key and the batching
+        final int maxSpanBytes = config.hasPath(MAX_SPAN_BYTES_CONFIG_KEY) ? config.getInt(MAX_SPAN_BYTES_CONFIG_KEY) : 1000000;
+        final long maxRequestBytes = config.hasPath(MAX_REQUEST_BYTES_CONFIG_KEY) ? config.getLong(MAX_REQUEST_BYTES_CONFIG_KEY) : 0L;
+
+        return new SpanSizeConfig(enabled, maxTagValueBytes, maxLogsPerSpan, maxSpanBytes, maxRequestBytes);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.governor;
+
+import com.codahale.metrics.Meter;
+import com.expedia.open.tracing.Log;
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * keeps the spans of an agent within the record size limits of the sinks. The long tag values are truncated and the
+ * logs over the cap are removed, with a marker tag holding the number of bytes taken out, and a span that is still
+ * over the span budget loses its logs and then is dropped. The size of a span is read with getSerializedSize, which
+ * protobuf computes once per span, so a span far below the budgets is passed through without being scanned
+ */
+public class SpanSizeGovernor {
+    private final static Logger logger = LoggerFactory.getLogger(SpanSizeGovernor.class);
+
+    public final static String TRUNCATED_TAG_KEY = "haystack.agent.truncated.bytes";
+
+    private final int maxTagValueBytes;
+    private final int maxLogsPerSpan;
+    private final int maxSpanBytes;
+    private final long maxRequestBytes;
+    // bytes of the static tags appended to every span after it is governed
+    private final int reservedSpanBytes;
+    // a span up to that size can't have a tag value over the budget, nor be over the span budget
+    private final int fastPathBytes;
+
+    private final Meter truncatedSpansMeter;
+    private final Meter truncatedBytesMeter;
+    private final Meter droppedSpansMeter;
+    private final Meter droppedBytesMeter;
+
+    public SpanSizeGovernor(final SpanSizeConfig config, final String agentName) {
+        this(config, agentName, 0);
+    }
+
+    /**
+     * @param reservedSpanBytes bytes added to every span once it is governed, like the static tags of the agent. They
+     *                          are taken out of the span budget and counted in the request budget
+     */
+    public SpanSizeGovernor(final SpanSizeConfig config, final String agentName, final int reservedSpanBytes) {
+        Validate.notNull(config, "size governor config can't be null");
+        Validate.isTrue(reservedSpanBytes >= 0 && reservedSpanBytes < config.getMaxSpanBytes(),
+                "size governor reserved span bytes should be >= 0 and < max span bytes");
+        this.maxTagValueBytes = config.getMaxTagValueBytes();
+        this.maxLogsPerSpan = config.getMaxLogsPerSpan();
+        this.maxSpanBytes = config.getMaxSpanBytes() - reservedSpanBytes;
+        this.maxRequestBytes = config.getMaxRequestBytes();
+        this.reservedSpanBytes = reservedSpanBytes;
+        this.fastPathBytes = Math.min(maxTagValueBytes, maxSpanBytes);
+
+        this.truncatedSpansMeter = newMeter(buildMetricName(agentName, "size.governor.truncated.spans"));
+        this.truncatedBytesMeter = newMeter(buildMetricName(agentName, "size.governor.truncated.bytes"));
+        this.droppedSpansMeter = newMeter(buildMetricName(agentName, "size.governor.dropped.spans"));
+        this.droppedBytesMeter = newMeter(buildMetricName(agentName, "size.governor.dropped.bytes"));
+
+        logger.info("size governor of agent '{}' limits the tag values to {} bytes, the spans to {} logs and {} bytes "
+                + "before the {} reserved bytes", agentName, maxTagValueBytes, maxLogsPerSpan, maxSpanBytes, reservedSpanBytes);
+    }
+
+    /**
+     * @return budget of the spans of one request or stream window, every span of it is to be passed to the same budget
+     */
+    public RequestBudget newRequestBudget() {
+        return new RequestBudget(maxRequestBytes);
+    }
+
+    /**
+     * @param budget budget of the request the span is part of, null if the span is a request of its own
+     * @return the span, truncated if it is over the tag value, log or span budgets, or null if it is to be dropped
+     */
+    public Span govern(final Span span, final RequestBudget budget) {
+        final int size = span.getSerializedSize();
+        final Span governed = size <= fastPathBytes && span.getLogsCount() <= maxLogsPerSpan ? span : truncate(span, size);
+        if (governed == null || (budget != null && !budget.tryAcquire(governed.getSerializedSize() + reservedSpanBytes))) {
+            drop(governed == null ? size : governed.getSerializedSize());
+            return null;
+        }
+        return governed;
+    }
+
+    /**
+     * the serialized spans of the passthrough mode are decoded only if their size or their logs can be over a budget
+     * @return the span bytes, re-encoded if the span had to be truncated, or null if it is to be dropped
+     */
+    public byte[] govern(final byte[] spanBytes, final RequestBudget budget) {
+        if (spanBytes.length <= fastPathBytes && !hasTooManyLogs(spanBytes)) {
+            if (budget != null && !budget.tryAcquire(spanBytes.length + reservedSpanBytes)) {
+                drop(spanBytes.length);
+                return null;
+            }
+            return spanBytes;
+        }
+
+        final Span span;
+        try {
+            span = Span.parseFrom(spanBytes);
+        } catch (InvalidProtocolBufferException ex) {
+            // bytes within the span budget reach the sinks as received, as without a size governor, the others could
+            // be over the record size limit of a sink so they are dropped
+            logger.debug("fail to decode the span bytes to govern their size", ex);
+            if (spanBytes.length > maxSpanBytes
+                    || (budget != null && !budget.tryAcquire(spanBytes.length + reservedSpanBytes))) {
+                drop(spanBytes.length);
+                return null;
+            }
+            return spanBytes;
+        }
+        final Span governed = govern(span, budget);
+        if (governed == null) {
+            return null;
+        }
+        return governed == span ? spanBytes : governed.toByteArray();
+    }
+
+    private Span truncate(final Span span, final int size) {
+        if (isWithinBudgets(span, size)) {
+            return span;
+        }
+
+        final Span.Builder builder = span.toBuilder();
+        truncateValues(builder);
+        if (builder.build().getSerializedSize() > maxSpanBytes) {
+            builder.clearLogs();
+        }
+        final int truncatedSize = builder.build().getSerializedSize();
+        final Span truncated = builder.addTags(Tag.newBuilder()
+                .setKey(TRUNCATED_TAG_KEY)
+                .setType(Tag.TagType.LONG)
+                .setVLong(size - truncatedSize))
+                .build();
+        if (truncated.getSerializedSize() > maxSpanBytes) {
+            logger.debug("dropping span of service={} with {} bytes over the span budget", span.getServiceName(), size);
+            return null;
+        }
+
+        truncatedSpansMeter.mark();
+        truncatedBytesMeter.mark(size - truncatedSize);
+        return truncated;
+    }
+
+    private boolean isWithinBudgets(final Span span, final int size) {
+        return size <= maxSpanBytes && span.getLogsCount() <= maxLogsPerSpan
+                && !hasLongValue(span.getTagsList()) && !hasLongLogValue(span);
+    }
+
+    private void truncateValues(final Span.Builder builder) {
+        for (int idx = 0; idx < builder.getTagsCount(); idx++) {
+            final Tag tag = builder.getTags(idx);
+            if (isLong(tag)) {
+                builder.setTags(idx, truncate(tag));
+            }
+        }
+        if (builder.getLogsCount() > maxLogsPerSpan) {
+            final List<Log> logs = builder.getLogsList().subList(0, maxLogsPerSpan);
+            builder.clearLogs().addAllLogs(logs);
+        }
+        for (int idx = 0; idx < builder.getLogsCount(); idx++) {
+            if (hasLongValue(builder.getLogs(idx).getFieldsList())) {
+                builder.setLogs(idx, truncate(builder.getLogs(idx)));
+            }
+        }
+    }
+
+    private Log truncate(final Log log) {
+        final Log.Builder builder = log.toBuilder();
+        for (int idx = 0; idx < builder.getFieldsCount(); idx++) {
+            final Tag field = builder.getFields(idx);
+            if (isLong(field)) {
+                builder.setFields(idx, truncate(field));
+            }
+        }
+        return builder.build();
+    }
+
+    private Tag truncate(final Tag tag) {
+        if (tag.getVBytes().size() > maxTagValueBytes) {
+            return tag.toBuilder().setVBytes(tag.getVBytes().substring(0, maxTagValueBytes)).build();
+        }
+        return tag.toBuilder().setVStrBytes(truncateUtf8(tag.getVStrBytes(), maxTagValueBytes)).build();
+    }
+
+    // cuts before the first byte of the character that crosses the budget, so the string stays valid utf-8
+    private static ByteString truncateUtf8(final ByteString value, final int maxBytes) {
+        int end = maxBytes;
+        while (end > 0 && (value.byteAt(end) & 0xC0) == 0x80) {
+            end--;
+        }
+        return value.substring(0, end);
+    }
+
+    private boolean hasLongLogValue(final Span span) {
+        for (final Log log : span.getLogsList()) {
+            if (hasLongValue(log.getFieldsList())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the log fields are counted without decoding them, every log takes at least 2 bytes so a span smaller than the
+    // logs over the cap can't have them. Bytes that can't be read are left to the decoding path
+    private boolean hasTooManyLogs(final byte[] spanBytes) {
+        if (spanBytes.length < 2L * (maxLogsPerSpan + 1L)) {
+            return false;
+        }
+
+        final CodedInputStream input = CodedInputStream.newInstance(spanBytes);
+        int logs = 0;
+        try {
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                if (WireFormat.getTagFieldNumber(tag) == Span.LOGS_FIELD_NUMBER && ++logs > maxLogsPerSpan) {
+                    return true;
+                }
+                input.skipField(tag);
+            }
+        } catch (IOException ex) {
+            return true;
+        }
+        return false;
+    }
+
+    private boolean hasLongValue(final List<Tag> tags) {
+        for (final Tag tag : tags) {
+            if (isLong(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isLong(final Tag tag) {
+        return tag.getVStrBytes().size() > maxTagValueBytes || tag.getVBytes().size() > maxTagValueBytes;
+    }
+
+    private void drop(final int size) {
+        droppedSpansMeter.mark();
+        droppedBytesMeter.mark(size);
+    }
+
+    /**
+     * bytes left to the spans of a request. The spans of a request are governed on the thread that reads it, so the
+     * budget is not thread safe
+     */
+    public static final class RequestBudget {
+        private long remainingBytes;
+        private final boolean bounded;
+
+        RequestBudget(final long maxBytes) {
+            this.remainingBytes = maxBytes;
+            this.bounded = maxBytes > 0;
+        }
+
+        boolean tryAcquire(final int bytes) {
+            if (!bounded) {
+                return true;
+            }
+            if (bytes > remainingBytes) {
+                return false;
+            }
+            remainingBytes -= bytes;
+            return true;
+        }
+    }
+}
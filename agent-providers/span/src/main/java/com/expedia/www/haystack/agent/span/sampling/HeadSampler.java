@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.codahale.metrics.Meter;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * stateless sampler applied to the spans right after they are decoded. A span is kept if the hash of its trace id
+ * is below the sampling probability of its service, so every span of a trace gets the same decision on every agent
+ * with the same probability, and a trace kept by the service with the lowest probability is kept by all of them.
+ *
+ * The probability of every service is adjusted at every interval to hold the spans per second budget of the service,
+ * from a moving average of the rate of spans the service sends. A service that sent no span for a few intervals is
+ * removed, so the budgets don't grow with every service ever seen
+ */
+public class HeadSampler implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(HeadSampler.class);
+    // weight of the last interval in the moving average of the rate of a service
+    private final static double RATE_SMOOTHING = 0.5d;
+    // intervals without a span after which a service is forgotten, it starts over from a probability of 1 if it returns
+    private final static int IDLE_INTERVALS = 3;
+
+    private final HeadSamplingConfig config;
+    private final ConcurrentMap<String, ServiceBudget> budgets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService adjuster;
+    private final Meter keptMeter;
+    private final Meter droppedMeter;
+
+    public HeadSampler(final HeadSamplingConfig config, final String agentName) {
+        Validate.notNull(config, "head sampling config can't be null");
+        this.config = config;
+
+        this.keptMeter = newMeter(buildMetricName(agentName, "head.sampling.kept"));
+        this.droppedMeter = newMeter(buildMetricName(agentName, "head.sampling.dropped"));
+        newGauge(buildMetricName(agentName, "head.sampling.services"), budgets::size);
+        newGauge(buildMetricName(agentName, "head.sampling.throttled.services"),
+                () -> budgets.values().stream().filter(budget -> budget.probability < 1d).count());
+
+        this.adjuster = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("head-sampler-" + agentName, true));
+        adjuster.scheduleAtFixedRate(this::adjust,
+                config.getAdjustIntervalMillis(), config.getAdjustIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param serviceName service of the span
+     * @param traceId trace id of the span
+     * @return true if the span should be kept
+     */
+    public boolean sample(final String serviceName, final String traceId) {
+        return sample(serviceName, TraceIdHash.of(traceId));
+    }
+
+    /**
+     * @param serviceName service of the span
+     * @param traceIdBytes utf-8 bytes of the trace id of the span
+     * @return true if the span should be kept
+     */
+    public boolean sample(final String serviceName, final byte[] traceIdBytes) {
+        return sample(serviceName, TraceIdHash.of(traceIdBytes));
+    }
+
+    @Override
+    public void close() {
+        adjuster.shutdownNow();
+    }
+
+    double getProbability(final String serviceName) {
+        final ServiceBudget budget = budgets.get(serviceName);
+        return budget == null ? 1d : budget.probability;
+    }
+
+    int getServiceCount() {
+        return budgets.size();
+    }
+
+    private boolean sample(final String serviceName, final long traceIdHash) {
+        final String service = serviceName == null ? "" : serviceName;
+        final ServiceBudget budget = budgets.computeIfAbsent(service,
+                name -> new ServiceBudget(config.getTargetSpansPerSec(name)));
+        budget.seen.increment();
+
+        if (traceIdHash < budget.threshold) {
+            keptMeter.mark();
+            return true;
+        }
+        droppedMeter.mark();
+        return false;
+    }
+
+    void adjust() {
+        try {
+            final double intervalSec = config.getAdjustIntervalMillis() / 1000d;
+            for (final Map.Entry<String, ServiceBudget> entry : budgets.entrySet()) {
+                final ServiceBudget budget = entry.getValue();
+                final long seen = budget.seen.sumThenReset();
+                budget.idleIntervals = seen == 0 ? budget.idleIntervals + 1 : 0;
+                if (budget.idleIntervals >= IDLE_INTERVALS) {
+                    budgets.remove(entry.getKey(), budget);
+                    continue;
+                }
+
+                final double rate = seen / intervalSec;
+                budget.rate = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * budget.rate;
+
+                final double probability = budget.rate <= budget.target ?
+                        1d : Math.max(config.getMinProbability(), budget.target / budget.rate);
+                budget.probability = probability;
+                budget.threshold = TraceIdHash.threshold(probability);
+            }
+        } catch (Exception ex) {
+            // an error escaping the task would stop the scheduled adjustments
+            LOGGER.error("Fail to adjust the head sampling probabilities", ex);
+        }
+    }
+
+    private final static class ServiceBudget {
+        private final double target;
+        private final LongAdder seen = new LongAdder();
+        // only written by the adjuster thread
+        private double rate;
+        private int idleIntervals;
+        private volatile double probability = 1d;
+        private volatile long threshold = TraceIdHash.threshold(1d);
+
+        ServiceBudget(final double target) {
+            this.target = target;
+        }
+    }
+}
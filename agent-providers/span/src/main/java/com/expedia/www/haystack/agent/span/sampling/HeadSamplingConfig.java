@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValue;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * spans per second budget of every service and adjustment settings of the head sampler of an agent
+ */
+public class HeadSamplingConfig {
+    public final static String HEAD_SAMPLING_CONFIG_KEY = "head.sampling";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String TARGET_CONFIG_KEY = "target.spans.per.sec";
+    private final static String SERVICES_CONFIG_KEY = "services";
+    private final static String ADJUST_INTERVAL_CONFIG_KEY = "adjust.interval.millis";
+    private final static String MIN_PROBABILITY_CONFIG_KEY = "min.probability";
+
+    private final boolean enabled;
+    private final double targetSpansPerSec;
+    private final Map<String, Double> serviceTargets;
+    private final long adjustIntervalMillis;
+    private final double minProbability;
+
+    HeadSamplingConfig(final boolean enabled,
+                       final double targetSpansPerSec,
+                       final Map<String, Double> serviceTargets,
+                       final long adjustIntervalMillis,
+                       final double minProbability) {
+        Validate.isTrue(targetSpansPerSec > 0, "head sampling target spans per sec should be > 0");
+        Validate.isTrue(serviceTargets.values().stream().allMatch(target -> target > 0),
+                "head sampling target spans per sec of every service should be > 0");
+        Validate.isTrue(adjustIntervalMillis > 0, "head sampling adjust interval should be > 0");
+        Validate.isTrue(minProbability >= 0 && minProbability <= 1, "head sampling min probability should be between 0 and 1");
+
+        this.enabled = enabled;
+        this.targetSpansPerSec = targetSpansPerSec;
+        this.serviceTargets = serviceTargets;
+        this.adjustIntervalMillis = adjustIntervalMillis;
+        this.minProbability = minProbability;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the spans per second budget of the service, the default target unless the service has its own
+     */
+    public double getTargetSpansPerSec(final String serviceName) {
+        return serviceTargets.getOrDefault(serviceName, targetSpansPerSec);
+    }
+
+    public long getAdjustIntervalMillis() {
+        return adjustIntervalMillis;
+    }
+
+    public double getMinProbability() {
+        return minProbability;
+    }
+
+    public static HeadSamplingConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final double targetSpansPerSec = config.hasPath(TARGET_CONFIG_KEY) ? config.getDouble(TARGET_CONFIG_KEY) : 1000d;
+        final long adjustIntervalMillis = config.hasPath(ADJUST_INTERVAL_CONFIG_KEY) ?
+                config.getLong(ADJUST_INTERVAL_CONFIG_KEY) : 1000L;
+        final double minProbability = config.hasPath(MIN_PROBABILITY_CONFIG_KEY) ?
+                config.getDouble(MIN_PROBABILITY_CONFIG_KEY) : 0.001d;
+
+        return new HeadSamplingConfig(enabled, targetSpansPerSec, readServiceTargets(config), adjustIntervalMillis, minProbability);
+    }
+
+    // the service names are read as the keys of the object, so they can have dots without being quoted as a path
+    private static Map<String, Double> readServiceTargets(final Config config) {
+        if (!config.hasPath(SERVICES_CONFIG_KEY)) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, Double> serviceTargets = new HashMap<>();
+        for (final Map.Entry<String, ConfigValue> entry : config.getObject(SERVICES_CONFIG_KEY).entrySet()) {
+            serviceTargets.put(entry.getKey(), ((Number) entry.getValue().unwrapped()).doubleValue());
+        }
+        return serviceTargets;
+    }
+}
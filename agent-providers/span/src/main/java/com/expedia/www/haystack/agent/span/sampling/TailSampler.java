@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.span.sampling.TailSamplingRules.Decision;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * buffers the spans of every trace for the decision window and then keeps or drops the whole trace, based on the
+ * tail sampling rules. The traces are kept in a map by trace id and registered in the slot of a time wheel that
+ * expires them once their window is over, the wheel advances by one slot every tick. When the buffered spans go
+ * over the memory bound, the oldest traces are decided right away.
+ *
+ * A span that arrives after the decision on its trace starts a new buffered trace, that is decided on its own
+ */
+public class TailSampler implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(TailSampler.class);
+
+    private final TailSamplingConfig config;
+    private final TailSamplingRules rules;
+    private final Consumer<List<Span>> forwarder;
+    private final ConcurrentMap<String, BufferedTrace> traces = new ConcurrentHashMap<>();
+    private final Queue<BufferedTrace>[] wheel;
+    private final ScheduledExecutorService ticker;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private volatile long currentTick;
+
+    private final Timer decisionTimer;
+    private final Meter keptMeter;
+    private final Meter droppedMeter;
+    private final Meter earlyDecisionMeter;
+    private final Map<Decision, Meter> decisionMeters = new EnumMap<>(Decision.class);
+
+    /**
+     * @param forwarder receives the spans of every kept trace
+     */
+    @SuppressWarnings("unchecked")
+    public TailSampler(final TailSamplingConfig config, final Consumer<List<Span>> forwarder, final String agentName) {
+        Validate.notNull(config, "tail sampling config can't be null");
+        Validate.notNull(forwarder, "tail sampling forwarder can't be null");
+
+        this.config = config;
+        this.rules = new TailSamplingRules(config);
+        this.forwarder = forwarder;
+
+        // a trace registered at tick t is expired at tick t + window, so the wheel needs one more slot than the window
+        final int windowTicks = (int) (config.getDecisionWindowMillis() / config.getTickMillis());
+        this.wheel = new Queue[windowTicks + 1];
+        for (int idx = 0; idx < wheel.length; idx++) {
+            wheel[idx] = new ConcurrentLinkedQueue<>();
+        }
+
+        this.decisionTimer = newTimer(buildMetricName(agentName, "tail.sampling.decision.latency"));
+        this.keptMeter = newMeter(buildMetricName(agentName, "tail.sampling.kept"));
+        this.droppedMeter = newMeter(buildMetricName(agentName, "tail.sampling.dropped"));
+        this.earlyDecisionMeter = newMeter(buildMetricName(agentName, "tail.sampling.early.decisions"));
+        for (final Decision decision : Decision.values()) {
+            decisionMeters.put(decision, newMeter(buildMetricName(agentName,
+                    "tail.sampling.decision." + decision.name().toLowerCase())));
+        }
+        newGauge(buildMetricName(agentName, "tail.sampling.buffered.bytes"), bufferedBytes::get);
+        newGauge(buildMetricName(agentName, "tail.sampling.buffered.traces"), traces::size);
+        newGauge(buildMetricName(agentName, "tail.sampling.keep.ratio"), this::keepRatio);
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("tail-sampler-" + agentName, true));
+        ticker.scheduleAtFixedRate(this::tick, config.getTickMillis(), config.getTickMillis(), TimeUnit.MILLISECONDS);
+
+        LOGGER.info("Started the tail sampler with decision window={}ms and max buffered bytes={}",
+                config.getDecisionWindowMillis(), config.getMaxBufferedBytes());
+    }
+
+    /**
+     * buffer the span till the decision on its trace
+     * @param span enriched span
+     */
+    public void offer(final Span span) {
+        final long size = span.getSerializedSize();
+        while (true) {
+            final BufferedTrace trace = traces.computeIfAbsent(span.getTraceId(), this::register);
+            synchronized (trace) {
+                // a trace that has just been decided is no longer in the map, the next pass registers a new one
+                if (!trace.decided) {
+                    trace.spans.add(span);
+                    trace.bytes += size;
+                    break;
+                }
+            }
+        }
+
+        if (bufferedBytes.addAndGet(size) > config.getMaxBufferedBytes()) {
+            decideOldest();
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        try {
+            ticker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the traces still buffered are decided with what has arrived so far
+        for (final Queue<BufferedTrace> slot : wheel) {
+            decideAll(slot, false);
+        }
+    }
+
+    long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    private BufferedTrace register(final String traceId) {
+        final BufferedTrace trace = new BufferedTrace(traceId);
+        wheel[(int) ((currentTick + wheel.length - 1) % wheel.length)].add(trace);
+        return trace;
+    }
+
+    private void tick() {
+        try {
+            currentTick++;
+            decideAll(wheel[(int) (currentTick % wheel.length)], false);
+        } catch (Exception ex) {
+            // an error escaping the task would stop the scheduled ticks
+            LOGGER.error("Fail to decide the expired traces", ex);
+        }
+    }
+
+    private void decideOldest() {
+        for (int idx = 1; idx <= wheel.length && bufferedBytes.get() > config.getMaxBufferedBytes(); idx++) {
+            final Queue<BufferedTrace> slot = wheel[(int) ((currentTick + idx) % wheel.length)];
+            BufferedTrace trace = slot.poll();
+            while (trace != null) {
+                decide(trace, true);
+                trace = bufferedBytes.get() > config.getMaxBufferedBytes() ? slot.poll() : null;
+            }
+        }
+    }
+
+    private void decideAll(final Queue<BufferedTrace> slot, final boolean early) {
+        BufferedTrace trace = slot.poll();
+        while (trace != null) {
+            decide(trace, early);
+            trace = slot.poll();
+        }
+    }
+
+    private void decide(final BufferedTrace trace, final boolean early) {
+        final List<Span> spans;
+        synchronized (trace) {
+            if (trace.decided) {
+                return;
+            }
+            trace.decided = true;
+            spans = trace.spans;
+        }
+        traces.remove(trace.traceId, trace);
+        bufferedBytes.addAndGet(-trace.bytes);
+
+        final Decision decision = rules.decide(trace.traceId, spans);
+        decisionTimer.update(System.nanoTime() - trace.createdAtNanos, TimeUnit.NANOSECONDS);
+        decisionMeters.get(decision).mark();
+        if (early) {
+            earlyDecisionMeter.mark();
+        }
+
+        if (decision.isKeep()) {
+            keptMeter.mark();
+            forwarder.accept(spans);
+        } else {
+            droppedMeter.mark();
+        }
+    }
+
+    private double keepRatio() {
+        final long decided = keptMeter.getCount() + droppedMeter.getCount();
+        return decided == 0 ? 0d : (double) keptMeter.getCount() / decided;
+    }
+
+    private final static class BufferedTrace {
+        private final String traceId;
+        private final long createdAtNanos = System.nanoTime();
+        private final List<Span> spans = new ArrayList<>();
+        private long bytes;
+        private boolean decided;
+
+        BufferedTrace(final String traceId) {
+            this.traceId = traceId;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * decision window, memory bound and keep rules of the tail sampler of an agent
+ */
+public class TailSamplingConfig {
+    public final static String TAIL_SAMPLING_CONFIG_KEY = "tail.sampling";
+
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String DECISION_WINDOW_CONFIG_KEY = "decision.window.millis";
+    private final static String TICK_CONFIG_KEY = "tick.millis";
+    private final static String MAX_BUFFERED_BYTES_CONFIG_KEY = "max.buffered.bytes";
+    private final static String KEEP_CONFIG_KEY = "keep";
+    private final static String KEEP_ERRORS_CONFIG_KEY = "errors";
+    private final static String KEEP_ROOT_DURATION_CONFIG_KEY = "root.duration.above.micros";
+    private final static String KEEP_SERVICE_RATE_CONFIG_KEY = "service.min.traces.per.sec";
+    private final static String KEEP_PROBABILITY_CONFIG_KEY = "probability";
+
+    private final boolean enabled;
+    private final long decisionWindowMillis;
+    private final long tickMillis;
+    private final long maxBufferedBytes;
+    private final boolean keepErrors;
+    private final long keepRootDurationAboveMicros;
+    private final double serviceMinTracesPerSec;
+    private final double probability;
+
+    TailSamplingConfig(final boolean enabled,
+                       final long decisionWindowMillis,
+                       final long tickMillis,
+                       final long maxBufferedBytes,
+                       final boolean keepErrors,
+                       final long keepRootDurationAboveMicros,
+                       final double serviceMinTracesPerSec,
+                       final double probability) {
+        Validate.isTrue(tickMillis > 0, "tail sampling tick should be > 0");
+        Validate.isTrue(decisionWindowMillis >= tickMillis, "tail sampling decision window should be >= the tick");
+        Validate.isTrue(maxBufferedBytes > 0, "tail sampling max buffered bytes should be > 0");
+        Validate.isTrue(keepRootDurationAboveMicros >= 0, "tail sampling root duration threshold should be >= 0");
+        Validate.isTrue(serviceMinTracesPerSec >= 0, "tail sampling service min rate should be >= 0");
+        Validate.isTrue(probability >= 0 && probability <= 1, "tail sampling probability should be between 0 and 1");
+
+        this.enabled = enabled;
+        this.decisionWindowMillis = decisionWindowMillis;
+        this.tickMillis = tickMillis;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.keepErrors = keepErrors;
+        this.keepRootDurationAboveMicros = keepRootDurationAboveMicros;
+        this.serviceMinTracesPerSec = serviceMinTracesPerSec;
+        this.probability = probability;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getDecisionWindowMillis() {
+        return decisionWindowMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public boolean isKeepErrors() {
+        return keepErrors;
+    }
+
+    // 0 disables the rule
+    public long getKeepRootDurationAboveMicros() {
+        return keepRootDurationAboveMicros;
+    }
+
+    // 0 disables the rule
+    public double getServiceMinTracesPerSec() {
+        return serviceMinTracesPerSec;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static TailSamplingConfig from(final Config config) {
+        final Config keep = config.hasPath(KEEP_CONFIG_KEY) ? config.getConfig(KEEP_CONFIG_KEY) : ConfigFactory.empty();
+
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final long decisionWindowMillis = config.hasPath(DECISION_WINDOW_CONFIG_KEY) ?
+                config.getLong(DECISION_WINDOW_CONFIG_KEY) : 10000L;
+        final long tickMillis = config.hasPath(TICK_CONFIG_KEY) ? config.getLong(TICK_CONFIG_KEY) : 100L;
+        final long maxBufferedBytes = config.hasPath(MAX_BUFFERED_BYTES_CONFIG_KEY) ?
+                config.getLong(MAX_BUFFERED_BYTES_CONFIG_KEY) : 64L * 1024 * 1024;
+        final boolean keepErrors = !keep.hasPath(KEEP_ERRORS_CONFIG_KEY) || keep.getBoolean(KEEP_ERRORS_CONFIG_KEY);
+        final long keepRootDurationAboveMicros = keep.hasPath(KEEP_ROOT_DURATION_CONFIG_KEY) ?
+                keep.getLong(KEEP_ROOT_DURATION_CONFIG_KEY) : 0L;
+        final double serviceMinTracesPerSec = keep.hasPath(KEEP_SERVICE_RATE_CONFIG_KEY) ?
+                keep.getDouble(KEEP_SERVICE_RATE_CONFIG_KEY) : 0d;
+        final double probability = keep.hasPath(KEEP_PROBABILITY_CONFIG_KEY) ? keep.getDouble(KEEP_PROBABILITY_CONFIG_KEY) : 0.01d;
+
+        return new TailSamplingConfig(enabled, decisionWindowMillis, tickMillis, maxBufferedBytes, keepErrors,
+                keepRootDurationAboveMicros, serviceMinTracesPerSec, probability);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * decides whether a complete trace is kept. The rules are tried in the order of the decisions below and the first
+ * one that matches keeps the trace
+ */
+public class TailSamplingRules {
+    private final static String ERROR_TAG_KEY = "error";
+
+    public enum Decision {
+        // a span of the trace has an 'error' tag set to true
+        ERROR(true),
+        // the root span took longer than the threshold
+        SLOW_ROOT(true),
+        // the trace is within the minimum rate of traces kept for one of its services
+        SERVICE_RATE(true),
+        // the trace id falls in the sampled share of the trace ids
+        PROBABILITY(true),
+        DROP(false);
+
+        private final boolean keep;
+
+        Decision(final boolean keep) {
+            this.keep = keep;
+        }
+
+        public boolean isKeep() {
+            return keep;
+        }
+    }
+
+    private final TailSamplingConfig config;
+    private final long probabilityThreshold;
+    private final ConcurrentMap<String, RateLimiter> serviceLimiters = new ConcurrentHashMap<>();
+
+    public TailSamplingRules(final TailSamplingConfig config) {
+        this.config = config;
+        // the hash of the trace id is compared with the threshold, so every agent makes the same decision for a trace
+        this.probabilityThreshold = TraceIdHash.threshold(config.getProbability());
+    }
+
+    public Decision decide(final String traceId, final List<Span> spans) {
+        if (config.isKeepErrors() && spans.stream().anyMatch(TailSamplingRules::isError)) {
+            return Decision.ERROR;
+        }
+        if (config.getKeepRootDurationAboveMicros() > 0 && isSlowRoot(spans)) {
+            return Decision.SLOW_ROOT;
+        }
+        if (config.getServiceMinTracesPerSec() > 0 && withinServiceRate(spans)) {
+            return Decision.SERVICE_RATE;
+        }
+        if (isSampled(traceId)) {
+            return Decision.PROBABILITY;
+        }
+        return Decision.DROP;
+    }
+
+    private boolean isSlowRoot(final List<Span> spans) {
+        for (final Span span : spans) {
+            if (StringUtils.isEmpty(span.getParentSpanId())) {
+                return span.getDuration() > config.getKeepRootDurationAboveMicros();
+            }
+        }
+        return false;
+    }
+
+    private boolean withinServiceRate(final List<Span> spans) {
+        for (final Span span : spans) {
+            final RateLimiter limiter = serviceLimiters.computeIfAbsent(span.getServiceName(),
+                    service -> RateLimiter.create(config.getServiceMinTracesPerSec()));
+            if (limiter.tryAcquire()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSampled(final String traceId) {
+        return TraceIdHash.of(traceId) < probabilityThreshold;
+    }
+
+    private static boolean isError(final Span span) {
+        for (final Tag tag : span.getTagsList()) {
+            if (ERROR_TAG_KEY.equalsIgnoreCase(tag.getKey())) {
+                return tag.getType() == Tag.TagType.BOOL ? tag.getVBool() : Boolean.parseBoolean(tag.getVStr());
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.codahale.metrics.Meter;
+import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.DispatchRecord;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferStage;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.*;
+
+/**
+ * dispatches the spans of a kept trace to every dispatcher as one batch, or through the ring buffer stage if the
+ * agent has one. The clients have been acked once their spans were buffered, so a failure is only logged and counted
+ */
+public class TraceForwarder implements Consumer<List<Span>> {
+    private final static Logger LOGGER = LoggerFactory.getLogger(TraceForwarder.class);
+
+    private final List<Dispatcher> dispatchers;
+    private final RingBufferStage ringBuffer;
+    private final Meter failureMeter;
+
+    public TraceForwarder(final List<Dispatcher> dispatchers, final RingBufferStage ringBuffer, final String agentName) {
+        Validate.notEmpty(dispatchers, "dispatchers can't be empty");
+        this.dispatchers = dispatchers;
+        this.ringBuffer = ringBuffer;
+        this.failureMeter = newMeter(buildMetricName(agentName, "tail.sampling.forward.failures"));
+    }
+
+    @Override
+    public void accept(final List<Span> spans) {
+        final List<DispatchRecord> records = new ArrayList<>(spans.size());
+        for (final Span span : spans) {
+            records.add(new DispatchRecord(span.getTraceId().getBytes(StandardCharsets.UTF_8), span.toByteArray()));
+        }
+
+        if (ringBuffer != null) {
+            for (final DispatchRecord record : records) {
+                for (final CompletableFuture<DispatchAck> ack : ringBuffer.publish(record.getPartitionKey(), record.getData())) {
+                    ack.whenComplete((result, error) -> onComplete(error));
+                }
+            }
+            return;
+        }
+
+        for (final Dispatcher dispatcher : dispatchers) {
+            CompletableFuture<DispatchAck> ack;
+            try {
+                ack = dispatcher.dispatchBatchAsync(records);
+            } catch (Exception ex) {
+                ack = DispatchAck.failed(ex);
+            }
+            ack.whenComplete((result, error) -> onComplete(error));
+        }
+    }
+
+    private void onComplete(final Throwable error) {
+        if (error != null) {
+            failureMeter.mark();
+            LOGGER.error("Fail to dispatch the spans of a sampled trace", error);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * unsigned 32 bit hash of a trace id, shared by the samplers so every agent makes the same decision for a trace
+ */
+final class TraceIdHash {
+    private final static HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+    private final static long RANGE = 1L << 32;
+
+    private TraceIdHash() { }
+
+    static long of(final String traceId) {
+        return of(traceId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static long of(final byte[] traceIdBytes) {
+        return HASH_FUNCTION.hashBytes(traceIdBytes).asInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the bound the hash of a sampled trace id is below, for the given probability
+     */
+    static long threshold(final double probability) {
+        return (long) (probability * RANGE);
+    }
+}
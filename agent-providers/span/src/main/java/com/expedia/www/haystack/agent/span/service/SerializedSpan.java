@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.expedia.open.tracing.Span;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * a span kept in its protobuf wire format. Only the traceId and serviceName are read from the bytes, and only when
+ * they are asked for, so the span can be handed over to the dispatchers without a decode and encode round trip
+ */
+public class SerializedSpan {
+    private static final int TRACE_ID_TAG = (Span.TRACEID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int SERVICE_NAME_TAG = (Span.SERVICENAME_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] bytes;
+    private byte[] traceIdBytes;
+    private String serviceName;
+
+    public SerializedSpan(final byte[] bytes) {
+        Validate.notNull(bytes, "span bytes can't be null");
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the span in the protobuf wire format, as received
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return utf-8 bytes of the traceId, empty if the span has no traceId
+     * @throws IllegalArgumentException if the bytes are not a valid protobuf message
+     */
+    public byte[] getTraceIdBytes() {
+        if (traceIdBytes == null) {
+            traceIdBytes = readField(bytes, TRACE_ID_TAG);
+        }
+        return traceIdBytes;
+    }
+
+    /**
+     * @return the serviceName, empty if the span has no serviceName
+     * @throws IllegalArgumentException if the bytes are not a valid protobuf message
+     */
+    public String getServiceName() {
+        if (serviceName == null) {
+            serviceName = new String(readField(bytes, SERVICE_NAME_TAG), StandardCharsets.UTF_8);
+        }
+        return serviceName;
+    }
+
+    private static byte[] readField(final byte[] bytes, final int fieldTag) {
+        final CodedInputStream input = CodedInputStream.newInstance(bytes);
+        try {
+            int tag = input.readTag();
+            while (tag != 0) {
+                if (tag == fieldTag) {
+                    return input.readByteArray();
+                }
+                if (!input.skipField(tag)) {
+                    break;
+                }
+                tag = input.readTag();
+            }
+            return EMPTY;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Fail to read the serialized span", e);
+        }
+    }
+}
@@ -17,73 +17,33 @@
 
 package com.expedia.www.haystack.agent.span.service;
 
-import com.codahale.metrics.Meter;
-import com.codahale.metrics.Timer;
 import com.expedia.open.tracing.Span;
 import com.expedia.open.tracing.agent.api.DispatchResult;
 import com.expedia.open.tracing.agent.api.SpanAgentGrpc;
 import com.expedia.www.haystack.agent.core.Dispatcher;
-import com.expedia.www.haystack.agent.core.RateLimitException;
-import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
 import com.expedia.www.haystack.agent.span.enricher.Enricher;
 import io.grpc.stub.StreamObserver;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Validate;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.List;
 
 public class SpanAgentGrpcService extends SpanAgentGrpc.SpanAgentImplBase {
 
-    private final Logger LOGGER = LoggerFactory.getLogger(SpanAgentGrpcService.class);
-
-    private final List<Dispatcher> dispatchers;
-    private final Timer dispatchTimer;
-    private final Meter dispatchFailureMeter;
-    private final List<Enricher> enrichers;
+    private final SpanDispatchHandler handler;
 
     public SpanAgentGrpcService(final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
-        Validate.notEmpty(dispatchers, "Dispatchers can't be empty");
-        this.dispatchers = dispatchers;
-        this.enrichers = enrichers;
-        dispatchTimer = SharedMetricRegistry.newTimer("span.agent.dispatch.timer");
-        dispatchFailureMeter = SharedMetricRegistry.newMeter("span.agent.dispatch.failures");
+        this(new SpanDispatchHandler(dispatchers, enrichers));
+    }
+
+    public SpanAgentGrpcService(final SpanDispatchHandler handler) {
+        this.handler = handler;
     }
 
     @Override
     public void dispatch(final Span span, final StreamObserver<DispatchResult> responseObserver) {
-        final DispatchResult.Builder result = DispatchResult.newBuilder().setCode(DispatchResult.ResultCode.SUCCESS);
-        final StringBuilder failedDispatchers = new StringBuilder();
-
-        final Timer.Context timer = dispatchTimer.time();
-
-        final Span enrichedSpan = Enricher.enrichSpan(span, enrichers);
-
-        for(final Dispatcher d : dispatchers) {
-            try {
-                d.dispatch(enrichedSpan.getTraceId().getBytes("utf-8"), enrichedSpan.toByteArray());
-            } catch (RateLimitException r) {
-                result.setCode(DispatchResult.ResultCode.RATE_LIMIT_ERROR);
-                dispatchFailureMeter.mark();
-                LOGGER.error("Fail to dispatch the span record due to rate limit errors", r);
-                failedDispatchers.append(d.getName()).append(',');
-            }
-            catch (Exception ex) {
-                result.setCode(DispatchResult.ResultCode.UNKNOWN_ERROR);
-                dispatchFailureMeter.mark();
-                LOGGER.error("Fail to dispatch the span record to the dispatcher with name={}", d.getName(), ex);
-                failedDispatchers.append(d.getName()).append(',');
-            }
-        }
-
-        if(failedDispatchers.length() > 0) {
-            result.setErrorMessage("Fail to dispatch the span record to the dispatchers=" +
-                    StringUtils.removeEnd(failedDispatchers.toString(), ","));
-        }
-
-        timer.close();
-        responseObserver.onNext(result.build());
-        responseObserver.onCompleted();
+        // the response is sent once every sink has acknowledged the span, without holding the calling thread
+        handler.dispatch(span).thenAccept(result -> {
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        });
     }
 }
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.expedia.open.tracing.agent.api.DispatchResult;
+import com.expedia.open.tracing.agent.api.SpanAgentGrpc;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.google.common.io.ByteStreams;
+import io.grpc.BindableService;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * serves the same 'SpanAgent/dispatch' method as {@link SpanAgentGrpcService}, but with a marshaller that keeps
+ * the span in its wire format. The received bytes are handed over untouched to every dispatcher, so this service
+ * can only be used if no enrichers are configured
+ */
+public class SpanAgentPassthroughGrpcService implements BindableService {
+    private final Logger LOGGER = LoggerFactory.getLogger(SpanAgentPassthroughGrpcService.class);
+
+    static final MethodDescriptor<SerializedSpan, DispatchResult> METHOD_DISPATCH =
+            MethodDescriptor.<SerializedSpan, DispatchResult>newBuilder()
+                    .setType(MethodDescriptor.MethodType.UNARY)
+                    .setFullMethodName(SpanAgentGrpc.METHOD_DISPATCH.getFullMethodName())
+                    .setRequestMarshaller(new SerializedSpanMarshaller())
+                    .setResponseMarshaller(ProtoUtils.marshaller(DispatchResult.getDefaultInstance()))
+                    .build();
+
+    private final SpanDispatchHandler handler;
+
+    public SpanAgentPassthroughGrpcService(final List<Dispatcher> dispatchers) {
+        this(new SpanDispatchHandler(dispatchers, Collections.emptyList()));
+    }
+
+    public SpanAgentPassthroughGrpcService(final SpanDispatchHandler handler) {
+        this.handler = handler;
+    }
+
+    public void dispatch(final SerializedSpan span, final StreamObserver<DispatchResult> responseObserver) {
+        try {
+            span.getTraceIdBytes();
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Fail to read the traceId of the span record", e);
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+
+        // the response is sent once every sink has acknowledged the span, without holding the calling thread
+        handler.dispatch(span).thenAccept(result -> {
+            responseObserver.onNext(result);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(SpanAgentGrpc.SERVICE_NAME)
+                .addMethod(METHOD_DISPATCH, ServerCalls.asyncUnaryCall(this::dispatch))
+                .build();
+    }
+
+    static class SerializedSpanMarshaller implements MethodDescriptor.Marshaller<SerializedSpan> {
+        @Override
+        public InputStream stream(final SerializedSpan span) {
+            return new ByteArrayInputStream(span.getBytes());
+        }
+
+        @Override
+        public SerializedSpan parse(final InputStream stream) {
+            try {
+                // grpc knows the message length up front, so the bytes can be read without growing a buffer
+                if (stream instanceof KnownLength) {
+                    final byte[] bytes = new byte[stream.available()];
+                    ByteStreams.readFully(stream, bytes);
+                    return new SerializedSpan(bytes);
+                }
+                return new SerializedSpan(ByteStreams.toByteArray(stream));
+            } catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Fail to read the span bytes").withCause(e).asRuntimeException();
+            }
+        }
+    }
+}
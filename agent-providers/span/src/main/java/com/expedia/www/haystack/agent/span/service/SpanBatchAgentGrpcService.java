@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.codahale.metrics.Histogram;
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.agent.api.BatchDispatchResult;
+import com.expedia.open.tracing.agent.api.DispatchResult;
+import com.expedia.open.tracing.agent.api.SpanBatch;
+import com.expedia.open.tracing.agent.api.SpanBatchAgentGrpc;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+import com.expedia.www.haystack.agent.span.enricher.Enricher;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeGovernor;
+import io.grpc.stub.StreamObserver;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * grpc service that accepts many spans per call, either as a single batch or as a stream, and acknowledges them with
+ * one result per batch or per stream window. A stream window closes once it has 'stream.window.spans' spans, once
+ * 'stream.window.millis' have passed since its first span, or when the client completes the stream. The results of
+ * the windows are sent in order. Failure details are added only for the spans that failed
+ */
+public class SpanBatchAgentGrpcService extends SpanBatchAgentGrpc.SpanBatchAgentImplBase implements AutoCloseable {
+    public static final int DEFAULT_STREAM_WINDOW_SPANS = 1000;
+    public static final long DEFAULT_STREAM_WINDOW_MILLIS = 1000L;
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SpanBatchAgentGrpcService.class);
+
+    private final SpanDispatchHandler handler;
+    private final Histogram batchSizeHistogram;
+    private final int streamWindowSpans;
+    private final long streamWindowMillis;
+    private final ScheduledExecutorService windowTimer;
+
+    public SpanBatchAgentGrpcService(final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
+        this(new SpanDispatchHandler(dispatchers, enrichers));
+    }
+
+    public SpanBatchAgentGrpcService(final SpanDispatchHandler handler) {
+        this(handler, DEFAULT_STREAM_WINDOW_SPANS, DEFAULT_STREAM_WINDOW_MILLIS);
+    }
+
+    public SpanBatchAgentGrpcService(final SpanDispatchHandler handler,
+                                     final int streamWindowSpans,
+                                     final long streamWindowMillis) {
+        Validate.isTrue(streamWindowSpans > 0, "stream window spans should be > 0");
+        Validate.isTrue(streamWindowMillis > 0, "stream window millis should be > 0");
+
+        this.handler = handler;
+        this.batchSizeHistogram = SharedMetricRegistry.newHistogram("span.agent.batch.size");
+        this.streamWindowSpans = streamWindowSpans;
+        this.streamWindowMillis = streamWindowMillis;
+        this.windowTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "span-stream-window");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void dispatchBatch(final SpanBatch batch, final StreamObserver<BatchDispatchResult> responseObserver) {
+        final BatchAck ack = new BatchAck();
+        for (final Span span : batch.getSpansList()) {
+            ack.dispatch(span);
+        }
+        ack.send(CompletableFuture.completedFuture(null), responseObserver).thenRun(responseObserver::onCompleted);
+    }
+
+    @Override
+    public StreamObserver<Span> dispatchStream(final StreamObserver<BatchDispatchResult> responseObserver) {
+        final StreamAck ack = new StreamAck(responseObserver);
+        return new StreamObserver<Span>() {
+            @Override
+            public void onNext(final Span span) {
+                ack.dispatch(span);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                // the spans received so far have already been dispatched, there is no one left to acknowledge
+                LOGGER.error("span dispatch stream has been cancelled by the client after {} spans", ack.spanCount, throwable);
+                ack.cancel();
+            }
+
+            @Override
+            public void onCompleted() {
+                ack.complete();
+            }
+        };
+    }
+
+    /**
+     * stops the timer of the stream windows, to be called once the grpc server is shut down
+     */
+    @Override
+    public void close() {
+        windowTimer.shutdownNow();
+    }
+
+    boolean isClosed() {
+        return windowTimer.isShutdown();
+    }
+
+    // splits a stream in windows, only the spans of the open window are kept till their result is sent
+    private final class StreamAck {
+        private final StreamObserver<BatchDispatchResult> responseObserver;
+        private volatile long spanCount;
+
+        // guarded by this
+        private BatchAck window;
+        private ScheduledFuture<?> windowExpiry;
+        private CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+
+        StreamAck(final StreamObserver<BatchDispatchResult> responseObserver) {
+            this.responseObserver = responseObserver;
+        }
+
+        private void dispatch(final Span span) {
+            synchronized (this) {
+                if (window == null) {
+                    final BatchAck opened = new BatchAck();
+                    window = opened;
+                    windowExpiry = windowTimer.schedule(() -> expire(opened), streamWindowMillis, TimeUnit.MILLISECONDS);
+                }
+                window.dispatch(span);
+                spanCount++;
+                if (window.spanCount >= streamWindowSpans) {
+                    closeWindow();
+                }
+            }
+        }
+
+        private void expire(final BatchAck expired) {
+            synchronized (this) {
+                if (window == expired) {
+                    closeWindow();
+                }
+            }
+        }
+
+        // caller holds the lock, the result of the window is sent after the results of the windows before it
+        private void closeWindow() {
+            windowExpiry.cancel(false);
+            sent = window.send(sent, responseObserver);
+            window = null;
+        }
+
+        private void complete() {
+            synchronized (this) {
+                if (window != null) {
+                    closeWindow();
+                }
+                sent.thenRun(responseObserver::onCompleted);
+            }
+        }
+
+        private void cancel() {
+            synchronized (this) {
+                if (window != null) {
+                    windowExpiry.cancel(false);
+                    window = null;
+                }
+            }
+        }
+    }
+
+    // tracks the outcome of every span dispatched in a batch or a stream window, and acknowledges all of them
+    // once the sinks have acknowledged or failed the last one
+    private final class BatchAck {
+        private final List<String> spanIds = new ArrayList<>();
+        private final List<CompletableFuture<DispatchResult>> spanResults = new ArrayList<>();
+        private final SpanSizeGovernor.RequestBudget budget = handler.newRequestBudget();
+        private int spanCount;
+
+        private void dispatch(final Span span) {
+            spanIds.add(span.getSpanId());
+            spanResults.add(handler.dispatch(span, budget));
+            spanCount++;
+        }
+
+        private CompletableFuture<Void> send(final CompletableFuture<Void> previous,
+                                             final StreamObserver<BatchDispatchResult> responseObserver) {
+            batchSizeHistogram.update(spanCount);
+            final CompletableFuture<Void> dispatched =
+                    CompletableFuture.allOf(spanResults.toArray(new CompletableFuture[spanResults.size()]));
+            return CompletableFuture.allOf(previous, dispatched).thenRun(() -> responseObserver.onNext(buildResult()));
+        }
+
+        private BatchDispatchResult buildResult() {
+            final BatchDispatchResult.Builder result = BatchDispatchResult.newBuilder()
+                    .setCode(BatchDispatchResult.ResultCode.SUCCESS)
+                    .setSpanCount(spanCount);
+
+            for (int idx = 0; idx < spanResults.size(); idx++) {
+                final DispatchResult spanResult = spanResults.get(idx).join();
+                if (spanResult.getCode() != DispatchResult.ResultCode.SUCCESS) {
+                    final BatchDispatchResult.ResultCode code = BatchDispatchResult.ResultCode.forNumber(spanResult.getCode().getNumber());
+                    result.addFailures(BatchDispatchResult.SpanFailure.newBuilder()
+                            .setIndex(idx)
+                            .setSpanId(spanIds.get(idx))
+                            .setCode(code)
+                            .setErrorMessage(spanResult.getErrorMessage()));
+
+                    // an unknown error is reported over a rate limit error as retrying the batch may not help
+                    if (result.getCode() != BatchDispatchResult.ResultCode.UNKNOWN_ERROR) {
+                        result.setCode(code);
+                    }
+                }
+            }
+
+            if (result.getFailuresCount() > 0) {
+                result.setErrorMessage(String.format("Fail to dispatch %d out of %d span records",
+                        result.getFailuresCount(), spanCount));
+            }
+            return result.build();
+        }
+    }
+}
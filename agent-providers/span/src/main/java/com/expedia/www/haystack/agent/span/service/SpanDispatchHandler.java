@@ -0,0 +1,245 @@
+/*
+ *  Copyright 2017 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.agent.api.DispatchResult;
+import com.expedia.www.haystack.agent.core.DispatchAck;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.core.RateLimitException;
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferStage;
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+import com.expedia.www.haystack.agent.span.enricher.Enricher;
+import com.expedia.www.haystack.agent.span.enricher.StaticTags;
+import com.expedia.www.haystack.agent.span.filter.SpanFilter;
+import com.expedia.www.haystack.agent.span.governor.SpanSizeGovernor;
+import com.expedia.www.haystack.agent.span.sampling.HeadSampler;
+import com.expedia.www.haystack.agent.span.sampling.TailSampler;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * enriches a span and dispatches it to all the configured dispatchers. This is shared by the unary, batch
+ * and streaming grpc services of the span agent, so all of them report the same dispatch metrics
+ */
+public class SpanDispatchHandler {
+    private final static DispatchResult SUCCESS = DispatchResult.newBuilder().setCode(DispatchResult.ResultCode.SUCCESS).build();
+
+    private final Logger LOGGER = LoggerFactory.getLogger(SpanDispatchHandler.class);
+
+    private final List<Dispatcher> dispatchers;
+    private final List<Enricher> enrichers;
+    private final RingBufferStage ringBuffer;
+    private final SpanFilter spanFilter;
+    private final HeadSampler headSampler;
+    private final TailSampler tailSampler;
+    private final SpanSizeGovernor sizeGovernor;
+    private final StaticTags staticTags;
+    private final Timer dispatchTimer;
+    private final Meter dispatchFailureMeter;
+
+    public SpanDispatchHandler(final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
+        this(dispatchers, enrichers, null, null, null, null, null, null);
+    }
+
+    /**
+     * @param ringBuffer stage the spans are published to instead of calling the dispatchers on the receiving
+     *                   thread, null to dispatch directly
+     * @param spanFilter filter that drops the spans matching its rules before they are sampled, null to keep every
+     *                   span
+     * @param headSampler sampler that drops the spans of the traces out of the budget of their service before they
+     *                    are enriched, null to keep every span
+     * @param tailSampler sampler that buffers the enriched spans and dispatches the kept traces, null to dispatch
+     *                    every span
+     * @param sizeGovernor governor that truncates or drops the enriched spans over the size budgets, null to dispatch
+     *                     the spans whatever their size
+     * @param staticTags tags appended to the bytes of every span, after the enrichers and the size governor, null to
+     *                   add none
+     */
+    public SpanDispatchHandler(final List<Dispatcher> dispatchers,
+                               final List<Enricher> enrichers,
+                               final RingBufferStage ringBuffer,
+                               final SpanFilter spanFilter,
+                               final HeadSampler headSampler,
+                               final TailSampler tailSampler,
+                               final SpanSizeGovernor sizeGovernor,
+                               final StaticTags staticTags) {
+        Validate.notEmpty(dispatchers, "Dispatchers can't be empty");
+        this.dispatchers = dispatchers;
+        this.enrichers = enrichers;
+        this.ringBuffer = ringBuffer;
+        this.spanFilter = spanFilter;
+        this.headSampler = headSampler;
+        this.tailSampler = tailSampler;
+        this.sizeGovernor = sizeGovernor;
+        this.staticTags = staticTags;
+        dispatchTimer = SharedMetricRegistry.newTimer("span.agent.dispatch.timer");
+        dispatchFailureMeter = SharedMetricRegistry.newMeter("span.agent.dispatch.failures");
+    }
+
+    /**
+     * enrich and dispatch the span to every dispatcher
+     * @param span span received from the client
+     * @return future of the result with the error code and the names of the failed dispatchers, if any. It completes
+     * once every dispatcher's sink has acknowledged or failed the span, or right away with a success once the span
+     * is dropped by the span filter, the head sampler or the size governor, or buffered by the tail sampler
+     */
+    public CompletableFuture<DispatchResult> dispatch(final Span span) {
+        return dispatch(span, null);
+    }
+
+    /**
+     * @return budget of the spans of a batch or a stream window, null if the agent has no size governor
+     */
+    public SpanSizeGovernor.RequestBudget newRequestBudget() {
+        return sizeGovernor == null ? null : sizeGovernor.newRequestBudget();
+    }
+
+    /**
+     * enrich and dispatch a span of a batch or a stream to every dispatcher
+     * @param budget budget of the spans of the batch, a span over it is dropped
+     */
+    public CompletableFuture<DispatchResult> dispatch(final Span span, final SpanSizeGovernor.RequestBudget budget) {
+        if (spanFilter != null && !spanFilter.keep(span)) {
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+        if (headSampler != null && !headSampler.sample(span.getServiceName(), span.getTraceId())) {
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+
+        final Timer.Context timer = dispatchTimer.time();
+        final Span enrichedSpan = govern(Enricher.enrichSpan(span, enrichers), budget);
+        if (enrichedSpan == null) {
+            timer.close();
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+        if (tailSampler != null) {
+            tailSampler.offer(staticTags == null ? enrichedSpan : staticTags.applyTo(enrichedSpan));
+            timer.close();
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+        return dispatchToAll(enrichedSpan.getTraceId().getBytes(StandardCharsets.UTF_8), serialize(enrichedSpan))
+                .whenComplete((result, error) -> timer.close());
+    }
+
+    /**
+     * dispatch the span bytes, as received on the wire, to every dispatcher. Enrichers, the span filter and the
+     * tail sampler are not applied, the size governor decodes only the spans that can be over its budgets and the
+     * static tags are appended to the bytes
+     * @param span serialized span received from the client
+     * @return future of the result with the error code and the names of the failed dispatchers, if any
+     */
+    public CompletableFuture<DispatchResult> dispatch(final SerializedSpan span) {
+        if (headSampler != null && !headSampler.sample(span.getServiceName(), span.getTraceIdBytes())) {
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+
+        final byte[] spanBytes = sizeGovernor == null ? span.getBytes() : sizeGovernor.govern(span.getBytes(), null);
+        if (spanBytes == null) {
+            return CompletableFuture.completedFuture(SUCCESS);
+        }
+
+        final Timer.Context timer = dispatchTimer.time();
+        return dispatchToAll(span.getTraceIdBytes(), serialize(spanBytes))
+                .whenComplete((result, error) -> timer.close());
+    }
+
+    private byte[] serialize(final Span span) {
+        return staticTags == null ? span.toByteArray() : staticTags.appendTo(span);
+    }
+
+    private byte[] serialize(final byte[] spanBytes) {
+        return staticTags == null ? spanBytes : staticTags.appendTo(spanBytes);
+    }
+
+    private Span govern(final Span span, final SpanSizeGovernor.RequestBudget budget) {
+        return sizeGovernor == null ? span : sizeGovernor.govern(span, budget);
+    }
+
+    private CompletableFuture<DispatchResult> dispatchToAll(final byte[] partitionKey, final byte[] spanBytes) {
+        // every outcome future completes normally, with the dispatch error or null on success
+        final List<CompletableFuture<Throwable>> outcomes = new ArrayList<>(dispatchers.size());
+        if (ringBuffer == null) {
+            for (final Dispatcher d : dispatchers) {
+                outcomes.add(dispatchAsync(d, partitionKey, spanBytes).handle((ack, error) -> unwrap(error)));
+            }
+        } else {
+            for (final CompletableFuture<DispatchAck> ack : ringBuffer.publish(partitionKey, spanBytes)) {
+                outcomes.add(ack.handle((result, error) -> unwrap(error)));
+            }
+        }
+
+        return CompletableFuture.allOf(outcomes.toArray(new CompletableFuture[outcomes.size()]))
+                .thenApply(ignored -> buildResult(outcomes));
+    }
+
+    private DispatchResult buildResult(final List<CompletableFuture<Throwable>> outcomes) {
+        final DispatchResult.Builder result = DispatchResult.newBuilder().setCode(DispatchResult.ResultCode.SUCCESS);
+        final StringBuilder failedDispatchers = new StringBuilder();
+
+        for (int idx = 0; idx < outcomes.size(); idx++) {
+            final Throwable error = outcomes.get(idx).join();
+            if (error == null) {
+                continue;
+            }
+
+            final Dispatcher d = dispatchers.get(idx);
+            dispatchFailureMeter.mark();
+            if (error instanceof RateLimitException) {
+                result.setCode(DispatchResult.ResultCode.RATE_LIMIT_ERROR);
+                LOGGER.error("Fail to dispatch the span record due to rate limit errors", error);
+            } else {
+                result.setCode(DispatchResult.ResultCode.UNKNOWN_ERROR);
+                LOGGER.error("Fail to dispatch the span record to the dispatcher with name={}", d.getName(), error);
+            }
+            failedDispatchers.append(d.getName()).append(',');
+        }
+
+        if(failedDispatchers.length() > 0) {
+            result.setErrorMessage("Fail to dispatch the span record to the dispatchers=" +
+                    StringUtils.removeEnd(failedDispatchers.toString(), ","));
+        }
+
+        return result.build();
+    }
+
+    private static CompletableFuture<DispatchAck> dispatchAsync(final Dispatcher dispatcher,
+                                                                final byte[] partitionKey,
+                                                                final byte[] spanBytes) {
+        try {
+            return dispatcher.dispatchAsync(partitionKey, spanBytes);
+        } catch (Exception ex) {
+            // a misbehaving dispatcher may still throw instead of failing the future
+            return DispatchAck.failed(ex);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+    }
+}
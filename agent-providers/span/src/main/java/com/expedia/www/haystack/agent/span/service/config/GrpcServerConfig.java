@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service.config;
+
+import com.typesafe.config.Config;
+import io.grpc.netty.NettyServerBuilder;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * executor and netty transport settings of the span agent's grpc server
+ */
+public class GrpcServerConfig {
+    private final static String EXECUTOR_TYPE_CONFIG_KEY = "server.executor.type";
+    private final static String EXECUTOR_THREADS_CONFIG_KEY = "server.executor.threads";
+    private final static String EXECUTOR_QUEUE_SIZE_CONFIG_KEY = "server.executor.queue.size";
+    private final static String BOSS_THREADS_CONFIG_KEY = "server.boss.threads";
+    private final static String WORKER_THREADS_CONFIG_KEY = "server.worker.threads";
+    private final static String EPOLL_ENABLED_CONFIG_KEY = "server.epoll.enabled";
+    private final static String POOLED_ALLOCATOR_CONFIG_KEY = "server.pooled.allocator";
+    private final static String FLOW_CONTROL_WINDOW_CONFIG_KEY = "server.flow.control.window.bytes";
+    private final static String MAX_INBOUND_MESSAGE_SIZE_CONFIG_KEY = "server.max.inbound.message.bytes";
+    private final static String COMPRESSION_CONFIG_KEY = "server.compression";
+
+    public enum ExecutorType {
+        // run the calls on the netty event loop, dispatchers must never block
+        DIRECT,
+        // fixed set of threads with a bounded queue, new calls fail with RESOURCE_EXHAUSTED once the queue is full
+        BOUNDED,
+        // fork-join pool in async mode
+        WORK_STEALING;
+
+        static ExecutorType from(final String value) {
+            return ExecutorType.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final ExecutorType executorType;
+    private final int executorThreads;
+    private final int executorQueueSize;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final boolean epollEnabled;
+    private final boolean pooledAllocator;
+    private final int flowControlWindow;
+    private final int maxInboundMessageSize;
+    private final String compression;
+
+    GrpcServerConfig(final ExecutorType executorType,
+                     final int executorThreads,
+                     final int executorQueueSize,
+                     final int bossThreads,
+                     final int workerThreads,
+                     final boolean epollEnabled,
+                     final boolean pooledAllocator,
+                     final int flowControlWindow,
+                     final int maxInboundMessageSize,
+                     final String compression) {
+        Validate.isTrue(executorThreads > 0, "executor threads should be > 0");
+        Validate.isTrue(executorQueueSize > 0, "executor queue size should be > 0");
+        Validate.isTrue(bossThreads > 0, "boss threads should be > 0");
+        Validate.isTrue(workerThreads >= 0, "worker threads should be >= 0, use 0 for the netty default");
+        Validate.isTrue(flowControlWindow > 0, "flow control window should be > 0");
+        Validate.isTrue(maxInboundMessageSize > 0, "max inbound message size should be > 0");
+        Validate.isTrue("identity".equals(compression) || "gzip".equals(compression),
+                "compression should be either 'identity' or 'gzip'");
+
+        this.executorType = executorType;
+        this.executorThreads = executorThreads;
+        this.executorQueueSize = executorQueueSize;
+        this.bossThreads = bossThreads;
+        this.workerThreads = workerThreads;
+        this.epollEnabled = epollEnabled;
+        this.pooledAllocator = pooledAllocator;
+        this.flowControlWindow = flowControlWindow;
+        this.maxInboundMessageSize = maxInboundMessageSize;
+        this.compression = compression;
+    }
+
+    public ExecutorType getExecutorType() {
+        return executorType;
+    }
+
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    public int getExecutorQueueSize() {
+        return executorQueueSize;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public boolean isEpollEnabled() {
+        return epollEnabled;
+    }
+
+    public boolean isPooledAllocator() {
+        return pooledAllocator;
+    }
+
+    public int getFlowControlWindow() {
+        return flowControlWindow;
+    }
+
+    public int getMaxInboundMessageSize() {
+        return maxInboundMessageSize;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public boolean isCompressionEnabled() {
+        return !"identity".equals(compression);
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static GrpcServerConfig from(final Config config) {
+        final ExecutorType executorType = config.hasPath(EXECUTOR_TYPE_CONFIG_KEY) ?
+                ExecutorType.from(config.getString(EXECUTOR_TYPE_CONFIG_KEY)) : ExecutorType.DIRECT;
+        final int executorThreads = config.hasPath(EXECUTOR_THREADS_CONFIG_KEY) ?
+                config.getInt(EXECUTOR_THREADS_CONFIG_KEY) : Runtime.getRuntime().availableProcessors() * 2;
+        final int executorQueueSize = config.hasPath(EXECUTOR_QUEUE_SIZE_CONFIG_KEY) ? config.getInt(EXECUTOR_QUEUE_SIZE_CONFIG_KEY) : 10000;
+        final int bossThreads = config.hasPath(BOSS_THREADS_CONFIG_KEY) ? config.getInt(BOSS_THREADS_CONFIG_KEY) : 1;
+        final int workerThreads = config.hasPath(WORKER_THREADS_CONFIG_KEY) ? config.getInt(WORKER_THREADS_CONFIG_KEY) : 0;
+        final boolean epollEnabled = config.hasPath(EPOLL_ENABLED_CONFIG_KEY) && config.getBoolean(EPOLL_ENABLED_CONFIG_KEY);
+        final boolean pooledAllocator = !config.hasPath(POOLED_ALLOCATOR_CONFIG_KEY) || config.getBoolean(POOLED_ALLOCATOR_CONFIG_KEY); // default is true
+        final int flowControlWindow = config.hasPath(FLOW_CONTROL_WINDOW_CONFIG_KEY) ?
+                config.getInt(FLOW_CONTROL_WINDOW_CONFIG_KEY) : NettyServerBuilder.DEFAULT_FLOW_CONTROL_WINDOW;
+        final int maxInboundMessageSize = config.hasPath(MAX_INBOUND_MESSAGE_SIZE_CONFIG_KEY) ?
+                config.getInt(MAX_INBOUND_MESSAGE_SIZE_CONFIG_KEY) : 4 * 1024 * 1024;
+        final String compression = config.hasPath(COMPRESSION_CONFIG_KEY) ?
+                config.getString(COMPRESSION_CONFIG_KEY).toLowerCase() : "identity";
+
+        return new GrpcServerConfig(executorType, executorThreads, executorQueueSize, bossThreads, workerThreads,
+                epollEnabled, pooledAllocator, flowControlWindow, maxInboundMessageSize, compression);
+    }
+}
@@ -17,22 +17,64 @@
 
 package com.expedia.www.haystack.agent.span.spi;
 
+import com.codahale.metrics.Meter;
 import com.expedia.www.haystack.agent.core.BaseAgent;
+import com.expedia.www.haystack.agent.core.Dispatcher;
 import com.expedia.www.haystack.agent.span.enricher.Enricher;
 import com.expedia.www.haystack.agent.span.service.SpanAgentGrpcService;
+import com.expedia.www.haystack.agent.span.service.SpanAgentPassthroughGrpcService;
+import com.expedia.www.haystack.agent.span.service.SpanBatchAgentGrpcService;
+import com.expedia.www.haystack.agent.span.service.SpanDispatchHandler;
 import com.expedia.www.haystack.agent.span.service.SpanGrpcHealthService;
+import com.expedia.www.haystack.agent.span.service.config.GrpcServerConfig;
+import com.google.common.annotations.VisibleForTesting;
 import com.typesafe.config.Config;
+import io.grpc.BindableService;
+import io.grpc.Metadata;
 import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
 import io.grpc.netty.NettyServerBuilder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newGauge;
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newMeter;
+
 public class SpanAgent extends BaseAgent {
     private Server server;
+    private ExecutorService executor;
+    private SpanBatchAgentGrpcService batchService;
+    private Meter executorRejectedMeter;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
     private static final long KEEP_ALIVE_TIME_IN_SECONDS = 30;
+    private static final String PASSTHROUGH_ENABLED_KEY = "passthrough.enabled";
+    private static final String STREAM_WINDOW_SPANS_KEY = "stream.window.spans";
+    private static final String STREAM_WINDOW_MILLIS_KEY = "stream.window.millis";
 
     public SpanAgent() {
         super(LoggerFactory.getLogger(SpanAgent.class));
@@ -46,21 +88,28 @@ public class SpanAgent extends BaseAgent {
     @Override
     public void initialize(final Config config) throws IOException {
         this.dispatchers = loadAndInitializeDispatchers(config, Thread.currentThread().getContextClassLoader(), getName());
+        this.ringBuffer = buildRingBuffer(config, dispatchers, getName());
+        this.spanFilter = buildSpanFilter(config, getName());
+        this.headSampler = buildHeadSampler(config, getName());
+        this.tailSampler = buildTailSampler(config, dispatchers, ringBuffer, getName());
+        this.staticTags = buildStaticTags(config);
+        this.sizeGovernor = buildSizeGovernor(config, getName(), staticTags);
 
         final int port = config.getInt("port");
         final List<Enricher> enrichers = loadSpanEnrichers(config);
+        final GrpcServerConfig serverConfig = GrpcServerConfig.from(config);
 
-        this.server = NettyServerBuilder
-                .forPort(port)
-                .directExecutor()
+        this.batchService = buildSpanBatchService(config, dispatchers, enrichers);
+        this.server = configureServerBuilder(NettyServerBuilder.forPort(port), serverConfig)
                 .permitKeepAliveWithoutCalls(true)
                 .permitKeepAliveTime(KEEP_ALIVE_TIME_IN_SECONDS, TimeUnit.SECONDS)
-                .addService(new SpanAgentGrpcService(dispatchers, enrichers))
+                .addService(withLoadShedding(withCompression(buildSpanService(config, dispatchers, enrichers), serverConfig)))
+                .addService(withLoadShedding(withCompression(batchService, serverConfig)))
                 .addService(new SpanGrpcHealthService())
                 .build()
                 .start();
 
-        logger.info("span agent grpc server started on port {}....", port);
+        logger.info("span agent grpc server started on port {} with executor={}....", port, serverConfig.getExecutorType());
 
         try {
             server.awaitTermination();
@@ -69,8 +118,183 @@ public class SpanAgent extends BaseAgent {
         }
     }
 
+    @VisibleForTesting
+    BindableService buildSpanService(final Config config, final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
+        final boolean passthrough = config.hasPath(PASSTHROUGH_ENABLED_KEY) && config.getBoolean(PASSTHROUGH_ENABLED_KEY);
+        if (passthrough) {
+            if (enrichers.isEmpty() && tailSampler == null && spanFilter == null) {
+                logger.info("span agent will forward the received span bytes to the dispatchers as is");
+                return new SpanAgentPassthroughGrpcService(buildDispatchHandler(dispatchers, enrichers));
+            }
+            logger.warn("passthrough mode is ignored as the span enrichers, the tail sampler or the span filter need to decode the span");
+        }
+        return new SpanAgentGrpcService(buildDispatchHandler(dispatchers, enrichers));
+    }
+
+    @VisibleForTesting
+    SpanBatchAgentGrpcService buildSpanBatchService(final Config config, final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
+        final int windowSpans = config.hasPath(STREAM_WINDOW_SPANS_KEY) ?
+                config.getInt(STREAM_WINDOW_SPANS_KEY) : SpanBatchAgentGrpcService.DEFAULT_STREAM_WINDOW_SPANS;
+        final long windowMillis = config.hasPath(STREAM_WINDOW_MILLIS_KEY) ?
+                config.getLong(STREAM_WINDOW_MILLIS_KEY) : SpanBatchAgentGrpcService.DEFAULT_STREAM_WINDOW_MILLIS;
+        return new SpanBatchAgentGrpcService(buildDispatchHandler(dispatchers, enrichers), windowSpans, windowMillis);
+    }
+
+    private SpanDispatchHandler buildDispatchHandler(final List<Dispatcher> dispatchers, final List<Enricher> enrichers) {
+        return new SpanDispatchHandler(dispatchers, enrichers, ringBuffer, spanFilter, headSampler, tailSampler, sizeGovernor,
+                staticTags);
+    }
+
+    @VisibleForTesting
+    NettyServerBuilder configureServerBuilder(final NettyServerBuilder builder, final GrpcServerConfig serverConfig) {
+        final boolean useEpoll = serverConfig.isEpollEnabled() && isEpollAvailable();
+        if (useEpoll) {
+            bossGroup = new EpollEventLoopGroup(serverConfig.getBossThreads(), new DefaultThreadFactory("span-agent-grpc-boss", true));
+            workerGroup = new EpollEventLoopGroup(serverConfig.getWorkerThreads(), new DefaultThreadFactory("span-agent-grpc-worker", true));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            bossGroup = new NioEventLoopGroup(serverConfig.getBossThreads(), new DefaultThreadFactory("span-agent-grpc-boss", true));
+            workerGroup = new NioEventLoopGroup(serverConfig.getWorkerThreads(), new DefaultThreadFactory("span-agent-grpc-worker", true));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+
+        builder.bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .withChildOption(ChannelOption.ALLOCATOR, serverConfig.isPooledAllocator() ?
+                        PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT)
+                .flowControlWindow(serverConfig.getFlowControlWindow())
+                .maxMessageSize(serverConfig.getMaxInboundMessageSize());
+
+        executor = buildExecutor(serverConfig);
+        if (executor == null) {
+            builder.directExecutor();
+        } else {
+            builder.executor(executor);
+        }
+
+        registerServerMetrics(serverConfig, useEpoll);
+        return builder;
+    }
+
+    @VisibleForTesting
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    private ExecutorService buildExecutor(final GrpcServerConfig serverConfig) {
+        switch (serverConfig.getExecutorType()) {
+            case BOUNDED:
+                // a task that doesn't fit in the full queue is rejected, it must never run on the event loop as that
+                // would stall every connection of the loop
+                executorRejectedMeter = newMeter("span.agent.server.executor.rejected");
+                final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                        serverConfig.getExecutorThreads(),
+                        serverConfig.getExecutorThreads(),
+                        0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(serverConfig.getExecutorQueueSize()),
+                        new DefaultThreadFactory("span-agent-grpc-executor", true),
+                        (task, rejectingPool) -> {
+                            executorRejectedMeter.mark();
+                            throw new RejectedExecutionException("span agent grpc executor queue is full");
+                        });
+                newGauge("span.agent.server.executor.queue.depth", () -> pool.getQueue().size());
+                newGauge("span.agent.server.executor.active.threads", pool::getActiveCount);
+                return pool;
+            case WORK_STEALING:
+                final ForkJoinPool forkJoinPool = new ForkJoinPool(serverConfig.getExecutorThreads(),
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                        null,
+                        true);
+                newGauge("span.agent.server.executor.queue.depth", forkJoinPool::getQueuedSubmissionCount);
+                newGauge("span.agent.server.executor.active.threads", forkJoinPool::getActiveThreadCount);
+                return forkJoinPool;
+            default:
+                return null;
+        }
+    }
+
+    private void registerServerMetrics(final GrpcServerConfig serverConfig, final boolean useEpoll) {
+        final int executorThreads = executor == null ? 0 : serverConfig.getExecutorThreads();
+        newGauge("span.agent.server.executor.threads", () -> executorThreads);
+        newGauge("span.agent.server.boss.threads", ((MultithreadEventLoopGroup) bossGroup)::executorCount);
+        newGauge("span.agent.server.worker.threads", ((MultithreadEventLoopGroup) workerGroup)::executorCount);
+        newGauge("span.agent.server.epoll.enabled", () -> toGaugeValue(useEpoll));
+        newGauge("span.agent.server.pooled.allocator", () -> toGaugeValue(serverConfig.isPooledAllocator()));
+        newGauge("span.agent.server.flow.control.window.bytes", serverConfig::getFlowControlWindow);
+        newGauge("span.agent.server.max.inbound.message.bytes", serverConfig::getMaxInboundMessageSize);
+        newGauge("span.agent.server.compression.enabled", () -> toGaugeValue(serverConfig.isCompressionEnabled()));
+    }
+
+    private static int toGaugeValue(final boolean flag) {
+        return flag ? 1 : 0;
+    }
+
+    private boolean isEpollAvailable() {
+        if (!Epoll.isAvailable()) {
+            logger.warn("native epoll transport is not available, falling back to nio", Epoll.unavailabilityCause());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * fails a new call with RESOURCE_EXHAUSTED once the queue of the bounded executor is about to fill up. The last
+     * slots of the queue are kept for the calls that are already running, so their messages are not rejected by it
+     */
+    @VisibleForTesting
+    ServerServiceDefinition withLoadShedding(final ServerServiceDefinition service) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return service;
+        }
+
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        final int reserved = Math.min(pool.getMaximumPoolSize(), pool.getQueue().remainingCapacity() - 1);
+        return ServerInterceptors.intercept(service, new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call,
+                                                                         final Metadata headers,
+                                                                         final ServerCallHandler<ReqT, RespT> next) {
+                if (pool.getQueue().remainingCapacity() < reserved) {
+                    executorRejectedMeter.mark();
+                    call.close(Status.RESOURCE_EXHAUSTED.withDescription("span agent grpc executor queue is full"), new Metadata());
+                    return new ServerCall.Listener<ReqT>() {
+                    };
+                }
+                return next.startCall(call, headers);
+            }
+        });
+    }
+
+    @SuppressWarnings("PMD.UnusedPrivateMethod")
+    private static ServerServiceDefinition withCompression(final BindableService service, final GrpcServerConfig serverConfig) {
+        if (!serverConfig.isCompressionEnabled()) {
+            return service.bindService();
+        }
+
+        final String compression = serverConfig.getCompression();
+        return ServerInterceptors.intercept(service, new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call,
+                                                                         final Metadata headers,
+                                                                         final ServerCallHandler<ReqT, RespT> next) {
+                call.setCompression(compression);
+                return next.startCall(call, headers);
+            }
+        });
+    }
+
     @Override
     protected void closeInternal() throws Exception {
+        this.server.shutdown();
         this.server.awaitTermination();
+        if (batchService != null) {
+            batchService.close();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        bossGroup.shutdownGracefully();
+        workerGroup.shutdownGracefully();
     }
 }
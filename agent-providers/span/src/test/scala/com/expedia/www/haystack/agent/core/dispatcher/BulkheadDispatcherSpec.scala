@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher
+
+import java.util.concurrent.{CompletableFuture, ExecutionException, LinkedBlockingQueue, TimeUnit}
+
+import com.expedia.www.haystack.agent.core.dispatcher.BulkheadConfig.OverflowPolicy
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, Dispatcher, RateLimitException}
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class BulkheadDispatcherSpec extends FunSpec with Matchers {
+
+  // acks every record only when the test completes the future handed out for it
+  private class SlowDispatcher extends Dispatcher {
+    val pending = new LinkedBlockingQueue[CompletableFuture[DispatchAck]]()
+    val batches = new LinkedBlockingQueue[java.util.List[DispatchRecord]]()
+    var closed = false
+
+    override def getName: String = "slow"
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = ()
+
+    override def dispatchAsync(partitionKey: Array[Byte], data: Array[Byte]): CompletableFuture[DispatchAck] = {
+      val ack = new CompletableFuture[DispatchAck]()
+      pending.put(ack)
+      ack
+    }
+
+    override def dispatchBatchAsync(records: java.util.List[DispatchRecord]): CompletableFuture[DispatchAck] = {
+      batches.put(records)
+      dispatchAsync(null, null)
+    }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = closed = true
+
+    def ackNext(): Unit = pending.poll(5, TimeUnit.SECONDS).complete(new DispatchAck(getName))
+  }
+
+  private def bulkhead(delegate: Dispatcher,
+                       queueSize: Int,
+                       policy: OverflowPolicy,
+                       ackOnEnqueue: Boolean = false,
+                       maxInFlight: Int = 1) =
+    new BulkheadDispatcher(delegate, new BulkheadConfig(queueSize, 1, maxInFlight, policy, 50, ackOnEnqueue), "spans")
+
+  // waits till the sink holds the given number of records, with a single permit the next ones stay in the queue
+  private def awaitInFlight(delegate: SlowDispatcher, count: Int = 1): Unit = {
+    val deadline = System.currentTimeMillis() + 5000
+    while (delegate.pending.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(5)
+    delegate.pending.size() shouldBe count
+  }
+
+  describe("Bulkhead dispatcher") {
+    it("should read the bulkhead settings") {
+      val config = BulkheadConfig.from(ConfigFactory.parseString(
+        """
+          |queue.size = 100
+          |workers = 4
+          |max.inflight = 64
+          |overflow.policy = drop-oldest
+          |block.timeout.millis = 20
+          |ack.on.enqueue = true
+        """.stripMargin))
+
+      config.getQueueSize shouldBe 100
+      config.getWorkers shouldBe 4
+      config.getMaxInFlight shouldBe 64
+      config.getOverflowPolicy shouldBe OverflowPolicy.DROP_OLDEST
+      config.getBlockTimeoutMillis shouldBe 20
+      config.isAckOnEnqueue shouldBe true
+
+      BulkheadConfig.from(ConfigFactory.empty()).getOverflowPolicy shouldBe OverflowPolicy.REJECT
+    }
+
+    it("should not hold the caller while the sink is slow, and ack once the sink does") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 10, OverflowPolicy.REJECT)
+
+      val ack = dispatcher.dispatchAsync("k".getBytes, "v".getBytes)
+      ack.isDone shouldBe false
+      delegate.ackNext()
+      ack.get(5, TimeUnit.SECONDS).getDispatcherName shouldEqual "slow"
+
+      dispatcher.close()
+      delegate.closed shouldBe true
+    }
+
+    it("should keep up to max inflight records in flight without waiting for their acks") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 10, OverflowPolicy.REJECT, maxInFlight = 3)
+
+      val acks = (1 to 4).map(idx => dispatcher.dispatchAsync("k".getBytes, idx.toString.getBytes))
+      awaitInFlight(delegate, 3)
+      Thread.sleep(50)
+      delegate.pending.size() shouldBe 3
+      dispatcher.getQueueDepth shouldBe 1
+
+      delegate.ackNext()
+      awaitInFlight(delegate, 3)
+      dispatcher.getQueueDepth shouldBe 0
+
+      (1 to 3).foreach(_ => delegate.ackNext())
+      acks.foreach(_.get(5, TimeUnit.SECONDS).getDispatcherName shouldEqual "slow")
+      dispatcher.close()
+    }
+
+    it("should reject the record with a rate limit error once the queue is full") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 1, OverflowPolicy.REJECT)
+
+      dispatcher.dispatchAsync("k".getBytes, "1".getBytes)
+      awaitInFlight(delegate)
+      dispatcher.dispatchAsync("k".getBytes, "2".getBytes).isDone shouldBe false
+
+      val rejected = dispatcher.dispatchAsync("k".getBytes, "3".getBytes)
+      intercept[ExecutionException](rejected.get()).getCause shouldBe a[RateLimitException]
+      intercept[RateLimitException](dispatcher.dispatch("k".getBytes, "4".getBytes))
+
+      delegate.ackNext()
+      delegate.ackNext()
+      dispatcher.close()
+    }
+
+    it("should reject the record after the block timeout") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 1, OverflowPolicy.BLOCK)
+
+      dispatcher.dispatchAsync("k".getBytes, "1".getBytes)
+      awaitInFlight(delegate)
+      dispatcher.dispatchAsync("k".getBytes, "2".getBytes)
+
+      val start = System.currentTimeMillis()
+      val rejected = dispatcher.dispatchAsync("k".getBytes, "3".getBytes)
+      (System.currentTimeMillis() - start) should be >= 50L
+      rejected.isCompletedExceptionally shouldBe true
+
+      delegate.ackNext()
+      delegate.ackNext()
+      dispatcher.close()
+    }
+
+    it("should drop the oldest queued record to make room for the new one") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 1, OverflowPolicy.DROP_OLDEST)
+
+      dispatcher.dispatchAsync("k".getBytes, "1".getBytes)
+      awaitInFlight(delegate)
+      val oldest = dispatcher.dispatchAsync("k".getBytes, "2".getBytes)
+      val newest = dispatcher.dispatchAsync("k".getBytes, "3".getBytes)
+
+      intercept[ExecutionException](oldest.get()).getCause shouldBe a[RateLimitException]
+      newest.isDone shouldBe false
+      dispatcher.getQueueDepth shouldBe 1
+
+      delegate.ackNext()
+      delegate.ackNext()
+      newest.get(5, TimeUnit.SECONDS).getDispatcherName shouldEqual "slow"
+      dispatcher.close()
+    }
+
+    it("should drop the newest record if the queue is full") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 1, OverflowPolicy.DROP_NEWEST)
+
+      dispatcher.dispatchAsync("k".getBytes, "1".getBytes)
+      awaitInFlight(delegate)
+      val queued = dispatcher.dispatchAsync("k".getBytes, "2".getBytes)
+      val dropped = dispatcher.dispatchAsync("k".getBytes, "3".getBytes)
+
+      intercept[ExecutionException](dropped.get()).getCause shouldBe a[RateLimitException]
+      intercept[RateLimitException](dispatcher.dispatch("k".getBytes, "4".getBytes))
+      queued.isDone shouldBe false
+
+      delegate.ackNext()
+      delegate.ackNext()
+      queued.get(5, TimeUnit.SECONDS)
+      dispatcher.close()
+    }
+
+    it("should hand a batch to the dispatcher as one batch") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 1, OverflowPolicy.REJECT)
+      val records = (1 to 3).map(idx => new DispatchRecord("k".getBytes, idx.toString.getBytes)).asJava
+
+      val ack = dispatcher.dispatchBatchAsync(records)
+      delegate.batches.poll(5, TimeUnit.SECONDS) should be theSameInstanceAs records
+      delegate.pending.size() shouldBe 1
+      ack.isDone shouldBe false
+
+      delegate.ackNext()
+      ack.get(5, TimeUnit.SECONDS).getDispatcherName shouldEqual "slow"
+      dispatcher.close()
+    }
+
+    it("should ack the record as soon as it is queued if configured") {
+      val delegate = new SlowDispatcher
+      val dispatcher = bulkhead(delegate, 10, OverflowPolicy.REJECT, ackOnEnqueue = true)
+
+      dispatcher.dispatchAsync("k".getBytes, "1".getBytes).isDone shouldBe true
+
+      delegate.ackNext()
+      dispatcher.close()
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core.dispatcher
+
+import java.io.IOException
+import java.util
+import java.util.concurrent.{CompletableFuture, ExecutionException, TimeUnit}
+
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, Dispatcher, RateLimitException}
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatest.{FunSpec, Matchers}
+
+class CircuitBreakerDispatcherSpec extends FunSpec with Matchers {
+
+  // fails or slows down the records while the test tells it to, and counts the records it gets
+  private class FlakyDispatcher(name: String) extends Dispatcher {
+    @volatile var failing = false
+    @volatile var delayMillis = 0L
+    @volatile var dispatched = 0
+    var closed = false
+
+    override def getName: String = name
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = {
+      dispatched += 1
+      if (delayMillis > 0) Thread.sleep(delayMillis)
+      if (failing) throw new IOException("sink is down")
+    }
+
+    override def dispatchAsync(partitionKey: Array[Byte], data: Array[Byte]): CompletableFuture[DispatchAck] =
+      try {
+        dispatch(partitionKey, data)
+        DispatchAck.completed(name)
+      } catch {
+        case e: Exception => DispatchAck.failed(e)
+      }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = closed = true
+  }
+
+  private def breaker(delegate: Dispatcher,
+                      fallback: Dispatcher = null,
+                      windowSize: Int = 10,
+                      minCalls: Int = 4,
+                      slowCallMillis: Long = 1000L,
+                      slowCallRate: Double = 1.0,
+                      openMillis: Long = 100L,
+                      probes: Int = 2) =
+    new CircuitBreakerDispatcher(delegate,
+      new CircuitBreakerConfig(windowSize, minCalls, 0.5, slowCallMillis, slowCallRate, openMillis, probes), fallback, "spans")
+
+  private def fail(dispatcher: Dispatcher, times: Int): Unit =
+    (1 to times).foreach(_ => dispatcher.dispatchAsync(null, Array[Byte](1)))
+
+  describe("Circuit breaker dispatcher") {
+    it("should read the circuit breaker settings") {
+      val config = CircuitBreakerConfig.from(ConfigFactory.parseString(
+        """
+          |window.size = 50
+          |min.calls = 10
+          |failure.rate.threshold = 0.25
+          |slow.call.millis = 200
+          |slow.call.rate.threshold = 0.8
+          |open.millis = 5000
+          |half.open.probes = 3
+        """.stripMargin))
+
+      config.getWindowSize shouldBe 50
+      config.getMinCalls shouldBe 10
+      config.getFailureRateThreshold shouldBe 0.25
+      config.getSlowCallMillis shouldBe 200L
+      config.getSlowCallRateThreshold shouldBe 0.8
+      config.getOpenMillis shouldBe 5000L
+      config.getHalfOpenProbes shouldBe 3
+
+      val defaults = CircuitBreakerConfig.from(ConfigFactory.empty())
+      defaults.getWindowSize shouldBe 100
+      defaults.getMinCalls shouldBe 20
+      defaults.getFailureRateThreshold shouldBe 0.5
+      defaults.getOpenMillis shouldBe 10000L
+      defaults.getHalfOpenProbes shouldBe 5
+    }
+
+    it("should stay closed till the window has min calls") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate)
+
+      delegate.failing = true
+      fail(dispatcher, 3)
+      dispatcher.getState shouldBe CircuitBreaker.State.CLOSED
+
+      fail(dispatcher, 1)
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+      delegate.dispatched shouldBe 4
+    }
+
+    it("should reject the records right away with a rate limit error while open") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate, openMillis = 60000L)
+
+      delegate.failing = true
+      fail(dispatcher, 4)
+
+      val ack = dispatcher.dispatchAsync(null, Array[Byte](1))
+      intercept[ExecutionException](ack.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+      intercept[RateLimitException](dispatcher.dispatch(null, Array[Byte](1)))
+      val batchAck = dispatcher.dispatchBatchAsync(util.Arrays.asList(new DispatchRecord(null, Array[Byte](1))))
+      intercept[ExecutionException](batchAck.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+
+      delegate.dispatched shouldBe 4
+    }
+
+    it("should route the records to the fallback dispatcher while open") {
+      val delegate = new FlakyDispatcher("flaky")
+      val fallback = new FlakyDispatcher("fallback")
+      val dispatcher = breaker(delegate, fallback = fallback, openMillis = 60000L)
+
+      delegate.failing = true
+      fail(dispatcher, 4)
+
+      dispatcher.dispatchAsync(null, Array[Byte](1)).get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "fallback"
+      dispatcher.dispatch(null, Array[Byte](1))
+      fallback.dispatched shouldBe 2
+      delegate.dispatched shouldBe 4
+
+      dispatcher.close()
+      delegate.closed shouldBe true
+      fallback.closed shouldBe true
+    }
+
+    it("should close again once the probes succeed after the open time") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate, openMillis = 50L, probes = 2)
+
+      delegate.failing = true
+      fail(dispatcher, 4)
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+
+      Thread.sleep(100)
+      delegate.failing = false
+      dispatcher.dispatchAsync(null, Array[Byte](1)).get(5, TimeUnit.SECONDS)
+      dispatcher.getState shouldBe CircuitBreaker.State.HALF_OPEN
+      dispatcher.dispatchAsync(null, Array[Byte](1)).get(5, TimeUnit.SECONDS)
+      dispatcher.getState shouldBe CircuitBreaker.State.CLOSED
+    }
+
+    it("should open again if the probes fail") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate, openMillis = 50L, probes = 2)
+
+      delegate.failing = true
+      fail(dispatcher, 4)
+
+      Thread.sleep(100)
+      fail(dispatcher, 2)
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+      delegate.dispatched shouldBe 6
+    }
+
+    it("should only let the probes through while half open") {
+      val pending = new CompletableFuture[DispatchAck]()
+      val slowDelegate = new FlakyDispatcher("slow") {
+        override def dispatchAsync(partitionKey: Array[Byte], data: Array[Byte]): CompletableFuture[DispatchAck] = {
+          dispatched += 1
+          if (dispatched <= 4) DispatchAck.failed(new IOException("sink is down")) else pending
+        }
+      }
+      val probed = breaker(slowDelegate, openMillis = 50L, probes = 1)
+
+      fail(probed, 4)
+      Thread.sleep(100)
+      val probe = probed.dispatchAsync(null, Array[Byte](1))
+      val rejected = probed.dispatchAsync(null, Array[Byte](1))
+      intercept[ExecutionException](rejected.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+
+      pending.complete(new DispatchAck("slow"))
+      probe.get(5, TimeUnit.SECONDS)
+      probed.getState shouldBe CircuitBreaker.State.CLOSED
+    }
+
+    it("should open again if the probes are not done within the open time") {
+      val stuckDelegate = new FlakyDispatcher("stuck") {
+        override def dispatchAsync(partitionKey: Array[Byte], data: Array[Byte]): CompletableFuture[DispatchAck] = {
+          dispatched += 1
+          if (dispatched <= 4) DispatchAck.failed(new IOException("sink is down")) else new CompletableFuture[DispatchAck]()
+        }
+      }
+      val dispatcher = breaker(stuckDelegate, openMillis = 50L, probes = 1)
+
+      fail(dispatcher, 4)
+      Thread.sleep(100)
+      val probe = dispatcher.dispatchAsync(null, Array[Byte](1))
+      dispatcher.getState shouldBe CircuitBreaker.State.HALF_OPEN
+
+      // the ack of the probe never completes, once the open time has passed the breaker opens again
+      Thread.sleep(100)
+      val rejected = dispatcher.dispatchAsync(null, Array[Byte](1))
+      intercept[ExecutionException](rejected.get(5, TimeUnit.SECONDS)).getCause shouldBe a[RateLimitException]
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+
+      Thread.sleep(100)
+      dispatcher.dispatchAsync(null, Array[Byte](1))
+      dispatcher.getState shouldBe CircuitBreaker.State.HALF_OPEN
+      stuckDelegate.dispatched shouldBe 6
+      probe.isDone shouldBe false
+    }
+
+    it("should open once the slow calls reach their threshold") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate, slowCallMillis = 10L, slowCallRate = 0.5)
+
+      delegate.delayMillis = 20L
+      (1 to 4).foreach(_ => dispatcher.dispatch(null, Array[Byte](1)))
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+    }
+
+    it("should evict the oldest outcomes from the window") {
+      val delegate = new FlakyDispatcher("flaky")
+      val dispatcher = breaker(delegate, windowSize = 4, minCalls = 4)
+
+      delegate.failing = true
+      fail(dispatcher, 1)
+      delegate.failing = false
+      fail(dispatcher, 3)
+      dispatcher.getState shouldBe CircuitBreaker.State.CLOSED
+
+      // the window now holds 3 successes and 1 failure, one more failure evicts the first one and keeps 25% failed
+      delegate.failing = true
+      fail(dispatcher, 1)
+      dispatcher.getState shouldBe CircuitBreaker.State.CLOSED
+      fail(dispatcher, 1)
+      dispatcher.getState shouldBe CircuitBreaker.State.OPEN
+    }
+  }
+}
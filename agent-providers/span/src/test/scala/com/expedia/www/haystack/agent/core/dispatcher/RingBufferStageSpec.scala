@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher
+
+import java.util
+import java.util.concurrent.{CompletableFuture, CountDownLatch, ExecutionException, LinkedBlockingQueue, TimeUnit}
+
+import com.expedia.www.haystack.agent.core.dispatcher.RingBufferConfig.WaitStrategyType
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, Dispatcher, RateLimitException}
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class RingBufferStageSpec extends FunSpec with Matchers {
+
+  // records the size of every batch it receives, and holds the consumer thread on the first one till released
+  private class BatchRecordingDispatcher(name: String, holdFirstBatch: Boolean = false) extends Dispatcher {
+    val batchSizes = new LinkedBlockingQueue[Integer]()
+    val firstBatchReceived = new CountDownLatch(1)
+    val release = new CountDownLatch(if (holdFirstBatch) 1 else 0)
+    @volatile var error: Throwable = _
+
+    override def getName: String = name
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = ()
+
+    override def dispatchBatchAsync(records: util.List[DispatchRecord]): CompletableFuture[DispatchAck] = {
+      batchSizes.put(records.size())
+      firstBatchReceived.countDown()
+      release.await(5, TimeUnit.SECONDS)
+      if (error == null) DispatchAck.completed(name) else DispatchAck.failed(error)
+    }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = ()
+
+    def totalRecords: Int = batchSizes.asScala.map(_.intValue()).sum
+  }
+
+  private def stage(dispatchers: Seq[Dispatcher], size: Int = 16, maxBatchSize: Int = 100, blockWhenFull: Boolean = false) =
+    new RingBufferStage(dispatchers.asJava,
+      new RingBufferConfig(true, size, WaitStrategyType.BLOCKING, maxBatchSize, blockWhenFull),
+      "spans")
+
+  private def awaitAll(acks: Seq[CompletableFuture[DispatchAck]]): Unit =
+    CompletableFuture.allOf(acks: _*).get(5, TimeUnit.SECONDS)
+
+  describe("Ring buffer stage") {
+    it("should read the ring buffer settings") {
+      val config = RingBufferConfig.from(ConfigFactory.parseString(
+        """
+          |size = 1024
+          |wait.strategy = busy-spin
+          |max.batch.size = 50
+          |block.when.full = true
+        """.stripMargin))
+
+      config.isEnabled shouldBe true
+      config.getSize shouldBe 1024
+      config.getWaitStrategy shouldBe WaitStrategyType.BUSY_SPIN
+      config.getMaxBatchSize shouldBe 50
+      config.isBlockWhenFull shouldBe true
+
+      val defaults = RingBufferConfig.from(ConfigFactory.empty())
+      defaults.getSize shouldBe 8192
+      defaults.getWaitStrategy shouldBe WaitStrategyType.BLOCKING
+      defaults.isBlockWhenFull shouldBe false
+    }
+
+    it("should not accept a ring buffer size that is not a power of 2") {
+      intercept[IllegalArgumentException] {
+        RingBufferConfig.from(ConfigFactory.parseString("size = 1000"))
+      }
+    }
+
+    it("should hand every record over to every dispatcher") {
+      val first = new BatchRecordingDispatcher("first")
+      val second = new BatchRecordingDispatcher("second")
+      val ringBuffer = stage(Seq(first, second))
+
+      val acks = (1 to 10).flatMap(idx => ringBuffer.publish(s"k$idx".getBytes, s"v$idx".getBytes).asScala)
+      acks.size shouldBe 20
+      awaitAll(acks)
+
+      first.totalRecords shouldBe 10
+      second.totalRecords shouldBe 10
+      acks.grouped(2).foreach(recordAcks => recordAcks.map(_.get().getDispatcherName) shouldBe Seq("first", "second"))
+      ringBuffer.close()
+    }
+
+    it("should drain the records published while the dispatcher was busy as batches of at most max batch size") {
+      val dispatcher = new BatchRecordingDispatcher("slow", holdFirstBatch = true)
+      val ringBuffer = stage(Seq(dispatcher), maxBatchSize = 4)
+
+      val acks = ringBuffer.publish("k".getBytes, "v".getBytes).asScala
+      dispatcher.firstBatchReceived.await(5, TimeUnit.SECONDS) shouldBe true
+      val pendingAcks = (1 to 5).flatMap(_ => ringBuffer.publish("k".getBytes, "v".getBytes).asScala)
+      pendingAcks.exists(_.isDone) shouldBe false
+
+      dispatcher.release.countDown()
+      awaitAll(acks ++ pendingAcks)
+
+      dispatcher.batchSizes.asScala.map(_.intValue()).toList shouldBe List(1, 4, 1)
+      ringBuffer.close()
+    }
+
+    it("should fail the records with a rate limit error once the ring buffer is full") {
+      val dispatcher = new BatchRecordingDispatcher("slow", holdFirstBatch = true)
+      val ringBuffer = stage(Seq(dispatcher), size = 2)
+
+      val held = ringBuffer.publish("k".getBytes, "v".getBytes).asScala
+      dispatcher.firstBatchReceived.await(5, TimeUnit.SECONDS) shouldBe true
+      val queued = ringBuffer.publish("k".getBytes, "v".getBytes).asScala
+      val rejected = ringBuffer.publish("k".getBytes, "v".getBytes).asScala
+
+      val error = intercept[ExecutionException] {
+        rejected.head.get(5, TimeUnit.SECONDS)
+      }
+      error.getCause shouldBe a[RateLimitException]
+
+      dispatcher.release.countDown()
+      awaitAll(held ++ queued)
+      dispatcher.totalRecords shouldBe 2
+      ringBuffer.close()
+    }
+
+    it("should fail the acks of a batch the dispatcher could not dispatch") {
+      val dispatcher = new BatchRecordingDispatcher("failing")
+      dispatcher.error = new RuntimeException("sink is down")
+      val ringBuffer = stage(Seq(dispatcher))
+
+      val ack = ringBuffer.publish("k".getBytes, "v".getBytes).get(0)
+      val error = intercept[ExecutionException] {
+        ack.get(5, TimeUnit.SECONDS)
+      }
+      error.getCause.getMessage shouldBe "sink is down"
+      ringBuffer.close()
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core.dispatcher
+
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.{CompletableFuture, ExecutionException, LinkedBlockingQueue, TimeUnit}
+
+import com.expedia.www.haystack.agent.core.dispatcher.SpoolConfig.FsyncPolicy
+import com.expedia.www.haystack.agent.core.{DispatchAck, Dispatcher, RateLimitException}
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatest.{FunSpec, Matchers}
+
+class SpoolDispatcherSpec extends FunSpec with Matchers {
+
+  // fails every record while 'down' is set, never acks them while 'hanging' is set, and keeps the data of the records
+  // it accepted
+  private class FlakyDispatcher extends Dispatcher {
+    val received = new LinkedBlockingQueue[String]()
+    @volatile var down = false
+    @volatile var hanging = false
+
+    override def getName: String = "flaky"
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = {
+      if (down) throw new RuntimeException("sink is down")
+      received.put(new String(data))
+    }
+
+    override def dispatchAsync(partitionKey: Array[Byte], data: Array[Byte]): CompletableFuture[DispatchAck] = {
+      if (down) {
+        DispatchAck.failed(new RuntimeException("sink is down"))
+      } else if (hanging) {
+        new CompletableFuture[DispatchAck]()
+      } else {
+        received.put(new String(data))
+        DispatchAck.completed(getName)
+      }
+    }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = ()
+
+    def take(): String = received.poll(5, TimeUnit.SECONDS)
+  }
+
+  private def spoolDir(): File = Files.createTempDirectory("spool").toFile
+
+  private def spool(delegate: Dispatcher, dir: File, segmentSize: Int = 1024, maxDisk: Long = 4096) =
+    new SpoolDispatcher(delegate, new SpoolConfig(dir.getAbsolutePath, segmentSize, maxDisk, FsyncPolicy.ALWAYS, 0, 1000, 20, 2, 200), "spans")
+
+  private def segments(dir: File): Int = dir.listFiles().count(_.getName.endsWith(".spool"))
+
+  private def eventually(condition: => Boolean): Unit = {
+    val deadline = System.currentTimeMillis() + 5000
+    while (!condition && System.currentTimeMillis() < deadline) Thread.sleep(10)
+    condition shouldBe true
+  }
+
+  describe("Spool dispatcher") {
+    it("should read the spool settings") {
+      val config = SpoolConfig.from(ConfigFactory.parseString(
+        """
+          |dir = /var/spool/haystack
+          |segment.size.bytes = 1048576
+          |max.disk.bytes = 10485760
+          |fsync.policy = never
+          |replay.rate.per.sec = 200
+          |replay.retry.backoff.millis = 500
+          |replay.batch.size = 50
+          |replay.timeout.millis = 2000
+        """.stripMargin))
+
+      config.getDir shouldBe "/var/spool/haystack"
+      config.getSegmentSizeBytes shouldBe 1048576
+      config.getMaxDiskBytes shouldBe 10485760L
+      config.getFsyncPolicy shouldBe FsyncPolicy.NEVER
+      config.getReplayRatePerSec shouldBe 200d
+      config.getReplayRetryBackoffMillis shouldBe 500L
+      config.getReplayBatchSize shouldBe 50
+      config.getReplayTimeoutMillis shouldBe 2000L
+
+      val defaults = SpoolConfig.from(ConfigFactory.parseString("dir = /tmp"))
+      defaults.getFsyncPolicy shouldBe FsyncPolicy.INTERVAL
+      defaults.getFsyncIntervalMillis shouldBe 1000L
+
+      intercept[IllegalArgumentException] {
+        SpoolConfig.from(ConfigFactory.empty())
+      }
+    }
+
+    it("should dispatch straight to a healthy sink without touching the disk") {
+      val dir = spoolDir()
+      val delegate = new FlakyDispatcher
+      val dispatcher = spool(delegate, dir)
+
+      dispatcher.dispatchAsync("k".getBytes, "span-1".getBytes).get().getDispatcherName shouldBe "flaky"
+      dispatcher.dispatch("k".getBytes, "span-2".getBytes)
+
+      delegate.take() shouldBe "span-1"
+      delegate.take() shouldBe "span-2"
+      segments(dir) shouldBe 0
+      dispatcher.close()
+    }
+
+    it("should spool the records while the sink is down and replay them once it recovers") {
+      val dir = spoolDir()
+      val delegate = new FlakyDispatcher
+      delegate.down = true
+      val dispatcher = spool(delegate, dir)
+
+      (1 to 5).foreach(idx => dispatcher.dispatchAsync("k".getBytes, s"span-$idx".getBytes).get(5, TimeUnit.SECONDS))
+      dispatcher.isSinkHealthy shouldBe false
+      segments(dir) shouldBe 1
+      delegate.received.isEmpty shouldBe true
+
+      delegate.down = false
+      (1 to 5).map(_ => delegate.take()) shouldBe (1 to 5).map(idx => s"span-$idx")
+      eventually(segments(dir) == 0)
+      dispatcher.isSinkHealthy shouldBe true
+      dispatcher.close()
+    }
+
+    it("should retry the spooled records the sink doesn't ack in time") {
+      val dir = spoolDir()
+      val delegate = new FlakyDispatcher
+      delegate.down = true
+      val dispatcher = spool(delegate, dir)
+
+      (1 to 3).foreach(idx => dispatcher.dispatchAsync("k".getBytes, s"span-$idx".getBytes).get(5, TimeUnit.SECONDS))
+      delegate.hanging = true
+      delegate.down = false
+      Thread.sleep(300)
+      segments(dir) shouldBe 1
+
+      delegate.hanging = false
+      (1 to 3).map(_ => delegate.take()) shouldBe (1 to 3).map(idx => s"span-$idx")
+      eventually(segments(dir) == 0)
+      dispatcher.close()
+    }
+
+    it("should fail the records with a rate limit error once the disk budget is used up") {
+      val dir = spoolDir()
+      val delegate = new FlakyDispatcher
+      delegate.down = true
+      val dispatcher = spool(delegate, dir, segmentSize = 64, maxDisk = 64)
+
+      // every record takes 4 + 4 + 1 + 20 bytes, so only two of them fit in the single segment
+      val acks = (1 to 3).map(idx => dispatcher.dispatchAsync("k".getBytes, f"span-$idx%015d".getBytes))
+      acks.take(2).foreach(_.get(5, TimeUnit.SECONDS).getDispatcherName shouldBe "flaky")
+      val error = intercept[ExecutionException] {
+        acks(2).get(5, TimeUnit.SECONDS)
+      }
+      error.getCause shouldBe a[RateLimitException]
+      intercept[RateLimitException](dispatcher.dispatch("k".getBytes, f"span-${4}%015d".getBytes))
+      dispatcher.close()
+    }
+
+    it("should replay the records spooled by a previous run") {
+      val dir = spoolDir()
+      val down = new FlakyDispatcher
+      down.down = true
+      val previousRun = spool(down, dir)
+      previousRun.dispatchAsync("k".getBytes, "span-1".getBytes).get(5, TimeUnit.SECONDS)
+      previousRun.dispatchAsync(null, "span-2".getBytes).get(5, TimeUnit.SECONDS)
+      previousRun.close()
+      segments(dir) shouldBe 1
+
+      val delegate = new FlakyDispatcher
+      val dispatcher = spool(delegate, dir)
+      delegate.take() shouldBe "span-1"
+      delegate.take() shouldBe "span-2"
+      eventually(segments(dir) == 0)
+      dispatcher.close()
+    }
+  }
+}
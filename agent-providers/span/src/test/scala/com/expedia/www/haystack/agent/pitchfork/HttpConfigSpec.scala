@@ -26,5 +26,10 @@ class HttpConfigSpec extends FunSpec with Matchers with EasyMockSugar {
       val httpConfig = HttpConfig.from(config)
       httpConfig.getGzipBufferSize should equal (16 * 1024)
     }
+    it("should return max body size as 10MB if not provided")  {
+      val config = ConfigFactory.parseMap(Map("port" -> 9115, "http.threads.min" -> 2, "http.threads.max" -> 4).asJava)
+      val httpConfig = HttpConfig.from(config)
+      httpConfig.getMaxBodySizeBytes should equal (10 * 1024 * 1024)
+    }
   }
 }
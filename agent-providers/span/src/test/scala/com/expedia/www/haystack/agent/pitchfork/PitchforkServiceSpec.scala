@@ -18,19 +18,30 @@
 package com.expedia.www.haystack.agent.pitchfork
 
 import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
 import java.util
 import java.util.Collections
+import java.util.concurrent.{CompletableFuture, TimeUnit}
 import java.util.zip.GZIPOutputStream
 
-import com.expedia.www.haystack.agent.core.Dispatcher
+import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, Dispatcher}
 import com.expedia.www.haystack.agent.pitchfork.processors.{SpanValidator, ZipkinSpanProcessorFactory}
 import com.expedia.www.haystack.agent.pitchfork.service.PitchforkService
+import com.github.luben.zstd.Zstd
 import com.squareup.okhttp.{MediaType, OkHttpClient, Request, RequestBody}
 import com.typesafe.config.ConfigFactory
-import org.easymock.EasyMock
+import org.easymock.{CaptureType, EasyMock}
+import org.eclipse.jetty.http.{HttpFields, HttpURI, HttpVersion, MetaData}
+import org.eclipse.jetty.http2.api.{Session, Stream}
+import org.eclipse.jetty.http2.client.HTTP2Client
+import org.eclipse.jetty.http2.frames.{DataFrame, HeadersFrame, SettingsFrame}
+import org.eclipse.jetty.util.{Callback, FuturePromise}
 import org.scalatest.easymock.EasyMockSugar
 import org.scalatest.{FunSpec, Matchers}
 import zipkin2.Endpoint
+import okio.BufferedSink
 import zipkin2.codec.SpanBytesEncoder
 
 import scala.collection.JavaConverters._
@@ -66,12 +77,11 @@ class PitchforkServiceSpec extends FunSpec with Matchers with EasyMockSugar {
       val mockDispatcher = mock[Dispatcher]
       val config = ConfigFactory.parseMap(Map("port" -> 9115, "http.threads.min" -> 2, "http.threads.max" -> 4, "gzip.enabled" -> compress).asJava)
 
-      val keyCapture = EasyMock.newCapture[Array[Byte]]()
-      val haystackSpanCapture = EasyMock.newCapture[Array[Byte]]()
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]]()
 
       expecting {
         mockDispatcher.getName.andReturn("mock")
-        mockDispatcher.dispatch(EasyMock.capture(keyCapture), EasyMock.capture(haystackSpanCapture))
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(DispatchAck.completed("mock"))
       }
 
       whenExecuting(mockDispatcher) {
@@ -120,16 +130,11 @@ class PitchforkServiceSpec extends FunSpec with Matchers with EasyMockSugar {
       val mockDispatcher = mock[Dispatcher]
       val config = ConfigFactory.parseMap(Map("port" -> 9112, "http.threads.min" -> 2, "http.threads.max" -> 4).asJava)
 
-      val keyCapture_1 = EasyMock.newCapture[Array[Byte]]()
-      val haystackSpanCapture_1 = EasyMock.newCapture[Array[Byte]]()
-
-      val keyCapture_2 = EasyMock.newCapture[Array[Byte]]()
-      val haystackSpanCapture_2 = EasyMock.newCapture[Array[Byte]]()
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]]()
 
       expecting {
-        mockDispatcher.getName.andReturn("mock").times(2)
-        mockDispatcher.dispatch(EasyMock.capture(keyCapture_1), EasyMock.capture(haystackSpanCapture_1))
-        mockDispatcher.dispatch(EasyMock.capture(keyCapture_2), EasyMock.capture(haystackSpanCapture_2))
+        mockDispatcher.getName.andReturn("mock")
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(DispatchAck.completed("mock"))
       }
 
       whenExecuting(mockDispatcher) {
@@ -152,17 +157,289 @@ class PitchforkServiceSpec extends FunSpec with Matchers with EasyMockSugar {
           .build()
 
         val response = client.newCall(request).execute()
-//        response.code() shouldBe 200
-//
-//        new String(keyCapture_1.getValue) shouldEqual "0000000000000065"
-//        val haystackSpan_1 = Span.parseFrom(haystackSpanCapture_1.getValue)
-//        haystackSpan_1.getTraceId shouldEqual "0000000000000065"
-//
-//
-//        new String(keyCapture_2.getValue) shouldEqual "0000000000000066"
-//        val haystackSpan_2 = Span.parseFrom(haystackSpanCapture_2.getValue)
-//        haystackSpan_2.getTraceId shouldEqual "0000000000000066"
+        response.code() shouldBe 200
+
+        // both the spans of the request are handed over to the dispatcher as one batch
+        val records = recordsCapture.getValue
+        records.size() shouldBe 2
+        new String(records.get(0).getPartitionKey) shouldEqual "0000000000000065"
+        Span.parseFrom(records.get(0).getData).getTraceId shouldEqual "0000000000000065"
+        new String(records.get(1).getPartitionKey) shouldEqual "0000000000000066"
+        Span.parseFrom(records.get(1).getData).getTraceId shouldEqual "0000000000000066"
+
+        service.stop()
+      }
+    }
+
+    def chunkedBody(data: Array[Byte]): RequestBody = {
+      new RequestBody {
+        override def contentType(): MediaType = MediaType.parse("application/x-protobuf")
+
+        // without a content length, the body is sent in chunks
+        override def contentLength(): Long = -1
+
+        override def writeTo(sink: BufferedSink): Unit = sink.write(data)
+      }
+    }
+
+    it("should dispatch the spans of a body sent without a content length") {
+      val mockDispatcher = mock[Dispatcher]
+      val config = ConfigFactory.parseMap(Map("port" -> 9113, "http.threads.min" -> 2, "http.threads.max" -> 4).asJava)
+
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]]()
+
+      expecting {
+        mockDispatcher.getName.andReturn("mock")
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(DispatchAck.completed("mock"))
+      }
+
+      whenExecuting(mockDispatcher) {
+        val service = new PitchforkService(config, new ZipkinSpanProcessorFactory(new SpanValidator(config),
+          Collections.singletonList(mockDispatcher), Collections.emptyList()))
+
+        service.start()
+
+        // let the server start
+        Thread.sleep(5000)
+
+        // larger than a single read from the input
+        val spans = (1 to 100).map(idx => zipkinSpan(f"$idx%016x")).asJava
+        val request = new Request.Builder()
+          .url("http://localhost:9113" + "/api/v2/spans")
+          .post(chunkedBody(SpanBytesEncoder.PROTO3.encodeList(spans)))
+          .build()
+
+        val response = client.newCall(request).execute()
+        response.code() shouldBe 200
+
+        val records = recordsCapture.getValue
+        records.size() shouldBe 100
+        Span.parseFrom(records.get(99).getData).getTraceId shouldEqual "0000000000000064"
+
+        service.stop()
+      }
+    }
+
+    it("should reject a body larger than the max body size") {
+      val mockDispatcher = mock[Dispatcher]
+      val config = ConfigFactory.parseMap(Map("port" -> 9114, "http.threads.min" -> 2, "http.threads.max" -> 4,
+        "max.body.size.bytes" -> 256).asJava)
+
+      whenExecuting(mockDispatcher) {
+        val service = new PitchforkService(config, new ZipkinSpanProcessorFactory(new SpanValidator(config),
+          Collections.singletonList(mockDispatcher), Collections.emptyList()))
+
+        service.start()
+
+        // let the server start
+        Thread.sleep(5000)
+
+        val data = SpanBytesEncoder.PROTO3.encodeList(util.Arrays.asList(
+          zipkinSpan("0000000000000065"),
+          zipkinSpan("0000000000000066"),
+          zipkinSpan("0000000000000067")))
+        data.length should be > 256
+
+        // rejected from the content length
+        val request = new Request.Builder()
+          .url("http://localhost:9114" + "/api/v2/spans")
+          .post(RequestBody.create(MediaType.parse("application/x-protobuf"), data))
+          .build()
+        client.newCall(request).execute().code() shouldBe 413
+
+        // rejected while reading the body
+        val chunkedRequest = new Request.Builder()
+          .url("http://localhost:9114" + "/api/v2/spans")
+          .post(chunkedBody(data))
+          .build()
+        client.newCall(chunkedRequest).execute().code() shouldBe 413
+
+        service.stop()
+      }
+    }
+
+    it("should dispatch the spans of a zstd body and refuse the unsupported or too large ones") {
+      val mockDispatcher = mock[Dispatcher]
+      val config = ConfigFactory.parseString(
+        """
+          |port = 9117
+          |http.threads.min = 2
+          |http.threads.max = 4
+          |decompression.max.size.bytes = 65536
+        """.stripMargin)
+
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]]()
+
+      expecting {
+        mockDispatcher.getName.andReturn("mock")
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(DispatchAck.completed("mock"))
+      }
+
+      whenExecuting(mockDispatcher) {
+        val service = new PitchforkService(config, new ZipkinSpanProcessorFactory(new SpanValidator(config),
+          Collections.singletonList(mockDispatcher), Collections.emptyList()))
+
+        service.start()
+
+        // let the server start
+        Thread.sleep(5000)
+
+        def newEncodedRequest(encoding: String, data: Array[Byte]) = new Request.Builder()
+          .url("http://localhost:9117" + "/api/v2/spans")
+          .addHeader("Content-Encoding", encoding)
+          .post(RequestBody.create(MediaType.parse("application/x-protobuf"), data))
+          .build()
+
+        val data = SpanBytesEncoder.PROTO3.encodeList(util.Collections.singletonList(zipkinSpan("0000000000000069")))
+        client.newCall(newEncodedRequest("zstd", Zstd.compress(data))).execute().code() shouldBe 200
+        Span.parseFrom(recordsCapture.getValue.get(0).getData).getTraceId shouldEqual "0000000000000069"
+
+        client.newCall(newEncodedRequest("br", data)).execute().code() shouldBe 415
+
+        // a small body decompressing to more than the max size
+        val bomb = Zstd.compress(new Array[Byte](1024 * 1024))
+        bomb.length should be < 65536
+        client.newCall(newEncodedRequest("zstd", bomb)).execute().code() shouldBe 413
+
+        service.stop()
+      }
+    }
+
+    it("should dispatch the spans of requests multiplexed over one h2c connection") {
+      val mockDispatcher = mock[Dispatcher]
+      val config = ConfigFactory.parseString(
+        """
+          |port = 9118
+          |http.threads.min = 2
+          |http.threads.max = 4
+          |h2c {
+          |  enabled = true
+          |  max.concurrent.streams = 16
+          |  initial.stream.recv.window.bytes = 131072
+          |}
+        """.stripMargin)
+
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]](CaptureType.ALL)
+
+      expecting {
+        mockDispatcher.getName.andReturn("mock").anyTimes()
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(DispatchAck.completed("mock")).times(2)
+      }
+
+      whenExecuting(mockDispatcher) {
+        val service = new PitchforkService(config, new ZipkinSpanProcessorFactory(new SpanValidator(config),
+          Collections.singletonList(mockDispatcher), Collections.emptyList()))
+
+        service.start()
+
+        // let the server start
+        Thread.sleep(5000)
+
+        val h2Client = new HTTP2Client()
+        h2Client.start()
+
+        val settings = new CompletableFuture[util.Map[Integer, Integer]]()
+        val sessionPromise = new FuturePromise[Session]()
+        h2Client.connect(new InetSocketAddress("localhost", 9118), new Session.Listener.Adapter() {
+          override def onSettings(session: Session, frame: SettingsFrame): Unit = settings.complete(frame.getSettings)
+        }, sessionPromise)
+        val session = sessionPromise.get(5, TimeUnit.SECONDS)
+
+        def post(traceId: String): CompletableFuture[Integer] = {
+          val status = new CompletableFuture[Integer]()
+          val fields = new HttpFields()
+          fields.put("Content-Type", "application/x-protobuf")
+          val request = new MetaData.Request("POST", new HttpURI("http://localhost:9118/api/v2/spans"), HttpVersion.HTTP_2, fields)
+          val streamPromise = new FuturePromise[Stream]()
+          session.newStream(new HeadersFrame(request, null, false), streamPromise, new Stream.Listener.Adapter() {
+            override def onHeaders(stream: Stream, frame: HeadersFrame): Unit = {
+              status.complete(frame.getMetaData.asInstanceOf[MetaData.Response].getStatus)
+            }
+          })
+          val stream = streamPromise.get(5, TimeUnit.SECONDS)
+          val data = SpanBytesEncoder.PROTO3.encodeList(util.Collections.singletonList(zipkinSpan(traceId)))
+          stream.data(new DataFrame(stream.getId, ByteBuffer.wrap(data), true), Callback.NOOP)
+          status
+        }
+
+        // both the requests share the connection of the session
+        val first = post("000000000000006a")
+        val second = post("000000000000006b")
+        first.get(5, TimeUnit.SECONDS) shouldBe 200
+        second.get(5, TimeUnit.SECONDS) shouldBe 200
+
+        val serverSettings = settings.get(5, TimeUnit.SECONDS)
+        serverSettings.get(SettingsFrame.MAX_CONCURRENT_STREAMS) shouldBe 16
+        serverSettings.get(SettingsFrame.INITIAL_WINDOW_SIZE) shouldBe 131072
+
+        recordsCapture.getValues.asScala.map(records => Span.parseFrom(records.get(0).getData).getTraceId).toSet shouldEqual
+          Set("000000000000006a", "000000000000006b")
+
+        h2Client.stop()
+        service.stop()
+      }
+    }
+
+    it("should acknowledge the spans with 202 in accept mode, refuse a malformed body and reject them with 429 once the queue is full") {
+      val mockDispatcher = mock[Dispatcher]
+      val data = SpanBytesEncoder.PROTO3.encodeList(util.Collections.singletonList(zipkinSpan("0000000000000068")))
+      // the queue only has room for one body
+      val config = ConfigFactory.parseString(
+        s"""
+           |port = 9116
+           |http.threads.min = 2
+           |http.threads.max = 4
+           |max.body.size.bytes = ${data.length}
+           |accept.mode {
+           |  queue.max.bytes = ${data.length}
+           |  retry.after.sec = 3
+           |}
+        """.stripMargin)
+
+      // the sink holds on to the first body till the end of the test
+      val pendingAck = new CompletableFuture[DispatchAck]()
+      val recordsCapture = EasyMock.newCapture[util.List[DispatchRecord]]()
+
+      expecting {
+        mockDispatcher.getName.andReturn("mock").anyTimes()
+        mockDispatcher.dispatchBatchAsync(EasyMock.capture(recordsCapture)).andReturn(pendingAck)
+      }
+
+      whenExecuting(mockDispatcher) {
+        val service = new PitchforkService(config, new ZipkinSpanProcessorFactory(new SpanValidator(config),
+          Collections.singletonList(mockDispatcher), Collections.emptyList()))
+
+        service.start()
+
+        // let the server start
+        Thread.sleep(5000)
+
+        def newProtoRequest() = new Request.Builder()
+          .url("http://localhost:9116" + "/api/v2/spans")
+          .post(RequestBody.create(MediaType.parse("application/x-protobuf"), data))
+          .build()
+
+        client.newCall(newProtoRequest()).execute().code() shouldBe 202
+
+        val rejected = client.newCall(newProtoRequest()).execute()
+        rejected.code() shouldBe 429
+        rejected.header("Retry-After") shouldEqual "3"
+
+        // a malformed body is refused before it reaches the queue
+        Seq("application/x-protobuf" -> "not a span list", "application/json" -> "[{\"traceId\":").foreach {
+          case (contentType, body) =>
+            val malformed = new Request.Builder()
+              .url("http://localhost:9116" + "/api/v2/spans")
+              .post(RequestBody.create(MediaType.parse(contentType), body.getBytes("UTF-8")))
+              .build()
+            client.newCall(malformed).execute().code() shouldBe 400
+        }
+
+        // let the worker dispatch the accepted body
+        Thread.sleep(1000)
+        Span.parseFrom(recordsCapture.getValue.get(0).getData).getTraceId shouldEqual "0000000000000068"
 
+        pendingAck.complete(DispatchAck.completed("mock").get())
         service.stop()
       }
     }
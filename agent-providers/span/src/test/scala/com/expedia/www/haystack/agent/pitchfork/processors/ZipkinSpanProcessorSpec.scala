@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors
+
+import java.util.concurrent.{CompletableFuture, TimeUnit}
+import java.util.{Collections, List => JList}
+
+import com.expedia.open.tracing.{Span => HaystackSpan}
+import com.expedia.www.haystack.agent.core.{DispatchAck, DispatchRecord, Dispatcher}
+import com.expedia.www.haystack.agent.span.filter.{SpanFilter, SpanFilterConfig}
+import com.typesafe.config.{Config, ConfigFactory}
+import org.scalatest.{FunSpec, Matchers}
+import zipkin2.codec.{SpanBytesDecoder, SpanBytesEncoder}
+import zipkin2.{Endpoint, Span}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class ZipkinSpanProcessorSpec extends FunSpec with Matchers {
+
+  private class RecordingDispatcher extends Dispatcher {
+    val spans = mutable.Buffer[HaystackSpan]()
+
+    override def getName: String = "recording"
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = spans += HaystackSpan.parseFrom(data)
+
+    override def dispatchBatchAsync(records: JList[DispatchRecord]): CompletableFuture[DispatchAck] = {
+      records.asScala.foreach(record => dispatch(record.getPartitionKey, record.getData))
+      DispatchAck.completed(getName)
+    }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = ()
+  }
+
+  private val now = System.currentTimeMillis() * 1000
+
+  private def zipkinSpan(id: String, kind: Span.Kind, remoteService: String): Span =
+    Span.newBuilder()
+      .traceId("bd1068b1bc333ec0")
+      .id(id)
+      .name("get")
+      .kind(kind)
+      .localEndpoint(Endpoint.newBuilder().serviceName("checkout").build())
+      .remoteEndpoint(Endpoint.newBuilder().serviceName(remoteService).build())
+      .timestamp(now)
+      .duration(1000L)
+      .build()
+
+  private def spanFilter() = new SpanFilter(SpanFilterConfig.from(ConfigFactory.parseString(
+    """
+      |rules = [
+      |  { action = drop, tag.key = span.kind, tag.value = client },
+      |  { action = drop, tag.key = remote.service.name, tag.value = cache }
+      |]
+    """.stripMargin)), "pitchfork")
+
+  private def process(decoder: SpanBytesDecoder, body: Array[Byte]): Seq[String] = {
+    val dispatcher = new RecordingDispatcher
+    val processor = new ZipkinSpanProcessor(decoder, new SpanValidator(ConfigFactory.empty()),
+      Collections.singletonList(dispatcher), Collections.emptyList(), null, spanFilter(), null, null, null, null)
+    processor.process(body).get(5, TimeUnit.SECONDS)
+    dispatcher.spans.map(_.getSpanId)
+  }
+
+  describe("Zipkin span processor") {
+    it("should filter the spans on the derived tags whether they are transcoded or decoded") {
+      val spans = java.util.Arrays.asList(
+        zipkinSpan("a", Span.Kind.SERVER, "web"),
+        zipkinSpan("b", Span.Kind.CLIENT, "web"),
+        zipkinSpan("c", Span.Kind.SERVER, "cache"))
+
+      val kept = Seq("000000000000000a")
+      process(SpanBytesDecoder.JSON_V2, SpanBytesEncoder.JSON_V2.encodeList(spans)) shouldBe kept
+      process(SpanBytesDecoder.PROTO3, SpanBytesEncoder.PROTO3.encodeList(spans)) shouldBe kept
+      process(SpanBytesDecoder.JSON_V1, SpanBytesEncoder.JSON_V1.encodeList(spans)) shouldBe kept
+      process(SpanBytesDecoder.THRIFT, SpanBytesEncoder.THRIFT.encodeList(spans)) shouldBe kept
+    }
+
+    it("should refuse a body that can't be read in the format of the decoder") {
+      val processor = new ZipkinSpanProcessor(SpanBytesDecoder.JSON_V1, new SpanValidator(ConfigFactory.empty()),
+        Collections.emptyList(), Collections.emptyList())
+      val malformed = "[{\"traceId\":".getBytes("UTF-8")
+      intercept[IllegalArgumentException](processor.read(malformed, 0, malformed.length))
+      val body = SpanBytesEncoder.JSON_V1.encodeList(Collections.singletonList(zipkinSpan("a", Span.Kind.SERVER, "web")))
+      processor.read(body, 0, body.length).size() shouldBe 1
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package com.expedia.www.haystack.agent.pitchfork.processors
+
+import java.util
+
+import com.expedia.open.tracing.{Span => HaystackSpan}
+import org.scalatest.{FunSpec, Matchers}
+import zipkin2.codec.{SpanBytesDecoder, SpanBytesEncoder}
+import zipkin2.{Endpoint, Span}
+
+import scala.collection.JavaConverters._
+
+class ZipkinV2TranscoderSpec extends FunSpec with Matchers {
+
+  private val now = System.currentTimeMillis() * 1000
+
+  private def zipkinSpans(): util.List[Span] = {
+    util.Arrays.asList(
+      Span.newBuilder()
+        .traceId("bd1068b1bc333ec0")
+        .id(1)
+        .parentId(2)
+        .name("/Foo")
+        .kind(Span.Kind.SERVER)
+        .localEndpoint(Endpoint.newBuilder().serviceName("Foo").build())
+        .remoteEndpoint(Endpoint.newBuilder().serviceName("bar").port(8080).ip("10.10.10.10").build())
+        .timestamp(now)
+        .duration(100000L)
+        .putTag("pos", "1")
+        .putTag("error", "bad things")
+        .putTag("alpha", "a")
+        .addAnnotation(now + 20, "ws")
+        .addAnnotation(now + 10, "wr")
+        .addAnnotation(now + 10, "wr")
+        .build(),
+      Span.newBuilder()
+        .traceId("463ac35c9f6413ad48485a3953bb6124")
+        .id("a")
+        .kind(Span.Kind.CLIENT)
+        .putTag("span.kind", "producer")
+        .putTag("error", "FALSE")
+        .remoteEndpoint(Endpoint.newBuilder().ip("2001:db8::c001").port(443).build())
+        .build(),
+      Span.newBuilder()
+        .traceId("1")
+        .id("2")
+        .parentId("0000000000000000")
+        .localEndpoint(Endpoint.newBuilder().serviceName("baz").ip("192.168.1.1").build())
+        .timestamp(now)
+        .build())
+  }
+
+  private def decodeAndConvert(decoder: SpanBytesDecoder, bytes: Array[Byte]): List[HaystackSpan] = {
+    decoder.decodeList(bytes).asScala.map(HaystackDomainConverter.fromZipkinV2).toList
+  }
+
+  describe("Zipkin v2 transcoder") {
+    it("should transcode json spans into the haystack spans of the decode and convert path") {
+      val bytes = SpanBytesEncoder.JSON_V2.encodeList(zipkinSpans())
+      val spans = ZipkinV2Transcoder.of(SpanBytesDecoder.JSON_V2).transcode(bytes, 0, bytes.length).asScala.toList
+
+      spans.size shouldBe 3
+      spans shouldEqual decodeAndConvert(SpanBytesDecoder.JSON_V2, bytes)
+    }
+
+    it("should transcode proto3 spans into the haystack spans of the decode and convert path") {
+      val bytes = SpanBytesEncoder.PROTO3.encodeList(zipkinSpans())
+      val spans = ZipkinV2Transcoder.of(SpanBytesDecoder.PROTO3).transcode(bytes, 0, bytes.length).asScala.toList
+
+      spans.size shouldBe 3
+      spans shouldEqual decodeAndConvert(SpanBytesDecoder.PROTO3, bytes)
+    }
+
+    it("should normalize the raw json fields the way the zipkin decoder does") {
+      val json =
+        s"""[{
+           |  "traceId": "00000000000000000000000000abcdef",
+           |  "id": "abc",
+           |  "parentId": "abc",
+           |  "name": "GET /Users",
+           |  "kind": "CONSUMER",
+           |  "timestamp": -1,
+           |  "duration": 0,
+           |  "debug": true,
+           |  "unknown": {"nested": [1, 2, {"a": null}]},
+           |  "localEndpoint": {"serviceName": "", "ipv4": "10.0.0.1"},
+           |  "remoteEndpoint": {"serviceName": "Remote", "ipv6": "::ffff:10.0.0.2", "port": 0},
+           |  "annotations": [{"timestamp": $now, "value": "b"}, {"timestamp": $now, "value": "a"}],
+           |  "tags": {"z": "1", "Error": "", "a": "2", "z": "3"}
+           |}, {
+           |  "traceId": "0af7651916cd43dd8448eb211c80319c",
+           |  "id": "b7ad6b7169203331",
+           |  "name": null,
+           |  "localEndpoint": {},
+           |  "tags": {}
+           |}]""".stripMargin.getBytes("UTF-8")
+
+      val spans = ZipkinV2Transcoder.of(SpanBytesDecoder.JSON_V2).transcode(json, 0, json.length).asScala.toList
+
+      spans shouldEqual decodeAndConvert(SpanBytesDecoder.JSON_V2, json)
+      spans.head.getTraceId shouldBe "0000000000abcdef"
+      spans.head.getSpanId shouldBe "0000000000000abc"
+      spans.head.getParentSpanId shouldBe ""
+      spans.head.getOperationName shouldBe "get /users"
+      spans.head.getStartTime shouldBe 0
+    }
+
+    it("should transcode spans with more tags and annotations than the reused arrays first hold") {
+      val busy = (1 to 40).foldLeft(Span.newBuilder().traceId("1").id("2").kind(Span.Kind.PRODUCER)) { (builder, idx) =>
+        builder.putTag(f"key-${41 - idx}%02d", idx.toString).addAnnotation(now + (idx % 7), s"event-$idx")
+      }.build()
+      val quiet = Span.newBuilder().traceId("1").id("3").putTag("b", "2").putTag("a", "1").build()
+      val spans = java.util.Arrays.asList(busy, quiet)
+
+      Seq(SpanBytesEncoder.JSON_V2 -> SpanBytesDecoder.JSON_V2, SpanBytesEncoder.PROTO3 -> SpanBytesDecoder.PROTO3).foreach {
+        case (encoder, decoder) =>
+          val bytes = encoder.encodeList(spans)
+          val transcoded = ZipkinV2Transcoder.of(decoder).transcode(bytes, 0, bytes.length).asScala.toList
+          transcoded shouldEqual decodeAndConvert(decoder, bytes)
+          transcoded(1).getTagsCount shouldBe 2
+          transcoded(1).getLogsCount shouldBe 0
+      }
+    }
+
+    it("should transcode the spans held in a part of a buffer") {
+      val bytes = SpanBytesEncoder.PROTO3.encodeList(zipkinSpans())
+      val buffer = new Array[Byte](bytes.length + 10)
+      System.arraycopy(bytes, 0, buffer, 7, bytes.length)
+
+      val spans = ZipkinV2Transcoder.of(SpanBytesDecoder.PROTO3).transcode(buffer, 7, bytes.length).asScala.toList
+      spans shouldEqual decodeAndConvert(SpanBytesDecoder.PROTO3, bytes)
+    }
+
+    it("should fail on a body it can't transcode") {
+      val transcoder = ZipkinV2Transcoder.of(SpanBytesDecoder.JSON_V2)
+      def transcode(json: String) = {
+        val bytes = json.getBytes("UTF-8")
+        transcoder.transcode(bytes, 0, bytes.length)
+      }
+
+      an[IllegalArgumentException] should be thrownBy transcode("""{"traceId": "1", "id": "2"}""")
+      an[IllegalArgumentException] should be thrownBy transcode("""[{"traceId": 1, "id": "2"}]""")
+      a[RuntimeException] should be thrownBy transcode("""[{"id": "2"}]""")
+      a[RuntimeException] should be thrownBy transcode("""[{"traceId": "1", "id": "XYZ"}]""")
+    }
+
+    it("should only transcode the zipkin v2 formats") {
+      ZipkinV2Transcoder.of(SpanBytesDecoder.JSON_V1) shouldBe null
+      ZipkinV2Transcoder.of(SpanBytesDecoder.THRIFT) shouldBe null
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.service
+
+import java.io.{ByteArrayOutputStream, IOException, OutputStream}
+import java.util.zip.{Deflater, DeflaterOutputStream, GZIPOutputStream}
+
+import com.expedia.www.haystack.agent.pitchfork.service.config.DecompressionConfig
+import com.github.luben.zstd.ZstdOutputStream
+import com.typesafe.config.ConfigFactory
+import io.netty.buffer.Unpooled
+import net.jpountz.lz4.LZ4FrameOutputStream
+import org.scalatest.{FunSpec, Matchers}
+import org.xerial.snappy.SnappyFramedOutputStream
+
+import scala.collection.JavaConverters._
+
+class RequestDecompressorSpec extends FunSpec with Matchers {
+
+  private val body = (1 to 2000).map(idx => s"""{"traceId":"$idx","id":"$idx"}""").mkString("[", ",", "]").getBytes("UTF-8")
+
+  private def newDecompressor(config: Map[String, Any] = Map(), gzipEnabled: Boolean = true): RequestDecompressor = {
+    new RequestDecompressor(DecompressionConfig.from(ConfigFactory.parseMap(config.asJava)), gzipEnabled, 1024)
+  }
+
+  private def compress(data: Array[Byte], stream: OutputStream => OutputStream): Array[Byte] = {
+    val bos = new ByteArrayOutputStream()
+    val out = stream(bos)
+    try {
+      out.write(data)
+    } finally {
+      out.close()
+    }
+    bos.toByteArray
+  }
+
+  private val codecs: Map[String, OutputStream => OutputStream] = Map(
+    "gzip" -> (out => new GZIPOutputStream(out)),
+    "deflate" -> (out => new DeflaterOutputStream(out)),
+    "zstd" -> (out => new ZstdOutputStream(out)),
+    "snappy" -> (out => new SnappyFramedOutputStream(out)),
+    "lz4" -> (out => new LZ4FrameOutputStream(out)))
+
+  private def decompress(decompressor: RequestDecompressor, encoding: String, compressed: Array[Byte]): Array[Byte] = {
+    val decompressed = decompressor.decompress(encoding, Unpooled.wrappedBuffer(compressed))
+    try {
+      val bytes = new Array[Byte](decompressed.readableBytes())
+      decompressed.readBytes(bytes)
+      bytes
+    } finally {
+      decompressed.release()
+    }
+  }
+
+  describe("Request decompressor") {
+    it("should decompress the bodies of every supported encoding") {
+      val decompressor = newDecompressor()
+      codecs.foreach { case (encoding, codec) =>
+        // twice, so that the pooled inflaters are reused
+        decompress(decompressor, encoding, compress(body, codec)) shouldEqual body
+        decompress(decompressor, encoding, compress(body, codec)) shouldEqual body
+      }
+    }
+
+    it("should decompress the concatenated gzip members and the raw deflate bodies") {
+      val decompressor = newDecompressor()
+      val half = body.length / 2
+      val members = compress(body.take(half), out => new GZIPOutputStream(out)) ++
+        compress(body.drop(half), out => new GZIPOutputStream(out))
+      decompress(decompressor, "gzip", members) shouldEqual body
+
+      val raw = compress(body, out => new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true)))
+      decompress(decompressor, "deflate", raw) shouldEqual body
+    }
+
+    it("should stop decompressing a body larger than the max size") {
+      val decompressor = newDecompressor(Map("max.size.bytes" -> 65536))
+      val bomb = new Array[Byte](10 * 1024 * 1024)
+      codecs.foreach { case (encoding, codec) =>
+        val compressed = compress(bomb, codec)
+        an[RequestDecompressor.DecompressedSizeExceededException] should be thrownBy decompress(decompressor, encoding, compressed)
+      }
+    }
+
+    it("should fail on a corrupt or truncated body") {
+      val decompressor = newDecompressor()
+      codecs.foreach { case (encoding, codec) =>
+        val compressed = compress(body, codec)
+        val truncated = compressed.take(compressed.length - 5)
+        an[Exception] should be thrownBy decompress(decompressor, encoding, truncated)
+      }
+
+      val corrupt = compress(body, out => new GZIPOutputStream(out))
+      corrupt(corrupt.length - 6) = (corrupt(corrupt.length - 6) + 1).toByte
+      an[IOException] should be thrownBy decompress(decompressor, "gzip", corrupt)
+      an[IOException] should be thrownBy decompress(decompressor, "gzip", body)
+    }
+
+    it("should only support the configured encodings") {
+      val decompressor = newDecompressor(Map("encodings" -> List("gzip", "zstd", "snappy").asJava))
+      decompressor.encodingOf("x-gzip") shouldEqual "gzip"
+      decompressor.encodingOf(" ZSTD ") shouldEqual "zstd"
+      decompressor.encodingOf("x-snappy-framed") shouldEqual "snappy"
+      decompressor.encodingOf("lz4") shouldBe null
+      decompressor.encodingOf("br") shouldBe null
+
+      newDecompressor(gzipEnabled = false).encodingOf("gzip") shouldBe null
+      newDecompressor(gzipEnabled = false).encodingOf("deflate") shouldBe null
+      an[IllegalArgumentException] should be thrownBy newDecompressor(Map("encodings" -> List("br").asJava))
+    }
+  }
+}
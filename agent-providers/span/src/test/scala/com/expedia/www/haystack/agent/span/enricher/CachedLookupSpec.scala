@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.enricher
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.codahale.metrics.MetricFilter
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry
+import com.typesafe.config.ConfigFactory
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.{Millis, Seconds, Span}
+import org.scalatest.{FunSpec, Matchers}
+
+class CachedLookupSpec extends FunSpec with Matchers with Eventually {
+
+  implicit override val patienceConfig: PatienceConfig = PatienceConfig(timeout = Span(5, Seconds), interval = Span(20, Millis))
+
+  describe("Cached lookup") {
+    it("should read the cache settings") {
+      val config = CachedLookupConfig.from(ConfigFactory.parseString("ttl.millis = 500, max.entries = 10, loader.threads = 1, loader.queue.size = 5"))
+      config.getTtlMillis shouldBe 500L
+      config.getMaxEntries shouldBe 10L
+      config.getLoaderThreads shouldBe 1
+      config.getLoaderQueueSize shouldBe 5
+
+      CachedLookupConfig.from(ConfigFactory.empty()).getTtlMillis shouldBe 60000L
+    }
+
+    it("should load the missing keys in the background and serve them from the cache") {
+      val calls = new AtomicInteger()
+      val lookup = new CachedLookup[String, String]("spans", "test-async", key => { calls.incrementAndGet(); key.toUpperCase },
+        new CachedLookupConfig(60000, 100, 1, 100))
+
+      lookup.getIfPresent("host-1") shouldBe null
+      eventually {
+        lookup.getIfPresent("host-1") shouldBe "HOST-1"
+      }
+      lookup.get("host-1") shouldBe "HOST-1"
+      calls.get() shouldBe 1
+      lookup.close()
+    }
+
+    it("should load a key on the calling thread and cache a missing value") {
+      val calls = new AtomicInteger()
+      val lookup = new CachedLookup[String, String]("spans", "test-sync", key => { calls.incrementAndGet(); if (key == "none") null else key },
+        new CachedLookupConfig(60000, 100, 1, 100))
+
+      lookup.get("pod-1") shouldBe "pod-1"
+      lookup.get("none") shouldBe null
+      lookup.get("none") shouldBe null
+      lookup.getIfPresent("none") shouldBe null
+      calls.get() shouldBe 2
+      lookup.close()
+    }
+
+    it("should drop the loads that don't fit in the loader queue") {
+      val loading = new CountDownLatch(1)
+      val release = new CountDownLatch(1)
+      val lookup = new CachedLookup[String, String]("spans", "test-drop", key => {
+        loading.countDown()
+        release.await()
+        key
+      }, new CachedLookupConfig(60000, 100, 1, 1))
+
+      lookup.getIfPresent("host-1") shouldBe null
+      loading.await()
+      lookup.getIfPresent("host-2") shouldBe null
+      lookup.getIfPresent("host-3") shouldBe null
+      SharedMetricRegistry.getMeters(MetricFilter.ALL).get("spans.enricher.lookup.test-drop.dropped").getCount shouldBe 1
+
+      release.countDown()
+      eventually {
+        lookup.getIfPresent("host-2") shouldBe "host-2"
+      }
+      // the dropped key is looked up again by the next span
+      eventually {
+        lookup.getIfPresent("host-3") shouldBe "host-3"
+      }
+      lookup.close()
+    }
+
+    it("should report the metrics of the lookup under the name of its agent") {
+      val spans = new CachedLookup[String, String]("spans", "test-agents", key => key, new CachedLookupConfig(60000, 100, 1, 100))
+      val zipkin = new CachedLookup[String, String]("pitchfork", "test-agents", key => key, new CachedLookupConfig(60000, 100, 1, 100))
+
+      spans.get("host-1")
+      spans.get("host-1")
+      zipkin.get("host-1")
+
+      val meters = SharedMetricRegistry.getMeters(MetricFilter.ALL)
+      meters.get("spans.enricher.lookup.test-agents.hits").getCount shouldBe 1
+      meters.get("pitchfork.enricher.lookup.test-agents.hits").getCount shouldBe 0
+      meters.get("pitchfork.enricher.lookup.test-agents.misses").getCount shouldBe 1
+      spans.close()
+      zipkin.close()
+    }
+
+    it("should evict the entries over the max entries") {
+      val lookup = new CachedLookup[Integer, Integer]("spans", "test-evict", key => key, new CachedLookupConfig(60000, 10, 1, 100))
+      (1 to 100).foreach(key => lookup.get(key))
+      (1 to 100).count(key => lookup.getIfPresent(key) != null) should be <= 10
+      lookup.close()
+    }
+  }
+}
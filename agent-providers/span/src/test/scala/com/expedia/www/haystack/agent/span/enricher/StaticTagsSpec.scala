@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.enricher
+
+import java.util
+
+import com.expedia.open.tracing.{Span, Tag}
+import com.expedia.www.haystack.agent.span.spi.SpanAgent
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class PodStaticTagEnricher extends StaticTagEnricher {
+  override def getTags: util.List[Tag] =
+    util.Collections.singletonList(Tag.newBuilder().setKey("pod").setType(Tag.TagType.STRING).setVStr("pod-1").build())
+}
+
+class StaticTagsSpec extends FunSpec with Matchers {
+
+  private def stringTag(key: String, value: String) =
+    Tag.newBuilder().setKey(key).setType(Tag.TagType.STRING).setVStr(value).build()
+
+  describe("Static tags") {
+    it("should append the encoded tags to the span bytes") {
+      val span = Span.newBuilder().setTraceId("trace-1").setSpanId("span-1").setServiceName("svc")
+        .addTags(stringTag("k", "v")).build()
+      val staticTags = new StaticTags(util.Arrays.asList(stringTag("host", "host-1"), stringTag("region", "us-west-2")))
+
+      val enriched = Span.parseFrom(staticTags.appendTo(span.toByteArray))
+      enriched shouldEqual span.toBuilder.addTags(stringTag("host", "host-1")).addTags(stringTag("region", "us-west-2")).build()
+      staticTags.applyTo(span) shouldEqual enriched
+      staticTags.appendTo(span) shouldEqual staticTags.appendTo(span.toByteArray)
+    }
+
+    it("should build the static tags from the agent config and the static tag enrichers") {
+      val config = ConfigFactory.parseString(
+        """
+          |static.tags {
+          |  region = "us-west-2"
+          |  canary = true
+          |  shard = 7
+          |}
+          |static.tag.enrichers = [ "com.expedia.www.haystack.agent.span.enricher.PodStaticTagEnricher" ]
+        """.stripMargin)
+
+      val tags = new SpanAgent().buildStaticTags(config).getTags.asScala.map(tag => tag.getKey -> tag).toMap
+      tags("region").getVStr shouldBe "us-west-2"
+      tags("canary").getVBool shouldBe true
+      tags("shard").getVLong shouldBe 7L
+      tags("pod").getVStr shouldBe "pod-1"
+
+      new SpanAgent().buildStaticTags(ConfigFactory.empty()) shouldBe null
+    }
+  }
+}
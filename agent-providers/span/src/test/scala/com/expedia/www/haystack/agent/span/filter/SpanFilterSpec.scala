@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.filter
+
+import com.expedia.open.tracing.{Span, Tag}
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+class SpanFilterSpec extends FunSpec with Matchers {
+
+  private def filter(rules: String, defaultAction: String = "keep") =
+    new SpanFilter(SpanFilterConfig.from(ConfigFactory.parseString(
+      s"""
+         |default.action = $defaultAction
+         |rules = [ $rules ]
+       """.stripMargin)), "spans")
+
+  private def span(service: String, operation: String, duration: Long = 1000, tags: Seq[Tag] = Nil) =
+    Span.newBuilder().setTraceId("trace-1").setSpanId("span-1")
+      .setServiceName(service).setOperationName(operation).setDuration(duration)
+      .addAllTags(scala.collection.JavaConverters.seqAsJavaList(tags)).build()
+
+  describe("Span filter") {
+    it("should read the span filter settings") {
+      val config = SpanFilterConfig.from(ConfigFactory.parseString(
+        """
+          |default.action = drop
+          |rules = [
+          |  { action = keep, service.matches = "checkout-.*", duration.min.micros = 100 }
+          |]
+        """.stripMargin))
+
+      config.isEnabled shouldBe true
+      config.getDefaultAction shouldBe SpanFilterConfig.Action.DROP
+      config.getRules.size() shouldBe 1
+      config.getRules.get(0).getAction shouldBe SpanFilterConfig.Action.KEEP
+      config.getRules.get(0).getServiceMatches shouldBe "checkout-.*"
+      config.getRules.get(0).getDurationMinMicros shouldBe 100L
+      config.getRules.get(0).getDurationMaxMicros shouldBe Long.MaxValue
+
+      SpanFilterConfig.from(ConfigFactory.empty()).getDefaultAction shouldBe SpanFilterConfig.Action.KEEP
+    }
+
+    it("should fail on an invalid rule") {
+      an[IllegalArgumentException] should be thrownBy SpanFilterConfig.from(ConfigFactory.parseString("rules = [ { service.equals = svc } ]"))
+      an[IllegalArgumentException] should be thrownBy SpanFilterConfig.from(ConfigFactory.parseString(
+        "rules = [ { action = drop, service.equals = svc, service.matches = svc } ]"))
+      an[IllegalArgumentException] should be thrownBy SpanFilterConfig.from(ConfigFactory.parseString(
+        "rules = [ { action = drop, tag.value = v } ]"))
+      an[IllegalArgumentException] should be thrownBy SpanFilterConfig.from(ConfigFactory.parseString(
+        "rules = [ { action = drop, duration.min.micros = 10, duration.max.micros = 5 } ]"))
+    }
+
+    it("should drop the spans by service and operation") {
+      val spanFilter = filter(
+        """
+          |{ action = drop, service.equals = health, operation.equals = ping },
+          |{ action = drop, service.matches = "internal-.*" },
+          |{ action = drop, operation.prefix = "/metrics" }
+        """.stripMargin)
+
+      spanFilter.keep(span("health", "ping")) shouldBe false
+      spanFilter.keep(span("health", "check")) shouldBe true
+      spanFilter.keep(span("internal-cache", "get")) shouldBe false
+      spanFilter.keep(span("checkout", "/metrics/jvm")) shouldBe false
+      spanFilter.keep(span("checkout", "/orders")) shouldBe true
+    }
+
+    it("should match the tags by presence and by typed value") {
+      val spanFilter = filter(
+        """
+          |{ action = keep, tag.key = error, tag.value = "true" },
+          |{ action = keep, tag.key = http.status_code, tag.value = "500" },
+          |{ action = keep, tag.key = debug }
+        """.stripMargin, defaultAction = "drop")
+
+      val errorTag = Tag.newBuilder().setKey("error").setType(Tag.TagType.BOOL).setVBool(true).build()
+      val okTag = Tag.newBuilder().setKey("error").setType(Tag.TagType.BOOL).setVBool(false).build()
+      val statusTag = Tag.newBuilder().setKey("http.status_code").setType(Tag.TagType.LONG).setVLong(500).build()
+      val debugTag = Tag.newBuilder().setKey("debug").setType(Tag.TagType.STRING).setVStr("x").build()
+
+      spanFilter.keep(span("svc", "op", tags = Seq(errorTag))) shouldBe true
+      spanFilter.keep(span("svc", "op", tags = Seq(okTag))) shouldBe false
+      spanFilter.keep(span("svc", "op", tags = Seq(statusTag))) shouldBe true
+      spanFilter.keep(span("svc", "op", tags = Seq(debugTag))) shouldBe true
+      spanFilter.keep(span("svc", "op")) shouldBe false
+    }
+
+    it("should match the negative numbers and never match the values that aren't numbers of the tag type") {
+      val spanFilter = filter(
+        """
+          |{ action = keep, tag.key = offset, tag.value = "-5" },
+          |{ action = keep, tag.key = hex, tag.value = "0x10" },
+          |{ action = keep, tag.key = suffixed, tag.value = "1L" },
+          |{ action = keep, tag.key = huge, tag.value = "99999999999999999999" }
+        """.stripMargin, defaultAction = "drop")
+
+      def longTag(key: String, value: Long) = Tag.newBuilder().setKey(key).setType(Tag.TagType.LONG).setVLong(value).build()
+      def doubleTag(key: String, value: Double) = Tag.newBuilder().setKey(key).setType(Tag.TagType.DOUBLE).setVDouble(value).build()
+
+      spanFilter.keep(span("svc", "op", tags = Seq(longTag("offset", -5)))) shouldBe true
+      spanFilter.keep(span("svc", "op", tags = Seq(doubleTag("offset", -5)))) shouldBe true
+      spanFilter.keep(span("svc", "op", tags = Seq(longTag("hex", 16)))) shouldBe false
+      spanFilter.keep(span("svc", "op", tags = Seq(longTag("suffixed", 1)))) shouldBe false
+      spanFilter.keep(span("svc", "op", tags = Seq(longTag("huge", Long.MaxValue)))) shouldBe false
+      spanFilter.keep(span("svc", "op", tags = Seq(doubleTag("huge", 99999999999999999999d)))) shouldBe true
+    }
+
+    it("should apply the first matching rule on the duration range") {
+      val spanFilter = filter(
+        """
+          |{ action = keep, service.equals = svc, duration.min.micros = 5000 },
+          |{ action = drop, service.equals = svc, duration.max.micros = 100 }
+        """.stripMargin)
+
+      spanFilter.keep(span("svc", "op", duration = 10000)) shouldBe true
+      spanFilter.keep(span("svc", "op", duration = 50)) shouldBe false
+      spanFilter.keep(span("svc", "op", duration = 1000)) shouldBe true
+    }
+  }
+}
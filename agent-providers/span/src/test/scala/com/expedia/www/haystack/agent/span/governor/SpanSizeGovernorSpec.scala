@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.governor
+
+import com.expedia.open.tracing.{Log, Span, Tag}
+import com.expedia.www.haystack.agent.span.enricher.StaticTags
+import com.google.protobuf.ByteString
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class SpanSizeGovernorSpec extends FunSpec with Matchers {
+
+  private def governor(maxTagValueBytes: Int = 100, maxLogs: Int = 10, maxSpanBytes: Int = 10000, maxRequestBytes: Long = 0) =
+    new SpanSizeGovernor(new SpanSizeConfig(true, maxTagValueBytes, maxLogs, maxSpanBytes, maxRequestBytes), "spans")
+
+  private def stringTag(key: String, value: String) =
+    Tag.newBuilder().setKey(key).setType(Tag.TagType.STRING).setVStr(value).build()
+
+  private def log(fields: Tag*) = Log.newBuilder().setTimestamp(1).addAllFields(fields.asJava).build()
+
+  private def span(tags: Seq[Tag] = Nil, logs: Seq[Log] = Nil) =
+    Span.newBuilder().setTraceId("trace-1").setSpanId("span-1").setServiceName("svc").setOperationName("op")
+      .addAllTags(tags.asJava).addAllLogs(logs.asJava).build()
+
+  private def truncatedBytes(span: Span) =
+    span.getTagsList.asScala.find(_.getKey == SpanSizeGovernor.TRUNCATED_TAG_KEY).map(_.getVLong)
+
+  describe("Span size governor") {
+    it("should read the size governor settings") {
+      val config = SpanSizeConfig.from(ConfigFactory.parseString(
+        """
+          |max.tag.value.bytes = 1024
+          |max.logs.per.span = 50
+          |max.span.bytes = 500000
+          |max.request.bytes = 4000000
+        """.stripMargin))
+
+      config.isEnabled shouldBe true
+      config.getMaxTagValueBytes shouldBe 1024
+      config.getMaxLogsPerSpan shouldBe 50
+      config.getMaxSpanBytes shouldBe 500000
+      config.getMaxRequestBytes shouldBe 4000000L
+
+      val defaults = SpanSizeConfig.from(ConfigFactory.empty())
+      defaults.getMaxTagValueBytes shouldBe 16384
+      defaults.getMaxSpanBytes shouldBe 1000000
+      defaults.getMaxRequestBytes shouldBe 0L
+    }
+
+    it("should pass the spans within the budgets as they are") {
+      val small = span(tags = Seq(stringTag("k", "v")))
+      governor().govern(small, null) should be theSameInstanceAs small
+
+      val noLongValue = span(tags = (1 to 20).map(idx => stringTag(s"k$idx", "v" * 50)))
+      governor().govern(noLongValue, null) should be theSameInstanceAs noLongValue
+    }
+
+    it("should truncate the long tag values and add the marker tag") {
+      val sql = stringTag("sql", "é" * 200)
+      val binary = Tag.newBuilder().setKey("payload").setType(Tag.TagType.BINARY).setVBytes(ByteString.copyFrom(new Array[Byte](500))).build()
+      val governed = governor().govern(span(tags = Seq(sql, stringTag("k", "v"), binary), logs = Seq(log(stringTag("stack", "x" * 300)))), null)
+
+      governed.getTags(0).getVStrBytes.size() shouldBe 100
+      governed.getTags(0).getVStr shouldBe "é" * 50
+      governed.getTags(1).getVStr shouldBe "v"
+      governed.getTags(2).getVBytes.size() shouldBe 100
+      governed.getLogs(0).getFields(0).getVStr shouldBe "x" * 100
+      truncatedBytes(governed).get should be > 0L
+    }
+
+    it("should cap the logs of a span") {
+      val governed = governor(maxLogs = 3).govern(span(logs = (1 to 10).map(idx => log(stringTag("event", s"e$idx")))), null)
+      governed.getLogsCount shouldBe 3
+      governed.getLogs(2).getFields(0).getVStr shouldBe "e3"
+      truncatedBytes(governed) shouldBe defined
+    }
+
+    it("should remove the logs and then drop a span over the span budget") {
+      val withLogs = span(tags = Seq(stringTag("k", "v")), logs = (1 to 10).map(idx => log(stringTag("event", "e" * 90))))
+      val governed = governor(maxSpanBytes = 500).govern(withLogs, null)
+      governed.getLogsCount shouldBe 0
+      governed.getTags(0).getVStr shouldBe "v"
+
+      val tooManyTags = span(tags = (1 to 20).map(idx => stringTag(s"k$idx", "v" * 90)))
+      governor(maxSpanBytes = 500).govern(tooManyTags, null) shouldBe null
+    }
+
+    it("should drop the spans of a request over the request budget") {
+      val sizeGovernor = governor(maxRequestBytes = 100)
+      val budget = sizeGovernor.newRequestBudget()
+      val spanOf40Bytes = span(tags = Seq(stringTag("k", "v" * 5)))
+      val size = spanOf40Bytes.getSerializedSize
+
+      (1 to 100 / size).foreach(_ => sizeGovernor.govern(spanOf40Bytes, budget) should not be null)
+      sizeGovernor.govern(spanOf40Bytes, budget) shouldBe null
+      sizeGovernor.govern(spanOf40Bytes, sizeGovernor.newRequestBudget()) should not be null
+    }
+
+    it("should decode and truncate only the serialized spans over the budgets") {
+      val small = span(tags = Seq(stringTag("k", "v"))).toByteArray
+      governor().govern(small, null) should be theSameInstanceAs small
+
+      val large = span(tags = Seq(stringTag("sql", "x" * 1000))).toByteArray
+      Span.parseFrom(governor().govern(large, null)).getTags(0).getVStr shouldBe "x" * 100
+      governor(maxTagValueBytes = 10000, maxSpanBytes = 100).govern(large, null) shouldBe null
+    }
+
+    it("should cap the logs of the small serialized spans") {
+      val withLogs = span(logs = (1 to 20).map(idx => log(stringTag("event", s"e$idx")))).toByteArray
+      Span.parseFrom(governor(maxLogs = 3).govern(withLogs, null)).getLogsCount shouldBe 3
+      Span.parseFrom(governor(maxLogs = 0).govern(withLogs, null)).getLogsCount shouldBe 0
+      governor(maxLogs = 20).govern(withLogs, null) should be theSameInstanceAs withLogs
+    }
+
+    it("should drop the undecodable serialized spans only if they are over the span budget") {
+      // the bytes of a span cut in the middle of its last tag can't be decoded
+      val encoded = span(tags = Seq(stringTag("k", "x" * 200))).toByteArray
+      val undecodable = java.util.Arrays.copyOf(encoded, encoded.length - 10)
+      governor(maxTagValueBytes = 10, maxSpanBytes = 1000).govern(undecodable, null) should be theSameInstanceAs undecodable
+      governor(maxTagValueBytes = 10, maxSpanBytes = 100).govern(undecodable, null) shouldBe null
+    }
+
+    it("should keep the reserved bytes of the static tags out of the span budget") {
+      val staticTags = new StaticTags(java.util.Collections.singletonList(stringTag("pod", "p" * 50)))
+      val withTags = span(tags = (1 to 5).map(idx => stringTag(s"k$idx", "v" * 90)))
+      val config = new SpanSizeConfig(true, 100, 10, withTags.getSerializedSize + 10, 0)
+
+      new SpanSizeGovernor(config, "spans").govern(withTags, null) should be theSameInstanceAs withTags
+      val reserving = new SpanSizeGovernor(config, "spans", staticTags.getEncodedSize)
+      reserving.govern(withTags, null) shouldBe null
+      reserving.govern(span(), null) should not be null
+
+      // once the static tags are appended, the span is within the span budget
+      val small = span(tags = Seq(stringTag("k", "v"))).toByteArray
+      staticTags.appendTo(reserving.govern(small, null)).length should be <= config.getMaxSpanBytes
+
+      intercept[IllegalArgumentException](new SpanSizeGovernor(config, "spans", config.getMaxSpanBytes))
+    }
+
+    it("should count the reserved bytes in the request budget") {
+      val spanBytes = span().getSerializedSize
+      val sizeGovernor = new SpanSizeGovernor(new SpanSizeConfig(true, 100, 10, 10000, 2L * spanBytes + 10), "spans", 10)
+      val budget = sizeGovernor.newRequestBudget()
+
+      sizeGovernor.govern(span(), budget) should not be null
+      sizeGovernor.govern(span(), budget) shouldBe null
+    }
+  }
+}
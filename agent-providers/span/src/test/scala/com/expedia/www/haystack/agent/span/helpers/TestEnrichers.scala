@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2017 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.agent.span.helpers
+
+import com.expedia.open.tracing.{Span, Tag}
+import com.expedia.www.haystack.agent.span.enricher.Enricher
+import com.typesafe.config.Config
+
+object RegionEnricher {
+  @volatile var closed = false
+}
+
+class RegionEnricher extends Enricher {
+  private var region: String = _
+
+  override def getName: String = "region"
+
+  override def initialize(config: Config): Unit = region = config.getString("value")
+
+  override def apply(span: Span.Builder): Unit =
+    span.addTags(Tag.newBuilder().setKey("region").setVStr(region))
+
+  override def close(): Unit = RegionEnricher.closed = true
+}
+
+class ZoneEnricher extends Enricher {
+  override def getName: String = "zone"
+
+  override def apply(span: Span.Builder): Unit =
+    span.addTags(Tag.newBuilder().setKey("zone").setVStr("a"))
+}
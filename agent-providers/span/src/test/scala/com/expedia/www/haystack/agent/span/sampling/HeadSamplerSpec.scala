@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling
+
+import java.util.Collections
+
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+class HeadSamplerSpec extends FunSpec with Matchers {
+
+  // the adjustments are triggered by the tests, the scheduled ones never come within a test run
+  private def sampler(target: Double) =
+    new HeadSampler(new HeadSamplingConfig(true, target, Collections.emptyMap[String, java.lang.Double](), 100000, 0.001), "spans")
+
+  private def send(headSampler: HeadSampler, service: String, count: Int): Int =
+    (1 to count).count(idx => headSampler.sample(service, s"$service-trace-$idx"))
+
+  describe("Head sampler") {
+    it("should read the head sampling settings") {
+      val config = HeadSamplingConfig.from(ConfigFactory.parseString(
+        """
+          |target.spans.per.sec = 200
+          |adjust.interval.millis = 500
+          |min.probability = 0.01
+          |services {
+          |  "noisy.svc" = 50
+          |}
+        """.stripMargin))
+
+      config.isEnabled shouldBe true
+      config.getTargetSpansPerSec("any-svc") shouldBe 200d
+      config.getTargetSpansPerSec("noisy.svc") shouldBe 50d
+      config.getAdjustIntervalMillis shouldBe 500L
+      config.getMinProbability shouldBe 0.01d
+
+      HeadSamplingConfig.from(ConfigFactory.empty()).getTargetSpansPerSec("any-svc") shouldBe 1000d
+    }
+
+    it("should keep every span of a service within its budget") {
+      val headSampler = sampler(target = 1)
+      send(headSampler, "svc", 50) shouldBe 50
+      headSampler.adjust()
+      headSampler.getProbability("svc") shouldBe 1d
+      send(headSampler, "svc", 50) shouldBe 50
+      headSampler.close()
+    }
+
+    it("should lower the probability of a service over its budget to hold the budget") {
+      val headSampler = sampler(target = 1)
+
+      // 1000 spans in an interval of 100 sec is 10 spans/sec, averaged with the initial rate of 0 into 5 spans/sec
+      send(headSampler, "noisy", 1000)
+      headSampler.adjust()
+      headSampler.getProbability("noisy") shouldBe 0.2d +- 0.0001
+
+      send(headSampler, "noisy", 10000) should (be > 1700 and be < 2300)
+      headSampler.getProbability("quiet") shouldBe 1d
+      headSampler.close()
+    }
+
+    it("should remove the services that sent no span for a few intervals") {
+      val headSampler = sampler(target = 1)
+      send(headSampler, "gone", 1000)
+      send(headSampler, "active", 1000)
+      headSampler.adjust()
+      headSampler.getServiceCount shouldBe 2
+
+      (1 to 3).foreach { _ =>
+        send(headSampler, "active", 1000)
+        headSampler.adjust()
+      }
+      headSampler.getServiceCount shouldBe 1
+      headSampler.getProbability("gone") shouldBe 1d
+      headSampler.getProbability("active") should be < 1d
+      headSampler.close()
+    }
+
+    it("should make the same decision for a trace on every agent") {
+      val first = sampler(target = 1)
+      val second = sampler(target = 1)
+      Seq(first, second).foreach { headSampler =>
+        send(headSampler, "svc", 1000)
+        headSampler.adjust()
+      }
+
+      (1 to 1000).foreach { idx =>
+        first.sample("svc", s"trace-$idx") shouldBe second.sample("svc", s"trace-$idx".getBytes("utf-8"))
+      }
+      first.close()
+      second.close()
+    }
+  }
+}
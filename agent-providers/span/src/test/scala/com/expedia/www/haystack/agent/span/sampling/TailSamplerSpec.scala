@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.span.sampling
+
+import java.util
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+import java.util.function.Consumer
+
+import com.expedia.open.tracing.{Span, Tag}
+import com.expedia.www.haystack.agent.span.sampling.TailSamplingRules.Decision
+import com.typesafe.config.ConfigFactory
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class TailSamplerSpec extends FunSpec with Matchers {
+
+  private class CollectingForwarder extends Consumer[util.List[Span]] {
+    val traces = new LinkedBlockingQueue[util.List[Span]]()
+
+    override def accept(spans: util.List[Span]): Unit = traces.put(spans)
+
+    def take(): Seq[Span] = Option(traces.poll(5, TimeUnit.SECONDS)).map(_.asScala.toList).orNull
+  }
+
+  private def config(window: Long = 200,
+                     maxBufferedBytes: Long = 1024 * 1024,
+                     keepErrors: Boolean = true,
+                     rootDurationAbove: Long = 0,
+                     serviceRate: Double = 0,
+                     probability: Double = 0) =
+    new TailSamplingConfig(true, window, 50, maxBufferedBytes, keepErrors, rootDurationAbove, serviceRate, probability)
+
+  private def span(traceId: String,
+                   spanId: String,
+                   parentSpanId: String = "",
+                   duration: Long = 100,
+                   error: Option[Tag] = None): Span = {
+    val builder = Span.newBuilder()
+      .setTraceId(traceId)
+      .setSpanId(spanId)
+      .setParentSpanId(parentSpanId)
+      .setServiceName("svc")
+      .setDuration(duration)
+    error.foreach(builder.addTags)
+    builder.build()
+  }
+
+  private val boolError = Tag.newBuilder().setKey("error").setType(Tag.TagType.BOOL).setVBool(true).build()
+  private val stringError = Tag.newBuilder().setKey("error").setType(Tag.TagType.STRING).setVStr("true").build()
+
+  describe("Tail sampling rules") {
+    it("should read the tail sampling settings") {
+      val samplingConfig = TailSamplingConfig.from(ConfigFactory.parseString(
+        """
+          |decision.window.millis = 5000
+          |tick.millis = 10
+          |max.buffered.bytes = 1048576
+          |keep {
+          |  errors = false
+          |  root.duration.above.micros = 2000000
+          |  service.min.traces.per.sec = 2
+          |  probability = 0.1
+          |}
+        """.stripMargin))
+
+      samplingConfig.isEnabled shouldBe true
+      samplingConfig.getDecisionWindowMillis shouldBe 5000L
+      samplingConfig.getTickMillis shouldBe 10L
+      samplingConfig.getMaxBufferedBytes shouldBe 1048576L
+      samplingConfig.isKeepErrors shouldBe false
+      samplingConfig.getKeepRootDurationAboveMicros shouldBe 2000000L
+      samplingConfig.getServiceMinTracesPerSec shouldBe 2d
+      samplingConfig.getProbability shouldBe 0.1d
+
+      val defaults = TailSamplingConfig.from(ConfigFactory.empty())
+      defaults.getDecisionWindowMillis shouldBe 10000L
+      defaults.isKeepErrors shouldBe true
+      defaults.getProbability shouldBe 0.01d
+    }
+
+    it("should keep the traces with an error span") {
+      val rules = new TailSamplingRules(config())
+      rules.decide("t1", util.Arrays.asList(span("t1", "s1"), span("t1", "s2", "s1", error = Some(boolError)))) shouldBe Decision.ERROR
+      rules.decide("t2", util.Arrays.asList(span("t2", "s1", error = Some(stringError)))) shouldBe Decision.ERROR
+      rules.decide("t3", util.Arrays.asList(span("t3", "s1"))) shouldBe Decision.DROP
+    }
+
+    it("should keep the traces with a slow root span") {
+      val rules = new TailSamplingRules(config(rootDurationAbove = 1000))
+      rules.decide("t1", util.Arrays.asList(span("t1", "s2", "s1", duration = 5000), span("t1", "s1", duration = 5000))) shouldBe Decision.SLOW_ROOT
+      rules.decide("t2", util.Arrays.asList(span("t2", "s2", "s1", duration = 5000), span("t2", "s1", duration = 500))) shouldBe Decision.DROP
+    }
+
+    it("should keep a minimum rate of traces per service") {
+      val rules = new TailSamplingRules(config(serviceRate = 0.001))
+      rules.decide("t1", util.Arrays.asList(span("t1", "s1"))) shouldBe Decision.SERVICE_RATE
+      rules.decide("t2", util.Arrays.asList(span("t2", "s1"))) shouldBe Decision.DROP
+    }
+
+    it("should keep the same share of trace ids as the probability") {
+      val rules = new TailSamplingRules(config(probability = 0.25))
+      val kept = (1 to 10000).count(idx => rules.decide(s"trace-$idx", util.Arrays.asList(span(s"trace-$idx", "s1"))) == Decision.PROBABILITY)
+      kept should (be > 2200 and be < 2800)
+
+      new TailSamplingRules(config(probability = 1)).decide("t1", util.Arrays.asList(span("t1", "s1"))) shouldBe Decision.PROBABILITY
+    }
+  }
+
+  describe("Tail sampler") {
+    it("should forward the spans of a kept trace together once the decision window is over") {
+      val forwarder = new CollectingForwarder
+      val sampler = new TailSampler(config(), forwarder, "spans")
+
+      sampler.offer(span("t1", "s1"))
+      sampler.offer(span("t2", "s1"))
+      sampler.offer(span("t1", "s2", "s1", error = Some(boolError)))
+      forwarder.traces.isEmpty shouldBe true
+
+      forwarder.take().map(_.getSpanId) shouldBe Seq("s1", "s2")
+      forwarder.traces.poll(500, TimeUnit.MILLISECONDS) shouldBe null
+      sampler.getBufferedBytes shouldBe 0L
+      sampler.close()
+    }
+
+    it("should decide the oldest traces early once the buffered spans go over the memory bound") {
+      val forwarder = new CollectingForwarder
+      val first = span("t1", "s1", error = Some(boolError))
+      val sampler = new TailSampler(config(window = 60000, maxBufferedBytes = first.getSerializedSize + 1), forwarder, "spans")
+
+      sampler.offer(first)
+      forwarder.traces.isEmpty shouldBe true
+      sampler.offer(span("t2", "s1"))
+
+      forwarder.take().map(_.getTraceId) shouldBe Seq("t1")
+      sampler.getBufferedBytes should be <= (first.getSerializedSize + 1).toLong
+      sampler.close()
+    }
+
+    it("should decide the buffered traces when it is closed") {
+      val forwarder = new CollectingForwarder
+      val sampler = new TailSampler(config(window = 60000, probability = 1), forwarder, "spans")
+
+      sampler.offer(span("t1", "s1"))
+      sampler.close()
+      forwarder.take().map(_.getTraceId) shouldBe Seq("t1")
+    }
+  }
+}
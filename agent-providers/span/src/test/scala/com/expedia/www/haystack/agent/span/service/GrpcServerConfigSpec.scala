@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service
+
+import com.expedia.www.haystack.agent.span.service.config.GrpcServerConfig
+import com.expedia.www.haystack.agent.span.service.config.GrpcServerConfig.ExecutorType
+import com.typesafe.config.ConfigFactory
+import io.grpc.netty.NettyServerBuilder
+import org.scalatest.{FunSpec, Matchers}
+
+class GrpcServerConfigSpec extends FunSpec with Matchers {
+  describe("Grpc server configuration") {
+    it("should keep the direct executor and the netty defaults if nothing is configured") {
+      val serverConfig = GrpcServerConfig.from(ConfigFactory.parseString("port = 35000"))
+      serverConfig.getExecutorType shouldBe ExecutorType.DIRECT
+      serverConfig.getBossThreads shouldBe 1
+      serverConfig.getWorkerThreads shouldBe 0
+      serverConfig.isEpollEnabled shouldBe false
+      serverConfig.isPooledAllocator shouldBe true
+      serverConfig.getFlowControlWindow shouldBe NettyServerBuilder.DEFAULT_FLOW_CONTROL_WINDOW
+      serverConfig.getMaxInboundMessageSize shouldBe 4 * 1024 * 1024
+      serverConfig.isCompressionEnabled shouldBe false
+    }
+
+    it("should read the executor and transport settings") {
+      val serverConfig = GrpcServerConfig.from(ConfigFactory.parseString(
+        """
+          |server {
+          |  executor {
+          |    type = work-stealing
+          |    threads = 8
+          |    queue.size = 100
+          |  }
+          |  boss.threads = 2
+          |  worker.threads = 4
+          |  epoll.enabled = true
+          |  pooled.allocator = false
+          |  flow.control.window.bytes = 65536
+          |  max.inbound.message.bytes = 1048576
+          |  compression = gzip
+          |}
+        """.stripMargin))
+
+      serverConfig.getExecutorType shouldBe ExecutorType.WORK_STEALING
+      serverConfig.getExecutorThreads shouldBe 8
+      serverConfig.getExecutorQueueSize shouldBe 100
+      serverConfig.getBossThreads shouldBe 2
+      serverConfig.getWorkerThreads shouldBe 4
+      serverConfig.isEpollEnabled shouldBe true
+      serverConfig.isPooledAllocator shouldBe false
+      serverConfig.getFlowControlWindow shouldBe 65536
+      serverConfig.getMaxInboundMessageSize shouldBe 1048576
+      serverConfig.getCompression shouldEqual "gzip"
+      serverConfig.isCompressionEnabled shouldBe true
+    }
+
+    it("should fail for an unknown compression") {
+      val caught = intercept[IllegalArgumentException] {
+        GrpcServerConfig.from(ConfigFactory.parseString("server.compression = lz4"))
+      }
+      caught.getMessage shouldEqual "compression should be either 'identity' or 'gzip'"
+    }
+  }
+}
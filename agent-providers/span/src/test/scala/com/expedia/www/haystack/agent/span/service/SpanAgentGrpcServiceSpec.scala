@@ -19,12 +19,13 @@ package com.expedia.www.haystack.agent.span.service
 
 import java.util
 import java.util.Collections
+import java.util.concurrent.CompletableFuture
 import java.util.function.Predicate
 
 import com.expedia.open.tracing.{Span, Tag}
 import com.expedia.open.tracing.agent.api.DispatchResult
 import com.expedia.open.tracing.agent.api.DispatchResult.ResultCode
-import com.expedia.www.haystack.agent.core.{Dispatcher, RateLimitException}
+import com.expedia.www.haystack.agent.core.{DispatchAck, Dispatcher, RateLimitException}
 import com.expedia.www.haystack.agent.span.enricher.Enricher
 import io.grpc.stub.StreamObserver
 import org.easymock.EasyMock
@@ -45,7 +46,7 @@ class SpanAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar
       val capturedSpanPartitionKey = EasyMock.newCapture[Array[Byte]]()
 
       expecting {
-        dispatcher.dispatch(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).once()
+        dispatcher.dispatchAsync(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andReturn(DispatchAck.completed("test-dispatcher"))
         responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
         responseObserver.onCompleted().once()
       }
@@ -58,6 +59,30 @@ class SpanAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar
       }
     }
 
+    it("should respond to the client only after the dispatcher's sink has acknowledged the span") {
+      val span = Span.newBuilder().setTraceId("traceid").build()
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[DispatchResult]]
+      val service = new SpanAgentGrpcService(Collections.singletonList(dispatcher), Collections.emptyList())
+
+      val ack = new CompletableFuture[DispatchAck]()
+      val dispatchResult = EasyMock.newCapture[DispatchResult]()
+
+      expecting {
+        dispatcher.dispatchAsync(EasyMock.anyObject(), EasyMock.anyObject()).andReturn(ack)
+        responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
+        responseObserver.onCompleted().once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        service.dispatch(span, responseObserver)
+        dispatchResult.hasCaptured shouldBe false
+
+        ack.complete(new DispatchAck("test-dispatcher"))
+        dispatchResult.getValue.getCode shouldBe ResultCode.SUCCESS
+      }
+    }
+
     it("should dispatch the span with error if dispatcher fails") {
       val span = Span.newBuilder().setTraceId("traceid").build()
       val dispatcher = mock[Dispatcher]
@@ -70,7 +95,7 @@ class SpanAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar
 
       expecting {
         dispatcher.getName.andReturn("test-dispatcher").anyTimes()
-        dispatcher.dispatch(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andThrow(new RuntimeException("Fail to dispatch"))
+        dispatcher.dispatchAsync(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andReturn(DispatchAck.failed(new RuntimeException("Fail to dispatch")))
         responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
         responseObserver.onCompleted().once()
       }
@@ -96,7 +121,7 @@ class SpanAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar
 
       expecting {
         dispatcher.getName.andReturn("test-dispatcher").anyTimes()
-        dispatcher.dispatch(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andThrow(new RateLimitException("Rate Limit Error!"))
+        dispatcher.dispatchAsync(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andReturn(DispatchAck.failed(new RateLimitException("Rate Limit Error!")))
         responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
         responseObserver.onCompleted().once()
       }
@@ -137,7 +162,7 @@ class SpanAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar
 
       expecting {
         dispatcher.getName.andReturn("test-dispatcher").anyTimes()
-        dispatcher.dispatch(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan))
+        dispatcher.dispatchAsync(EasyMock.capture(capturedSpanPartitionKey), EasyMock.capture(capturedSpan)).andReturn(DispatchAck.completed("test-dispatcher"))
         responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
         responseObserver.onCompleted().once()
       }
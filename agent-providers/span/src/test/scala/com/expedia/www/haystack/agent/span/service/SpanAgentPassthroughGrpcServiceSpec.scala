@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service
+
+import java.util.Collections
+
+import com.expedia.open.tracing.agent.api.DispatchResult.ResultCode
+import com.expedia.open.tracing.agent.api.{DispatchResult, SpanAgentGrpc}
+import com.expedia.open.tracing.{Span, Tag}
+import com.expedia.www.haystack.agent.core.{DispatchAck, Dispatcher}
+import io.grpc.inprocess.{InProcessChannelBuilder, InProcessServerBuilder}
+import io.grpc.stub.StreamObserver
+import io.grpc.{Status, StatusRuntimeException}
+import org.easymock.EasyMock
+import org.scalatest.easymock.EasyMockSugar
+import org.scalatest.{FunSpec, Matchers}
+
+class SpanAgentPassthroughGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar {
+
+  private val span = Span.newBuilder()
+    .setSpanId("spanid")
+    .setServiceName("svc")
+    .setTraceId("traceid")
+    .addTags(Tag.newBuilder().setKey("error").setVBool(true).setType(Tag.TagType.BOOL))
+    .build()
+
+  describe("Span Agent passthrough Grpc service") {
+    it("should read the traceId without decoding the span") {
+      new SerializedSpan(span.toByteArray).getTraceIdBytes shouldBe "traceid".getBytes("utf-8")
+      new SerializedSpan(Span.newBuilder().setSpanId("s1").build().toByteArray).getTraceIdBytes shouldBe empty
+    }
+
+    it("should read the serviceName without decoding the span") {
+      new SerializedSpan(span.toByteArray).getServiceName shouldBe "svc"
+      new SerializedSpan(Span.newBuilder().setSpanId("s1").build().toByteArray).getServiceName shouldBe ""
+    }
+
+    it("should dispatch the received bytes untouched") {
+      // field 15 is unknown to the span proto and would be lost with a decode and encode round trip
+      val spanBytes = span.toByteArray ++ Array[Byte](0x7a, 0x01, 0x41)
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[DispatchResult]]
+      val service = new SpanAgentPassthroughGrpcService(Collections.singletonList(dispatcher))
+
+      val dispatchResult = EasyMock.newCapture[DispatchResult]()
+      val capturedSpan = EasyMock.newCapture[Array[Byte]]()
+
+      expecting {
+        dispatcher.dispatchAsync(EasyMock.aryEq("traceid".getBytes("utf-8")), EasyMock.capture(capturedSpan)).andReturn(DispatchAck.completed("test-dispatcher"))
+        responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
+        responseObserver.onCompleted().once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        service.dispatch(new SerializedSpan(spanBytes), responseObserver)
+        dispatchResult.getValue.getCode shouldBe ResultCode.SUCCESS
+        capturedSpan.getValue shouldBe theSameInstanceAs(spanBytes)
+      }
+    }
+
+    it("should reject the span if its bytes are not a valid protobuf message") {
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[DispatchResult]]
+      val service = new SpanAgentPassthroughGrpcService(Collections.singletonList(dispatcher))
+
+      val error = EasyMock.newCapture[Throwable]()
+
+      expecting {
+        responseObserver.onError(EasyMock.capture(error)).once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        service.dispatch(new SerializedSpan(Array[Byte](0x0a, 0x7f)), responseObserver)
+        error.getValue.asInstanceOf[StatusRuntimeException].getStatus.getCode shouldBe Status.Code.INVALID_ARGUMENT
+      }
+    }
+
+    it("should serve the span agent's dispatch method to the existing clients") {
+      val dispatcher = mock[Dispatcher]
+      val server = InProcessServerBuilder.forName("passthrough-span-agent")
+        .addService(new SpanAgentPassthroughGrpcService(Collections.singletonList(dispatcher)))
+        .directExecutor()
+        .build()
+        .start()
+      val channel = InProcessChannelBuilder.forName("passthrough-span-agent").directExecutor().build()
+
+      expecting {
+        dispatcher.dispatchAsync(EasyMock.aryEq("traceid".getBytes("utf-8")), EasyMock.aryEq(span.toByteArray)).andReturn(DispatchAck.completed("test-dispatcher"))
+      }
+
+      whenExecuting(dispatcher) {
+        val result = SpanAgentGrpc.newBlockingStub(channel).dispatch(span)
+        result.getCode shouldBe ResultCode.SUCCESS
+      }
+
+      channel.shutdownNow()
+      server.shutdownNow()
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service
+
+import java.util.Collections
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+import com.expedia.open.tracing.Span
+import com.expedia.open.tracing.agent.api.BatchDispatchResult.ResultCode
+import com.expedia.open.tracing.agent.api.{BatchDispatchResult, SpanBatch}
+import com.expedia.www.haystack.agent.core.{DispatchAck, Dispatcher, RateLimitException}
+import com.expedia.www.haystack.agent.span.enricher.Enricher
+import com.expedia.www.haystack.agent.span.governor.{SpanSizeConfig, SpanSizeGovernor}
+import com.typesafe.config.ConfigFactory
+import io.grpc.stub.StreamObserver
+import org.easymock.EasyMock
+import org.scalatest.easymock.EasyMockSugar
+import org.scalatest.{FunSpec, Matchers}
+
+class SpanBatchAgentGrpcServiceSpec extends FunSpec with Matchers with EasyMockSugar {
+
+  private def span(spanId: String) = Span.newBuilder().setTraceId("traceid").setSpanId(spanId).build()
+
+  // keeps the results sent on the stream
+  private class RecordingObserver extends StreamObserver[BatchDispatchResult] {
+    val results = new LinkedBlockingQueue[BatchDispatchResult]()
+    @volatile var completed = false
+
+    override def onNext(result: BatchDispatchResult): Unit = results.put(result)
+
+    override def onError(t: Throwable): Unit = ()
+
+    override def onCompleted(): Unit = completed = true
+
+    def nextResult(): BatchDispatchResult = results.poll(5, TimeUnit.SECONDS)
+  }
+
+  describe("Span Batch Agent Grpc service") {
+    it("should dispatch all the spans of a batch and acknowledge them once") {
+      val batch = SpanBatch.newBuilder().addSpans(span("s1")).addSpans(span("s2")).build()
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[BatchDispatchResult]]
+      val service = new SpanBatchAgentGrpcService(Collections.singletonList(dispatcher), Collections.emptyList())
+
+      val dispatchResult = EasyMock.newCapture[BatchDispatchResult]()
+
+      expecting {
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s2").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
+        responseObserver.onCompleted().once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        service.dispatchBatch(batch, responseObserver)
+        dispatchResult.getValue.getCode shouldBe ResultCode.SUCCESS
+        dispatchResult.getValue.getSpanCount shouldBe 2
+        dispatchResult.getValue.getErrorMessage shouldBe ""
+        dispatchResult.getValue.getFailuresCount shouldBe 0
+      }
+    }
+
+    it("should report the failure details only for the spans that failed") {
+      val batch = SpanBatch.newBuilder().addSpans(span("s1")).addSpans(span("s2")).addSpans(span("s3")).build()
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[BatchDispatchResult]]
+      val service = new SpanBatchAgentGrpcService(Collections.singletonList(dispatcher), Collections.emptyList())
+
+      val dispatchResult = EasyMock.newCapture[BatchDispatchResult]()
+
+      expecting {
+        dispatcher.getName.andReturn("test-dispatcher").anyTimes()
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s2").toByteArray).andReturn(DispatchAck.failed(new RateLimitException("Rate Limit Error!")))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s3").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
+        responseObserver.onCompleted().once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        service.dispatchBatch(batch, responseObserver)
+        val result = dispatchResult.getValue
+        result.getCode shouldBe ResultCode.RATE_LIMIT_ERROR
+        result.getSpanCount shouldBe 3
+        result.getErrorMessage shouldEqual "Fail to dispatch 1 out of 3 span records"
+        result.getFailuresCount shouldBe 1
+        result.getFailures(0).getIndex shouldBe 1
+        result.getFailures(0).getSpanId shouldEqual "s2"
+        result.getFailures(0).getCode shouldBe ResultCode.RATE_LIMIT_ERROR
+        result.getFailures(0).getErrorMessage shouldEqual "Fail to dispatch the span record to the dispatchers=test-dispatcher"
+      }
+    }
+
+    it("should dispatch the streamed spans and acknowledge them when the client completes the stream") {
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = mock[StreamObserver[BatchDispatchResult]]
+      val service = new SpanBatchAgentGrpcService(Collections.singletonList(dispatcher), Collections.emptyList())
+
+      val dispatchResult = EasyMock.newCapture[BatchDispatchResult]()
+
+      expecting {
+        dispatcher.getName.andReturn("test-dispatcher").anyTimes()
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.failed(new RuntimeException("Fail to dispatch")))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s2").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        responseObserver.onNext(EasyMock.capture(dispatchResult)).once()
+        responseObserver.onCompleted().once()
+      }
+
+      whenExecuting(dispatcher, responseObserver) {
+        val requestObserver = service.dispatchStream(responseObserver)
+        requestObserver.onNext(span("s1"))
+        requestObserver.onNext(span("s2"))
+        requestObserver.onCompleted()
+
+        val result = dispatchResult.getValue
+        result.getCode shouldBe ResultCode.UNKNOWN_ERROR
+        result.getSpanCount shouldBe 2
+        result.getFailuresCount shouldBe 1
+        result.getFailures(0).getIndex shouldBe 0
+        result.getFailures(0).getSpanId shouldEqual "s1"
+      }
+    }
+
+    it("should acknowledge every window of the stream once it has enough spans") {
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = new RecordingObserver
+      val service = new SpanBatchAgentGrpcService(
+        new SpanDispatchHandler(Collections.singletonList(dispatcher), Collections.emptyList[Enricher]()), 2, 60000L)
+
+      expecting {
+        dispatcher.getName.andReturn("test-dispatcher").anyTimes()
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s2").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s3").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s4").toByteArray).andReturn(DispatchAck.failed(new RateLimitException("Rate Limit Error!")))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s5").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+      }
+
+      whenExecuting(dispatcher) {
+        val requestObserver = service.dispatchStream(responseObserver)
+        requestObserver.onNext(span("s1"))
+        requestObserver.onNext(span("s2"))
+        responseObserver.nextResult().getSpanCount shouldBe 2
+
+        requestObserver.onNext(span("s3"))
+        requestObserver.onNext(span("s4"))
+        val second = responseObserver.nextResult()
+        second.getSpanCount shouldBe 2
+        second.getCode shouldBe ResultCode.RATE_LIMIT_ERROR
+        second.getFailures(0).getIndex shouldBe 1
+        second.getFailures(0).getSpanId shouldEqual "s4"
+
+        requestObserver.onNext(span("s5"))
+        responseObserver.completed shouldBe false
+        requestObserver.onCompleted()
+        responseObserver.nextResult().getSpanCount shouldBe 1
+        responseObserver.completed shouldBe true
+        responseObserver.results shouldBe empty
+      }
+    }
+
+    it("should give every window of the stream a request budget of its own") {
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = new RecordingObserver
+      val governor = new SpanSizeGovernor(SpanSizeConfig.from(ConfigFactory.parseString(
+        s"max.request.bytes = ${span("s1").getSerializedSize}")), "spans")
+      val handler = new SpanDispatchHandler(Collections.singletonList(dispatcher), Collections.emptyList[Enricher](),
+        null, null, null, null, governor, null)
+      val service = new SpanBatchAgentGrpcService(handler, 1, 60000L)
+
+      expecting {
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s2").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s3").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+      }
+
+      whenExecuting(dispatcher) {
+        val requestObserver = service.dispatchStream(responseObserver)
+        Seq("s1", "s2", "s3").foreach(id => requestObserver.onNext(span(id)))
+        requestObserver.onCompleted()
+        (1 to 3).foreach(_ => responseObserver.nextResult().getCode shouldBe ResultCode.SUCCESS)
+      }
+    }
+
+    it("should acknowledge the window of the stream once it is old enough") {
+      val dispatcher = mock[Dispatcher]
+      val responseObserver = new RecordingObserver
+      val service = new SpanBatchAgentGrpcService(
+        new SpanDispatchHandler(Collections.singletonList(dispatcher), Collections.emptyList[Enricher]()), 1000, 50L)
+
+      expecting {
+        dispatcher.dispatchAsync("traceid".getBytes("utf-8"), span("s1").toByteArray).andReturn(DispatchAck.completed("test-dispatcher"))
+      }
+
+      whenExecuting(dispatcher) {
+        val requestObserver = service.dispatchStream(responseObserver)
+        requestObserver.onNext(span("s1"))
+
+        val result = responseObserver.nextResult()
+        result.getSpanCount shouldBe 1
+        result.getCode shouldBe ResultCode.SUCCESS
+        responseObserver.completed shouldBe false
+      }
+    }
+
+    it("should stop the timer of the stream windows on close") {
+      val service = new SpanBatchAgentGrpcService(
+        new SpanDispatchHandler(Collections.singletonList(mock[Dispatcher]), Collections.emptyList[Enricher]()), 1000, 50L)
+      service.isClosed shouldBe false
+      service.close()
+      service.isClosed shouldBe true
+    }
+  }
+}
@@ -23,8 +23,14 @@ import java.net.URL
 import java.util
 
 import com.expedia.open.tracing.Span
+import com.expedia.www.haystack.agent.core.Dispatcher
+import com.expedia.www.haystack.agent.core.dispatcher.{BulkheadDispatcher, CircuitBreakerDispatcher}
+import com.expedia.www.haystack.agent.span.helpers.{RegionEnricher, TestDispatcher}
 import com.expedia.www.haystack.agent.span.enricher.Enricher
+import com.expedia.www.haystack.agent.span.service.{SpanAgentGrpcService, SpanAgentPassthroughGrpcService, SpanGrpcHealthService}
+import com.expedia.www.haystack.agent.span.service.config.GrpcServerConfig
 import com.typesafe.config.ConfigFactory
+import io.grpc.netty.NettyServerBuilder
 import org.scalatest.easymock.EasyMockSugar
 import org.scalatest.{FunSpec, Matchers}
 
@@ -37,6 +43,7 @@ class DummyEnricher extends Enricher {
 class SpanAgentSpec extends FunSpec with Matchers with EasyMockSugar {
 
   private val dispatcherLoadFile = "META-INF/services/com.expedia.www.haystack.agent.core.Dispatcher"
+  private val enricherLoadFile = "META-INF/services/com.expedia.www.haystack.agent.span.enricher.Enricher"
 
   describe("Span Agent") {
     it("should return the 'spans' as agent name") {
@@ -90,6 +97,104 @@ class SpanAgentSpec extends FunSpec with Matchers with EasyMockSugar {
       dispatchers.foreach(_.close())
     }
 
+    it("should run a dispatcher with a bulkhead section behind its own queue") {
+      val agent = new SpanAgent()
+      val cfg = ConfigFactory.parseString(
+        """
+          |    port = 8080
+          |
+          |    dispatchers {
+          |      test-dispatcher {
+          |        queueName = "myqueue"
+          |        bulkhead {
+          |          queue.size = 100
+          |          overflow.policy = drop-newest
+          |        }
+          |      }
+          |    }
+        """.stripMargin)
+
+      val cl = new ReplacingClassLoader(getClass.getClassLoader, dispatcherLoadFile, "dispatcherProvider.txt")
+      val dispatchers = agent.loadAndInitializeDispatchers(cfg, cl, "spans")
+      dispatchers.size() shouldBe 1
+      dispatchers.head shouldBe a[BulkheadDispatcher]
+      dispatchers.head.getName shouldBe "test-dispatcher"
+      dispatchers.foreach(_.close())
+    }
+
+    it("should run a dispatcher with a circuitbreaker section behind a breaker with its fallback dispatcher") {
+      val agent = new SpanAgent()
+      val cfg = ConfigFactory.parseString(
+        """
+          |    port = 8080
+          |
+          |    dispatchers {
+          |      test-dispatcher {
+          |        queueName = "myqueue"
+          |        circuitbreaker {
+          |          window.size = 10
+          |          fallback {
+          |            dispatcher = "test-dispatcher-2"
+          |            queueName = "myqueue"
+          |          }
+          |        }
+          |      }
+          |    }
+        """.stripMargin)
+
+      val cl = new ReplacingClassLoader(getClass.getClassLoader, dispatcherLoadFile, "dispatcherProvider.txt")
+      val dispatchers = agent.loadAndInitializeDispatchers(cfg, cl, "spans")
+      dispatchers.size() shouldBe 1
+      dispatchers.head shouldBe a[CircuitBreakerDispatcher]
+      dispatchers.head.getName shouldBe "test-dispatcher"
+      dispatchers.foreach(_.close())
+    }
+
+    it("should fail to load a circuit breaker with an unknown fallback dispatcher") {
+      val agent = new SpanAgent()
+      val cfg = ConfigFactory.parseString(
+        """
+          |    port = 8080
+          |
+          |    dispatchers {
+          |      test-dispatcher {
+          |        queueName = "myqueue"
+          |        circuitbreaker.fallback.dispatcher = "unknown"
+          |      }
+          |    }
+        """.stripMargin)
+
+      val cl = new ReplacingClassLoader(getClass.getClassLoader, dispatcherLoadFile, "dispatcherProvider.txt")
+      val caught = intercept[IllegalArgumentException] {
+        agent.loadAndInitializeDispatchers(cfg, cl, "spans")
+      }
+      caught.getMessage shouldEqual "Fail to find the fallback dispatcher 'unknown'"
+    }
+
+    it("should build the ring buffer stage only if the agent has an enabled 'ringbuffer' section") {
+      val agent = new SpanAgent()
+      val dispatchers = util.Arrays.asList[Dispatcher](new TestDispatcher())
+
+      agent.buildRingBuffer(ConfigFactory.parseString("port = 8080"), dispatchers, "spans") shouldBe null
+      agent.buildRingBuffer(ConfigFactory.parseString("ringbuffer.enabled = false"), dispatchers, "spans") shouldBe null
+
+      val ringBuffer = agent.buildRingBuffer(ConfigFactory.parseString("ringbuffer.size = 64"), dispatchers, "spans")
+      ringBuffer.getDispatchers shouldBe dispatchers
+      ringBuffer.close()
+    }
+
+    it("should build the tail sampler only if the agent has an enabled 'tail.sampling' section") {
+      val agent = new SpanAgent()
+      val dispatchers = util.Arrays.asList[Dispatcher](new TestDispatcher())
+
+      agent.buildTailSampler(ConfigFactory.parseString("port = 8080"), dispatchers, null, "spans") shouldBe null
+      agent.buildTailSampler(ConfigFactory.parseString("tail.sampling.enabled = false"), dispatchers, null, "spans") shouldBe null
+
+      val sampler = agent.buildTailSampler(ConfigFactory.parseString("tail.sampling.decision.window.millis = 1000"), dispatchers, null, "spans")
+      sampler should not be null
+      sampler.close()
+    }
+
     it("should not load a 'disabled' dispatcher") {
       val agent = new SpanAgent()
       val cfg = ConfigFactory.parseString(
@@ -150,6 +255,90 @@ class SpanAgentSpec extends FunSpec with Matchers with EasyMockSugar {
       val enrichers = agent.loadSpanEnrichers(cfg)
       enrichers.length shouldBe 1
     }
+
+    it("should load, initialize, order and close the enricher services") {
+      val agent = new SpanAgent()
+      val cfg = ConfigFactory.parseString(
+        """
+          |    enrichers {
+          |      region {
+          |        value = "us-west-2"
+          |        order = 2
+          |      }
+          |      zone {
+          |        order = 1
+          |      }
+          |    }
+        """.stripMargin)
+
+      val cl = new ReplacingClassLoader(getClass.getClassLoader, enricherLoadFile, "enricherProvider.txt")
+      val enrichers = agent.loadSpanEnrichers(cfg, cl, "spans")
+      enrichers.map(_.getName) shouldEqual Seq("zone", "region")
+
+      val span = Enricher.enrichSpan(Span.newBuilder().setTraceId("trace-1").build(), enrichers)
+      span.getTagsList.map(_.getVStr) shouldEqual Seq("a", "us-west-2")
+
+      agent.close()
+      RegionEnricher.closed shouldBe true
+
+      val disabled = ConfigFactory.parseString("enrichers { region { enabled = false, value = x } }")
+      agent.loadSpanEnrichers(disabled, cl, "spans") shouldBe empty
+    }
+
+    it("should forward the span bytes as is only if passthrough is enabled and there are no enrichers") {
+      val agent = new SpanAgent()
+      val passthrough = ConfigFactory.parseString("passthrough.enabled = true")
+      val dispatchers = util.Collections.singletonList[Dispatcher](new TestDispatcher)
+
+      agent.buildSpanService(passthrough, dispatchers, util.Collections.emptyList()) shouldBe a [SpanAgentPassthroughGrpcService]
+      agent.buildSpanService(passthrough, dispatchers, util.Collections.singletonList(new DummyEnricher)) shouldBe a [SpanAgentGrpcService]
+      agent.buildSpanService(ConfigFactory.empty(), dispatchers, util.Collections.emptyList()) shouldBe a [SpanAgentGrpcService]
+    }
+
+    it("should start the grpc server with a bounded executor") {
+      val agent = new SpanAgent()
+      val serverConfig = GrpcServerConfig.from(ConfigFactory.parseString(
+        """
+          |    server.executor {
+          |      type = bounded
+          |      threads = 2
+          |      queue.size = 10
+          |    }
+        """.stripMargin))
+
+      val server = agent.configureServerBuilder(NettyServerBuilder.forPort(0), serverConfig)
+        .addService(new SpanGrpcHealthService())
+        .build()
+        .start()
+      server.getPort should be > 0
+      server.shutdownNow()
+    }
+
+    it("should reject the calls of a full bounded executor instead of running them on the event loop") {
+      val agent = new SpanAgent()
+      val serverConfig = GrpcServerConfig.from(ConfigFactory.parseString(
+        """
+          |    server.executor {
+          |      type = bounded
+          |      threads = 1
+          |      queue.size = 2
+          |    }
+        """.stripMargin))
+      agent.configureServerBuilder(NettyServerBuilder.forPort(0), serverConfig)
+
+      val executor = agent.getExecutor
+      val release = new CountDownLatch(1)
+      executor.execute(() => release.await())
+      executor.execute(() => ())
+      executor.execute(() => ())
+
+      var ranOnCaller = false
+      intercept[RejectedExecutionException](executor.execute(() => ranOnCaller = true))
+      ranOnCaller shouldBe false
+
+      release.countDown()
+      executor.shutdown()
+    }
   }
 
   class ReplacingClassLoader(val parent: ClassLoader, val resource: String, val replacement: String) extends ClassLoader(parent) {
@@ -38,9 +38,7 @@ public class AgentLoader {
     void run(String configProviderName, final Map<String, String> configProviderArgs) throws Exception {
         SharedMetricRegistry.startJmxMetricReporter();
 
-        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        final Config config = loadConfig(configProviderName, configProviderArgs, cl);
-        final List<Agent> runningAgents = loadAgents(config, cl, true);
+        final List<Agent> runningAgents = start(configProviderName, configProviderArgs);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             for (final Agent agent : runningAgents) {
@@ -52,6 +50,23 @@ public class AgentLoader {
         }));
 }
 
+    /**
+     * reads the config with the named config provider and starts its enabled agents, each on its own thread as the
+     * span agent blocks the thread that initializes it, the way the sidecar does. The agents may still be starting
+     * when this returns
+     * @param configProviderName name of the config provider, like 'file'
+     * @param configProviderArgs arguments of the config provider, like '--file-path'
+     * @return the started agents, the caller closes them
+     * @throws Exception if the config can't be read or an agent can't be found
+     */
+    public static List<Agent> start(final String configProviderName,
+                                    final Map<String, String> configProviderArgs) throws Exception {
+        final AgentLoader loader = new AgentLoader();
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        final Config config = loader.loadConfig(configProviderName, configProviderArgs, cl);
+        return loader.loadAgents(config, cl, true);
+    }
+
     @VisibleForTesting
     List<Agent> loadAgents(final Config config, final ClassLoader cl, final boolean loadAgentOnSeparateThread) throws Exception {
         final ServiceLoader<Agent> agentLoader = ServiceLoader.load(Agent.class, cl);
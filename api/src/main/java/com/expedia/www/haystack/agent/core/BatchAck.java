@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * collects the outcome of every record of a batch into one ack. The ack completes once every record has been
+ * acknowledged or failed, and fails with the first error if any of the records failed. It is safe to report the
+ * outcomes from different threads
+ */
+public final class BatchAck {
+    private final String dispatcherName;
+    private final AtomicInteger pending;
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+
+    public BatchAck(final String dispatcherName, final int records) {
+        this.dispatcherName = dispatcherName;
+        this.pending = new AtomicInteger(records);
+        if (records <= 0) {
+            ack.complete(new DispatchAck(dispatcherName));
+        }
+    }
+
+    public void onSuccess() {
+        onComplete();
+    }
+
+    public void onFailure(final Throwable throwable) {
+        error.compareAndSet(null, throwable);
+        onComplete();
+    }
+
+    /**
+     * @return future of the ack of the whole batch
+     */
+    public CompletableFuture<DispatchAck> getAck() {
+        return ack;
+    }
+
+    private void onComplete() {
+        if (pending.decrementAndGet() == 0) {
+            final Throwable failure = error.get();
+            if (failure == null) {
+                ack.complete(new DispatchAck(dispatcherName));
+            } else {
+                ack.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * acknowledgement of a record by the sink of a dispatcher
+ */
+public final class DispatchAck {
+    private final String dispatcherName;
+
+    public DispatchAck(final String dispatcherName) {
+        this.dispatcherName = dispatcherName;
+    }
+
+    /**
+     * @return name of the dispatcher whose sink acknowledged the record
+     */
+    public String getDispatcherName() {
+        return dispatcherName;
+    }
+
+    /**
+     * @param dispatcherName name of the dispatcher
+     * @return a future that is already completed with the ack of the given dispatcher
+     */
+    public static CompletableFuture<DispatchAck> completed(final String dispatcherName) {
+        return CompletableFuture.completedFuture(new DispatchAck(dispatcherName));
+    }
+
+    /**
+     * @param error dispatch error
+     * @return a future that has already failed with the given error
+     */
+    public static CompletableFuture<DispatchAck> failed(final Throwable error) {
+        final CompletableFuture<DispatchAck> ack = new CompletableFuture<>();
+        ack.completeExceptionally(error);
+        return ack;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.core;
+
+/**
+ * a single record of a batch handed over to a dispatcher
+ */
+public final class DispatchRecord {
+    private final byte[] partitionKey;
+    private final byte[] data;
+
+    public DispatchRecord(final byte[] partitionKey, final byte[] data) {
+        this.partitionKey = partitionKey;
+        this.data = data;
+    }
+
+    /**
+     * @return partition key of the record, can be null
+     */
+    public byte[] getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @return record bytes that need to be dispatched to the sink
+     */
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -19,6 +19,9 @@ package com.expedia.www.haystack.agent.core;
 
 import com.typesafe.config.Config;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public interface Dispatcher extends AutoCloseable {
     /**
      * returns the unique name for this dispatcher
@@ -34,6 +37,58 @@ public interface Dispatcher extends AutoCloseable {
      */
     void dispatch(final byte[] partitionKey, final byte[] data) throws Exception;
 
+    /**
+     * dispatch the record to the sink without waiting for the sink to acknowledge it.
+     * The default implementation adapts the synchronous {@link #dispatch(byte[], byte[])} and runs it on the
+     * calling thread, dispatchers with an asynchronous client should override it
+     *
+     * @param partitionKey partitionKey if present, else send null
+     * @param data         in bytes that need to be dispatched to the sink
+     * @return a future that completes once the sink acknowledges the record, or fails with the dispatch error
+     */
+    default CompletableFuture<DispatchAck> dispatchAsync(final byte[] partitionKey, final byte[] data) {
+        try {
+            dispatch(partitionKey, data);
+            return DispatchAck.completed(getName());
+        } catch (Exception e) {
+            return DispatchAck.failed(e);
+        }
+    }
+
+    /**
+     * dispatch a batch of records to the sink. The default implementation dispatches the records one by one
+     *
+     * @param records records that need to be dispatched to the sink
+     * @throws Exception throws exception if any of the records fails to dispatch
+     */
+    default void dispatchBatch(final List<DispatchRecord> records) throws Exception {
+        for (final DispatchRecord record : records) {
+            dispatch(record.getPartitionKey(), record.getData());
+        }
+    }
+
+    /**
+     * dispatch a batch of records to the sink as one unit of work. The default implementation calls
+     * {@link #dispatchAsync(byte[], byte[])} for every record, dispatchers that can hand over many records at once
+     * to their client should override it
+     *
+     * @param records records that need to be dispatched to the sink
+     * @return a future that completes once the sink acknowledges all the records, or fails with the first dispatch error
+     */
+    default CompletableFuture<DispatchAck> dispatchBatchAsync(final List<DispatchRecord> records) {
+        final BatchAck batchAck = new BatchAck(getName(), records.size());
+        for (final DispatchRecord record : records) {
+            dispatchAsync(record.getPartitionKey(), record.getData()).whenComplete((ack, error) -> {
+                if (error == null) {
+                    batchAck.onSuccess();
+                } else {
+                    batchAck.onFailure(error);
+                }
+            });
+        }
+        return batchAck.getAck();
+    }
+
     /**
      * initializes the dispatcher for pushing span records to the sink
      * 
@@ -20,6 +20,8 @@ package com.expedia.www.haystack.agent.core.metrics;
 import com.codahale.metrics.*;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.SortedMap;
+
 public class SharedMetricRegistry {
     private final static String MetricRegistryName = "HAYSTACK_AGENT_METRIC_REGISTRY";
     private final static Object lock = new Object();
@@ -69,6 +71,22 @@ public class SharedMetricRegistry {
         return get().meter(name);
     }
 
+    /**
+     * @param name histogram name
+     * @return a new histogram object
+     */
+    public static Histogram newHistogram(final String name) {
+        return get().histogram(name);
+    }
+
+    /**
+     * @param filter filter on the meter names
+     * @return the meters of the shared registry that match the filter, sorted by name
+     */
+    public static SortedMap<String, Meter> getMeters(final MetricFilter filter) {
+        return get().getMeters(filter);
+    }
+
     public static <T> Gauge newGauge(final String name, final Gauge<T> gauge) {
         return get().gauge(name, () -> gauge);
     }
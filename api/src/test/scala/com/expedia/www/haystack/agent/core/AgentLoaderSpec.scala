@@ -53,6 +53,13 @@ class AgentLoaderSpec extends FunSpec with Matchers {
       caught.getMessage shouldEqual "Fail to load the config provider for type = http"
     }
 
+    it("should fail to start the agents with an unknown config provider") {
+      val caught = intercept[ServiceConfigurationError] {
+        AgentLoader.start("unknown", new util.HashMap[String, String])
+      }
+      caught.getMessage shouldEqual "Fail to load the config provider for type = unknown"
+    }
+
     it("should load and initialize the agent using the config object") {
       val cl = new ReplacingClassLoader(getClass.getClassLoader, agentServiceFile, "singleAgentProvider.txt")
 
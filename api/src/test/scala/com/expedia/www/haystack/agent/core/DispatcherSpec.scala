@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+
+package com.expedia.www.haystack.agent.core
+
+import java.util
+import java.util.concurrent.ExecutionException
+
+import com.typesafe.config.Config
+import org.scalatest.{FunSpec, Matchers}
+
+import scala.collection.mutable.ListBuffer
+
+class DispatcherSpec extends FunSpec with Matchers {
+
+  private class RecordingDispatcher(failOn: String) extends Dispatcher {
+    val received = ListBuffer[String]()
+
+    override def getName: String = "recording"
+
+    override def dispatch(partitionKey: Array[Byte], data: Array[Byte]): Unit = {
+      val value = new String(data)
+      if (value == failOn) throw new RateLimitException("rate limited")
+      received += value
+    }
+
+    override def initialize(conf: Config): Unit = ()
+
+    override def close(): Unit = ()
+  }
+
+  private def records(values: String*): util.List[DispatchRecord] = {
+    val list = new util.ArrayList[DispatchRecord]()
+    values.foreach(v => list.add(new DispatchRecord(v.getBytes, v.getBytes)))
+    list
+  }
+
+  describe("Dispatcher") {
+    it("should adapt the synchronous dispatch into a completed ack") {
+      val dispatcher = new RecordingDispatcher("fail")
+      dispatcher.dispatchAsync("k".getBytes, "a".getBytes).get().getDispatcherName shouldEqual "recording"
+
+      val failed = dispatcher.dispatchAsync("k".getBytes, "fail".getBytes)
+      failed.isCompletedExceptionally shouldBe true
+      intercept[ExecutionException](failed.get()).getCause shouldBe a[RateLimitException]
+    }
+
+    it("should dispatch every record of a batch and ack the batch once") {
+      val dispatcher = new RecordingDispatcher("fail")
+      dispatcher.dispatchBatchAsync(records("a", "b", "c")).get().getDispatcherName shouldEqual "recording"
+      dispatcher.received shouldEqual Seq("a", "b", "c")
+    }
+
+    it("should fail the batch ack if any of the records fails, but still dispatch the rest") {
+      val dispatcher = new RecordingDispatcher("b")
+      val ack = dispatcher.dispatchBatchAsync(records("a", "b", "c"))
+      intercept[ExecutionException](ack.get()).getCause shouldBe a[RateLimitException]
+      dispatcher.received shouldEqual Seq("a", "c")
+    }
+
+    it("should ack an empty batch right away") {
+      new RecordingDispatcher("fail").dispatchBatchAsync(records()).isDone shouldBe true
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.benchmarks;
+
+import com.expedia.open.tracing.Log;
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import zipkin2.Endpoint;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * spans shaped like the ones the agents take in production: a server span with the usual http tags, a client span
+ * with a remote endpoint and annotations, and a local span, in requests of ten spans
+ */
+public final class SpanFixtures {
+    public final static int SPANS_PER_REQUEST = 10;
+
+    private final static String TRACE_ID = "463ac35c9f6413ad48485a3953bb6124";
+    private final static long START_MICROS = 1561000000000000L;
+
+    private SpanFixtures() { }
+
+    public static zipkin2.Span serverSpan(final int idx) {
+        return zipkin2.Span.newBuilder()
+                .traceId(TRACE_ID)
+                .id(String.format("%016x", 0x1000L + idx))
+                .parentId("a2fb4a1d1a96d312")
+                .name("get /v1/bookings/{id}")
+                .kind(zipkin2.Span.Kind.SERVER)
+                .localEndpoint(Endpoint.newBuilder().serviceName("booking-service").ip("10.12.4.7").port(8080).build())
+                .timestamp(START_MICROS + idx)
+                .duration(21500L)
+                .putTag("http.method", "GET")
+                .putTag("http.path", "/v1/bookings/8d5f1a7c")
+                .putTag("http.status_code", "200")
+                .putTag("http.url", "https://booking.example.com/v1/bookings/8d5f1a7c?expand=traveler,payment")
+                .putTag("mvc.controller.class", "BookingController")
+                .putTag("mvc.controller.method", "getBooking")
+                .build();
+    }
+
+    public static zipkin2.Span clientSpan(final int idx) {
+        return zipkin2.Span.newBuilder()
+                .traceId(TRACE_ID)
+                .id(String.format("%016x", 0x2000L + idx))
+                .parentId(String.format("%016x", 0x1000L + idx))
+                .name("select")
+                .kind(zipkin2.Span.Kind.CLIENT)
+                .localEndpoint(Endpoint.newBuilder().serviceName("booking-service").ip("10.12.4.7").build())
+                .remoteEndpoint(Endpoint.newBuilder().serviceName("mysql").ip("10.12.9.21").port(3306).build())
+                .timestamp(START_MICROS + idx + 100)
+                .duration(4200L)
+                .addAnnotation(START_MICROS + idx + 150, "connection.acquired")
+                .addAnnotation(START_MICROS + idx + 4100, "rows.read")
+                .putTag("sql.query", "select id, status, traveler_id, total from booking where id = ? and tenant = ?")
+                .putTag("error", "false")
+                .build();
+    }
+
+    public static zipkin2.Span localSpan(final int idx) {
+        return zipkin2.Span.newBuilder()
+                .traceId(TRACE_ID)
+                .id(String.format("%016x", 0x3000L + idx))
+                .parentId(String.format("%016x", 0x1000L + idx))
+                .name("render")
+                .localEndpoint(Endpoint.newBuilder().serviceName("booking-service").build())
+                .timestamp(START_MICROS + idx + 5000)
+                .duration(800L)
+                .putTag("lc", "template")
+                .build();
+    }
+
+    /**
+     * @return the spans of a request, mostly server and client spans with a few local ones
+     */
+    public static List<zipkin2.Span> zipkinRequest() {
+        final List<zipkin2.Span> spans = new ArrayList<>(SPANS_PER_REQUEST);
+        for (int idx = 0; idx < SPANS_PER_REQUEST; idx++) {
+            switch (idx % 3) {
+                case 0:
+                    spans.add(serverSpan(idx));
+                    break;
+                case 1:
+                    spans.add(clientSpan(idx));
+                    break;
+                default:
+                    spans.add(localSpan(idx));
+                    break;
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * @return the body of a zipkin request of ten spans in the format of the encoder
+     */
+    public static byte[] zipkinPayload(final SpanBytesEncoder encoder) {
+        return encoder.encodeList(zipkinRequest());
+    }
+
+    /**
+     * @return a haystack span like the ones sent by the haystack clients to the span agent
+     */
+    public static Span haystackSpan() {
+        return Span.newBuilder()
+                .setTraceId("6a5f3a4e-2a3b-4c1d-8e9f-0a1b2c3d4e5f")
+                .setSpanId("0c2e1f0a-9b8c-4d7e-a6f5-e4d3c2b1a090")
+                .setParentSpanId("b1a0f9e8-d7c6-4b5a-9483-726150ffeedd")
+                .setServiceName("booking-service")
+                .setOperationName("get /v1/bookings/{id}")
+                .setStartTime(START_MICROS)
+                .setDuration(21500L)
+                .addTags(stringTag("span.kind", "server"))
+                .addTags(stringTag("http.method", "GET"))
+                .addTags(stringTag("http.url", "https://booking.example.com/v1/bookings/8d5f1a7c?expand=traveler,payment"))
+                .addTags(Tag.newBuilder().setKey("http.status_code").setType(Tag.TagType.LONG).setVLong(200))
+                .addTags(Tag.newBuilder().setKey("error").setType(Tag.TagType.BOOL).setVBool(false))
+                .addLogs(Log.newBuilder().setTimestamp(START_MICROS + 150).addFields(stringTag("event", "sr")))
+                .addLogs(Log.newBuilder().setTimestamp(START_MICROS + 21400).addFields(stringTag("event", "ss")))
+                .build();
+    }
+
+    public static Tag stringTag(final String key, final String value) {
+        return Tag.newBuilder().setKey(key).setType(Tag.TagType.STRING).setVStr(value).build();
+    }
+}
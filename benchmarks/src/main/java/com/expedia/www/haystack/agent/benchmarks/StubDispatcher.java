@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.benchmarks;
+
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.typesafe.config.Config;
+
+/**
+ * dispatcher that acknowledges every record right away, so a benchmark measures the agent and not a sink
+ */
+public class StubDispatcher implements Dispatcher {
+    private long dispatchedBytes;
+
+    @Override
+    public String getName() {
+        return "stub";
+    }
+
+    @Override
+    public void dispatch(final byte[] partitionKey, final byte[] data) {
+        dispatchedBytes += data.length;
+    }
+
+    public long getDispatchedBytes() {
+        return dispatchedBytes;
+    }
+
+    @Override
+    public void initialize(final Config conf) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.dispatcher;
+
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * json printing of the logger dispatcher. The logback config of the benchmarks enables its debug logs and drops
+ * them, so the span is decoded and printed without the cost of an appender
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerDispatcherBenchmark {
+    private LoggerDispatcher dispatcher;
+    private byte[] partitionKey;
+    private byte[] spanBytes;
+
+    @Setup
+    public void setup() {
+        dispatcher = new LoggerDispatcher();
+        partitionKey = SpanFixtures.haystackSpan().getTraceIdBytes().toByteArray();
+        spanBytes = SpanFixtures.haystackSpan().toByteArray();
+    }
+
+    @Benchmark
+    public void dispatch() {
+        dispatcher.dispatch(partitionKey, spanBytes);
+    }
+}
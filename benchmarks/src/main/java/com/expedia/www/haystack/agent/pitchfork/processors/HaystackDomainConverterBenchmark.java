@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * conversion of a decoded zipkin span into a haystack span, for every shape of span
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HaystackDomainConverterBenchmark {
+    @Param({"server", "client", "local"})
+    private String shape;
+
+    private zipkin2.Span zipkinSpan;
+
+    @Setup
+    public void setup() {
+        switch (shape) {
+            case "server":
+                zipkinSpan = SpanFixtures.serverSpan(0);
+                break;
+            case "client":
+                zipkinSpan = SpanFixtures.clientSpan(0);
+                break;
+            default:
+                zipkinSpan = SpanFixtures.localSpan(0);
+                break;
+        }
+    }
+
+    @Benchmark
+    public Span fromZipkinV2() {
+        return HaystackDomainConverter.fromZipkinV2(zipkinSpan);
+    }
+}
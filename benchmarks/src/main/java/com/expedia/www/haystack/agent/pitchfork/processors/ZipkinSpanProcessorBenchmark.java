@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.pitchfork.processors;
+
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import com.expedia.www.haystack.agent.benchmarks.StubDispatcher;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a zipkin request of ten spans, from the body to the acknowledgement of a stub dispatcher, in every format the
+ * pitchfork agent takes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipkinSpanProcessorBenchmark {
+    @Param({"JSON_V1", "JSON_V2", "THRIFT", "PROTO3"})
+    private String format;
+
+    private ZipkinSpanProcessor processor;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        processor = new ZipkinSpanProcessor(SpanBytesDecoder.valueOf(format),
+                new SpanValidator(ConfigFactory.empty()),
+                Collections.singletonList(new StubDispatcher()),
+                Collections.emptyList());
+        payload = SpanFixtures.zipkinPayload(SpanBytesEncoder.valueOf(format));
+    }
+
+    @Benchmark
+    public Void process() {
+        return processor.process(payload).join();
+    }
+}
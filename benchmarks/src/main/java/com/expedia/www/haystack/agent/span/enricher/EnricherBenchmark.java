@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.enricher;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * builder enrichment of a span by enrichers that each add a tag, against the static tags appended to its bytes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnricherBenchmark {
+    @Param({"0", "1", "5"})
+    private int enricherCount;
+
+    private Span span;
+    private byte[] spanBytes;
+    private List<Enricher> enrichers;
+    private StaticTags staticTags;
+
+    @Setup
+    public void setup() {
+        span = SpanFixtures.haystackSpan();
+        spanBytes = span.toByteArray();
+        enrichers = new ArrayList<>();
+        for (int idx = 0; idx < enricherCount; idx++) {
+            final String key = "static.tag." + idx;
+            enrichers.add(builder -> builder.addTags(SpanFixtures.stringTag(key, "value")));
+        }
+        staticTags = enricherCount == 0 ? null : new StaticTags(enrichedTags());
+    }
+
+    private List<Tag> enrichedTags() {
+        final List<Tag> tags = new ArrayList<>();
+        for (int idx = 0; idx < enricherCount; idx++) {
+            tags.add(SpanFixtures.stringTag("static.tag." + idx, "value"));
+        }
+        return Collections.unmodifiableList(tags);
+    }
+
+    @Benchmark
+    public byte[] enrichSpan() {
+        return Enricher.enrichSpan(span, enrichers).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] appendStaticTags() {
+        return staticTags == null ? spanBytes : staticTags.appendTo(spanBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeWithStaticTags() {
+        return staticTags == null ? span.toByteArray() : staticTags.appendTo(span);
+    }
+}
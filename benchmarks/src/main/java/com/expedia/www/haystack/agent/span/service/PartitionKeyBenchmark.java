@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * partition key of a span received as bytes: read from the wire by the passthrough mode, or from the decoded span
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionKeyBenchmark {
+    private byte[] spanBytes;
+
+    @Setup
+    public void setup() {
+        spanBytes = SpanFixtures.haystackSpan().toByteArray();
+    }
+
+    @Benchmark
+    public byte[] fromSerializedSpan() {
+        return new SerializedSpan(spanBytes).getTraceIdBytes();
+    }
+
+    @Benchmark
+    public byte[] fromDecodedSpan() throws Exception {
+        return Span.parseFrom(spanBytes).getTraceId().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.span.service;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.agent.api.DispatchResult;
+import com.expedia.www.haystack.agent.core.Dispatcher;
+import com.expedia.www.haystack.agent.benchmarks.SpanFixtures;
+import com.expedia.www.haystack.agent.benchmarks.StubDispatcher;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * unary dispatch call of the span agent, from the decoded span to the acknowledgement of the stub dispatchers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpanAgentGrpcServiceBenchmark {
+    @Param({"1", "3"})
+    private int dispatcherCount;
+
+    private SpanAgentGrpcService service;
+    private Span span;
+
+    @Setup
+    public void setup() {
+        final List<Dispatcher> dispatchers = new ArrayList<>();
+        for (int idx = 0; idx < dispatcherCount; idx++) {
+            dispatchers.add(new StubDispatcher());
+        }
+        service = new SpanAgentGrpcService(dispatchers, Collections.emptyList());
+        span = SpanFixtures.haystackSpan();
+    }
+
+    @Benchmark
+    public void dispatch(final Blackhole blackhole) {
+        service.dispatch(span, new StreamObserver<DispatchResult>() {
+            @Override
+            public void onNext(final DispatchResult result) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                blackhole.consume(throwable);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+}
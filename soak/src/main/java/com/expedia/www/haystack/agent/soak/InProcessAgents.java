@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak;
+
+import com.expedia.www.haystack.agent.core.Agent;
+import com.expedia.www.haystack.agent.core.AgentLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * runs the agents of a config file in this process, loaded by the agent loader the way the sidecar loads them
+ */
+public final class InProcessAgents implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(InProcessAgents.class);
+
+    private final List<Agent> agents;
+
+    private InProcessAgents(final List<Agent> agents) {
+        this.agents = agents;
+    }
+
+    /**
+     * starts the enabled agents of the config file. The agents may still be starting when this returns
+     * @param configFile agents config read by the file config provider
+     * @return the started agents
+     * @throws Exception if the config can't be read or an agent can't be found
+     */
+    public static InProcessAgents start(final File configFile) throws Exception {
+        return new InProcessAgents(AgentLoader.start("file",
+                Collections.singletonMap("--file-path", configFile.getAbsolutePath())));
+    }
+
+    @Override
+    public void close() {
+        for (final Agent agent : agents) {
+            try {
+                agent.close();
+            } catch (Exception e) {
+                LOGGER.error("Fail to close the agent {}", agent.getName(), e);
+            }
+        }
+    }
+}
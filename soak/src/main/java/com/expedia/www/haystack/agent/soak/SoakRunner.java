@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak;
+
+import com.expedia.www.haystack.agent.soak.config.SinkConfig;
+import com.expedia.www.haystack.agent.soak.config.SoakConfig;
+import com.expedia.www.haystack.agent.soak.load.GrpcLoadTarget;
+import com.expedia.www.haystack.agent.soak.load.LoadStats;
+import com.expedia.www.haystack.agent.soak.load.LoadTarget;
+import com.expedia.www.haystack.agent.soak.load.OpenLoopDriver;
+import com.expedia.www.haystack.agent.soak.load.Payloads;
+import com.expedia.www.haystack.agent.soak.load.PitchforkLoadTarget;
+import com.expedia.www.haystack.agent.soak.report.SoakReport;
+import com.expedia.www.haystack.agent.soak.sink.StubHttpCollector;
+import com.expedia.www.haystack.agent.soak.sink.StubKafkaDispatcher;
+import com.expedia.www.haystack.agent.soak.sink.StubKinesisDispatcher;
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * runs a soak of the agents in this process: the agents of the soak config are loaded by the agent loader with a
+ * dispatcher to every enabled sink stand-in, and are driven by open loop loads on the grpc and pitchfork endpoints
+ * for the duration of the run. The only argument is the soak config file, the soak.conf resource is used without it
+ */
+public final class SoakRunner {
+    private final static Logger LOGGER = LoggerFactory.getLogger(SoakRunner.class);
+
+    private final static long AGENT_START_TIMEOUT_MILLIS = 60000L;
+    private final static long DRAIN_TIMEOUT_MILLIS = 10000L;
+
+    private final SoakConfig config;
+
+    SoakRunner(final SoakConfig config) {
+        this.config = config;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Config config = args.length > 0 ?
+                ConfigFactory.parseFile(new File(args[0])) : ConfigFactory.parseResources("soak.conf");
+        new SoakRunner(SoakConfig.from(config.resolve().getConfig(SoakConfig.SOAK_CONFIG_KEY))).run();
+        // the http dispatcher leaves the idle threads of its client running when it is closed
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        final StubHttpCollector collector = startHttpCollector();
+        final File agentsConfig = writeAgentsConfig(collector == null ? null : collector.getUrl());
+
+        final List<LoadTarget> targets = new ArrayList<>();
+        final List<OpenLoopDriver> drivers = new ArrayList<>();
+        try (InProcessAgents ignored = InProcessAgents.start(agentsConfig)) {
+            for (final String agentName : config.getAgents().keySet()) {
+                awaitPort(config.getAgentPort(agentName));
+            }
+            LOGGER.info("soak agents {} have started", config.getAgents().keySet());
+
+            buildTargets(targets, drivers);
+            soak(drivers);
+        } finally {
+            for (final LoadTarget target : targets) {
+                target.close();
+            }
+            if (collector != null) {
+                collector.close();
+            }
+        }
+    }
+
+    // the http dispatcher posts to a local collector, which answers with the behavior of the http sink
+    private StubHttpCollector startHttpCollector() throws Exception {
+        final SinkConfig httpSink = config.getSinks().get(SoakConfig.HTTP_SINK_NAME);
+        if (httpSink == null || !httpSink.isEnabled()) {
+            return null;
+        }
+        final StubHttpCollector collector = new StubHttpCollector(httpSink);
+        collector.start();
+        return collector;
+    }
+
+    // the agents config is read by the file config provider, like the config of the sidecar
+    private File writeAgentsConfig(final String httpCollectorUrl) throws IOException {
+        final File agentsConfig = File.createTempFile("soak-agents", ".conf");
+        agentsConfig.deleteOnExit();
+        final String rendered = buildAgentsConfig(httpCollectorUrl).root()
+                .render(ConfigRenderOptions.defaults().setOriginComments(false));
+        Files.write(agentsConfig.toPath(), rendered.getBytes(StandardCharsets.UTF_8));
+        return agentsConfig;
+    }
+
+    private void buildTargets(final List<LoadTarget> targets, final List<OpenLoopDriver> drivers) {
+        final Payloads payloads = new Payloads(config.getPayload());
+        if (config.getGrpcLoad().isEnabled()) {
+            final LoadTarget target = new GrpcLoadTarget(config.getAgentPort(SoakConfig.SPANS_AGENT_NAME), payloads);
+            targets.add(target);
+            drivers.add(new OpenLoopDriver(target, config.getGrpcLoad()));
+        }
+        if (config.getV1Load().isEnabled()) {
+            final LoadTarget target = new PitchforkLoadTarget("v1",
+                    config.getAgentPort(SoakConfig.PITCHFORK_AGENT_NAME), config.getV1Load(), payloads);
+            targets.add(target);
+            drivers.add(new OpenLoopDriver(target, config.getV1Load()));
+        }
+        if (config.getV2Load().isEnabled()) {
+            final LoadTarget target = new PitchforkLoadTarget("v2",
+                    config.getAgentPort(SoakConfig.PITCHFORK_AGENT_NAME), config.getV2Load(), payloads);
+            targets.add(target);
+            drivers.add(new OpenLoopDriver(target, config.getV2Load()));
+        }
+    }
+
+    // drives the loads for the duration of the run, with a report every interval
+    private void soak(final List<OpenLoopDriver> drivers) throws InterruptedException {
+        final List<LoadStats> stats = new ArrayList<>();
+        drivers.forEach(driver -> stats.add(driver.getStats()));
+        final SoakReport report = new SoakReport(stats);
+
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(config.getReportIntervalSeconds());
+        final long start = System.currentTimeMillis();
+        final long warmupEnd = start + TimeUnit.SECONDS.toMillis(config.getWarmupSeconds());
+        final long end = start + TimeUnit.SECONDS.toMillis(config.getDurationSeconds());
+        boolean warmingUp = warmupEnd > start;
+        long nextReport = start + intervalMillis;
+
+        drivers.forEach(OpenLoopDriver::start);
+        long now = start;
+        while (now < end) {
+            Thread.sleep(Math.max(Math.min(warmingUp ? Math.min(nextReport, warmupEnd) : nextReport, end) - now, 0L));
+            now = System.currentTimeMillis();
+            if (warmingUp && now >= warmupEnd) {
+                report.startMeasuring();
+                warmingUp = false;
+                nextReport = now + intervalMillis;
+            } else if (now >= nextReport && now < end) {
+                report.reportInterval();
+                nextReport += intervalMillis;
+            }
+        }
+
+        for (final OpenLoopDriver driver : drivers) {
+            driver.close();
+        }
+        report.reportRun();
+        awaitAnswers(stats);
+    }
+
+    private static void awaitAnswers(final List<LoadStats> stats) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (stats.stream().anyMatch(load -> load.getOutstanding() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @param httpCollectorUrl url the http dispatcher posts to, null if the http sink is not enabled
+     * @return config of the agents, each with a dispatcher to every enabled sink. What the soak config sets for an
+     * agent takes precedence, so it can also tune or decorate the dispatchers
+     */
+    Config buildAgentsConfig(final String httpCollectorUrl) {
+        Config dispatchers = ConfigFactory.empty();
+        for (final Map.Entry<String, SinkConfig> sink : config.getSinks().entrySet()) {
+            if (sink.getValue().isEnabled()) {
+                dispatchers = dispatchers.withFallback(dispatcherConfig(sink.getKey(), sink.getValue(), httpCollectorUrl));
+            }
+        }
+
+        Config agents = ConfigFactory.empty();
+        for (final Map.Entry<String, Config> agent : config.getAgents().entrySet()) {
+            final Config generated = ConfigFactory.parseMap(ImmutableMap.of("enabled", true))
+                    .withValue("dispatchers", dispatchers.root());
+            agents = agents.withValue(ConfigUtil.joinPath(agent.getKey()), agent.getValue().withFallback(generated).root());
+        }
+        return agents.atKey("agents");
+    }
+
+    private static Config dispatcherConfig(final String sinkName, final SinkConfig sink, final String httpCollectorUrl) {
+        final Config stub = ConfigFactory.parseMap(ImmutableMap.of(
+                "latency.millis", sink.getLatencyMillis(),
+                "latency.jitter.millis", sink.getLatencyJitterMillis(),
+                "failure.rate", sink.getFailureRate()));
+        switch (sinkName) {
+            case SoakConfig.KAFKA_SINK_NAME:
+                return ConfigFactory.parseMap(ImmutableMap.of(
+                        "bootstrap.servers", "localhost:9092",
+                        "producer.topic", "proto-spans"))
+                        .withValue(StubKafkaDispatcher.STUB_CONFIG_KEY, stub.root())
+                        .atKey(ConfigUtil.joinPath("kafka-stub"));
+            case SoakConfig.KINESIS_SINK_NAME:
+                return ConfigFactory.parseMap(ImmutableMap.of(
+                        "Region", "us-west-2",
+                        "StreamName", "proto-spans",
+                        "OutstandingRecordsLimit", 100000))
+                        .withValue(StubKinesisDispatcher.STUB_CONFIG_KEY, stub.root())
+                        .atKey(ConfigUtil.joinPath("kinesis-stub"));
+            default:
+                return ConfigFactory.parseMap(ImmutableMap.of("url", httpCollectorUrl)).atKey("http");
+        }
+    }
+
+    private static void awaitPort(final int port) throws InterruptedException, TimeoutException {
+        final long deadline = System.currentTimeMillis() + AGENT_START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new TimeoutException("soak agent is not listening on port " + port);
+    }
+}
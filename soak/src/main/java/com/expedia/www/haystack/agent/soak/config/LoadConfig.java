@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * open loop load of one of the agent endpoints. The requests are sent at a fixed rate whether or not the previous
+ * ones have been answered, and are dropped by the client while max.outstanding of them are still unanswered
+ */
+public class LoadConfig {
+    private final static String RATE_CONFIG_KEY = "rate";
+    private final static String MAX_OUTSTANDING_CONFIG_KEY = "max.outstanding";
+    private final static String ENCODING_CONFIG_KEY = "encoding";
+
+    private final double rate;
+    private final int maxOutstanding;
+    private final String encoding;
+
+    LoadConfig(final double rate, final int maxOutstanding, final String encoding) {
+        Validate.isTrue(rate >= 0, "load rate should be >= 0");
+        Validate.isTrue(maxOutstanding > 0, "load max.outstanding should be > 0");
+
+        this.rate = rate;
+        this.maxOutstanding = maxOutstanding;
+        this.encoding = encoding;
+    }
+
+    public boolean isEnabled() {
+        return rate > 0;
+    }
+
+    // requests per second
+    public double getRate() {
+        return rate;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    // zipkin encoding of the request bodies, null for the grpc load
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public static LoadConfig from(final Config config) {
+        final double rate = config.hasPath(RATE_CONFIG_KEY) ? config.getDouble(RATE_CONFIG_KEY) : 0d;
+        final int maxOutstanding = config.hasPath(MAX_OUTSTANDING_CONFIG_KEY) ? config.getInt(MAX_OUTSTANDING_CONFIG_KEY) : 1000;
+        final String encoding = config.hasPath(ENCODING_CONFIG_KEY) ? config.getString(ENCODING_CONFIG_KEY) : null;
+        return new LoadConfig(rate, maxOutstanding, encoding);
+    }
+}
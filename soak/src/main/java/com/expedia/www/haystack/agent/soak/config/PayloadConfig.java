@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * shape of the spans sent to the agents. A pool of requests is built before the load starts and is sent round robin
+ */
+public class PayloadConfig {
+    private final static String SPANS_PER_REQUEST_CONFIG_KEY = "spans.per.request";
+    private final static String TAGS_PER_SPAN_CONFIG_KEY = "tags.per.span";
+    private final static String TAG_VALUE_BYTES_CONFIG_KEY = "tag.value.bytes";
+    private final static String LOGS_PER_SPAN_CONFIG_KEY = "logs.per.span";
+    private final static String POOL_SIZE_CONFIG_KEY = "pool.size";
+
+    private final int spansPerRequest;
+    private final int tagsPerSpan;
+    private final int tagValueBytes;
+    private final int logsPerSpan;
+    private final int poolSize;
+
+    PayloadConfig(final int spansPerRequest,
+                  final int tagsPerSpan,
+                  final int tagValueBytes,
+                  final int logsPerSpan,
+                  final int poolSize) {
+        Validate.isTrue(spansPerRequest > 0, "payload spans.per.request should be > 0");
+        Validate.isTrue(tagsPerSpan >= 0, "payload tags.per.span should be >= 0");
+        Validate.isTrue(tagValueBytes >= 0, "payload tag.value.bytes should be >= 0");
+        Validate.isTrue(logsPerSpan >= 0, "payload logs.per.span should be >= 0");
+        Validate.isTrue(poolSize > 0, "payload pool.size should be > 0");
+
+        this.spansPerRequest = spansPerRequest;
+        this.tagsPerSpan = tagsPerSpan;
+        this.tagValueBytes = tagValueBytes;
+        this.logsPerSpan = logsPerSpan;
+        this.poolSize = poolSize;
+    }
+
+    // spans of a pitchfork request, a grpc request always carries a single span
+    public int getSpansPerRequest() {
+        return spansPerRequest;
+    }
+
+    public int getTagsPerSpan() {
+        return tagsPerSpan;
+    }
+
+    public int getTagValueBytes() {
+        return tagValueBytes;
+    }
+
+    public int getLogsPerSpan() {
+        return logsPerSpan;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static PayloadConfig from(final Config config) {
+        final int spansPerRequest = config.hasPath(SPANS_PER_REQUEST_CONFIG_KEY) ? config.getInt(SPANS_PER_REQUEST_CONFIG_KEY) : 10;
+        final int tagsPerSpan = config.hasPath(TAGS_PER_SPAN_CONFIG_KEY) ? config.getInt(TAGS_PER_SPAN_CONFIG_KEY) : 8;
+        final int tagValueBytes = config.hasPath(TAG_VALUE_BYTES_CONFIG_KEY) ? config.getInt(TAG_VALUE_BYTES_CONFIG_KEY) : 32;
+        final int logsPerSpan = config.hasPath(LOGS_PER_SPAN_CONFIG_KEY) ? config.getInt(LOGS_PER_SPAN_CONFIG_KEY) : 2;
+        final int poolSize = config.hasPath(POOL_SIZE_CONFIG_KEY) ? config.getInt(POOL_SIZE_CONFIG_KEY) : 256;
+        return new PayloadConfig(spansPerRequest, tagsPerSpan, tagValueBytes, logsPerSpan, poolSize);
+    }
+}
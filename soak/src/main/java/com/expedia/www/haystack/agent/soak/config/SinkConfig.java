@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.config;
+
+import com.typesafe.config.Config;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * behavior of an in-process stand-in of a sink: how long it takes to acknowledge a record and how often it fails
+ */
+public class SinkConfig {
+    private final static String ENABLED_CONFIG_KEY = "enabled";
+    private final static String LATENCY_MILLIS_CONFIG_KEY = "latency.millis";
+    private final static String LATENCY_JITTER_MILLIS_CONFIG_KEY = "latency.jitter.millis";
+    private final static String FAILURE_RATE_CONFIG_KEY = "failure.rate";
+
+    private final boolean enabled;
+    private final long latencyMillis;
+    private final long latencyJitterMillis;
+    private final double failureRate;
+
+    SinkConfig(final boolean enabled, final long latencyMillis, final long latencyJitterMillis, final double failureRate) {
+        Validate.isTrue(latencyMillis >= 0, "sink latency.millis should be >= 0");
+        Validate.isTrue(latencyJitterMillis >= 0, "sink latency.jitter.millis should be >= 0");
+        Validate.isTrue(failureRate >= 0 && failureRate <= 1, "sink failure.rate should be between 0 and 1");
+
+        this.enabled = enabled;
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+        this.failureRate = failureRate;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getLatencyJitterMillis() {
+        return latencyJitterMillis;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static SinkConfig from(final Config config) {
+        final boolean enabled = !config.hasPath(ENABLED_CONFIG_KEY) || config.getBoolean(ENABLED_CONFIG_KEY); // default is true
+        final long latencyMillis = config.hasPath(LATENCY_MILLIS_CONFIG_KEY) ? config.getLong(LATENCY_MILLIS_CONFIG_KEY) : 0L;
+        final long latencyJitterMillis = config.hasPath(LATENCY_JITTER_MILLIS_CONFIG_KEY) ?
+                config.getLong(LATENCY_JITTER_MILLIS_CONFIG_KEY) : 0L;
+        final double failureRate = config.hasPath(FAILURE_RATE_CONFIG_KEY) ? config.getDouble(FAILURE_RATE_CONFIG_KEY) : 0d;
+        return new SinkConfig(enabled, latencyMillis, latencyJitterMillis, failureRate);
+    }
+}
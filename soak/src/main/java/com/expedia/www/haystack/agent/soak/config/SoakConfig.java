@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.config;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * configuration of a soak run: how long it lasts, the agents it starts, the load it drives against them and the
+ * stand-ins of the sinks the agents dispatch to
+ */
+public class SoakConfig {
+    public final static String SOAK_CONFIG_KEY = "soak";
+
+    public final static String SPANS_AGENT_NAME = "spans";
+    public final static String PITCHFORK_AGENT_NAME = "pitchfork";
+
+    public final static String KAFKA_SINK_NAME = "kafka";
+    public final static String KINESIS_SINK_NAME = "kinesis";
+    public final static String HTTP_SINK_NAME = "http";
+
+    private final static String DURATION_SECONDS_CONFIG_KEY = "duration.seconds";
+    private final static String WARMUP_SECONDS_CONFIG_KEY = "warmup.seconds";
+    private final static String REPORT_INTERVAL_SECONDS_CONFIG_KEY = "report.interval.seconds";
+    private final static String AGENTS_CONFIG_KEY = "agents";
+    private final static String LOAD_CONFIG_KEY = "load";
+    private final static String PAYLOAD_CONFIG_KEY = "payload";
+    private final static String SINKS_CONFIG_KEY = "sinks";
+
+    private final static String PORT_CONFIG_KEY = "port";
+
+    private final static String GRPC_LOAD_NAME = "grpc";
+    private final static String V1_LOAD_NAME = "v1";
+    private final static String V2_LOAD_NAME = "v2";
+
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int reportIntervalSeconds;
+    private final Map<String, Config> agents;
+    private final LoadConfig grpcLoad;
+    private final LoadConfig v1Load;
+    private final LoadConfig v2Load;
+    private final PayloadConfig payload;
+    private final Map<String, SinkConfig> sinks;
+
+    SoakConfig(final int durationSeconds,
+               final int warmupSeconds,
+               final int reportIntervalSeconds,
+               final Map<String, Config> agents,
+               final LoadConfig grpcLoad,
+               final LoadConfig v1Load,
+               final LoadConfig v2Load,
+               final PayloadConfig payload,
+               final Map<String, SinkConfig> sinks) {
+        Validate.isTrue(durationSeconds > 0, "soak duration.seconds should be > 0");
+        Validate.isTrue(warmupSeconds >= 0 && warmupSeconds < durationSeconds,
+                "soak warmup.seconds should be >= 0 and < duration.seconds");
+        Validate.isTrue(reportIntervalSeconds > 0, "soak report.interval.seconds should be > 0");
+        Validate.isTrue(!grpcLoad.isEnabled() || agents.containsKey(SPANS_AGENT_NAME),
+                "soak grpc load needs the spans agent");
+        Validate.isTrue(!v1Load.isEnabled() && !v2Load.isEnabled() || agents.containsKey(PITCHFORK_AGENT_NAME),
+                "soak v1 and v2 loads need the pitchfork agent");
+        agents.forEach((name, agent) ->
+                Validate.isTrue(agent.hasPath(PORT_CONFIG_KEY), "soak agent %s needs a port", name));
+        Validate.isTrue(sinks.values().stream().anyMatch(SinkConfig::isEnabled), "soak needs at least one enabled sink");
+
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.reportIntervalSeconds = reportIntervalSeconds;
+        this.agents = agents;
+        this.grpcLoad = grpcLoad;
+        this.v1Load = v1Load;
+        this.v2Load = v2Load;
+        this.payload = payload;
+        this.sinks = sinks;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    // the first seconds of the run are reported but left out of the summary
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public int getReportIntervalSeconds() {
+        return reportIntervalSeconds;
+    }
+
+    // config of every agent to start, by agent name. The dispatchers to the sinks are added to it
+    public Map<String, Config> getAgents() {
+        return agents;
+    }
+
+    public int getAgentPort(final String agentName) {
+        return agents.get(agentName).getInt(PORT_CONFIG_KEY);
+    }
+
+    public LoadConfig getGrpcLoad() {
+        return grpcLoad;
+    }
+
+    public LoadConfig getV1Load() {
+        return v1Load;
+    }
+
+    public LoadConfig getV2Load() {
+        return v2Load;
+    }
+
+    public PayloadConfig getPayload() {
+        return payload;
+    }
+
+    public Map<String, SinkConfig> getSinks() {
+        return sinks;
+    }
+
+    @SuppressWarnings("PMD.NPathComplexity")
+    public static SoakConfig from(final Config config) {
+        final int durationSeconds = config.hasPath(DURATION_SECONDS_CONFIG_KEY) ? config.getInt(DURATION_SECONDS_CONFIG_KEY) : 300;
+        final int warmupSeconds = config.hasPath(WARMUP_SECONDS_CONFIG_KEY) ? config.getInt(WARMUP_SECONDS_CONFIG_KEY) : 30;
+        final int reportIntervalSeconds = config.hasPath(REPORT_INTERVAL_SECONDS_CONFIG_KEY) ?
+                config.getInt(REPORT_INTERVAL_SECONDS_CONFIG_KEY) : 10;
+        final Config load = getConfig(config, LOAD_CONFIG_KEY);
+
+        return new SoakConfig(durationSeconds,
+                warmupSeconds,
+                reportIntervalSeconds,
+                readSections(getConfig(config, AGENTS_CONFIG_KEY), SPANS_AGENT_NAME, PITCHFORK_AGENT_NAME),
+                LoadConfig.from(getConfig(load, GRPC_LOAD_NAME)),
+                LoadConfig.from(getConfig(load, V1_LOAD_NAME)),
+                LoadConfig.from(getConfig(load, V2_LOAD_NAME)),
+                PayloadConfig.from(getConfig(config, PAYLOAD_CONFIG_KEY)),
+                readSinks(getConfig(config, SINKS_CONFIG_KEY)));
+    }
+
+    private static Map<String, SinkConfig> readSinks(final Config config) {
+        final Map<String, SinkConfig> sinks = new LinkedHashMap<>();
+        readSections(config, KAFKA_SINK_NAME, KINESIS_SINK_NAME, HTTP_SINK_NAME)
+                .forEach((name, section) -> sinks.put(name, SinkConfig.from(section)));
+        return Collections.unmodifiableMap(sinks);
+    }
+
+    // the sections that are present, in the given order
+    private static Map<String, Config> readSections(final Config config, final String... names) {
+        final Map<String, Config> sections = new LinkedHashMap<>();
+        for (final String name : names) {
+            if (config.hasPath(name)) {
+                sections.put(name, config.getConfig(name));
+            }
+        }
+        return Collections.unmodifiableMap(sections);
+    }
+
+    private static Config getConfig(final Config config, final String key) {
+        return config.hasPath(key) ? config.getConfig(key) : ConfigFactory.empty();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.agent.api.DispatchResult;
+import com.expedia.open.tracing.agent.api.SpanAgentGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * sends one span a request to the SpanAgent/dispatch call of the span agent
+ */
+public class GrpcLoadTarget implements LoadTarget {
+    private final ManagedChannel channel;
+    private final SpanAgentGrpc.SpanAgentStub stub;
+    private final List<Span> spans;
+
+    public GrpcLoadTarget(final int port, final Payloads payloads) {
+        this.channel = NettyChannelBuilder.forAddress("localhost", port).usePlaintext(true).build();
+        this.stub = SpanAgentGrpc.newStub(channel);
+        this.spans = payloads.haystackSpans();
+    }
+
+    @Override
+    public String getName() {
+        return "grpc";
+    }
+
+    @Override
+    public int getSpansPerRequest() {
+        return 1;
+    }
+
+    @Override
+    public void send(final long sequence, final Runnable onSuccess, final Consumer<Throwable> onFailure) {
+        stub.dispatch(spans.get((int) (sequence % spans.size())), new StreamObserver<DispatchResult>() {
+            @Override
+            public void onNext(final DispatchResult result) {
+                if (result.getCode() == DispatchResult.ResultCode.SUCCESS) {
+                    onSuccess.run();
+                } else {
+                    onFailure.accept(new IllegalStateException(result.getErrorMessage()));
+                }
+            }
+
+            @Override
+            public void onError(final Throwable error) {
+                onFailure.accept(error);
+            }
+
+            @Override
+            public void onCompleted() {
+                // the result has been handled by onNext
+            }
+        });
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
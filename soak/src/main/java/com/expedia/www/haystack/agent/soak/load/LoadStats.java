@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts of the requests of a load and the latency of the accepted ones, in microseconds. The latency is taken from
+ * the time the request should have been sent at, so a client that falls behind its rate reports the delay too
+ */
+public class LoadStats {
+    private final static long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final String name;
+    private final int spansPerRequest;
+    private final Recorder latency = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    public LoadStats(final String name, final int spansPerRequest) {
+        this.name = name;
+        this.spansPerRequest = spansPerRequest;
+    }
+
+    void onSent() {
+        sent.increment();
+        outstanding.incrementAndGet();
+    }
+
+    void onSuccess(final long latencyNanos) {
+        outstanding.decrementAndGet();
+        succeeded.increment();
+        latency.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    void onFailure() {
+        outstanding.decrementAndGet();
+        failed.increment();
+    }
+
+    // the request was not sent as max.outstanding requests were still unanswered
+    void onDropped() {
+        dropped.increment();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSpansPerRequest() {
+        return spansPerRequest;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return latency of the requests accepted since the previous call
+     */
+    public Histogram takeIntervalLatency() {
+        return latency.getIntervalHistogram();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import java.util.function.Consumer;
+
+/**
+ * endpoint of an agent the soak load is sent to
+ */
+public interface LoadTarget extends AutoCloseable {
+    /**
+     * @return name of the load in the reports
+     */
+    String getName();
+
+    /**
+     * @return spans carried by every request
+     */
+    int getSpansPerRequest();
+
+    /**
+     * sends a request without waiting for the agent to answer it
+     * @param sequence sequence number of the request, picks the payload
+     * @param onSuccess called once the agent has accepted the request
+     * @param onFailure called if the agent fails or rejects the request
+     */
+    void send(long sequence, Runnable onSuccess, Consumer<Throwable> onFailure);
+}
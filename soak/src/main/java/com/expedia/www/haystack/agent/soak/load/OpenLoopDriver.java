@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import com.expedia.www.haystack.agent.soak.config.LoadConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * sends the requests of a load at a fixed rate from its own thread. A request is sent at its scheduled time whether
+ * or not the previous ones have been answered, unless max.outstanding of them are still unanswered, in which case it
+ * is dropped and counted as such
+ */
+public class OpenLoopDriver implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(OpenLoopDriver.class);
+
+    private final LoadTarget target;
+    private final LoadStats stats;
+    private final double intervalNanos;
+    private final int maxOutstanding;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public OpenLoopDriver(final LoadTarget target, final LoadConfig config) {
+        this.target = target;
+        this.stats = new LoadStats(target.getName(), target.getSpansPerRequest());
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+        this.maxOutstanding = config.getMaxOutstanding();
+        this.thread = new Thread(this::run, "soak-load-" + target.getName());
+        this.thread.setDaemon(true);
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        final long start = System.nanoTime();
+        long sequence = 0;
+        while (running) {
+            final long scheduled = start + (long) (sequence * intervalNanos);
+            final long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+
+            if (stats.getOutstanding() >= maxOutstanding) {
+                stats.onDropped();
+            } else {
+                send(sequence, scheduled);
+            }
+            sequence++;
+        }
+    }
+
+    private void send(final long sequence, final long scheduled) {
+        stats.onSent();
+        try {
+            target.send(sequence, () -> stats.onSuccess(System.nanoTime() - scheduled), error -> stats.onFailure());
+        } catch (Exception e) {
+            LOGGER.debug("Fail to send the request of the {} load", target.getName(), e);
+            stats.onFailure();
+        }
+    }
+
+    /**
+     * stops sending requests, the ones already sent can still be answered
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+}
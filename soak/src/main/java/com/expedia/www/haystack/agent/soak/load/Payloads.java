@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import com.expedia.open.tracing.Log;
+import com.expedia.open.tracing.Span;
+import com.expedia.open.tracing.Tag;
+import com.expedia.www.haystack.agent.soak.config.PayloadConfig;
+import org.apache.commons.lang3.RandomStringUtils;
+import zipkin2.Endpoint;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * builds the pools of requests sent by the soak loads, in the shape of the payload config. Every pool is built from
+ * the same seed, so two runs with the same config send the same spans
+ */
+public class Payloads {
+    private final static long SEED = 20190601L;
+    private final static int SERVICES = 8;
+    private final static int OPERATIONS = 32;
+    private final static long MAX_DURATION_MICROS = 100000L;
+
+    private final PayloadConfig config;
+
+    public Payloads(final PayloadConfig config) {
+        this.config = config;
+    }
+
+    public int getSpansPerRequest() {
+        return config.getSpansPerRequest();
+    }
+
+    /**
+     * @return pool of haystack spans for the grpc load
+     */
+    public List<Span> haystackSpans() {
+        final Random random = new Random(SEED);
+        final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        final List<Span> spans = new ArrayList<>(config.getPoolSize());
+        for (int idx = 0; idx < config.getPoolSize(); idx++) {
+            final Span.Builder span = Span.newBuilder()
+                    .setTraceId(new UUID(random.nextLong(), random.nextLong()).toString())
+                    .setSpanId(new UUID(random.nextLong(), random.nextLong()).toString())
+                    .setServiceName("soak-service-" + idx % SERVICES)
+                    .setOperationName("operation-" + idx % OPERATIONS)
+                    .setStartTime(startMicros)
+                    .setDuration(1 + (long) (random.nextDouble() * MAX_DURATION_MICROS));
+            for (int tag = 0; tag < config.getTagsPerSpan(); tag++) {
+                span.addTags(Tag.newBuilder().setKey("tag-" + tag).setType(Tag.TagType.STRING).setVStr(tagValue(random)));
+            }
+            for (int log = 0; log < config.getLogsPerSpan(); log++) {
+                span.addLogs(Log.newBuilder()
+                        .setTimestamp(startMicros + log)
+                        .addFields(Tag.newBuilder().setKey("event").setType(Tag.TagType.STRING).setVStr("event-" + log)));
+            }
+            spans.add(span.build());
+        }
+        return spans;
+    }
+
+    /**
+     * @param encoder zipkin encoding of the bodies
+     * @return pool of request bodies of spans.per.request zipkin spans for the pitchfork loads
+     */
+    public List<byte[]> zipkinBodies(final SpanBytesEncoder encoder) {
+        final Random random = new Random(SEED);
+        final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        final List<byte[]> bodies = new ArrayList<>(config.getPoolSize());
+        for (int idx = 0; idx < config.getPoolSize(); idx++) {
+            // the first span of a request is the server span the others are the children of
+            final String traceId = zipkinId(random) + zipkinId(random);
+            final String rootId = zipkinId(random);
+            final List<zipkin2.Span> spans = new ArrayList<>(config.getSpansPerRequest());
+            spans.add(zipkinSpan(random, traceId, rootId, null, zipkin2.Span.Kind.SERVER, idx, startMicros));
+            for (int spanIdx = 1; spanIdx < config.getSpansPerRequest(); spanIdx++) {
+                spans.add(zipkinSpan(random, traceId, zipkinId(random), rootId, zipkin2.Span.Kind.CLIENT, idx + spanIdx,
+                        startMicros));
+            }
+            bodies.add(encoder.encodeList(spans));
+        }
+        return bodies;
+    }
+
+    private zipkin2.Span zipkinSpan(final Random random,
+                                    final String traceId,
+                                    final String id,
+                                    final String parentId,
+                                    final zipkin2.Span.Kind kind,
+                                    final int idx,
+                                    final long startMicros) {
+        final zipkin2.Span.Builder span = zipkin2.Span.newBuilder()
+                .traceId(traceId)
+                .id(id)
+                .parentId(parentId)
+                .name("operation-" + idx % OPERATIONS)
+                .kind(kind)
+                .localEndpoint(Endpoint.newBuilder().serviceName("soak-service-" + idx % SERVICES).ip("10.0.0.1").build())
+                .timestamp(startMicros)
+                .duration(1 + (long) (random.nextDouble() * MAX_DURATION_MICROS));
+        for (int tag = 0; tag < config.getTagsPerSpan(); tag++) {
+            span.putTag("tag-" + tag, tagValue(random));
+        }
+        for (int log = 0; log < config.getLogsPerSpan(); log++) {
+            span.addAnnotation(startMicros + log, "event-" + log);
+        }
+        return span.build();
+    }
+
+    private static String zipkinId(final Random random) {
+        return Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+    }
+
+    private String tagValue(final Random random) {
+        return RandomStringUtils.random(config.getTagValueBytes(), 0, 0, true, true, null, random);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.load;
+
+import com.expedia.www.haystack.agent.pitchfork.processors.ZipkinSpanProcessorFactory;
+import com.expedia.www.haystack.agent.soak.config.LoadConfig;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.apache.commons.lang3.Validate;
+import zipkin2.codec.SpanBytesEncoder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * posts zipkin spans to the /api/v1/spans or /api/v2/spans endpoint of pitchfork. The v1 bodies are encoded in
+ * json or thrift, and the v2 ones in json or proto
+ */
+public class PitchforkLoadTarget implements LoadTarget {
+    private final String version;
+    private final String url;
+    private final MediaType mediaType;
+    private final List<byte[]> bodies;
+    private final int spansPerRequest;
+    private final OkHttpClient client;
+
+    public PitchforkLoadTarget(final String version, final int port, final LoadConfig config, final Payloads payloads) {
+        final String encoding = config.getEncoding() == null ? "json" : config.getEncoding().toLowerCase(Locale.ROOT);
+        final SpanBytesEncoder encoder = encoder(version, encoding);
+
+        this.version = version;
+        this.url = String.format("http://localhost:%d/api/%s/spans", port, version);
+        this.mediaType = MediaType.get(contentType(encoder));
+        this.bodies = payloads.zipkinBodies(encoder);
+        this.spansPerRequest = payloads.getSpansPerRequest();
+
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxOutstanding());
+        dispatcher.setMaxRequestsPerHost(config.getMaxOutstanding());
+        this.client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.getMaxOutstanding(), 5, TimeUnit.MINUTES))
+                .build();
+    }
+
+    private static SpanBytesEncoder encoder(final String version, final String encoding) {
+        if ("v1".equals(version)) {
+            Validate.isTrue("json".equals(encoding) || "thrift".equals(encoding), "soak v1 encoding should be json or thrift");
+            return "json".equals(encoding) ? SpanBytesEncoder.JSON_V1 : SpanBytesEncoder.THRIFT;
+        }
+        Validate.isTrue("json".equals(encoding) || "proto".equals(encoding), "soak v2 encoding should be json or proto");
+        return "json".equals(encoding) ? SpanBytesEncoder.JSON_V2 : SpanBytesEncoder.PROTO3;
+    }
+
+    private static String contentType(final SpanBytesEncoder encoder) {
+        switch (encoder) {
+            case THRIFT:
+                return ZipkinSpanProcessorFactory.THRIFT_CONTENT_TYPE;
+            case PROTO3:
+                return ZipkinSpanProcessorFactory.PROTO_CONTENT_TYPE;
+            default:
+                return ZipkinSpanProcessorFactory.JSON_CONTENT_TYPE;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return version;
+    }
+
+    @Override
+    public int getSpansPerRequest() {
+        return spansPerRequest;
+    }
+
+    @Override
+    public void send(final long sequence, final Runnable onSuccess, final Consumer<Throwable> onFailure) {
+        final Request request = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(mediaType, bodies.get((int) (sequence % bodies.size()))))
+                .build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(final Call call, final IOException e) {
+                onFailure.accept(e);
+            }
+
+            @Override
+            public void onResponse(final Call call, final Response response) {
+                try (Response ignoredResponse = response) {
+                    if (response.isSuccessful()) {
+                        onSuccess.run();
+                    } else {
+                        onFailure.accept(new IOException("pitchfork answered with status code " + response.code()));
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
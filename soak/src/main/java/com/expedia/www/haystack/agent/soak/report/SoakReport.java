@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.report;
+
+import com.codahale.metrics.Meter;
+import com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry;
+import com.expedia.www.haystack.agent.soak.load.LoadStats;
+import com.expedia.www.haystack.agent.soak.sink.SinkBehavior;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * reports the soak run, every interval and once for the whole run past the warmup: the rate of the requests sent,
+ * accepted, failed and dropped by the client, the client latency, the records answered by the sinks, the meters of
+ * the agents that count dropped or failed spans, and the heap and gc of the process the agents and the client share
+ */
+public class SoakReport {
+    private final static Logger LOGGER = LoggerFactory.getLogger(SoakReport.class);
+    private final static Pattern AGENT_DROP_METERS = Pattern.compile("drop|fail|reject|error|timeout|overflow|shed",
+            Pattern.CASE_INSENSITIVE);
+    private final static long MB = 1024L * 1024L;
+
+    private final List<LoadStats> loads;
+    private final Map<String, Histogram> runLatency = new HashMap<>();
+    private Snapshot runStart;
+    private Snapshot previous;
+    private long peakHeapUsed;
+
+    public SoakReport(final List<LoadStats> loads) {
+        this.loads = loads;
+        this.previous = takeSnapshot();
+        this.runStart = previous;
+    }
+
+    /**
+     * the run is measured from now on, what happened before is only in the interval reports
+     */
+    public void startMeasuring() {
+        reportInterval();
+        runStart = previous;
+        runLatency.clear();
+        peakHeapUsed = 0;
+    }
+
+    /**
+     * reports what happened since the previous report
+     */
+    public void reportInterval() {
+        final Snapshot current = takeSnapshot();
+        final Map<String, Histogram> latency = new HashMap<>();
+        for (final LoadStats load : loads) {
+            final Histogram interval = load.takeIntervalLatency();
+            latency.put(load.getName(), interval);
+            runLatency.computeIfAbsent(load.getName(), name -> new Histogram(interval.getHighestTrackableValue(), 3))
+                    .add(interval);
+        }
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        peakHeapUsed = Math.max(peakHeapUsed, heap.getUsed());
+
+        log("interval", previous, current, latency);
+        LOGGER.info("  heap used={}MB committed={}MB max={}MB", heap.getUsed() / MB, heap.getCommitted() / MB, heap.getMax() / MB);
+        previous = current;
+    }
+
+    /**
+     * reports the whole run past the warmup
+     */
+    public void reportRun() {
+        reportInterval();
+        log("run", runStart, previous, runLatency);
+        LOGGER.info("  heap peak used={}MB", peakHeapUsed / MB);
+    }
+
+    private void log(final String window, final Snapshot from, final Snapshot to, final Map<String, Histogram> latency) {
+        final double seconds = Math.max(to.nanos - from.nanos, 1L) / (double) TimeUnit.SECONDS.toNanos(1);
+        LOGGER.info("soak {} of {}s", window, String.format("%.1f", seconds));
+
+        for (final LoadStats load : loads) {
+            final long[] start = from.loads.get(load.getName());
+            final long[] end = to.loads.get(load.getName());
+            final double accepted = (end[1] - start[1]) / seconds;
+            final Histogram histogram = latency.get(load.getName());
+            LOGGER.info(String.format("  %-4s sent=%.1f/s accepted=%.1f/s (%.1f spans/s) failed=%d dropped=%d outstanding=%d "
+                            + "latency p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                    load.getName(), (end[0] - start[0]) / seconds, accepted, accepted * load.getSpansPerRequest(),
+                    end[2] - start[2], end[3] - start[3], load.getOutstanding(),
+                    millis(histogram, 50), millis(histogram, 99), millis(histogram, 99.9), millis(histogram, 100)));
+        }
+
+        to.meters.forEach((name, count) -> {
+            final long delta = count - from.meters.getOrDefault(name, 0L);
+            if (name.startsWith(SinkBehavior.METRIC_PREFIX)) {
+                LOGGER.info(String.format("  %s=%.1f/s", name, delta / seconds));
+            } else if (delta > 0) {
+                LOGGER.info("  {}={}", name, delta);
+            }
+        });
+
+        to.collectors.forEach((name, stats) -> {
+            final long[] start = from.collectors.getOrDefault(name, new long[2]);
+            LOGGER.info("  gc '{}' collections={} time={}ms", name, stats[0] - start[0], stats[1] - start[1]);
+        });
+    }
+
+    private static double millis(final Histogram histogram, final double percentile) {
+        if (histogram == null || histogram.getTotalCount() == 0) {
+            return 0d;
+        }
+        return histogram.getValueAtPercentile(percentile) / 1000d;
+    }
+
+    private Snapshot takeSnapshot() {
+        final Map<String, long[]> loadCounts = new HashMap<>();
+        for (final LoadStats load : loads) {
+            loadCounts.put(load.getName(),
+                    new long[] { load.getSent(), load.getSucceeded(), load.getFailed(), load.getDropped() });
+        }
+
+        final Map<String, Long> meters = new TreeMap<>();
+        for (final Map.Entry<String, Meter> meter : SharedMetricRegistry.getMeters((name, metric) ->
+                name.startsWith(SinkBehavior.METRIC_PREFIX) || AGENT_DROP_METERS.matcher(name).find()).entrySet()) {
+            meters.put(meter.getKey(), meter.getValue().getCount());
+        }
+
+        final Map<String, long[]> collectors = new TreeMap<>();
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectors.put(collector.getName(), new long[] { collector.getCollectionCount(), collector.getCollectionTime() });
+        }
+        return new Snapshot(System.nanoTime(), loadCounts, meters, collectors);
+    }
+
+    // counters at a point of the run: sent, accepted, failed and dropped requests of every load, the meters, and the
+    // count and time of every garbage collector
+    private static final class Snapshot {
+        private final long nanos;
+        private final Map<String, long[]> loads;
+        private final Map<String, Long> meters;
+        private final Map<String, long[]> collectors;
+
+        Snapshot(final long nanos,
+                 final Map<String, long[]> loads,
+                 final Map<String, Long> meters,
+                 final Map<String, long[]> collectors) {
+            this.nanos = nanos;
+            this.loads = loads;
+            this.meters = meters;
+            this.collectors = collectors;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import com.codahale.metrics.Meter;
+import com.expedia.www.haystack.agent.soak.config.SinkConfig;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.expedia.www.haystack.agent.core.metrics.SharedMetricRegistry.newMeter;
+
+/**
+ * answers the records taken by a stand-in sink after the configured latency, and fails the configured share of them.
+ * The answers run on a single thread, like the callbacks of the kafka producer, and are counted by the
+ * 'soak.sink.[name].acknowledged' and 'soak.sink.[name].failed' meters
+ */
+public class SinkBehavior implements AutoCloseable {
+    public final static String METRIC_PREFIX = "soak.sink.";
+
+    private final String sinkName;
+    private final SinkConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Meter acknowledged;
+    private final Meter failed;
+
+    public SinkBehavior(final String sinkName, final SinkConfig config) {
+        this.sinkName = sinkName;
+        this.config = config;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "soak-" + sinkName + "-sink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acknowledged = newMeter(METRIC_PREFIX + sinkName + ".acknowledged");
+        this.failed = newMeter(METRIC_PREFIX + sinkName + ".failed");
+    }
+
+    /**
+     * answers a record once its latency has passed
+     * @param onSuccess called if the record is acknowledged
+     * @param onFailure called with the injected failure otherwise
+     */
+    public void respond(final Runnable onSuccess, final Consumer<Exception> onFailure) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final boolean fails = config.getFailureRate() > 0 && random.nextDouble() < config.getFailureRate();
+        final long jitterMicros = TimeUnit.MILLISECONDS.toMicros(config.getLatencyJitterMillis());
+        final long delayMicros = TimeUnit.MILLISECONDS.toMicros(config.getLatencyMillis())
+                + (jitterMicros > 0 ? random.nextLong(jitterMicros) : 0L);
+
+        outstanding.incrementAndGet();
+        final Runnable response = () -> {
+            outstanding.decrementAndGet();
+            if (fails) {
+                failed.mark();
+                onFailure.accept(new IOException("failure injected by the soak " + sinkName + " sink"));
+            } else {
+                acknowledged.mark();
+                onSuccess.run();
+            }
+        };
+
+        if (delayMicros == 0) {
+            response.run();
+        } else {
+            scheduler.schedule(response, delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    // records taken but not answered yet
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * waits till every record taken has been answered
+     * @param timeoutMillis most time to wait for
+     */
+    public void drain(final long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
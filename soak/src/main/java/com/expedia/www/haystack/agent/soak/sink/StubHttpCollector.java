@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import com.expedia.www.haystack.agent.soak.config.SinkConfig;
+import com.expedia.www.haystack.agent.soak.config.SoakConfig;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * local http collector the http dispatcher posts the records to. It reads the body, and answers with a 200 or, for
+ * the injected failures, a 503 once the latency of the soak http sink has passed. It listens on a free port
+ */
+public class StubHttpCollector implements AutoCloseable {
+    private final static Logger LOGGER = LoggerFactory.getLogger(StubHttpCollector.class);
+    private final static String PATH = "/spans";
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final SinkBehavior behavior;
+
+    public StubHttpCollector(final SinkConfig config) {
+        this.behavior = new SinkBehavior(SoakConfig.HTTP_SINK_NAME, config);
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new CollectorHandler());
+    }
+
+    public void start() throws Exception {
+        server.start();
+        LOGGER.info("soak http collector is listening on {}", getUrl());
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + connector.getLocalPort() + PATH;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+        behavior.close();
+    }
+
+    private final class CollectorHandler extends AbstractHandler {
+        private final static int BUFFER_SIZE = 8192;
+
+        @Override
+        public void handle(final String target,
+                           final Request baseRequest,
+                           final HttpServletRequest request,
+                           final HttpServletResponse response) throws IOException {
+            baseRequest.setHandled(true);
+            skipBody(request.getInputStream());
+
+            final AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            behavior.respond(() -> {
+                response.setStatus(HttpServletResponse.SC_OK);
+                async.complete();
+            }, exception -> {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                async.complete();
+            });
+        }
+
+        // the records are not kept
+        private void skipBody(final ServletInputStream body) throws IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            do {
+                read = body.read(buffer);
+            } while (read >= 0);
+        }
+    }
+}
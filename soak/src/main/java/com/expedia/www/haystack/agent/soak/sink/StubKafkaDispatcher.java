@@ -0,0 +1,52 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import com.expedia.www.haystack.agent.dispatcher.KafkaDispatcher;
+import com.expedia.www.haystack.agent.soak.config.SinkConfig;
+import com.expedia.www.haystack.agent.soak.config.SoakConfig;
+import com.typesafe.config.Config;
+import org.apache.kafka.clients.producer.Producer;
+
+import java.util.Properties;
+
+/**
+ * kafka dispatcher that sends the records to the soak kafka sink. Everything but the producer is the kafka dispatcher,
+ * and the 'stub' section of its config sets the behavior of the sink
+ */
+public class StubKafkaDispatcher extends KafkaDispatcher {
+    public final static String STUB_CONFIG_KEY = "stub";
+
+    private SinkBehavior behavior;
+
+    @Override
+    public String getName() {
+        return "kafka-stub";
+    }
+
+    @Override
+    public void initialize(final Config config) {
+        behavior = new SinkBehavior(SoakConfig.KAFKA_SINK_NAME, SinkConfig.from(config.getConfig(STUB_CONFIG_KEY)));
+        super.initialize(config.withoutPath(STUB_CONFIG_KEY));
+    }
+
+    @Override
+    protected Producer<byte[], byte[]> createProducer(final Properties properties) {
+        return new StubKafkaProducer(behavior);
+    }
+}
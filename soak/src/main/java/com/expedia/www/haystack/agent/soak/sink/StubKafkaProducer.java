@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * kafka producer that answers the records with the behavior of the soak kafka sink instead of sending them to a
+ * cluster. The records are not kept
+ */
+public class StubKafkaProducer implements Producer<byte[], byte[]> {
+    private final static long DRAIN_TIMEOUT_MILLIS = 10000L;
+
+    private final SinkBehavior behavior;
+
+    public StubKafkaProducer(final SinkBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(final ProducerRecord<byte[], byte[]> record) {
+        return send(record, null);
+    }
+
+    @Override
+    public Future<RecordMetadata> send(final ProducerRecord<byte[], byte[]> record, final Callback callback) {
+        final CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+        behavior.respond(() -> {
+            final RecordMetadata metadata = new RecordMetadata(new TopicPartition(record.topic(), 0), -1L, 0L,
+                    System.currentTimeMillis(), (Long) null, size(record.key()), size(record.value()));
+            if (callback != null) {
+                callback.onCompletion(metadata, null);
+            }
+            future.complete(metadata);
+        }, exception -> {
+            if (callback != null) {
+                callback.onCompletion(null, exception);
+            }
+            future.completeExceptionally(exception);
+        });
+        return future;
+    }
+
+    private static int size(final byte[] bytes) {
+        return bytes == null ? -1 : bytes.length;
+    }
+
+    @Override
+    public void flush() {
+        behavior.drain(DRAIN_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(final String topic) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+        behavior.close();
+    }
+
+    @Override
+    public void close(final long timeout, final TimeUnit unit) {
+        behavior.drain(unit.toMillis(timeout));
+        behavior.close();
+    }
+
+    @Override
+    public void initTransactions() {
+        throw new UnsupportedOperationException("the soak kafka sink has no transactions");
+    }
+
+    @Override
+    public void beginTransaction() {
+        throw new UnsupportedOperationException("the soak kafka sink has no transactions");
+    }
+
+    @Override
+    public void sendOffsetsToTransaction(final Map<TopicPartition, OffsetAndMetadata> offsets, final String consumerGroupId) {
+        throw new UnsupportedOperationException("the soak kafka sink has no transactions");
+    }
+
+    @Override
+    public void commitTransaction() {
+        throw new UnsupportedOperationException("the soak kafka sink has no transactions");
+    }
+
+    @Override
+    public void abortTransaction() {
+        throw new UnsupportedOperationException("the soak kafka sink has no transactions");
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import com.amazonaws.services.kinesis.producer.IKinesisProducer;
+import com.amazonaws.services.kinesis.producer.KinesisProducerConfiguration;
+import com.expedia.www.haystack.agent.dispatcher.KinesisDispatcher;
+import com.expedia.www.haystack.agent.soak.config.SinkConfig;
+import com.expedia.www.haystack.agent.soak.config.SoakConfig;
+import com.typesafe.config.Config;
+
+/**
+ * kinesis dispatcher that puts the records to the soak kinesis sink. Everything but the kpl is the kinesis dispatcher,
+ * including the limit on the outstanding records, and the 'stub' section of its config sets the behavior of the sink
+ */
+public class StubKinesisDispatcher extends KinesisDispatcher {
+    public final static String STUB_CONFIG_KEY = "stub";
+
+    private SinkBehavior behavior;
+
+    @Override
+    public String getName() {
+        return "kinesis-stub";
+    }
+
+    @Override
+    public void initialize(final Config config) {
+        behavior = new SinkBehavior(SoakConfig.KINESIS_SINK_NAME, SinkConfig.from(config.getConfig(STUB_CONFIG_KEY)));
+        super.initialize(config.withoutPath(STUB_CONFIG_KEY));
+    }
+
+    @Override
+    protected IKinesisProducer createProducer(final KinesisProducerConfiguration configuration) {
+        return new StubKinesisProducer(behavior);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2019 Expedia, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package com.expedia.www.haystack.agent.soak.sink;
+
+import com.amazonaws.services.kinesis.producer.Attempt;
+import com.amazonaws.services.kinesis.producer.IKinesisProducer;
+import com.amazonaws.services.kinesis.producer.Metric;
+import com.amazonaws.services.kinesis.producer.UserRecord;
+import com.amazonaws.services.kinesis.producer.UserRecordFailedException;
+import com.amazonaws.services.kinesis.producer.UserRecordResult;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * kinesis producer that answers the user records with the behavior of the soak kinesis sink instead of putting them
+ * to a stream. A failed record fails its future with a UserRecordFailedException, as the kpl does once it runs out
+ * of retries
+ */
+public class StubKinesisProducer implements IKinesisProducer {
+    private final static long DRAIN_TIMEOUT_MILLIS = 10000L;
+    private final static String SHARD_ID = "shardId-000000000000";
+
+    private final SinkBehavior behavior;
+    private final AtomicLong sequenceNumber = new AtomicLong();
+
+    public StubKinesisProducer(final SinkBehavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(final String stream, final String partitionKey, final ByteBuffer data) {
+        return addUserRecord(stream, partitionKey, null, data);
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(final UserRecord userRecord) {
+        return addUserRecord(userRecord.getStreamName(), userRecord.getPartitionKey(), userRecord.getExplicitHashKey(),
+                userRecord.getData());
+    }
+
+    @Override
+    public ListenableFuture<UserRecordResult> addUserRecord(final String stream,
+                                                           final String partitionKey,
+                                                           final String explicitHashKey,
+                                                           final ByteBuffer data) {
+        final SettableFuture<UserRecordResult> future = SettableFuture.create();
+        behavior.respond(
+                () -> future.set(new UserRecordResult(
+                        Collections.singletonList(new Attempt(0, 0, null, null, true)),
+                        Long.toString(sequenceNumber.incrementAndGet()),
+                        SHARD_ID,
+                        true)),
+                exception -> future.setException(new UserRecordFailedException(new UserRecordResult(
+                        Collections.singletonList(new Attempt(0, 0, "ServiceUnavailable", exception.getMessage(), false)),
+                        null,
+                        null,
+                        false))));
+        return future;
+    }
+
+    @Override
+    public int getOutstandingRecordsCount() {
+        return behavior.getOutstanding();
+    }
+
+    @Override
+    public List<Metric> getMetrics(final String metricName, final int windowSeconds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics(final String metricName) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Metric> getMetrics(final int windowSeconds) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void destroy() {
+        behavior.close();
+    }
+
+    @Override
+    public void flush(final String stream) {
+        // the records are not buffered
+    }
+
+    @Override
+    public void flush() {
+        // the records are not buffered
+    }
+
+    @Override
+    public void flushSync() {
+        behavior.drain(DRAIN_TIMEOUT_MILLIS);
+    }
+}